@@ -0,0 +1,107 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trips of the snapshot format.
+ * @author sinog
+ *
+ */
+public class OsmDataSnapshotTest {
+
+	private static final byte[] KEY = "test".getBytes(StandardCharsets.UTF_8);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSmallColumns() throws IOException {
+		assertRoundTrip(columns(3, 10, 7, 5));
+	}
+
+	/**
+	 * The columns are larger than the write buffer, and the odd sized ones make it flush
+	 * at positions that are not aligned to 8 bytes.
+	 */
+	@Test
+	public void testColumnsLargerThanWriteBuffer() throws IOException {
+		assertRoundTrip(columns(1500001, 300000, 300001, 3));
+	}
+
+	@Test
+	public void testOtherKey() throws IOException {
+		File file = folder.newFile();
+		OsmDataSnapshot.writeSections(columns(3, 10, 7, 5), KEY, file);
+		assertNull(OsmDataSnapshot.mapSections(file, "other".getBytes(StandardCharsets.UTF_8), 5));
+	}
+
+	private void assertRoundTrip(Buffer[] sections) throws IOException {
+		File file = folder.newFile();
+		OsmDataSnapshot.writeSections(sections, KEY, file);
+		Buffer[] mapped = OsmDataSnapshot.mapSections(file, KEY, sections.length);
+		assertEquals(sections.length, mapped.length);
+		for(int s = 0; s < sections.length; s++) {
+			assertEquals(sections[s] instanceof LongBuffer, mapped[s] instanceof LongBuffer);
+			assertEquals(sections[s] instanceof IntBuffer, mapped[s] instanceof IntBuffer);
+			assertArrayEquals("Column " + s, toArray(sections[s]), toArray(mapped[s]));
+		}
+		assertTrue(file.length() % 8 == 0);
+	}
+
+	/**
+	 * A byte column, a long column, an int column, a byte column and a long column
+	 * with the given lengths, filled with values telling apart their position.
+	 */
+	private static Buffer[] columns(int bytes, int longs, int ints, int lastBytes) {
+		ByteBuffer first = ByteBuffer.allocate(bytes);
+		for(int i = 0; i < bytes; i++) {
+			first.put(i, (byte) (i * 31));
+		}
+		LongBuffer second = LongBuffer.allocate(longs);
+		for(int i = 0; i < longs; i++) {
+			second.put(i, i * 0x100000001L + 7);
+		}
+		IntBuffer third = IntBuffer.allocate(ints);
+		for(int i = 0; i < ints; i++) {
+			third.put(i, -i * 13);
+		}
+		ByteBuffer fourth = ByteBuffer.allocate(lastBytes);
+		for(int i = 0; i < lastBytes; i++) {
+			fourth.put(i, (byte) (100 + i));
+		}
+		LongBuffer fifth = LongBuffer.allocate(3);
+		for(int i = 0; i < 3; i++) {
+			fifth.put(i, Long.MIN_VALUE + i);
+		}
+		return new Buffer[] {first, second, third, fourth, fifth};
+	}
+
+	private static long[] toArray(Buffer section) {
+		long[] res = new long[section.limit()];
+		for(int i = 0; i < res.length; i++) {
+			if(section instanceof LongBuffer) {
+				res[i] = ((LongBuffer) section).get(i);
+			}else if(section instanceof IntBuffer) {
+				res[i] = ((IntBuffer) section).get(i);
+			}else {
+				res[i] = ((ByteBuffer) section).get(i);
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,183 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Queries to the segment index of a small synthetic street grid, compared to a scan of all its segments.
+ * @author sinog
+ *
+ */
+public class SegmentIndexTest {
+
+	private static final double COORDINATE_SCALE = 1e7;
+
+	private static final int SIZE = 20;
+
+	private static final double LAT = 40.85;
+	private static final double LON = 14.25;
+	private static final double STEP = 0.001;
+
+	private static final double DELTA = 1e-9;
+
+	private final OsmColumns columns = grid();
+
+	private final SegmentIndex index = new SegmentIndex(columns);
+
+	@Test
+	public void testFindNearest() {
+		SegmentQuery q = index.newQuery();
+		Random random = new Random(1);
+		for(int i = 0; i < 500; i++) {
+			double lat = randomLat(random);
+			double lon = randomLon(random);
+			int k = 1 + random.nextInt(12);
+			double[] expected = scan(lat, lon);
+			int count = q.findNearest(lat, lon, k);
+			assertEquals(k, count);
+			for(int j = 0; j < count; j++) {
+				assertEquals(expected[j], q.getDistance(j), DELTA);
+			}
+			assertDistinct(q);
+		}
+	}
+
+	@Test
+	public void testFindNearestWithinDistance() {
+		SegmentQuery q = index.newQuery();
+		Random random = new Random(2);
+		for(int i = 0; i < 500; i++) {
+			double lat = randomLat(random);
+			double lon = randomLon(random);
+			int k = 1 + random.nextInt(12);
+			double maxDistance = random.nextDouble() * 300;
+			double[] expected = scan(lat, lon);
+			int within = 0;
+			while(within < expected.length && expected[within] <= maxDistance) {
+				within++;
+			}
+			int count = q.findNearest(lat, lon, k, maxDistance);
+			assertEquals(Math.min(k, within), count);
+			for(int j = 0; j < count; j++) {
+				assertEquals(expected[j], q.getDistance(j), DELTA);
+			}
+			assertDistinct(q);
+		}
+	}
+
+	@Test
+	public void testFindWithinRadius() {
+		SegmentQuery q = index.newQuery();
+		SegmentQuery all = index.newQuery();
+		Random random = new Random(3);
+		for(int i = 0; i < 500; i++) {
+			double lat = randomLat(random);
+			double lon = randomLon(random);
+			double radius = random.nextDouble() * 400;
+			all.reset(lat, lon);
+			for(int s = 0; s < columns.getSegmentCount(); s++) {
+				all.offerWithinRadius(s, radius);
+			}
+			q.findWithinRadius(lat, lon, radius);
+			assertArrayEquals(sortedSegments(all), sortedSegments(q));
+		}
+	}
+
+	@Test
+	public void testMoreNearestThanSegments() {
+		SegmentQuery q = index.newQuery();
+		int segments = columns.getSegmentCount();
+		assertEquals(segments, q.findNearest(LAT - 1, LON + 1, segments + 10));
+		assertDistinct(q);
+	}
+
+	/**
+	 * @return the distances from the point to all the segments, sorted.
+	 */
+	private double[] scan(double lat, double lon) {
+		SegmentQuery all = index.newQuery();
+		all.reset(lat, lon);
+		for(int s = 0; s < columns.getSegmentCount(); s++) {
+			all.offerWithinRadius(s, Double.POSITIVE_INFINITY);
+		}
+		double[] res = Arrays.copyOf(all.distances, all.count);
+		Arrays.sort(res);
+		return res;
+	}
+
+	private static void assertDistinct(SegmentQuery q) {
+		long[] segments = sortedSegments(q);
+		for(int i = 1; i < segments.length; i++) {
+			assertTrue("Segment " + segments[i] + " found twice", segments[i] != segments[i - 1]);
+		}
+	}
+
+	private static long[] sortedSegments(SegmentQuery q) {
+		long[] res = new long[q.getCount()];
+		for(int i = 0; i < res.length; i++) {
+			res[i] = q.getSegment(i);
+		}
+		Arrays.sort(res);
+		return res;
+	}
+
+	/**
+	 * @return a latitude on the grid or up to a few cells around it.
+	 */
+	private static double randomLat(Random random) {
+		return LAT + (random.nextDouble() * (SIZE + 6) - 3) * STEP;
+	}
+
+	private static double randomLon(Random random) {
+		return LON + (random.nextDouble() * (SIZE + 6) - 3) * STEP;
+	}
+
+	/**
+	 * A grid of SIZE x SIZE nodes joined by horizontal and vertical segments in both directions,
+	 * with some holes, and a few long diagonal segments overlapping many cells of the index.
+	 */
+	private static OsmColumns grid() {
+		int nodes = SIZE * SIZE;
+		int[] lats = new int[nodes];
+		int[] lons = new int[nodes];
+		for(int n = 0; n < nodes; n++) {
+			lats[n] = (int) Math.round((LAT + (n / SIZE) * STEP) * COORDINATE_SCALE);
+			lons[n] = (int) Math.round((LON + (n % SIZE) * STEP) * COORDINATE_SCALE);
+		}
+		IntBuffer origins = IntBuffer.allocate(4 * nodes + 8);
+		IntBuffer destinations = IntBuffer.allocate(4 * nodes + 8);
+		Random random = new Random(0);
+		for(int n = 0; n < nodes; n++) {
+			int[] neighbours = {n % SIZE < SIZE - 1 ? n + 1 : -1, n / SIZE < SIZE - 1 ? n + SIZE : -1};
+			for(int m: neighbours) {
+				if(m >= 0 && random.nextInt(5) > 0) {
+					origins.put(n).put(m);
+					destinations.put(m).put(n);
+				}
+			}
+		}
+		for(int i = 0; i < 4; i++) {
+			int n = random.nextInt(nodes);
+			int m = random.nextInt(nodes);
+			if(n != m) {
+				origins.put(n);
+				destinations.put(m);
+			}
+		}
+		origins.flip();
+		destinations.flip();
+		OsmColumns res = new OsmColumns();
+		res.nodeLats = IntBuffer.wrap(lats);
+		res.nodeLons = IntBuffer.wrap(lons);
+		res.segmentOrigins = origins;
+		res.segmentDestinations = destinations;
+		return res;
+	}
+}
@@ -0,0 +1,67 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Decoding of the attributes of the nodes.
+ * @author sinog
+ *
+ */
+public class OsmXmlParserTest {
+
+	/**
+	 * A node without coordinates is not reported, and does not take the coordinates of the node before it.
+	 */
+	@Test
+	public void testNodeWithoutCoordinates() throws IOException {
+		List<String> nodes = parse("<osm>\n"
+				+ "<node id=\"1\" lat=\"40.5\" lon=\"14.25\"/>\n"
+				+ "<node id=\"2\" visible=\"false\"/>\n"
+				+ "<node id=\"3\" lat=\"41\"/>\n"
+				+ "<node id=\"4\" lat=\"-1.5\" lon=\"2\"/>\n"
+				+ "</osm>");
+		assertEquals(2, nodes.size());
+		assertEquals("1 40.5 14.25", nodes.get(0));
+		assertEquals("4 -1.5 2.0", nodes.get(1));
+	}
+
+	/**
+	 * The nodes deleted by an osmChange file are reported even without coordinates.
+	 */
+	@Test
+	public void testDeletedNode() throws IOException {
+		List<String> nodes = parse("<osmChange>\n"
+				+ "<modify><node id=\"1\" lat=\"40.5\" lon=\"14.25\"/></modify>\n"
+				+ "<delete><node id=\"2\"/></delete>\n"
+				+ "<modify><node id=\"3\"/></modify>\n"
+				+ "</osmChange>");
+		assertEquals(2, nodes.size());
+		assertEquals("1 40.5 14.25", nodes.get(0));
+		assertEquals("2 NaN NaN", nodes.get(1));
+	}
+
+	private static List<String> parse(String xml) throws IOException {
+		List<String> res = new ArrayList<String>();
+		byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+		new OsmXmlParser(new OsmXmlParser.Handler() {
+
+			@Override
+			public void node(long id, double lat, double lon) {
+				res.add(id + " " + lat + " " + lon);
+			}
+
+			@Override
+			public void way(long id, long[] refs, int refCount, OsmXmlParser.TagBuffer tags) {
+			}
+		}).parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+		return res;
+	}
+}
@@ -0,0 +1,183 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+
+/**
+ * Decompression of bzip2 data cut at the magic numbers of its blocks, compared to the sequential decompression.
+ * @author sinog
+ *
+ */
+public class ParallelBzip2InputStreamTest {
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+
+	private static final int THREADS = 4;
+
+	@Test
+	public void testBlocks() throws IOException {
+		byte[] compressed = compress(words(500000, 1), 1);
+		assertTrue(countBlockMagic(compressed) > 3);
+		assertSameAsSequential(compressed);
+	}
+
+	/**
+	 * Streams concatenated as pbzip2 writes them, each one ending with its own end of stream magic number and CRC.
+	 */
+	@Test
+	public void testConcatenatedStreams() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(compress(words(250000, 2), 1));
+		out.write(compress(words(30, 3), 1));
+		out.write(compress(words(180000, 4), 1));
+		assertSameAsSequential(out.toByteArray());
+	}
+
+	/**
+	 * The block magic number appears by chance in the header of a block, which is cut in two pieces
+	 * that must be decompressed again as a whole.
+	 */
+	@Test
+	public void testFalseBlockMagic() throws IOException {
+		byte[] compressed = compress(falseMagicBlock(), 9);
+		assertEquals(2, countBlockMagic(compressed));
+		assertSameAsSequential(compressed);
+	}
+
+	private static void assertSameAsSequential(byte[] compressed) throws IOException {
+		byte[] expected;
+		try(InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), true)){
+			expected = in.readAllBytes();
+		}
+		byte[] actual;
+		try(InputStream in = new ParallelBzip2InputStream(new ByteArrayInputStream(compressed), THREADS)){
+			actual = in.readAllBytes();
+		}
+		assertEquals(expected.length, actual.length);
+		assertArrayEquals(expected, actual);
+	}
+
+	private static byte[] compress(byte[] data, int blockSize) throws IOException {
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		try(OutputStream out = new BZip2CompressorOutputStream(res, blockSize)){
+			out.write(data);
+		}
+		return res.toByteArray();
+	}
+
+	/**
+	 * @return about size bytes of text made of random words, which compress to blocks of different sizes.
+	 */
+	private static byte[] words(int size, long seed) {
+		Random random = new Random(seed);
+		StringBuilder res = new StringBuilder(size + 16);
+		while(res.length() < size) {
+			int length = 1 + random.nextInt(9);
+			for(int i = 0; i < length; i++) {
+				res.append((char) ('a' + random.nextInt(random.nextBoolean() ? 4 : 26)));
+			}
+			res.append(random.nextInt(10) == 0 ? '\n' : ' ');
+		}
+		return res.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return the number of bit positions of data where the block magic number is found.
+	 */
+	private static int countBlockMagic(byte[] data) {
+		int res = 0;
+		long window = 0;
+		for(int i = 0; i < data.length * 8; i++) {
+			window = ((window << 1) | ((data[i >>> 3] >>> (7 - (i & 7))) & 1)) & ((1L << 48) - 1);
+			if(i >= 47 && window == BLOCK_MAGIC) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Builds the data of a block whose header contains the block magic number 22 bits after the beginning
+	 * of its CRC: the header is the magic number, the 32 bit CRC of the data, a 0 bit, the 24 bit position
+	 * of the data among its sorted rotations and a 16 bit map of the ranges of 16 byte values in the data.
+	 * So the 10 low bits of the CRC, the position and the 13 first bits of the map must be those of the magic
+	 * number. The data begins with its only 0x40 byte, so that its position is the number of smaller bytes,
+	 * and no byte is repeated, so that the data is not run length encoded before sorting.
+	 */
+	private static byte[] falseMagicBlock() {
+		int smaller = (int) ((BLOCK_MAGIC >>> 13) & 0xFFFFF);
+		int crcBits = (int) (BLOCK_MAGIC >>> 38);
+		/*
+		 * The values of the ranges set in the map, the range 4 only has the first byte.
+		 */
+		byte[] low = range(0x00, 0x30);
+		byte[] high = range(0x60, 0x80, 0x90, 0xC0);
+		byte[] res = new byte[smaller + 100000];
+		Random random = new Random(5);
+		res[0] = 0x40;
+		int lowLeft = smaller;
+		for(int i = 1; i < res.length; i++) {
+			byte[] values = i < res.length - 2 && random.nextInt(res.length - 2 - i) < lowLeft ? low : high;
+			do {
+				res[i] = values[random.nextInt(values.length)];
+			}while(res[i] == res[i - 1]);
+			if(values == low) {
+				lowLeft--;
+			}
+		}
+		/*
+		 * The last two bytes are changed until the CRC ends with the bits of the magic number.
+		 */
+		int prefix = crc(0xFFFFFFFF, res, 0, res.length - 2);
+		for(byte a: high) {
+			for(byte b: high) {
+				if(a == b || a == res[res.length - 3]) {
+					continue;
+				}
+				res[res.length - 2] = a;
+				res[res.length - 1] = b;
+				if((~crc(prefix, res, res.length - 2, res.length) & 0x3FF) == crcBits) {
+					return res;
+				}
+			}
+		}
+		throw new IllegalStateException("No CRC with the bits of the magic number");
+	}
+
+	/**
+	 * @return the 16 values of the ranges beginning at each of starts.
+	 */
+	private static byte[] range(int... starts) {
+		byte[] res = new byte[starts.length * 16];
+		for(int i = 0; i < res.length; i++) {
+			res[i] = (byte) (starts[i / 16] + i % 16);
+		}
+		return res;
+	}
+
+	/**
+	 * Updates the CRC of bzip2, which is computed most significant bit first, without the final inversion.
+	 */
+	private static int crc(int crc, byte[] data, int from, int to) {
+		for(int i = from; i < to; i++) {
+			crc ^= (data[i] & 0xFF) << 24;
+			for(int bit = 0; bit < 8; bit++) {
+				crc = crc < 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+			}
+		}
+		return crc;
+	}
+}
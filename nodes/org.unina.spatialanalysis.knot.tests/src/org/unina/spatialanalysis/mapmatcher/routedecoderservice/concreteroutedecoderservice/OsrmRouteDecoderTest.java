@@ -0,0 +1,228 @@
+package org.unina.spatialanalysis.mapmatcher.routedecoderservice.concreteroutedecoderservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Test;
+import org.osgi.framework.ServiceException;
+import org.unina.spatialanalysis.mapmatcher.entity.route.Route;
+import org.unina.spatialanalysis.mapmatcher.entity.route.RouteStep;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Stitching of the windows of a long trace, from canned responses of the match service.
+ * The trace runs along a road whose nodes are numbered 0, 1, 2 ...: trace coordinate i is matched on the
+ * segment from node 3i to node 3i + 1, so that consecutive legs share the segment of their waypoint, as
+ * they do in the responses of OSRM, and each segment takes one second.
+ * @author sinog
+ *
+ */
+public class OsrmRouteDecoderTest {
+
+	private static final LocalDateTime BEGIN = LocalDateTime.of(2021, 3, 1, 8, 0);
+
+	private static final Route ROUTE = new Route("LINESTRING()", BEGIN, 7, "route");
+
+	/*
+	 * With 40 coordinates per request, windows overlap by 10 coordinates and start every 30 coordinates,
+	 * so a trace of 100 coordinates has 3 windows, kept from coordinate 0 to 34, 35 to 64 and 65 to 99.
+	 */
+	private static final int MAX_TRACE_SIZE = 40;
+	private static final int LENGTH = 100;
+
+	@Test
+	public void testSingleWindow() {
+		List<RouteStep> steps = stitch(LENGTH, LENGTH, window(0, LENGTH, range(0, LENGTH)));
+		assertSteps(expected(legs(range(0, LENGTH))), steps);
+	}
+
+	/**
+	 * The legs of the overlaps are kept by a single window, and the segment shared by two legs at a seam
+	 * is a single step.
+	 */
+	@Test
+	public void testSeams() {
+		List<RouteStep> steps = stitch(LENGTH, MAX_TRACE_SIZE,
+				window(0, 40, range(0, 40)),
+				window(30, 70, range(30, 70)),
+				window(60, 100, range(60, 100)));
+		assertSteps(expected(legs(range(0, LENGTH))), steps);
+	}
+
+	/**
+	 * The legs start from the coordinates matched to their first waypoint, which are not the index of the
+	 * waypoint when a coordinate is not matched and the trace is split in several matchings.
+	 */
+	@Test
+	public void testSplitMatchings() {
+		List<RouteStep> steps = stitch(LENGTH, MAX_TRACE_SIZE,
+				window(0, 40, range(0, 40)),
+				window(30, 70, range(30, 40), range(41, 70)),
+				window(60, 100, range(60, 100)));
+		List<int[]> legs = legs(range(0, 40));
+		legs.addAll(legs(range(41, LENGTH)));
+		assertSteps(expected(legs), steps);
+	}
+
+	/**
+	 * A window the server cannot match leaves a gap between the legs of the other windows.
+	 */
+	@Test
+	public void testFailedMiddleWindow() {
+		List<RouteStep> steps = stitch(LENGTH, MAX_TRACE_SIZE,
+				window(0, 40, range(0, 40)),
+				"{\"code\":\"NoMatch\",\"message\":\"Could not match the trace.\"}",
+				window(60, 100, range(60, 100)));
+		List<int[]> legs = legs(range(0, 36));
+		legs.addAll(legs(range(65, LENGTH)));
+		assertSteps(expected(legs), steps);
+	}
+
+	@Test
+	public void testAllWindowsFailed() {
+		String noMatch = "{\"code\":\"NoMatch\",\"message\":\"Could not match the trace.\"}";
+		try {
+			stitch(LENGTH, MAX_TRACE_SIZE, noMatch, noMatch, noMatch);
+			fail("No exception when no window is matched");
+		}catch(ServiceException e) {
+			assertEquals("NoMatch", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testTruncatedWindow() {
+		String body = window(30, 70, range(30, 70));
+		try {
+			stitch(LENGTH, MAX_TRACE_SIZE, window(0, 40, range(0, 40)), body.substring(0, body.length() / 2), window(60, 100, range(60, 100)));
+			fail("No exception for a truncated response");
+		}catch(CompletionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	private static List<RouteStep> stitch(int length, int maxTraceSize, String... bodies) {
+		List<CompletableFuture<OsrmRouteDecoder.Annotations>> futures = new ArrayList<CompletableFuture<OsrmRouteDecoder.Annotations>>();
+		for(String body: bodies) {
+			CompletableFuture<OsrmRouteDecoder.Annotations> future = new CompletableFuture<OsrmRouteDecoder.Annotations>();
+			/*
+			 * The body is read through a buffered source, as the responses are, which reports its end with an EOFException.
+			 */
+			BufferedSource source = Okio.buffer((Source) new Buffer().writeUtf8(body));
+			try {
+				future.complete(OsrmRouteDecoder.readAnnotations(source, new OsrmRouteDecoder.Annotations()));
+			}catch(IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+			futures.add(future);
+		}
+		return OsrmRouteDecoder.stitchWindows(futures, length, maxTraceSize, ROUTE);
+	}
+
+	/**
+	 * Checks the nodes of the steps, and that each step begins when the previous one ends.
+	 */
+	private static void assertSteps(List<long[]> expected, List<RouteStep> steps) {
+		assertEquals(expected.size(), steps.size());
+		LocalDateTime time = BEGIN;
+		for(int i = 0; i < steps.size(); i++) {
+			RouteStep step = steps.get(i);
+			assertEquals("Origin of step " + i, expected.get(i)[0], step.getOriginId());
+			assertEquals("Destination of step " + i, expected.get(i)[1], step.getDestinationId());
+			assertEquals("Begin of step " + i, time, step.getBeginAt());
+			assertEquals("End of step " + i, time.plusSeconds(expected.get(i)[2]), step.getEndAt());
+			time = step.getEndAt();
+		}
+	}
+
+	/**
+	 * @return the origin, the destination and the seconds of the steps along the legs, a segment shared
+	 * by two consecutive legs being a single step of two seconds.
+	 */
+	private static List<long[]> expected(List<int[]> legs) {
+		List<long[]> res = new ArrayList<long[]>();
+		for(int[] leg: legs) {
+			for(long node = 3 * leg[0]; node <= 3 * leg[1]; node++) {
+				long[] last = res.isEmpty() ? null : res.get(res.size() - 1);
+				if(last != null && last[0] == node) {
+					last[2]++;
+				}else {
+					res.add(new long[] {node, node + 1, 1});
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the legs between the consecutive coordinates of a matching, as their first and last coordinate.
+	 */
+	private static List<int[]> legs(int[] matching) {
+		List<int[]> res = new ArrayList<int[]>();
+		for(int i = 0; i + 1 < matching.length; i++) {
+			res.add(new int[] {matching[i], matching[i + 1]});
+		}
+		return res;
+	}
+
+	private static int[] range(int from, int to) {
+		int[] res = new int[to - from];
+		Arrays.setAll(res, i -> from + i);
+		return res;
+	}
+
+	/**
+	 * @return the response to the request of the coordinates from index from to index to - 1 of the trace,
+	 * matched in the given matchings, each one listing the indices of the coordinates it matches.
+	 * The other coordinates are not matched.
+	 */
+	private static String window(int from, int to, int[]... matchings) {
+		StringBuilder res = new StringBuilder("{\"code\":\"Ok\",\"matchings\":[");
+		for(int m = 0; m < matchings.length; m++) {
+			res.append(m > 0 ? "," : "").append("{\"confidence\":0.9,\"geometry\":\"_p~iF~ps|U\",\"legs\":[");
+			List<int[]> legs = legs(matchings[m]);
+			for(int l = 0; l < legs.size(); l++) {
+				int segments = 3 * (legs.get(l)[1] - legs.get(l)[0]) + 1;
+				res.append(l > 0 ? "," : "").append("{\"steps\":[],\"summary\":\"\",\"annotation\":{\"nodes\":[");
+				for(int k = 0; k <= segments; k++) {
+					res.append(k > 0 ? "," : "").append(3 * legs.get(l)[0] + k);
+				}
+				res.append("],\"duration\":").append(values(segments, "1.0"));
+				res.append(",\"speed\":").append(values(segments, "10.0"));
+				res.append(",\"distance\":").append(values(segments, "10.0"));
+				res.append("},\"duration\":").append(segments).append("}");
+			}
+			res.append("]}");
+		}
+		res.append("],\"tracepoints\":[");
+		for(int i = from; i < to; i++) {
+			res.append(i > from ? "," : "");
+			String tracepoint = "null";
+			for(int m = 0; m < matchings.length; m++) {
+				int waypoint = Arrays.binarySearch(matchings[m], i);
+				if(waypoint >= 0) {
+					tracepoint = "{\"alternatives_count\":0,\"location\":[14.25,40.85],\"matchings_index\":" + m + ",\"waypoint_index\":" + waypoint + "}";
+				}
+			}
+			res.append(tracepoint);
+		}
+		return res.append("]}").toString();
+	}
+
+	private static String values(int count, String value) {
+		return "[" + String.join(",", Collections.nCopies(count, value)) + "]";
+	}
+}
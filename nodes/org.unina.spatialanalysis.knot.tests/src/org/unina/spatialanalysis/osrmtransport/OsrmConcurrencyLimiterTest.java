@@ -0,0 +1,60 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Adaptation of the limit of the requests to the latency of the server.
+ * @author sinog
+ *
+ */
+public class OsrmConcurrencyLimiterTest {
+
+	private static final long MILLISECOND = 1000000L;
+
+	/**
+	 * Longer requests take longer in proportion, which is not a sign of congestion.
+	 */
+	@Test
+	public void testLongRequestsDoNotDecrease() throws InterruptedException {
+		OsrmConcurrencyLimiter limiter = new OsrmConcurrencyLimiter(8, 1, 64);
+		for(int i = 0; i < 16; i++) {
+			respond(limiter, 10, 10 * MILLISECOND);
+		}
+		for(int i = 0; i < 16; i++) {
+			respond(limiter, 100, 100 * MILLISECOND);
+		}
+		for(int i = 0; i < 16; i++) {
+			respond(limiter, 80, 80 * MILLISECOND);
+		}
+		assertEquals(0, limiter.getDecreaseCount());
+	}
+
+	@Test
+	public void testSlowResponsesDecrease() throws InterruptedException {
+		OsrmConcurrencyLimiter limiter = new OsrmConcurrencyLimiter(8, 1, 64);
+		for(int i = 0; i < 16; i++) {
+			respond(limiter, 10, 10 * MILLISECOND);
+		}
+		respond(limiter, 10, 50 * MILLISECOND);
+		assertEquals(1, limiter.getDecreaseCount());
+		assertTrue(limiter.getLimit() < 8);
+	}
+
+	@Test
+	public void testRequestSize() {
+		assertEquals(3, OsrmTransport.getRequestSize("/match/v1/driving/14.1,40.2;14.2,40.2;14.3,40.2?overview=full&annotations=nodes"));
+		assertEquals(2, OsrmTransport.getRequestSize("http://127.0.0.1:5000/route/v1/driving/14.1,40.2;14.2,40.2"));
+		assertEquals(1, OsrmTransport.getRequestSize("/nearest/v1/driving/14.1,40.2"));
+	}
+
+	/**
+	 * Sends a request and releases it as if its response was received after latency nanoseconds.
+	 */
+	private static void respond(OsrmConcurrencyLimiter limiter, int size, long latency) throws InterruptedException {
+		limiter.acquire();
+		limiter.release(size, System.nanoTime() - latency, OsrmConcurrencyLimiter.Outcome.SUCCESS);
+	}
+}
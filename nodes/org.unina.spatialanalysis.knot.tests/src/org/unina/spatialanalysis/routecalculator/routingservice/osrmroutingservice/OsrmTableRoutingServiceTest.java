@@ -0,0 +1,60 @@
+package org.unina.spatialanalysis.routecalculator.routingservice.osrmroutingservice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.osgi.framework.ServiceException;
+
+import okio.Buffer;
+
+/**
+ * Decoding of the responses of the table service.
+ * @author sinog
+ *
+ */
+public class OsrmTableRoutingServiceTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void testDiagonal() throws IOException {
+		double[][] table = decode("{\"code\":\"Ok\",\"durations\":[[1,2],[3,4]],\"distances\":[[10,20],[30,40]]}", 2);
+		assertArrayEquals(new double[] {1, 4}, table[0], DELTA);
+		assertArrayEquals(new double[] {10, 40}, table[1], DELTA);
+	}
+
+	/**
+	 * A route the service could not find is null in the matrices, also as the last cell of a row.
+	 */
+	@Test
+	public void testNullCells() throws IOException {
+		double[][] table = decode("{\"code\":\"Ok\",\"durations\":[[1,2],[3,null]],\"distances\":[[null,20],[30,40]],\"sources\":[]}", 2);
+		assertArrayEquals(new double[] {1, Double.NaN}, table[0], DELTA);
+		assertArrayEquals(new double[] {Double.NaN, 40}, table[1], DELTA);
+	}
+
+	@Test
+	public void testNullOffDiagonal() throws IOException {
+		double[][] table = decode("{\"code\":\"Ok\",\"durations\":[[1,null,null],[null,2,null],[null,null,3]],\"distances\":[[4,null,null],[null,5,null],[null,null,6]]}", 3);
+		assertArrayEquals(new double[] {1, 2, 3}, table[0], DELTA);
+		assertArrayEquals(new double[] {4, 5, 6}, table[1], DELTA);
+	}
+
+	@Test
+	public void testError() throws IOException {
+		try {
+			decode("{\"code\":\"TooBig\",\"message\":\"Too many table coordinates\"}", 2);
+			fail("No exception for a response that is not Ok");
+		}catch(ServiceException e) {
+			assertEquals("Too many table coordinates", e.getMessage());
+		}
+	}
+
+	private static double[][] decode(String body, int routes) throws IOException {
+		return OsrmTableRoutingService.decodeTable(new Buffer().writeUtf8(body), routes);
+	}
+}
@@ -1,5 +1,6 @@
 package org.unina.spatialanalysis.mapmatcher;
 
+import javax.swing.JFileChooser;
 import javax.swing.ToolTipManager;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -11,10 +12,13 @@ import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
 import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
 import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
 /**
@@ -35,13 +39,15 @@ public class MapMatcherNodeDialog extends DefaultNodeSettingsPane {
 	
 	private static final String [] availableRouteDecoderServices = {"OSRM"};
 	
+	private static final String [] clipModes = {MapMatcherNodeModel.CLIP_NONE, MapMatcherNodeModel.CLIP_REGION, MapMatcherNodeModel.CLIP_TRACES};
+	
 	private static final String PAIR_TYPE_TOOLTIP = "<html>"
 			  + "This setting informs the node about the type of points present"
 			  + "<br>in the input data.</br>"
 			  + "</html>";
 	
 	private static final String OSM_FILE_PICKER_TOOLTIP = "<html>"
-			  + "The path of the file containing the OSM map data (.osm file)."
+			  + "The path of the file containing the OSM map data (.osm, .osm.gz, .osm.bz2 or .osm.pbf file)."
 			  + "</html>";
 	
 	private static final String ROUTE_DECODER_STRATEGY_TOOLTIP = "<html>"
@@ -52,6 +58,28 @@ public class MapMatcherNodeDialog extends DefaultNodeSettingsPane {
 	private static final String OSRM_SERVER_TOOLTIP = "<html>"
 			+ "The url inserted here must correspond to a running instance"
 			+ "<br>of the OSRM routing machine.</br>" 
+			+ "<br>Several urls of instances serving the same map can be separated by commas,</br>"
+			+ "<br>the requests are then distributed among them.</br>"
+			+ "</html>";
+
+	private static final String MAX_IN_FLIGHT_REQUESTS_TOOLTIP = "<html>"
+			+ "The maximum number of routes sent at once to the routing service. Raising it up to the number"
+			+ "<br>of threads of the server speeds the matching up; the output rows keep the order of the input."
+			+ "</html>";
+
+	private static final String MAX_TRACE_SIZE_TOOLTIP = "<html>"
+			+ "Traces with more coordinates are split in overlapping windows, matched at once and stitched back together."
+			+ "<br>It must not exceed the max-matching-size of the OSRM server, 100 by default."
+			+ "</html>";
+
+	private static final String CACHE_RESPONSES_TOOLTIP = "<html>"
+			+ "If checked, the responses of the routing service are kept on disk, so that matching the same traces"
+			+ "<br>again reads them from the disk instead of asking the server."
+			+ "</html>";
+
+	private static final String MAP_VERSION_TOOLTIP = "<html>"
+			+ "Any text identifying the map data loaded on the server, e.g. the date of the OSM extract."
+			+ "<br>It must be changed whenever the server is loaded with new map data, so that the old responses are not used."
 			+ "</html>";
 
 	private static final String INCLUDE_NEVER_VISITED_TOOLTIP = "<html>"
@@ -59,6 +87,59 @@ public class MapMatcherNodeDialog extends DefaultNodeSettingsPane {
 			  + "<br>Otherwise, only segments that are visted at least one by a vehicle will be included."
 			  + "</html>";
 	
+	private static final String TAG_KEYS_TOOLTIP = "<html>"
+			  + "The comma separated keys of the way tags to report for each segment, e.g. highway,name,maxspeed."
+			  + "<br>If empty, all the tags of the ways are reported."
+			  + "</html>";
+	
+	private static final String HIGHWAY_NODES_ONLY_TOOLTIP = "<html>"
+			  + "If checked, only the nodes of the highways are loaded from the OSM file, which usually"
+			  + "<br>takes a small fraction of the memory needed by all of them."
+			  + "</html>";
+	
+	private static final String CLIP_MODE_TOOLTIP = "<html>"
+			  + "Loads only the part of the map data inside a region, either given below or computed"
+			  + "<br>from the traces of the input table. Ways crossing the border are kept up to their"
+			  + "<br>first node outside of the region."
+			  + "</html>";
+	
+	private static final String CLIP_REGION_TOOLTIP = "<html>"
+			  + "A bounding box written as minLon,minLat,maxLon,maxLat or a WKT polygon"
+			  + "<br>with longitudes as x and latitudes as y."
+			  + "</html>";
+	
+	private static final String CLIP_MARGIN_TOOLTIP = "<html>"
+			  + "The margin in meters added around the area covered by the traces."
+			  + "</html>";
+	
+	private static final String CHANGE_FILES_TOOLTIP = "<html>"
+			  + "The semicolon separated paths of the osmChange (.osc) files to apply, in order, to the map data."
+			  + "<br>When snapshots are kept, a new change file is applied to the snapshot of the previous ones."
+			  + "</html>";
+	
+	private static final String USE_SNAPSHOT_TOOLTIP = "<html>"
+			  + "If checked, the parsed map data is saved as a snapshot file that the following executions"
+			  + "<br>load almost instantly, as long as the OSM file and the tags to keep do not change."
+			  + "</html>";
+	
+	private static final String SNAPSHOT_DIRECTORY_TOOLTIP = "<html>"
+			  + "The directory in which the snapshots and the tiles are saved. If empty, they are saved next to the OSM file."
+			  + "</html>";
+	
+	private static final String USE_TILES_TOOLTIP = "<html>"
+			  + "If checked, the map data is split in tiles saved with the snapshots, and only the tiles"
+			  + "<br>crossed by the routes are loaded, so that maps of any size can be used."
+			  + "<br>The tiles are built the first time by loading the whole map data."
+			  + "</html>";
+	
+	private static final String TILE_SIZE_TOOLTIP = "<html>"
+			  + "The size of the side of the tiles in degrees."
+			  + "</html>";
+	
+	private static final String MAX_LOADED_TILES_TOOLTIP = "<html>"
+			  + "The maximum number of tiles kept loaded at once; the least recently used tile is unloaded first."
+			  + "</html>";
+	
     @SuppressWarnings("unchecked")
 	protected MapMatcherNodeDialog() {
 
@@ -86,10 +167,88 @@ public class MapMatcherNodeDialog extends DefaultNodeSettingsPane {
         this.createNewGroup("Configuration"); 
         
         SettingsModelString osmPath = MapMatcherNodeModel.createOsmDataPath();
-        DialogComponentFileChooser osmPathFilePicker = new DialogComponentFileChooser(osmPath, "", ".osm");
+        DialogComponentFileChooser osmPathFilePicker = new DialogComponentFileChooser(osmPath, "", ".osm", ".pbf", ".gz", ".bz2");
         osmPathFilePicker.setToolTipText(OSM_FILE_PICKER_TOOLTIP);;
 		addDialogComponent(osmPathFilePicker);
 		
+		SettingsModelString tagKeys = MapMatcherNodeModel.createTagKeysSettings();
+		DialogComponentString tagKeysField = new DialogComponentString(tagKeys, "Way tags to keep (empty for all): ", false, 40);
+		tagKeysField.setToolTipText(TAG_KEYS_TOOLTIP);
+		addDialogComponent(tagKeysField);
+		
+		SettingsModelBoolean highwayNodesOnly = MapMatcherNodeModel.createHighwayNodesOnlySettings();
+		DialogComponentBoolean highwayNodesOnlyPicker = new DialogComponentBoolean(highwayNodesOnly, "Load only the nodes of the highways");
+		highwayNodesOnlyPicker.setToolTipText(HIGHWAY_NODES_ONLY_TOOLTIP);
+		addDialogComponent(highwayNodesOnlyPicker);
+		
+		SettingsModelString clipMode = MapMatcherNodeModel.createClipModeSettings();
+		DialogComponentStringSelection clipModePicker = new DialogComponentStringSelection(clipMode, "Clip the map data to: ", clipModes);
+		clipModePicker.setToolTipText(CLIP_MODE_TOOLTIP);
+		addDialogComponent(clipModePicker);
+		
+		SettingsModelString clipRegion = MapMatcherNodeModel.createClipRegionSettings();
+		DialogComponentString clipRegionField = new DialogComponentString(clipRegion, "Bounding box or WKT polygon: ", false, 40);
+		clipRegionField.setToolTipText(CLIP_REGION_TOOLTIP);
+		addDialogComponent(clipRegionField);
+		
+		SettingsModelDoubleBounded clipMargin = MapMatcherNodeModel.createClipMarginSettings();
+		DialogComponentNumber clipMarginField = new DialogComponentNumber(clipMargin, "Margin around the traces (m): ", 500);
+		clipMarginField.setToolTipText(CLIP_MARGIN_TOOLTIP);
+		addDialogComponent(clipMarginField);
+		
+		clipMode.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				clipRegion.setEnabled(MapMatcherNodeModel.CLIP_REGION.equals(clipMode.getStringValue()));
+				clipMargin.setEnabled(MapMatcherNodeModel.CLIP_TRACES.equals(clipMode.getStringValue()));
+			}
+			
+		});
+		
+		SettingsModelString changeFiles = MapMatcherNodeModel.createChangeFilesSettings();
+		DialogComponentString changeFilesField = new DialogComponentString(changeFiles, "Change files to apply: ", false, 40);
+		changeFilesField.setToolTipText(CHANGE_FILES_TOOLTIP);
+		addDialogComponent(changeFilesField);
+		
+		SettingsModelBoolean useSnapshot = MapMatcherNodeModel.createUseSnapshotSettings();
+		DialogComponentBoolean useSnapshotPicker = new DialogComponentBoolean(useSnapshot, "Keep a snapshot of the parsed map data");
+		useSnapshotPicker.setToolTipText(USE_SNAPSHOT_TOOLTIP);
+		addDialogComponent(useSnapshotPicker);
+		
+		SettingsModelString snapshotDirectory = MapMatcherNodeModel.createSnapshotDirectorySettings();
+		DialogComponentFileChooser snapshotDirectoryPicker = new DialogComponentFileChooser(snapshotDirectory, "knot_snapshot_directory", JFileChooser.OPEN_DIALOG, true);
+		snapshotDirectoryPicker.setToolTipText(SNAPSHOT_DIRECTORY_TOOLTIP);
+		addDialogComponent(snapshotDirectoryPicker);
+		
+		SettingsModelBoolean useTiles = MapMatcherNodeModel.createUseTilesSettings();
+		DialogComponentBoolean useTilesPicker = new DialogComponentBoolean(useTiles, "Load the map data in tiles, when needed");
+		useTilesPicker.setToolTipText(USE_TILES_TOOLTIP);
+		addDialogComponent(useTilesPicker);
+		
+		SettingsModelDoubleBounded tileSize = MapMatcherNodeModel.createTileSizeSettings();
+		DialogComponentNumber tileSizeField = new DialogComponentNumber(tileSize, "Tile size (degrees): ", 0.05);
+		tileSizeField.setToolTipText(TILE_SIZE_TOOLTIP);
+		addDialogComponent(tileSizeField);
+		
+		SettingsModelIntegerBounded maxLoadedTiles = MapMatcherNodeModel.createMaxLoadedTilesSettings();
+		DialogComponentNumber maxLoadedTilesField = new DialogComponentNumber(maxLoadedTiles, "Maximum number of loaded tiles: ", 8);
+		maxLoadedTilesField.setToolTipText(MAX_LOADED_TILES_TOOLTIP);
+		addDialogComponent(maxLoadedTilesField);
+		
+		ChangeListener storageListener = new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				snapshotDirectory.setEnabled(useSnapshot.getBooleanValue() || useTiles.getBooleanValue());
+				tileSize.setEnabled(useTiles.getBooleanValue());
+				maxLoadedTiles.setEnabled(useTiles.getBooleanValue());
+			}
+			
+		};
+		useSnapshot.addChangeListener(storageListener);
+		useTiles.addChangeListener(storageListener);
+		
 		//this.createNewGroup("Map Matching Strategy");
 		
 		SettingsModelString routeDecoderService = MapMatcherNodeModel.createRouteDecoderServiceSettings();
@@ -102,6 +261,35 @@ public class MapMatcherNodeDialog extends DefaultNodeSettingsPane {
 		decoderHostField.setToolTipText(OSRM_SERVER_TOOLTIP);
 		addDialogComponent(decoderHostField);
 		
+		SettingsModelIntegerBounded maxInFlightRequests = MapMatcherNodeModel.createMaxInFlightRequestsSettings();
+		DialogComponentNumber maxInFlightRequestsField = new DialogComponentNumber(maxInFlightRequests, "Maximum number of requests in flight: ", 1);
+		maxInFlightRequestsField.setToolTipText(MAX_IN_FLIGHT_REQUESTS_TOOLTIP);
+		addDialogComponent(maxInFlightRequestsField);
+		
+		SettingsModelIntegerBounded maxTraceSize = MapMatcherNodeModel.createMaxTraceSizeSettings();
+		DialogComponentNumber maxTraceSizeField = new DialogComponentNumber(maxTraceSize, "Maximum trace coordinates per request: ", 10);
+		maxTraceSizeField.setToolTipText(MAX_TRACE_SIZE_TOOLTIP);
+		addDialogComponent(maxTraceSizeField);
+		
+		SettingsModelBoolean cacheResponses = MapMatcherNodeModel.createCacheResponsesSettings();
+		DialogComponentBoolean cacheResponsesPicker = new DialogComponentBoolean(cacheResponses, "Cache the responses of the routing service");
+		cacheResponsesPicker.setToolTipText(CACHE_RESPONSES_TOOLTIP);
+		addDialogComponent(cacheResponsesPicker);
+		
+		SettingsModelString mapVersion = MapMatcherNodeModel.createMapVersionSettings();
+		DialogComponentString mapVersionField = new DialogComponentString(mapVersion, "Map version of the routing service: ", false, 20);
+		mapVersionField.setToolTipText(MAP_VERSION_TOOLTIP);
+		addDialogComponent(mapVersionField);
+		
+		cacheResponses.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				mapVersion.setEnabled(cacheResponses.getBooleanValue());
+			}
+			
+		});
+		
 		SettingsModelString coordinatePairType = MapMatcherNodeModel.createCoordinatePairTypeSettings();
 		DialogComponentStringSelection coordinatePairTypePicker = new DialogComponentStringSelection(coordinatePairType, "Coordinate input format:",coordinatePairTypes);
 		coordinatePairTypePicker.setToolTipText(PAIR_TYPE_TOOLTIP);
@@ -8,10 +8,14 @@ import java.net.URLConnection;
 import java.text.ParseException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnProperties;
@@ -38,9 +42,18 @@ import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
 import org.osgi.framework.ServiceException;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.MapRegion;
 import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmMapData;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.TiledOsmData;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.VisitedSegments;
 import org.unina.spatialanalysis.mapmatcher.entity.output.NormalizingDataEntry;
 import org.unina.spatialanalysis.mapmatcher.entity.output.RouteStepVisited;
 import org.unina.spatialanalysis.mapmatcher.entity.route.Route;
@@ -48,9 +61,21 @@ import org.unina.spatialanalysis.mapmatcher.entity.route.RouteFactory;
 import org.unina.spatialanalysis.mapmatcher.entity.route.RouteStep;
 import org.unina.spatialanalysis.mapmatcher.entity.osm.Node;
 import org.unina.spatialanalysis.mapmatcher.logging.LogStringMaker;
-import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmFileReader;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmDataCache;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmLoadOptions;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmReader;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmReaderFactory;
 import org.unina.spatialanalysis.mapmatcher.routedecoderservice.RouteDecoder;
 import org.unina.spatialanalysis.mapmatcher.routedecoderservice.RouteDecoderFactory;
+import org.unina.spatialanalysis.mapmatcher.routedecoderservice.concreteroutedecoderservice.OsrmRouteDecoder;
+import org.unina.spatialanalysis.osmroadnetworkreader.RoadNetworkPortObject;
+import org.unina.spatialanalysis.osrmtransport.OsrmHostPool;
+import org.unina.spatialanalysis.osrmtransport.OsrmTransport;
+import org.unina.spatialanalysis.settings.OptionalSettings;
+
+import mil.nga.sf.Geometry;
+import mil.nga.sf.GeometryEnvelope;
+import mil.nga.sf.wkt.GeometryReader;
 
 
 
@@ -100,6 +125,79 @@ public class MapMatcherNodeModel extends NodeModel {
 	
 	private static final boolean DEFAULT_INCLUDE_NEVER_VISITED = false;
 	
+	private static final String TAG_KEYS = "m_tag_keys";
+	
+	private static final String DEFAULT_TAG_KEYS = "";
+	
+	private static final String HIGHWAY_NODES_ONLY = "m_highway_nodes_only";
+	
+	private static final boolean DEFAULT_HIGHWAY_NODES_ONLY = false;
+	
+	private static final String CLIP_MODE = "m_clip_mode";
+	
+	static final String CLIP_NONE = "None";
+	
+	static final String CLIP_REGION = "Bounding box or WKT polygon";
+	
+	static final String CLIP_TRACES = "Coverage of the traces";
+	
+	private static final String CLIP_REGION_TEXT = "m_clip_region";
+	
+	private static final String DEFAULT_CLIP_REGION_TEXT = "";
+	
+	private static final String CLIP_MARGIN = "m_clip_margin";
+	
+	private static final double DEFAULT_CLIP_MARGIN = 2000;
+	
+	/**
+	 * The step, in degrees, the coverage of the traces is rounded to, so that similar inputs
+	 * share the same cached map data and snapshot.
+	 */
+	private static final double CLIP_ROUNDING = 0.01;
+	
+	private static final String CHANGE_FILES = "m_change_files";
+	
+	private static final String DEFAULT_CHANGE_FILES = "";
+	
+	private static final String USE_SNAPSHOT = "m_use_snapshot";
+	
+	private static final boolean DEFAULT_USE_SNAPSHOT = true;
+	
+	private static final String SNAPSHOT_DIRECTORY = "m_snapshot_directory";
+	
+	private static final String DEFAULT_SNAPSHOT_DIRECTORY = "";
+	
+	private static final String USE_TILES = "m_use_tiles";
+	
+	private static final boolean DEFAULT_USE_TILES = false;
+	
+	private static final String TILE_SIZE = "m_tile_size";
+	
+	private static final double DEFAULT_TILE_SIZE = 0.25;
+	
+	private static final String MAX_LOADED_TILES = "m_max_loaded_tiles";
+	
+	private static final int DEFAULT_MAX_LOADED_TILES = 64;
+	
+	private static final String MAX_IN_FLIGHT_REQUESTS = "m_max_in_flight_requests";
+	
+	private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 8;
+	
+	private static final String MAX_TRACE_SIZE = "m_max_trace_size";
+	
+	private static final String CACHE_RESPONSES = "m_cache_osrm_responses";
+	
+	private static final boolean DEFAULT_CACHE_RESPONSES = false;
+	
+	private static final String MAP_VERSION = "m_osrm_map_version";
+	
+	private static final String DEFAULT_MAP_VERSION = "";
+	
+	/**
+	 * How often, in milliseconds, the cancellation of the node is checked while waiting for a route.
+	 */
+	private static final long CANCEL_CHECK_INTERVAL = 200;
+	
 	// 
 	
 	private final SettingsModelColumnName m_colIDSettings = createColIDSettings();
@@ -126,15 +224,91 @@ public class MapMatcherNodeModel extends NodeModel {
 	
 	private final SettingsModelString m_routeDecoderService = createRouteDecoderServiceSettings();
 	
+	/**
+	 * The comma separated keys of the way tags reported in the output table, empty to report all of them.
+	 */
+	private final SettingsModelString m_tagKeys = createTagKeysSettings();
+	
+	/**
+	 * Whether only the nodes of the highways are loaded from the OSM file.
+	 */
+	private final SettingsModelBoolean m_highwayNodesOnly = createHighwayNodesOnlySettings();
+	
+	/**
+	 * How the map data is clipped: not at all, to a given region or to the area covered by the traces.
+	 */
+	private final SettingsModelString m_clipMode = createClipModeSettings();
+	
+	/**
+	 * The bounding box, as minLon,minLat,maxLon,maxLat, or the WKT polygon the map data is clipped to.
+	 */
+	private final SettingsModelString m_clipRegion = createClipRegionSettings();
+	
+	/**
+	 * The margin in meters added around the area covered by the traces.
+	 */
+	private final SettingsModelDoubleBounded m_clipMargin = createClipMarginSettings();
+	
+	/**
+	 * The semicolon separated paths of the osmChange files applied, in order, to the map data.
+	 */
+	private final SettingsModelString m_changeFiles = createChangeFilesSettings();
+	
+	/**
+	 * Whether the parsed map data is kept as a snapshot that later executions can map
+	 * instead of parsing the OSM file again.
+	 */
+	private final SettingsModelBoolean m_useSnapshot = createUseSnapshotSettings();
+	
+	/**
+	 * The directory of the snapshots, empty to keep them next to the OSM file.
+	 */
+	private final SettingsModelString m_snapshotDirectory = createSnapshotDirectorySettings();
+	
+	/**
+	 * Whether the map data is split in tiles, kept with the snapshots, that are loaded only when needed.
+	 */
+	private final SettingsModelBoolean m_useTiles = createUseTilesSettings();
+	
+	/**
+	 * The size of the tiles in degrees.
+	 */
+	private final SettingsModelDoubleBounded m_tileSize = createTileSizeSettings();
+	
+	/**
+	 * The maximum number of tiles kept loaded at once.
+	 */
+	private final SettingsModelIntegerBounded m_maxLoadedTiles = createMaxLoadedTilesSettings();
+	
+	/**
+	 * The maximum number of match requests sent to the routing service at once.
+	 */
+	private final SettingsModelIntegerBounded m_maxInFlightRequests = createMaxInFlightRequestsSettings();
+	
+	/**
+	 * The maximum number of trace coordinates sent in one match request, longer traces are split in windows.
+	 */
+	private final SettingsModelIntegerBounded m_maxTraceSize = createMaxTraceSizeSettings();
+	
+	/**
+	 * Whether the responses of the routing service are cached on disk.
+	 */
+	private final SettingsModelBoolean m_cacheResponses = createCacheResponsesSettings();
+	
+	/**
+	 * The version of the map data of the routing service, which tells apart the cached responses of different maps.
+	 */
+	private final SettingsModelString m_mapVersion = createMapVersionSettings();
+	
 	/**
 	 * Constructor for the node model.
 	 */
 	protected MapMatcherNodeModel() {
 		/**
-		 * Here we specify how many data input and output tables the node should have.
-		 * In this case its one input and one output table.
+		 * Here we specify the input and output ports of the node: the input table, an optional
+		 * road network read by the "OSM Road Network Reader" node, and the output table.
 		 */
-		super(1, 1);
+		super(new PortType[] { BufferedDataTable.TYPE, RoadNetworkPortObject.TYPE_OPTIONAL }, new PortType[] { BufferedDataTable.TYPE });
 	}
 
 	/**
@@ -186,37 +360,200 @@ public class MapMatcherNodeModel extends NodeModel {
 	static SettingsModelBoolean createIncludeNeverVisitedSetting() {
 		return new SettingsModelBoolean(INCLUDE_NEVER_VISITED, DEFAULT_INCLUDE_NEVER_VISITED);
 	}
+	
+	static SettingsModelString createTagKeysSettings() {
+		return new SettingsModelString(TAG_KEYS, DEFAULT_TAG_KEYS);
+	}
+	
+	static SettingsModelBoolean createHighwayNodesOnlySettings() {
+		return new SettingsModelBoolean(HIGHWAY_NODES_ONLY, DEFAULT_HIGHWAY_NODES_ONLY);
+	}
+	
+	static SettingsModelString createClipModeSettings() {
+		return new SettingsModelString(CLIP_MODE, CLIP_NONE);
+	}
+	
+	static SettingsModelString createClipRegionSettings() {
+		SettingsModelString clipRegion = new SettingsModelString(CLIP_REGION_TEXT, DEFAULT_CLIP_REGION_TEXT);
+		clipRegion.setEnabled(false);
+		return clipRegion;
+	}
+	
+	static SettingsModelDoubleBounded createClipMarginSettings() {
+		SettingsModelDoubleBounded clipMargin = new SettingsModelDoubleBounded(CLIP_MARGIN, DEFAULT_CLIP_MARGIN, 0, Double.MAX_VALUE);
+		clipMargin.setEnabled(false);
+		return clipMargin;
+	}
+	
+	static SettingsModelString createChangeFilesSettings() {
+		return new SettingsModelString(CHANGE_FILES, DEFAULT_CHANGE_FILES);
+	}
+	
+	static SettingsModelBoolean createUseSnapshotSettings() {
+		return new SettingsModelBoolean(USE_SNAPSHOT, DEFAULT_USE_SNAPSHOT);
+	}
+	
+	static SettingsModelString createSnapshotDirectorySettings() {
+		return new SettingsModelString(SNAPSHOT_DIRECTORY, DEFAULT_SNAPSHOT_DIRECTORY);
+	}
+	
+	static SettingsModelBoolean createUseTilesSettings() {
+		return new SettingsModelBoolean(USE_TILES, DEFAULT_USE_TILES);
+	}
+	
+	static SettingsModelDoubleBounded createTileSizeSettings() {
+		SettingsModelDoubleBounded tileSize = new SettingsModelDoubleBounded(TILE_SIZE, DEFAULT_TILE_SIZE, 0.01, 90);
+		tileSize.setEnabled(false);
+		return tileSize;
+	}
+	
+	static SettingsModelIntegerBounded createMaxLoadedTilesSettings() {
+		SettingsModelIntegerBounded maxLoadedTiles = new SettingsModelIntegerBounded(MAX_LOADED_TILES, DEFAULT_MAX_LOADED_TILES, 1, Integer.MAX_VALUE);
+		maxLoadedTiles.setEnabled(false);
+		return maxLoadedTiles;
+	}
+	
+	static SettingsModelIntegerBounded createMaxInFlightRequestsSettings() {
+		return new SettingsModelIntegerBounded(MAX_IN_FLIGHT_REQUESTS, DEFAULT_MAX_IN_FLIGHT_REQUESTS, 1, 1024);
+	}
+	
+	static SettingsModelIntegerBounded createMaxTraceSizeSettings() {
+		return new SettingsModelIntegerBounded(MAX_TRACE_SIZE, OsrmRouteDecoder.DEFAULT_MAX_TRACE_SIZE, 2, 100000);
+	}
+	
+	static SettingsModelBoolean createCacheResponsesSettings() {
+		return new SettingsModelBoolean(CACHE_RESPONSES, DEFAULT_CACHE_RESPONSES);
+	}
+	
+	static SettingsModelString createMapVersionSettings() {
+		SettingsModelString mapVersion = new SettingsModelString(MAP_VERSION, DEFAULT_MAP_VERSION);
+		mapVersion.setEnabled(DEFAULT_CACHE_RESPONSES);
+		return mapVersion;
+	}
 
 	/**
 	 * 
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
+	protected PortObject[] execute(final PortObject[] inObjects, final ExecutionContext exec)
 			throws Exception {
 		
 		LOGGER.info(LogStringMaker.logCurrentExecutionSetting(m_osmDataPath.getStringValue(), m_routeDecoderHostSettings.getStringValue(), m_pairTypeSettings.getStringValue(), m_includeNeverVisited.getBooleanValue()));
-		BufferedDataTable inputTable = inData[0];
+		BufferedDataTable inputTable = (BufferedDataTable) inObjects[0];
 		
 		/*
 		 * Create the output specifications for the table containing RouteStep data.
 		 */
 		DataTableSpec routeStepsSpecs = createOutputForRouteSteps();
 		BufferedDataContainer routeStepsContainer = exec.createDataContainer(routeStepsSpecs);
+		
+		if(inObjects[1] != null) {
+			/*
+			 * The road network has already been loaded by the reader node, so the map data settings are ignored.
+			 */
+			RoadNetworkPortObject roadNetwork = (RoadNetworkPortObject) inObjects[1];
+			LOGGER.info("Using the road network " + roadNetwork.getSpec().getSource() + " of the input port");
+			return matchRoutes(inputTable, roadNetwork.getData(), routeStepsContainer, exec);
+		}
 								
-		OsmDataManager mapData = null;
 		exec.setMessage("Parsing Map Data...");
 		File osmFile = new File(m_osmDataPath.getStringValue());
-		OsmFileReader myFileReader = new OsmFileReader(osmFile);
+		MapRegion clipRegion = null;
+		if(CLIP_REGION.equals(m_clipMode.getStringValue())) {
+			clipRegion = MapRegion.parse(m_clipRegion.getStringValue());
+		}else if(CLIP_TRACES.equals(m_clipMode.getStringValue())) {
+			exec.setMessage("Computing the area covered by the traces...");
+			clipRegion = computeTraceCoverage(inputTable);
+		}
+		if(clipRegion != null) {
+			LOGGER.info("Clipping the map data to " + clipRegion);
+		}
+		OsmLoadOptions loadOptions = new OsmLoadOptions(OsmLoadOptions.parseTagKeys(m_tagKeys.getStringValue()), m_highwayNodesOnly.getBooleanValue(), clipRegion);
+		loadOptions = loadOptions.withChangeFiles(OsmLoadOptions.parseChangeFiles(m_changeFiles.getStringValue()));
+		if(m_useTiles.getBooleanValue()) {
+			/*
+			 * Tiles are loaded on demand, so they are not shared through the cache.
+			 */
+			String snapshotDirectory = m_snapshotDirectory.getStringValue();
+			TiledOsmData tiles = OsmReaderFactory.getSnapshotOsmReader(osmFile, loadOptions, snapshotDirectory.isEmpty() ? null : new File(snapshotDirectory))
+					.readTiles(m_tileSize.getDoubleValue(), m_maxLoadedTiles.getIntValue());
+			exec.setMessage("Parsing Map Data finished!");
+			BufferedDataTable[] res = matchRoutes(inputTable, tiles, routeStepsContainer, exec);
+			LOGGER.info(tiles.printTileStats());
+			return res;
+		}
+		OsmReader myFileReader;
+		if(m_useSnapshot.getBooleanValue()) {
+			String snapshotDirectory = m_snapshotDirectory.getStringValue();
+			myFileReader = OsmReaderFactory.getSnapshotOsmReader(osmFile, loadOptions, snapshotDirectory.isEmpty() ? null : new File(snapshotDirectory));
+		}else {
+			myFileReader = OsmReaderFactory.getOsmReader(osmFile, loadOptions);
+		}
+		/*
+		 * Map data is shared with the other nodes reading the same file. An error while reading it,
+		 * in the file, a snapshot or a change file, fails the node with its cause.
+		 */
+		OsmDataCache.Lease mapDataLease = OsmDataCache.getInstance().acquire(osmFile, loadOptions, myFileReader);
+		exec.setMessage("Parsing Map Data finished!");
 		try {
-			mapData = myFileReader.readOsmFile();
-		}catch(IOException e) {
-
+			return matchRoutes(inputTable, mapDataLease.getData(), routeStepsContainer, exec);
+		}finally {
+			mapDataLease.close();
+		}
+	}
+	
+	/**
+	 * @return the bounding box of the traces of the input table, enlarged by the clip margin,
+	 * or null if no trace is valid.
+	 */
+	private MapRegion computeTraceCoverage(BufferedDataTable inputTable) {
+		int theGeomIndex = -1;
+		DataTableSpec specs = inputTable.getDataTableSpec();
+		for(int i = 0; i<specs.getNumColumns(); i++) {
+			if(specs.getColumnSpec(i).getName().equals(m_colGeometrySettings.getColumnName())) {
+				theGeomIndex = i;
+			}
 		}
-		if(mapData==null) {
+		boolean latLon = m_pairTypeSettings.getStringValue().equals("{lat,lon}");
+		MapRegion res = null;
+		try(CloseableRowIterator rowIterator = inputTable.iterator()){
+			while(rowIterator.hasNext()) {
+				DataCell cell = rowIterator.next().getCell(theGeomIndex);
+				if(!cell.getType().getCellClass().equals(StringCell.class)) {
+					continue;
+				}
+				GeometryEnvelope envelope;
+				try {
+					Geometry geometry = GeometryReader.readGeometry(((StringCell) cell).getStringValue());
+					if(geometry == null || geometry.isEmpty()) {
+						continue;
+					}
+					envelope = geometry.getEnvelope();
+				}catch(IOException | RuntimeException e) {
+					/*
+					 * Invalid rows are reported when matching.
+					 */
+					continue;
+				}
+				MapRegion trace = latLon ? MapRegion.fromBoundingBox(envelope.getMinY(), envelope.getMinX(), envelope.getMaxY(), envelope.getMaxX())
+						: MapRegion.fromBoundingBox(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+				res = res == null ? trace : res.union(trace);
+			}
+		}
+		if(res == null) {
+			LOGGER.warn("No valid trace to compute the area to clip the map data to, the whole map will be loaded");
 			return null;
 		}
-		exec.setMessage("Parsing Map Data finished!");
+		return res.expand(m_clipMargin.getDoubleValue()).roundOutwards(CLIP_ROUNDING);
+	}
+	
+	/**
+	 * Matches the routes of the input table, adding the traversed segments to the container.
+	 */
+	private BufferedDataTable[] matchRoutes(BufferedDataTable inputTable, OsmMapData mapData, BufferedDataContainer routeStepsContainer, final ExecutionContext exec)
+			throws Exception {
+		VisitedSegments visitedSegments = mapData.newVisitedSegments();
 
 		/*
 		 * Getting the index of the relevant columns (their presence is ensured by the configure method).
@@ -241,7 +578,9 @@ public class MapMatcherNodeModel extends NodeModel {
 			}
 		}
 		
-		RouteDecoder<RouteStep, Route> decoder = RouteDecoderFactory.getRouteDecoder("osrm",m_routeDecoderHostSettings.getStringValue());
+		String mapVersion = m_cacheResponses.getBooleanValue() ? m_mapVersion.getStringValue().trim() : null;
+		RouteDecoder<RouteStep, Route> decoder = RouteDecoderFactory.getRouteDecoder("osrm",m_routeDecoderHostSettings.getStringValue(), m_maxTraceSize.getIntValue(), mapVersion);
+		OsrmHostPool hosts = OsrmTransport.getInstance().getHostPool(m_routeDecoderHostSettings.getStringValue());
 		RouteFactory routeFactory = new RouteFactory(m_pairTypeSettings.getStringValue());
 		int routeStepsCounter = 0;
 		
@@ -254,43 +593,63 @@ public class MapMatcherNodeModel extends NodeModel {
 		CloseableRowIterator rowIterator = inputTable.iterator();
 
 		int currentRowCounter = 0;
-
-		while(rowIterator.hasNext()) {
-			DataRow currentRow = rowIterator.next(); 
-			currentRowCounter++;
-			int ownerId = -1;
-			String theGeom = null;
-			LocalDateTime beginAt = null;
-			
-			DataCell cell = currentRow.getCell(idIndex);
-			if (cell.getType().getCellClass().equals((IntCell.class))) {
-				IntCell intCell = (IntCell) cell;
-				ownerId = intCell.getIntValue();
-			}
-			cell = currentRow.getCell(beginAtIndex);
-			if(cell.getType().getCellClass().equals(DateAndTimeCell.class)) {
-				DateAndTimeCell dateAndTimeCell = (DateAndTimeCell) cell;
-				beginAt = LocalDateTime.parse(dateAndTimeCell.getStringValue());
-			}
-			cell = currentRow.getCell(theGeomIndex);
-			if(cell.getType().getCellClass().equals(StringCell.class)) {
-				StringCell stringCell = (StringCell) cell;
-				theGeom = stringCell.getStringValue();
-			}
-			
-			if(ownerId == -1 || theGeom == null || beginAt == null) {
-				LOGGER.error(LogStringMaker.logError("Row " + currentRow.getKey() + " has invalid values! It will be skipped.\n"));
-			}else {
-				Route r = routeFactory.createRoute(currentRow.getKey().getString(), ownerId, theGeom, beginAt);
+		int processedRowCounter = 0;
+		
+		/*
+		 * Up to maxInFlight routes are sent at once to the routing service and decoded by the threads
+		 * of the transport, while the results are written in the order of the input rows as soon as
+		 * the oldest route is matched.
+		 */
+		int maxInFlight = m_maxInFlightRequests.getIntValue();
+		ArrayDeque<PendingRoute> pending = new ArrayDeque<PendingRoute>();
+		try {
+			while(rowIterator.hasNext() || !pending.isEmpty()) {
+				exec.checkCanceled();
+				if(rowIterator.hasNext() && pending.size() < maxInFlight) {
+					DataRow currentRow = rowIterator.next(); 
+					currentRowCounter++;
+					int ownerId = -1;
+					String theGeom = null;
+					LocalDateTime beginAt = null;
+					
+					DataCell cell = currentRow.getCell(idIndex);
+					if (cell.getType().getCellClass().equals((IntCell.class))) {
+						IntCell intCell = (IntCell) cell;
+						ownerId = intCell.getIntValue();
+					}
+					cell = currentRow.getCell(beginAtIndex);
+					if(cell.getType().getCellClass().equals(DateAndTimeCell.class)) {
+						DateAndTimeCell dateAndTimeCell = (DateAndTimeCell) cell;
+						beginAt = LocalDateTime.parse(dateAndTimeCell.getStringValue());
+					}
+					cell = currentRow.getCell(theGeomIndex);
+					if(cell.getType().getCellClass().equals(StringCell.class)) {
+						StringCell stringCell = (StringCell) cell;
+						theGeom = stringCell.getStringValue();
+					}
+					
+					if(ownerId == -1 || theGeom == null || beginAt == null) {
+						LOGGER.error(LogStringMaker.logError("Row " + currentRow.getKey() + " has invalid values! It will be skipped.\n"));
+						processedRowCounter++;
+					}else {
+						Route r = routeFactory.createRoute(currentRow.getKey().getString(), ownerId, theGeom, beginAt);
+						pending.add(new PendingRoute(currentRow.getKey().getString(), decoder.decodeRouteAsync(r)));
+					}
+					continue;
+				}
+				PendingRoute route = pending.poll();
 				try {
-					TreeSet<RouteStep> steps = decoder.decodeRoute(r);
+					List<RouteStep> steps = route.awaitSteps(exec);
 					for(RouteStep rs: steps) {
 						if(mapData.checkNodePresence(rs.getOriginId()) && mapData.checkNodePresence(rs.getDestinationId())) {
 							Node origin = mapData.getNode(rs.getOriginId());
 							Node destination = mapData.getNode(rs.getDestinationId());
 							if(origin != null && destination != null) {
-								mapData.tagSegmentAsVisited(origin.getNodeId(), destination.getNodeId());	
-								addRouteStepDataEntry(new RouteStepVisited(rs.getId(), rs.getRouteId(), rs.getBeginAt(), rs.getEndAt(), origin, destination, mapData.getAllTagsOfSegment(origin, destination) ), routeStepsCounter++, routeStepsContainer);
+								int segment = mapData.getSegmentId(origin.getNodeId(), destination.getNodeId());
+								if(segment != -1) {
+									visitedSegments.markVisited(segment);
+								}
+								addRouteStepDataEntry(new RouteStepVisited(rs.getId(), rs.getRouteId(), rs.getBeginAt(), rs.getEndAt(), origin, destination, mapData.getTagsOfSegment(origin.getNodeId(), destination.getNodeId())), routeStepsCounter++, routeStepsContainer);
 							}
 						}
 					}
@@ -298,36 +657,35 @@ public class MapMatcherNodeModel extends NodeModel {
 					switch(e.getMessage()) {
 						case("NoMatch"):{
 							routesMissedForMatchingTraceError++;
-							LOGGER.error(LogStringMaker.logError("Could not match the trace of route " + currentRow.getKey()));
+							LOGGER.error(LogStringMaker.logError("Could not match the trace of route " + route.rowKey));
 						}
 						case("TooBig"):{
 							routesMissedForTooManyTraceCoordinates++;
-							LOGGER.error(LogStringMaker.logError("Too many trace coordinates for " + currentRow.getKey() +".\n Can you increase the number of supported trace coordinates?"));
+							LOGGER.error(LogStringMaker.logError("Too many trace coordinates for " + route.rowKey +".\n Can you lower the maximum number of trace coordinates per request, or increase the max-matching-size of the server?"));
 						}	
 					}
 				}catch(IOException e) {
 					routesMissedForIOError++;
-					LOGGER.error(LogStringMaker.logError("An IO error occured for " + currentRow.getKey() +".\n" + e.getStackTrace()));
+					LOGGER.error(LogStringMaker.logError("An IO error occured for " + route.rowKey +".\n" + e.getStackTrace()));
 				}
+				processedRowCounter++;
+				exec.setProgress(processedRowCounter/(double)inputTable.size(), "Processing row " + processedRowCounter + " of " + inputTable.size()
+						+ " (" + hosts.getSummary() + ")");
+			}
+		}finally {
+			for(PendingRoute route: pending) {
+				route.steps.cancel(true);
 			}
-			exec.setProgress(currentRowCounter/(double)inputTable.size(), "Processing row " + currentRowCounter + " of " + inputTable.size());
 		}
 		
 		if(m_includeNeverVisited.getBooleanValue()) {
 			exec.setProgress(0.0,"Normalizing Result...");
 			int n = 0;
-			int counter = 1;
-			int normalizingSize = mapData.getSegments().size();
-			for(String s: mapData.getSegments().keySet()) {
-				if(!mapData.checkIfSegmentWasVisited(s)) {
-					Node origin = mapData.getNode(mapData.getSegments().get(s).getOrigin());
-					Node destination = mapData.getNode(mapData.getSegments().get(s).getDestination());
-					if(origin != null && destination != null) {
-						NormalizingDataEntry nEntry = new NormalizingDataEntry(origin, destination, mapData.getAllTagsOfSegment(origin, destination));
-						addNormalizingDataEntry(nEntry, n++, routeStepsContainer);
-					}
-				}
-				exec.setProgress(counter++/(double) normalizingSize,"Normalizing Result...");
+			int normalizingSize = visitedSegments.size();
+			for(int s = visitedSegments.nextNotVisited(0); s != -1; s = visitedSegments.nextNotVisited(s + 1)) {
+				NormalizingDataEntry nEntry = new NormalizingDataEntry(mapData.getSegmentOrigin(s), mapData.getSegmentDestination(s), mapData.getTagsOfSegment(s));
+				addNormalizingDataEntry(nEntry, n++, routeStepsContainer);
+				exec.setProgress(s/(double) normalizingSize,"Normalizing Result...");
 			}
 		}
 		
@@ -336,15 +694,55 @@ public class MapMatcherNodeModel extends NodeModel {
 		routeStepsContainer.close();
 		BufferedDataTable out1 = routeStepsContainer.getTable();
 		LOGGER.info(LogStringMaker.logExecutionEnd(currentRowCounter, inputTable.size(), routesMissedForTooManyTraceCoordinates, routesMissedForMatchingTraceError, routesMissedForIOError));
+		LOGGER.info(OsrmTransport.getInstance().printStats());
 		return new BufferedDataTable[] { out1 };
 	}
 
 
+	/**
+	 * A route sent to the routing service, whose steps are written once the routes
+	 * of the previous rows have been written.
+	 */
+	private static class PendingRoute {
+		
+		private final String rowKey;
+		
+		private final Future<List<RouteStep>> steps;
+		
+		private PendingRoute(String rowKey, Future<List<RouteStep>> steps) {
+			this.rowKey = rowKey;
+			this.steps = steps;
+		}
+		
+		/**
+		 * Waits for the steps of the route, checking every now and then whether the node has been canceled.
+		 */
+		private List<RouteStep> awaitSteps(ExecutionMonitor exec) throws IOException, InterruptedException, CanceledExecutionException {
+			while(true) {
+				try {
+					return steps.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				}catch(TimeoutException e) {
+					exec.checkCanceled();
+				}catch(ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException) {
+						throw (IOException) cause;
+					}else if(cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}else if(cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IOException(cause);
+				}
+			}
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
+	protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
 		 
 		
 		String routeDecoderService = m_routeDecoderService.getStringValue();
@@ -358,15 +756,11 @@ public class MapMatcherNodeModel extends NodeModel {
 		}
 		
 		
-		String path = m_osmDataPath.getStringValue();
-		File f = new File(path);
-		
-		if(!f.exists()){
-			throw new InvalidSettingsException("The entered input file does not exist!");
-		}
-		
-		if(!f.canRead()) {
-			throw new InvalidSettingsException("Don't have the required permissions for reading the input file!");
+		/*
+		 * The map data settings are only used when no road network is connected.
+		 */
+		if(inSpecs[1] == null) {
+			validateMapDataSettings();
 		}
 		
 		String colIDName = m_colIDSettings.getColumnName();
@@ -378,10 +772,11 @@ public class MapMatcherNodeModel extends NodeModel {
 			throw new InvalidSettingsException("All columns must be selected in the configuration dialog");
 		}
 		
-		if(!(inSpecs[0].containsName(colIDName) && inSpecs[0].containsName(colBeginAtName) && inSpecs[0].containsName(colGeometryName))) {
-			if(!(inSpecs[0].getColumnSpec(colIDName).getType().getCellClass().equals(IntCell.TYPE) &&
-					inSpecs[0].getColumnSpec(colGeometryName).getType().getCellClass().equals(StringCell.TYPE) && 
-							inSpecs[0].getColumnSpec(colBeginAtName).getType().getCellClass().equals(DateAndTimeCell.TYPE))) {
+		DataTableSpec tableSpec = (DataTableSpec) inSpecs[0];
+		if(!(tableSpec.containsName(colIDName) && tableSpec.containsName(colBeginAtName) && tableSpec.containsName(colGeometryName))) {
+			if(!(tableSpec.getColumnSpec(colIDName).getType().getCellClass().equals(IntCell.TYPE) &&
+					tableSpec.getColumnSpec(colGeometryName).getType().getCellClass().equals(StringCell.TYPE) && 
+							tableSpec.getColumnSpec(colBeginAtName).getType().getCellClass().equals(DateAndTimeCell.TYPE))) {
 				throw new InvalidSettingsException("The input columns must have the following type: id-Integer, begin_at-DateTime, the_geom-String");
 			}
 			throw new InvalidSettingsException("The input table must contain the following columns: id, begin_at, the_geom");
@@ -390,6 +785,32 @@ public class MapMatcherNodeModel extends NodeModel {
 		return new DataTableSpec[] { createOutputForRouteSteps() };
 	}
 
+	private void validateMapDataSettings() throws InvalidSettingsException {
+		String path = m_osmDataPath.getStringValue();
+		File f = new File(path);
+		
+		if(!f.exists()){
+			throw new InvalidSettingsException("The entered input file does not exist!");
+		}
+		
+		if(!f.canRead()) {
+			throw new InvalidSettingsException("Don't have the required permissions for reading the input file!");
+		}
+		
+		for(File changeFile: OsmLoadOptions.parseChangeFiles(m_changeFiles.getStringValue())) {
+			if(!changeFile.canRead()) {
+				throw new InvalidSettingsException("The change file " + changeFile + " does not exist or cannot be read!");
+			}
+		}		
+		if(CLIP_REGION.equals(m_clipMode.getStringValue())) {
+			try {
+				MapRegion.parse(m_clipRegion.getStringValue());
+			}catch(IOException e) {
+				throw new InvalidSettingsException("The region to clip the map data to is not a valid bounding box or WKT geometry!");
+			}
+		}
+	}
+
 	private void validateOSRMSettings() throws InvalidSettingsException {
 		String format = m_pairTypeSettings.getStringValue();
 		if(!format.equals("{lat,lon}") && !format.equals("{lon,lat}")) {
@@ -397,19 +818,29 @@ public class MapMatcherNodeModel extends NodeModel {
 		}
 		
 		/*
-		 * Check if the OSRM server host inserted is a valid URL and if it available.
+		 * Check if the OSRM server hosts inserted are valid URLs and if at least one of them is available,
+		 * the others are dropped by the host pool until they can be reached.
 		 */
-		String osrmHost = m_routeDecoderHostSettings.getStringValue();
-		osrmHost = osrmHost.toLowerCase();
-		try {
-		    URL myURL = new URL(osrmHost);
-		    URLConnection myURLConnection = myURL.openConnection();
-		    myURLConnection.connect();
-		} 
-		catch (MalformedURLException e) {
-			throw new InvalidSettingsException("The entered host is not a valid URL!");
-		} 
-		catch (IOException e) {   
+		List<String> osrmHosts = OsrmHostPool.parseEndpoints(m_routeDecoderHostSettings.getStringValue());
+		if(osrmHosts.isEmpty()) {
+			throw new InvalidSettingsException("No host was entered!");
+		}
+		int reachableHosts = 0;
+		for(String osrmHost: osrmHosts) {
+			try {
+			    URL myURL = new URL(osrmHost.toLowerCase());
+			    URLConnection myURLConnection = myURL.openConnection();
+			    myURLConnection.connect();
+			    reachableHosts++;
+			} 
+			catch (MalformedURLException e) {
+				throw new InvalidSettingsException("The entered host " + osrmHost + " is not a valid URL!");
+			} 
+			catch (IOException e) {   
+				LOGGER.warn("The OSRM host " + osrmHost + " could not be reached.");
+			}
+		}
+		if(reachableHosts == 0) {
 			throw new InvalidSettingsException("The entered host could not be reached!");
 		}
 		
@@ -558,6 +989,21 @@ public class MapMatcherNodeModel extends NodeModel {
 		m_routeDecoderHostSettings.saveSettingsTo(settings);
 		m_pairTypeSettings.saveSettingsTo(settings);
 		m_includeNeverVisited.saveSettingsTo(settings);
+		m_tagKeys.saveSettingsTo(settings);
+		m_highwayNodesOnly.saveSettingsTo(settings);
+		m_clipMode.saveSettingsTo(settings);
+		m_clipRegion.saveSettingsTo(settings);
+		m_clipMargin.saveSettingsTo(settings);
+		m_changeFiles.saveSettingsTo(settings);
+		m_useSnapshot.saveSettingsTo(settings);
+		m_snapshotDirectory.saveSettingsTo(settings);
+		m_useTiles.saveSettingsTo(settings);
+		m_tileSize.saveSettingsTo(settings);
+		m_maxLoadedTiles.saveSettingsTo(settings);
+		m_maxInFlightRequests.saveSettingsTo(settings);
+		m_maxTraceSize.saveSettingsTo(settings);
+		m_cacheResponses.saveSettingsTo(settings);
+		m_mapVersion.saveSettingsTo(settings);
 	}
 
 	/**
@@ -580,6 +1026,21 @@ public class MapMatcherNodeModel extends NodeModel {
 		m_routeDecoderHostSettings.loadSettingsFrom(settings);
 		m_pairTypeSettings.loadSettingsFrom(settings);
 		m_includeNeverVisited.loadSettingsFrom(settings);
+		OptionalSettings.load(m_tagKeys, TAG_KEYS, settings);
+		OptionalSettings.load(m_useSnapshot, USE_SNAPSHOT, settings);
+		OptionalSettings.load(m_snapshotDirectory, SNAPSHOT_DIRECTORY, settings);
+		OptionalSettings.load(m_highwayNodesOnly, HIGHWAY_NODES_ONLY, settings);
+		OptionalSettings.load(m_clipMode, CLIP_MODE, settings);
+		OptionalSettings.load(m_clipRegion, CLIP_REGION_TEXT, settings);
+		OptionalSettings.load(m_clipMargin, CLIP_MARGIN, settings);
+		OptionalSettings.load(m_changeFiles, CHANGE_FILES, settings);
+		OptionalSettings.load(m_useTiles, USE_TILES, settings);
+		OptionalSettings.load(m_tileSize, TILE_SIZE, settings);
+		OptionalSettings.load(m_maxLoadedTiles, MAX_LOADED_TILES, settings);
+		OptionalSettings.load(m_maxInFlightRequests, MAX_IN_FLIGHT_REQUESTS, settings);
+		OptionalSettings.load(m_maxTraceSize, MAX_TRACE_SIZE, settings);
+		OptionalSettings.load(m_cacheResponses, CACHE_RESPONSES, settings);
+		OptionalSettings.load(m_mapVersion, MAP_VERSION, settings);
 	}
 
 	/**
@@ -601,6 +1062,21 @@ public class MapMatcherNodeModel extends NodeModel {
 		m_routeDecoderHostSettings.validateSettings(settings);
 		m_pairTypeSettings.validateSettings(settings);
 		m_includeNeverVisited.validateSettings(settings);
+		OptionalSettings.validate(m_tagKeys, TAG_KEYS, settings);
+		OptionalSettings.validate(m_useSnapshot, USE_SNAPSHOT, settings);
+		OptionalSettings.validate(m_snapshotDirectory, SNAPSHOT_DIRECTORY, settings);
+		OptionalSettings.validate(m_highwayNodesOnly, HIGHWAY_NODES_ONLY, settings);
+		OptionalSettings.validate(m_clipMode, CLIP_MODE, settings);
+		OptionalSettings.validate(m_clipRegion, CLIP_REGION_TEXT, settings);
+		OptionalSettings.validate(m_clipMargin, CLIP_MARGIN, settings);
+		OptionalSettings.validate(m_changeFiles, CHANGE_FILES, settings);
+		OptionalSettings.validate(m_useTiles, USE_TILES, settings);
+		OptionalSettings.validate(m_tileSize, TILE_SIZE, settings);
+		OptionalSettings.validate(m_maxLoadedTiles, MAX_LOADED_TILES, settings);
+		OptionalSettings.validate(m_maxInFlightRequests, MAX_IN_FLIGHT_REQUESTS, settings);
+		OptionalSettings.validate(m_maxTraceSize, MAX_TRACE_SIZE, settings);
+		OptionalSettings.validate(m_cacheResponses, CACHE_RESPONSES, settings);
+		OptionalSettings.validate(m_mapVersion, MAP_VERSION, settings);
 	}
 
 	@Override
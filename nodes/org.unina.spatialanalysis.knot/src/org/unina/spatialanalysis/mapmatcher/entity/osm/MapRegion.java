@@ -0,0 +1,170 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import mil.nga.sf.Geometry;
+import mil.nga.sf.GeometryEnvelope;
+import mil.nga.sf.LineString;
+import mil.nga.sf.MultiPolygon;
+import mil.nga.sf.Point;
+import mil.nga.sf.Polygon;
+import mil.nga.sf.wkt.GeometryReader;
+
+/**
+ * A region of the map the map data can be clipped to, see {@link OsmDataManager}.
+ * A region is either a bounding box or a (multi)polygon read from WKT, in which case the
+ * points are tested against the rings with the even-odd rule, so holes are supported.
+ * Coordinates are expressed as x = longitude and y = latitude.
+ * @author sinog
+ *
+ */
+public class MapRegion {
+
+	private static final double METERS_PER_DEGREE = 111320;
+
+	private final double minLon;
+	private final double minLat;
+	private final double maxLon;
+	private final double maxLat;
+
+	/*
+	 * The rings of the polygons as alternating lon, lat values, null for a bounding box.
+	 */
+	private final double[][] rings;
+
+	private final String key;
+
+	private MapRegion(double minLon, double minLat, double maxLon, double maxLat, double[][] rings, String key) {
+		super();
+		this.minLon = minLon;
+		this.minLat = minLat;
+		this.maxLon = maxLon;
+		this.maxLat = maxLat;
+		this.rings = rings;
+		this.key = key;
+	}
+
+	public static MapRegion fromBoundingBox(double minLon, double minLat, double maxLon, double maxLat) {
+		if(minLon > maxLon || minLat > maxLat) {
+			throw new IllegalArgumentException("Invalid bounding box " + minLon + "," + minLat + "," + maxLon + "," + maxLat);
+		}
+		return new MapRegion(minLon, minLat, maxLon, maxLat, null,
+				String.format(Locale.ROOT, "bbox=%.7f,%.7f,%.7f,%.7f", minLon, minLat, maxLon, maxLat));
+	}
+
+	/**
+	 * Parses either a bounding box written as "minLon,minLat,maxLon,maxLat" or a WKT geometry.
+	 * The region of a POLYGON or MULTIPOLYGON is its area, the one of any other geometry its envelope.
+	 * @throws IOException if the text is neither a bounding box nor a valid WKT geometry.
+	 */
+	public static MapRegion parse(String region) throws IOException {
+		String[] values = region.trim().split("\\s*,\\s*");
+		if(values.length == 4) {
+			try {
+				return fromBoundingBox(Double.parseDouble(values[0]), Double.parseDouble(values[1]),
+						Double.parseDouble(values[2]), Double.parseDouble(values[3]));
+			}catch(NumberFormatException e) {
+				/*
+				 * Not a bounding box, it may still be a WKT geometry.
+				 */
+			}catch(IllegalArgumentException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		Geometry geometry;
+		try {
+			geometry = GeometryReader.readGeometry(region.trim());
+		}catch(RuntimeException e) {
+			throw new IOException("Invalid WKT geometry " + region, e);
+		}
+		if(geometry == null || geometry.isEmpty()) {
+			throw new IOException("Invalid WKT geometry " + region);
+		}
+		List<Polygon> polygons = new ArrayList<Polygon>();
+		if(geometry instanceof Polygon) {
+			polygons.add((Polygon) geometry);
+		}else if(geometry instanceof MultiPolygon) {
+			polygons.addAll(((MultiPolygon) geometry).getPolygons());
+		}
+		GeometryEnvelope envelope = geometry.getEnvelope();
+		if(polygons.isEmpty()) {
+			return fromBoundingBox(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+		}
+		List<double[]> rings = new ArrayList<double[]>();
+		for(Polygon polygon: polygons) {
+			for(LineString ring: polygon.getRings()) {
+				double[] coordinates = new double[ring.numPoints() * 2];
+				for(int i = 0; i < ring.numPoints(); i++) {
+					Point p = ring.getPoint(i);
+					coordinates[i * 2] = p.getX();
+					coordinates[i * 2 + 1] = p.getY();
+				}
+				rings.add(coordinates);
+			}
+		}
+		return new MapRegion(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(),
+				rings.toArray(new double[0][]), "wkt=" + region.trim());
+	}
+
+	/**
+	 * @return the bounding box of this region enlarged by margin meters on every side.
+	 */
+	public MapRegion expand(double margin) {
+		double lat = margin / METERS_PER_DEGREE;
+		double lon = margin / (METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))))));
+		return fromBoundingBox(Math.max(-180, minLon - lon), Math.max(-90, minLat - lat), Math.min(180, maxLon + lon), Math.min(90, maxLat + lat));
+	}
+
+	/**
+	 * @return the bounding box of this region rounded outwards to multiples of step degrees,
+	 * so that slightly different regions share the same key.
+	 */
+	public MapRegion roundOutwards(double step) {
+		return fromBoundingBox(Math.floor(minLon / step) * step, Math.floor(minLat / step) * step,
+				Math.ceil(maxLon / step) * step, Math.ceil(maxLat / step) * step);
+	}
+
+	/**
+	 * @return the smallest bounding box containing both regions.
+	 */
+	public MapRegion union(MapRegion other) {
+		return fromBoundingBox(Math.min(minLon, other.minLon), Math.min(minLat, other.minLat),
+				Math.max(maxLon, other.maxLon), Math.max(maxLat, other.maxLat));
+	}
+
+	public boolean contains(double lat, double lon) {
+		if(lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+			return false;
+		}
+		if(rings == null) {
+			return true;
+		}
+		boolean inside = false;
+		for(double[] ring: rings) {
+			int n = ring.length / 2;
+			for(int i = 0, j = n - 1; i < n; j = i++) {
+				double xi = ring[i * 2], yi = ring[i * 2 + 1];
+				double xj = ring[j * 2], yj = ring[j * 2 + 1];
+				if((yi > lat) != (yj > lat) && lon < (xj - xi) * (lat - yi) / (yj - yi) + xi) {
+					inside = !inside;
+				}
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * @return a string identifying the region, equal for equal regions.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+}
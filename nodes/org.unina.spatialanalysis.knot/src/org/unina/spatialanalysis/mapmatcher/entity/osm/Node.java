@@ -1,16 +1,11 @@
 package org.unina.spatialanalysis.mapmatcher.entity.osm;
 
-import java.util.HashSet;
-import java.util.Set;
-
 public class Node {
 	
 	private long nodeId;
 	
 	private double lon;
 	private double lat;
-	
-	private Set<Long> ways;
 
 	/**
 	 * @return the nodeId
@@ -33,29 +28,13 @@ public class Node {
 		return lat;
 	}
 
-	/**
-	 * @return the ways
-	 */
-	public Set<Long> getWays() {
-		return ways;
-	}
-
 	public Node(long nodeId, double lon, double lat) {
 		super();
 		this.nodeId = nodeId;
 		this.lon = lon;
 		this.lat = lat;
-		this.ways= new HashSet<Long>();
-	}
-	
-	public boolean isInWay(Way w) {
-		return this.ways.contains(w.getWayId());
 	}
 	
-	public boolean addWay(Way w) {
-		return this.ways.add(w.getWayId());
-	}
-
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,127 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * The columns of an indexed @see OsmDataManager.
+ * They are buffers so that they can either wrap arrays on the heap or be mapped from a
+ * snapshot file, see {@link OsmDataSnapshot}. Only absolute gets are used on them, so
+ * they can be read by concurrent threads.
+ * @author sinog
+ *
+ */
+class OsmColumns {
+
+	/*
+	 * Nodes sorted by id, coordinates as fixed-point integers.
+	 */
+	LongBuffer nodeIds;
+	IntBuffer nodeLats;
+	IntBuffer nodeLons;
+
+	/*
+	 * Node to way membership in CSR layout: the ways of node row n are the rows
+	 * nodeWays[nodeWayStart[n]] ... nodeWays[nodeWayStart[n + 1] - 1], in ascending order.
+	 */
+	IntBuffer nodeWayStart;
+	IntBuffer nodeWays;
+
+	/*
+	 * Ways sorted by id. The nodes of way row w are the rows
+	 * wayNodes[wayNodeStart[w]] ... wayNodes[wayNodeStart[w + 1] - 1], with -1 for the nodes
+	 * missing from the map data.
+	 */
+	LongBuffer wayIds;
+	IntBuffer wayTagSets;
+	IntBuffer wayNodeStart;
+	IntBuffer wayNodes;
+
+	/*
+	 * Road segments in CSR layout: the segments starting from node row n have ids
+	 * segmentStart[n] ... segmentStart[n + 1] - 1 and are sorted by destination row.
+	 */
+	IntBuffer segmentStart;
+	IntBuffer segmentOrigins;
+	IntBuffer segmentDestinations;
+	IntBuffer segmentTagSets;
+
+	/*
+	 * The tag dictionary: the UTF-8 bytes of string s are stringBytes[stringStart[s]] ...
+	 * stringBytes[stringStart[s + 1] - 1], the pairs of tag set t are at
+	 * tagSetStart[t] ... tagSetStart[t + 1] - 1 of tagSetKeys and tagSetValues.
+	 */
+	IntBuffer stringStart;
+	ByteBuffer stringBytes;
+	IntBuffer tagSetStart;
+	IntBuffer tagSetKeys;
+	IntBuffer tagSetValues;
+
+	int getNodeCount() {
+		return nodeIds.limit();
+	}
+
+	int getWayCount() {
+		return wayIds.limit();
+	}
+
+	int getSegmentCount() {
+		return segmentOrigins.limit();
+	}
+
+	/**
+	 * @return the bytes of heap used by the columns; columns mapped from a snapshot take none.
+	 */
+	long estimateHeapSize() {
+		long res = 0;
+		for(Buffer section: toSections()) {
+			if(!section.isDirect()) {
+				int width = section instanceof LongBuffer ? 8 : section instanceof IntBuffer ? 4 : 1;
+				res += (long) section.capacity() * width;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the columns in the order they are stored in a snapshot.
+	 */
+	Buffer[] toSections() {
+		return new Buffer[] {
+				nodeIds, nodeLats, nodeLons,
+				nodeWayStart, nodeWays,
+				wayIds, wayTagSets, wayNodeStart, wayNodes,
+				segmentStart, segmentOrigins, segmentDestinations, segmentTagSets,
+				stringStart, stringBytes, tagSetStart, tagSetKeys, tagSetValues
+		};
+	}
+
+	/**
+	 * @return the columns stored in a snapshot, in the order given by {@link #toSections()}.
+	 */
+	static OsmColumns fromSections(Buffer[] sections) {
+		OsmColumns res = new OsmColumns();
+		int i = 0;
+		res.nodeIds = (LongBuffer) sections[i++];
+		res.nodeLats = (IntBuffer) sections[i++];
+		res.nodeLons = (IntBuffer) sections[i++];
+		res.nodeWayStart = (IntBuffer) sections[i++];
+		res.nodeWays = (IntBuffer) sections[i++];
+		res.wayIds = (LongBuffer) sections[i++];
+		res.wayTagSets = (IntBuffer) sections[i++];
+		res.wayNodeStart = (IntBuffer) sections[i++];
+		res.wayNodes = (IntBuffer) sections[i++];
+		res.segmentStart = (IntBuffer) sections[i++];
+		res.segmentOrigins = (IntBuffer) sections[i++];
+		res.segmentDestinations = (IntBuffer) sections[i++];
+		res.segmentTagSets = (IntBuffer) sections[i++];
+		res.stringStart = (IntBuffer) sections[i++];
+		res.stringBytes = (ByteBuffer) sections[i++];
+		res.tagSetStart = (IntBuffer) sections[i++];
+		res.tagSetKeys = (IntBuffer) sections[i++];
+		res.tagSetValues = (IntBuffer) sections[i++];
+		return res;
+	}
+}
@@ -1,158 +1,734 @@
 package org.unina.spatialanalysis.mapmatcher.entity.osm;
 
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class OsmDataManager {
-	
-	private final Map<Long,Node> nodes;
-	
-	private final Map<Long,Way> ways;
-	
-	private final Map<Long, Set<Long>> recovery;
-	
-	private final Map<String, Segment> normalize;
-	
+/**
+ * The OSM map data used to enrich the route steps.
+ * Nodes and ways are kept in primitive columns: while loading they are simply appended,
+ * the first query sorts the nodes by id and builds the node to way membership, after which
+ * the manager can no longer be modified and can be shared between threads.
+ * The road segments, the pairs of consecutive nodes of a way, are numbered with dense ids
+ * so that per-segment state can be kept in arrays, see {@link VisitedSegments}.
+ * Tags are interned in a @see TagDictionary, and each segment is given the id of the set of
+ * tags of the ways it belongs to when indexing.
+ * Coordinates are stored as fixed-point integers with 7 decimals, the precision of OSM data.
+ * A manager can be asked to keep only the nodes of its ways, and to clip the map data to a
+ * @see MapRegion: the nodes are buffered while loading, since ways usually come after them,
+ * and the ones that are not needed are dropped when indexing.
+ * An indexed manager cannot be modified, changes are applied to a new manager created on
+ * top of it, which starts with all of its nodes and ways, see
+ * {@link #OsmDataManager(OsmDataManager, Set, boolean, MapRegion)}.
+ * @author sinog
+ *
+ */
+public class OsmDataManager implements OsmMapData {
+
+	private static final double COORDINATE_SCALE = 1e7;
+
+	/*
+	 * The latitude and the tag set marking a deleted node and a deleted way.
+	 */
+	private static final int DELETED_NODE = Integer.MIN_VALUE;
+	private static final int DELETED_WAY = -1;
+
+	/*
+	 * The id of the nodes of a way that were missing from the data it was copied from.
+	 */
+	private static final long MISSING_NODE = Long.MIN_VALUE;
+
+	/*
+	 * Nodes and ways in the order they are added, released once indexed.
+	 * The nodes of the ways are kept as ids in wayNodeIds.
+	 */
+	private int nodeCount;
+	private long[] nodeIds = new long[0];
+	private int[] nodeLats = new int[0];
+	private int[] nodeLons = new int[0];
+
+	private int wayCount;
+	private long[] wayIds = new long[0];
+	private int[] wayTagSets = new int[0];
+	private int[] wayNodeStart = new int[1];
+	private long[] wayNodeIds = new long[0];
+	private int wayNodeCount;
+
+	private final TagDictionary tags;
+
+	/*
+	 * The keys of the tags to keep, null to keep all of them.
+	 */
+	private final Set<String> keptTagKeys;
+
+	private final boolean referencedNodesOnly;
+
+	private final MapRegion clipRegion;
+
+	private int[] tagKeyIds = new int[16];
+	private int[] tagValueIds = new int[16];
+
+	private volatile OsmColumns columns;
+
+	private volatile SegmentIndex segmentIndex;
+
 	public OsmDataManager() {
+		this((Set<String>) null);
+	}
+
+	/**
+	 * @param keptTagKeys the keys of the way tags to keep, or null to keep all the tags.
+	 */
+	public OsmDataManager(Set<String> keptTagKeys) {
+		this(keptTagKeys, false);
+	}
+
+	/**
+	 * @param keptTagKeys the keys of the way tags to keep, or null to keep all the tags.
+	 * @param referencedNodesOnly if true the nodes that are not part of any way are dropped when indexing.
+	 */
+	public OsmDataManager(Set<String> keptTagKeys, boolean referencedNodesOnly) {
+		this(keptTagKeys, referencedNodesOnly, null);
+	}
+
+	/**
+	 * @param keptTagKeys the keys of the way tags to keep, or null to keep all the tags.
+	 * @param referencedNodesOnly if true the nodes that are not part of any way are dropped when indexing.
+	 * @param clipRegion the region the map data is clipped to when indexing, or null to keep all of it.
+	 * A way crossing the border of the region is cut right after its last node outside of it, so the
+	 * segments crossing the border are kept.
+	 */
+	public OsmDataManager(Set<String> keptTagKeys, boolean referencedNodesOnly, MapRegion clipRegion) {
+		super();
+		this.keptTagKeys = keptTagKeys;
+		this.referencedNodesOnly = referencedNodesOnly;
+		this.clipRegion = clipRegion;
+		this.tags = new TagDictionary();
+	}
+
+	/**
+	 * Creates a manager holding the nodes and the ways of base, to which nodes and ways can be
+	 * added and removed before it is indexed. The filters of this manager only apply to the
+	 * nodes and ways added to it, since the ones of base have already been filtered.
+	 * The nodes base was missing are still missing even if they are added later.
+	 * @param keptTagKeys the keys of the way tags to keep, or null to keep all the tags.
+	 * @param referencedNodesOnly if true the nodes that are not part of any way are dropped when indexing.
+	 * @param clipRegion the region the map data is clipped to when indexing, or null to keep all of it.
+	 */
+	public OsmDataManager(OsmDataManager base, Set<String> keptTagKeys, boolean referencedNodesOnly, MapRegion clipRegion) {
+		this(keptTagKeys, referencedNodesOnly, clipRegion);
+		OsmColumns c = base.getColumns();
+		copyRows(base, null, c.getNodeCount(), null, c.getWayCount());
+	}
+
+	/**
+	 * Creates a manager holding the nodes and the ways of base at the given rows of its columns.
+	 * The nodes of the ways that are not among the given ones are missing.
+	 */
+	OsmDataManager(OsmDataManager base, int[] nodeRows, int nodeRowCount, int[] wayRows, int wayRowCount) {
+		this(null, false, null);
+		copyRows(base, nodeRows, nodeRowCount, wayRows, wayRowCount);
+	}
+
+	/**
+	 * Copies the nodes and the ways at the given rows of the columns of base, or the first
+	 * ones if the rows are null.
+	 */
+	private void copyRows(OsmDataManager base, int[] nodeRows, int nodeRowCount, int[] wayRows, int wayRowCount) {
+		OsmColumns c = base.getColumns();
+		nodeCount = nodeRowCount;
+		nodeIds = new long[nodeCount];
+		nodeLats = new int[nodeCount];
+		nodeLons = new int[nodeCount];
+		if(nodeRows == null) {
+			c.nodeIds.duplicate().get(nodeIds);
+			c.nodeLats.duplicate().get(nodeLats);
+			c.nodeLons.duplicate().get(nodeLons);
+		}else {
+			for(int i = 0; i < nodeCount; i++) {
+				nodeIds[i] = c.nodeIds.get(nodeRows[i]);
+				nodeLats[i] = c.nodeLats.get(nodeRows[i]);
+				nodeLons[i] = c.nodeLons.get(nodeRows[i]);
+			}
+		}
+		int[] copiedTagSets = new int[c.tagSetStart.limit() - 1];
+		Arrays.fill(copiedTagSets, -1);
+		long[] refs = new long[16];
+		for(int i = 0; i < wayRowCount; i++) {
+			int w = wayRows == null ? i : wayRows[i];
+			int tagSet = c.wayTagSets.get(w);
+			if(copiedTagSets[tagSet] == -1) {
+				copiedTagSets[tagSet] = tags.copyTagSet(base.tags, tagSet);
+			}
+			int from = c.wayNodeStart.get(w);
+			int to = c.wayNodeStart.get(w + 1);
+			refs = PrimitiveArrays.grow(refs, to - from);
+			for(int r = from; r < to; r++) {
+				int node = c.wayNodes.get(r);
+				refs[r - from] = node == -1 ? MISSING_NODE : c.nodeIds.get(node);
+			}
+			appendWay(c.wayIds.get(w), copiedTagSets[tagSet], refs, 0, to - from);
+		}
+	}
+
+	/**
+	 * Creates an already indexed manager on top of the given columns.
+	 */
+	OsmDataManager(OsmColumns columns) {
 		super();
-		this.nodes = new HashMap<Long, Node>();
-		this.ways = new HashMap<Long, Way>();
-		this.recovery = new HashMap<Long, Set<Long>>();
-		this.normalize = new HashMap<String, Segment>(); 
+		this.keptTagKeys = null;
+		this.referencedNodesOnly = false;
+		this.clipRegion = null;
+		this.tags = new TagDictionary(columns);
+		this.columns = columns;
 	}
-	
+
 	public void addNode(Node n) {
+		addNode(n.getNodeId(), n.getLat(), n.getLon());
+	}
+
+	public void addNode(long id, double lat, double lon) {
+		checkNotIndexed();
+		if(nodeCount == nodeIds.length) {
+			nodeIds = PrimitiveArrays.grow(nodeIds, nodeCount + 1);
+			nodeLats = PrimitiveArrays.grow(nodeLats, nodeIds.length);
+			nodeLons = PrimitiveArrays.grow(nodeLons, nodeIds.length);
+		}
+		nodeIds[nodeCount] = id;
+		nodeLats[nodeCount] = (int) Math.round(lat * COORDINATE_SCALE);
+		nodeLons[nodeCount] = (int) Math.round(lon * COORDINATE_SCALE);
+		nodeCount++;
+	}
+
+	/**
+	 * Removes the node, if present, from the map data; adding it again afterwards restores it.
+	 */
+	public void deleteNode(long id) {
+		addNode(id, 0, 0);
+		nodeLats[nodeCount - 1] = DELETED_NODE;
+	}
+
+	/**
+	 * Adds a way composed by the nodes composingNodes[from] ... composingNodes[to - 1].
+	 * The nodes do not need to be added before the way.
+	 */
+	public void addWay(Way w, long[] composingNodes, int from, int to) {
+		String[] keys = w.getTags().keySet().toArray(new String[0]);
+		String[] values = new String[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			values[i] = w.getTags().get(keys[i]);
+		}
+		addWay(w.getWayId(), keys, values, 0, keys.length, composingNodes, from, to);
+	}
+
+	/**
+	 * Adds a way tagged with the pairs (keys[tagFrom], values[tagFrom]) ... (keys[tagTo - 1], values[tagTo - 1])
+	 * and composed by the nodes composingNodes[from] ... composingNodes[to - 1].
+	 */
+	public void addWay(long wayId, String[] keys, String[] values, int tagFrom, int tagTo, long[] composingNodes, int from, int to) {
+		checkNotIndexed();
+		int tagCount = 0;
+		for(int i = tagFrom; i < tagTo; i++) {
+			if(keptTagKeys == null || keptTagKeys.contains(keys[i])) {
+				tagKeyIds = PrimitiveArrays.grow(tagKeyIds, tagCount + 1);
+				tagValueIds = PrimitiveArrays.grow(tagValueIds, tagKeyIds.length);
+				tagKeyIds[tagCount] = tags.intern(keys[i]);
+				tagValueIds[tagCount] = tags.intern(values[i]);
+				tagCount++;
+			}
+		}
+		appendWay(wayId, tags.internTagSet(tagKeyIds, tagValueIds, 0, tagCount), composingNodes, from, to);
+	}
+
+	/**
+	 * Removes the way, if present, from the map data; adding it again afterwards restores it.
+	 */
+	public void deleteWay(long id) {
+		checkNotIndexed();
+		appendWay(id, DELETED_WAY, null, 0, 0);
+	}
+
+	private void appendWay(long wayId, int tagSet, long[] composingNodes, int from, int to) {
+		if(wayCount == wayIds.length) {
+			wayIds = PrimitiveArrays.grow(wayIds, wayCount + 1);
+			wayTagSets = PrimitiveArrays.grow(wayTagSets, wayIds.length);
+			wayNodeStart = PrimitiveArrays.grow(wayNodeStart, wayIds.length + 1);
+		}
+		wayNodeIds = PrimitiveArrays.grow(wayNodeIds, wayNodeCount + to - from);
+		for(int i = from; i < to; i++) {
+			wayNodeIds[wayNodeCount++] = composingNodes[i];
+		}
+		wayIds[wayCount] = wayId;
+		wayTagSets[wayCount] = tagSet;
+		wayCount++;
+		wayNodeStart[wayCount] = wayNodeCount;
+	}
+
+	private void checkNotIndexed() {
+		if(columns != null) {
+			throw new IllegalStateException("The map data has already been indexed");
+		}
+	}
+
+	/**
+	 * @return the columns of the manager, building them on the first call.
+	 */
+	OsmColumns getColumns() {
+		OsmColumns res = columns;
+		if(res == null) {
+			synchronized(this) {
+				res = columns;
+				if(res == null) {
+					res = buildIndex();
+					columns = res;
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the spatial index of the segments, building it on the first call.
+	 */
+	public SegmentIndex getSegmentIndex() {
+		SegmentIndex res = segmentIndex;
+		if(res == null) {
+			synchronized(this) {
+				res = segmentIndex;
+				if(res == null) {
+					res = new SegmentIndex(getColumns());
+					segmentIndex = res;
+				}
+			}
+		}
+		return res;
+	}
+
+	private OsmColumns buildIndex() {
+		OsmColumns res = new OsmColumns();
 		/*
-		 * Check if the node id is present in the recovery map.
-		 * If yes add the ways ids saved there to the map and
-		 * remove the node id. 
+		 * When a node or a way is added or deleted more than once the last one wins.
 		 */
-		if(recovery.containsKey(n.getNodeId())) {
-			for(Long wayId: recovery.get(n.getNodeId())) {
-				if(ways.containsKey(wayId)) {
-					n.addWay(ways.get(wayId));
+		int[] perm = PrimitiveArrays.sortedPermutation(nodeIds, nodeCount);
+		int n = PrimitiveArrays.keepLastOfEachKey(nodeIds, perm);
+		long[] sortedIds = new long[n];
+		int[] sortedLats = new int[n];
+		int[] sortedLons = new int[n];
+		int live = 0;
+		for(int i = 0; i < n; i++) {
+			if(nodeLats[perm[i]] != DELETED_NODE) {
+				sortedIds[live] = nodeIds[perm[i]];
+				sortedLats[live] = nodeLats[perm[i]];
+				sortedLons[live] = nodeLons[perm[i]];
+				live++;
+			}
+		}
+		if(live < n) {
+			n = live;
+			sortedIds = Arrays.copyOf(sortedIds, n);
+			sortedLats = Arrays.copyOf(sortedLats, n);
+			sortedLons = Arrays.copyOf(sortedLons, n);
+		}
+		nodeIds = null;
+		nodeLats = null;
+		nodeLons = null;
+
+		perm = PrimitiveArrays.sortedPermutation(wayIds, wayCount);
+		int w = PrimitiveArrays.keepLastOfEachKey(wayIds, perm);
+		long[] sortedWayIds = new long[w];
+		int[] sortedWayTagSets = new int[w];
+		int[] sortedWayNodeStart = new int[w + 1];
+		int refs = 0;
+		for(int i = 0; i < w; i++) {
+			refs += wayNodeStart[perm[i] + 1] - wayNodeStart[perm[i]];
+		}
+		int[] sortedWayNodes = new int[refs];
+		refs = 0;
+		int kept = 0;
+		for(int i = 0; i < w; i++) {
+			if(wayTagSets[perm[i]] == DELETED_WAY) {
+				continue;
+			}
+			int begin = refs;
+			for(int r = wayNodeStart[perm[i]]; r < wayNodeStart[perm[i] + 1]; r++) {
+				sortedWayNodes[refs++] = PrimitiveArrays.find(sortedIds, n, wayNodeIds[r]);
+			}
+			if(clipRegion != null) {
+				refs = clipWay(sortedWayNodes, begin, refs, sortedLats, sortedLons);
+				if(refs == begin) {
+					continue;
 				}
 			}
-			recovery.remove(n.getNodeId());
+			sortedWayIds[kept] = wayIds[perm[i]];
+			sortedWayTagSets[kept] = wayTagSets[perm[i]];
+			sortedWayNodeStart[++kept] = refs;
 		}
-		this.nodes.put(n.getNodeId(), n);
-	}
-	
-	public void addWay(Way w, List<Long> composingNodes) {
+		if(kept < w) {
+			w = kept;
+			sortedWayIds = Arrays.copyOf(sortedWayIds, w);
+			sortedWayTagSets = Arrays.copyOf(sortedWayTagSets, w);
+			sortedWayNodeStart = Arrays.copyOf(sortedWayNodeStart, w + 1);
+			sortedWayNodes = Arrays.copyOf(sortedWayNodes, refs);
+		}
+		wayIds = null;
+		wayTagSets = null;
+		wayNodeStart = null;
+		wayNodeIds = null;
+		if(referencedNodesOnly || clipRegion != null) {
+			n = dropUnusedNodes(sortedIds, sortedLats, sortedLons, n, sortedWayNodes);
+			sortedIds = Arrays.copyOf(sortedIds, n);
+			sortedLats = Arrays.copyOf(sortedLats, n);
+			sortedLons = Arrays.copyOf(sortedLons, n);
+		}
+
 		/*
-		 * Check if the nodes of the way are present, 
-		 * if yes add the way to the nodes, if not add the ids
-		 * to the recovery map.
+		 * Ways are visited in ascending order, so a way passing more than once
+		 * through a node is always the last one added to it.
 		 */
-		
-		Long prev = null;
-		for(Long l: composingNodes) {
-			if(prev==null) {
-				prev = l;
-			}else {
-				this.normalize.put(prev+"_"+l, new Segment(prev, l));
-				prev = l;
+		int[] lastWay = new int[n];
+		Arrays.fill(lastWay, -1);
+		int[] start = new int[n + 1];
+		for(int i = 0; i < w; i++) {
+			for(int r = sortedWayNodeStart[i]; r < sortedWayNodeStart[i + 1]; r++) {
+				int node = sortedWayNodes[r];
+				if(node != -1 && lastWay[node] != i) {
+					lastWay[node] = i;
+					start[node + 1]++;
+				}
 			}
-			if(nodes.get(l) != null) {
-				Node n = nodes.get(l);
-				n.addWay(w);
-			}else {
-				if(recovery.containsKey(l)) {
-					Set<Long> waysIds = recovery.get(l);
-					waysIds.add(w.getWayId());
+		}
+		lastWay = null;
+		for(int i = 0; i < n; i++) {
+			start[i + 1] += start[i];
+		}
+		int[] members = new int[start[n]];
+		int[] next = Arrays.copyOf(start, n);
+		for(int i = 0; i < w; i++) {
+			for(int r = sortedWayNodeStart[i]; r < sortedWayNodeStart[i + 1]; r++) {
+				int node = sortedWayNodes[r];
+				if(node != -1 && (next[node] == start[node] || members[next[node] - 1] != i)) {
+					members[next[node]++] = i;
+				}
+			}
+		}
+
+		res.nodeIds = LongBuffer.wrap(sortedIds);
+		res.nodeLats = IntBuffer.wrap(sortedLats);
+		res.nodeLons = IntBuffer.wrap(sortedLons);
+		res.nodeWayStart = IntBuffer.wrap(start);
+		res.nodeWays = IntBuffer.wrap(members);
+		res.wayIds = LongBuffer.wrap(sortedWayIds);
+		res.wayTagSets = IntBuffer.wrap(sortedWayTagSets);
+		res.wayNodeStart = IntBuffer.wrap(sortedWayNodeStart);
+		res.wayNodes = IntBuffer.wrap(sortedWayNodes);
+		buildSegments(res);
+		tagSegments(res);
+		tags.freeze(res);
+		tagKeyIds = null;
+		tagValueIds = null;
+		return res;
+	}
+
+	/**
+	 * Cuts the way whose nodes are wayNodes[from] ... wayNodes[to - 1] to the part between the
+	 * node before its first node inside the clip region and the node after its last one,
+	 * moving it at from.
+	 * @return the new end of the way, from if no node of the way is inside the region.
+	 */
+	private int clipWay(int[] wayNodes, int from, int to, int[] lats, int[] lons) {
+		int first = -1;
+		int last = -1;
+		for(int r = from; r < to; r++) {
+			int node = wayNodes[r];
+			if(node != -1 && clipRegion.contains(lats[node] / COORDINATE_SCALE, lons[node] / COORDINATE_SCALE)) {
+				if(first == -1) {
+					first = r;
+				}
+				last = r;
+			}
+		}
+		if(first == -1) {
+			return from;
+		}
+		first = Math.max(from, first - 1);
+		last = Math.min(to - 1, last + 1);
+		System.arraycopy(wayNodes, first, wayNodes, from, last - first + 1);
+		return from + last - first + 1;
+	}
+
+	/**
+	 * Moves the nodes to keep to the first rows, keeping them sorted, and renumbers wayNodes
+	 * accordingly. The nodes referenced by wayNodes are always kept, the other ones only if
+	 * the unreferenced nodes are kept and they are inside the clip region.
+	 * @return the number of nodes kept.
+	 */
+	private int dropUnusedNodes(long[] ids, int[] lats, int[] lons, int n, int[] wayNodes) {
+		int[] rows = new int[n];
+		Arrays.fill(rows, -1);
+		for(int node: wayNodes) {
+			if(node != -1) {
+				rows[node] = 0;
+			}
+		}
+		if(!referencedNodesOnly) {
+			for(int i = 0; i < n; i++) {
+				if(clipRegion.contains(lats[i] / COORDINATE_SCALE, lons[i] / COORDINATE_SCALE)) {
+					rows[i] = 0;
+				}
+			}
+		}
+		int kept = 0;
+		for(int i = 0; i < n; i++) {
+			if(rows[i] != -1) {
+				ids[kept] = ids[i];
+				lats[kept] = lats[i];
+				lons[kept] = lons[i];
+				rows[i] = kept++;
+			}
+		}
+		for(int r = 0; r < wayNodes.length; r++) {
+			if(wayNodes[r] != -1) {
+				wayNodes[r] = rows[wayNodes[r]];
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Numbers the distinct directed segments whose nodes are both part of the map data.
+	 * A segment is encoded as origin row in the high and destination row in the low
+	 * 32 bits, so sorting the codes sorts the segments by origin and then destination.
+	 */
+	private static void buildSegments(OsmColumns c) {
+		int pairs = 0;
+		for(int i = 0; i < c.getWayCount(); i++) {
+			for(int r = c.wayNodeStart.get(i) + 1; r < c.wayNodeStart.get(i + 1); r++) {
+				if(c.wayNodes.get(r - 1) != -1 && c.wayNodes.get(r) != -1) {
+					pairs++;
+				}
+			}
+		}
+		long[] codes = new long[pairs];
+		pairs = 0;
+		for(int i = 0; i < c.getWayCount(); i++) {
+			for(int r = c.wayNodeStart.get(i) + 1; r < c.wayNodeStart.get(i + 1); r++) {
+				if(c.wayNodes.get(r - 1) != -1 && c.wayNodes.get(r) != -1) {
+					codes[pairs++] = ((long) c.wayNodes.get(r - 1) << 32) | c.wayNodes.get(r);
+				}
+			}
+		}
+		Arrays.sort(codes);
+		int count = 0;
+		for(int i = 0; i < codes.length; i++) {
+			if(i == 0 || codes[i] != codes[i - 1]) {
+				codes[count++] = codes[i];
+			}
+		}
+		int nodes = c.getNodeCount();
+		int[] start = new int[nodes + 1];
+		int[] origins = new int[count];
+		int[] destinations = new int[count];
+		for(int i = 0; i < count; i++) {
+			origins[i] = (int) (codes[i] >>> 32);
+			destinations[i] = (int) codes[i];
+			start[origins[i] + 1]++;
+		}
+		for(int i = 0; i < nodes; i++) {
+			start[i + 1] += start[i];
+		}
+		c.segmentStart = IntBuffer.wrap(start);
+		c.segmentOrigins = IntBuffer.wrap(origins);
+		c.segmentDestinations = IntBuffer.wrap(destinations);
+	}
+
+	/**
+	 * Gives each segment the union of the tags of the ways shared by its nodes.
+	 */
+	private void tagSegments(OsmColumns c) {
+		int[] segmentTagSets = new int[c.getSegmentCount()];
+		int[] shared = new int[16];
+		for(int s = 0; s < segmentTagSets.length; s++) {
+			int o = c.segmentOrigins.get(s);
+			int d = c.segmentDestinations.get(s);
+			int count = 0;
+			int i = c.nodeWayStart.get(o);
+			int j = c.nodeWayStart.get(d);
+			while(i < c.nodeWayStart.get(o + 1) && j < c.nodeWayStart.get(d + 1)) {
+				int wi = c.nodeWays.get(i);
+				int wj = c.nodeWays.get(j);
+				if(wi < wj) {
+					i++;
+				}else if(wi > wj) {
+					j++;
 				}else {
-					Set<Long> waysIds = new HashSet<Long>();
-					waysIds.add(w.getWayId());
-					recovery.put(l, waysIds);
+					shared = PrimitiveArrays.grow(shared, count + 1);
+					shared[count++] = c.wayTagSets.get(wi);
+					i++;
+					j++;
 				}
 			}
+			segmentTagSets[s] = tags.internUnion(shared, 0, count);
 		}
-		
-		
-		this.ways.put(w.getWayId(), w);
+		c.segmentTagSets = IntBuffer.wrap(segmentTagSets);
 	}
-	
+
 	public String printStats() {
-		return "This manager contains "  + this.nodes.size() + " nodes and " + this.ways.size() + " ways\n"; 
+		OsmColumns c = getColumns();
+		return "This manager contains "  + c.getNodeCount() + " nodes, " + c.getWayCount() + " ways and " + c.getSegmentCount() + " segments\n";
 	}
-	
+
+	/**
+	 * @return an estimate of the bytes of heap used by the indexed map data, indexing it if needed.
+	 */
+	public long estimateHeapSize() {
+		return getColumns().estimateHeapSize() + tags.estimateHeapSize();
+	}
+
 	public Map<String, String> getAllTagsOfSegment(Node origin, Node destination){
-		Set<Long> originWays = origin.getWays();
-		Set<Long> destinationWays = destination.getWays();
-		Set<Long> tmp = new HashSet<Long>();
-		tmp.addAll(originWays);
-		tmp.retainAll(destinationWays);
+		OsmColumns c = getColumns();
+		int segment = getSegmentOrReverse(origin.getNodeId(), destination.getNodeId());
+		if(segment != -1) {
+			return tags.getTags(c.segmentTagSets.get(segment));
+		}
+		int o = PrimitiveArrays.find(c.nodeIds, origin.getNodeId());
+		int d = PrimitiveArrays.find(c.nodeIds, destination.getNodeId());
+		if(o == -1 || d == -1) {
+			return new HashMap<>();
+		}
+		return getAllTagsBetween(c, o, d);
+	}
+
+	public Map<String, String> getAllTagsOfSegment(int segment){
+		return tags.getTags(getColumns().segmentTagSets.get(segment));
+	}
+
+	/**
+	 * @return the tags of the segment formatted as "{ key = value; ... }".
+	 */
+	public String getTagsOfSegment(int segment) {
+		return tags.render(getColumns().segmentTagSets.get(segment));
+	}
+
+	/**
+	 * @return the tags shared by the two nodes formatted as "{ key = value; ... }".
+	 * If the nodes are not consecutive in any way the tags are computed on the fly.
+	 */
+	public String getTagsOfSegment(long originId, long destinationId) {
+		OsmColumns c = getColumns();
+		int segment = getSegmentOrReverse(originId, destinationId);
+		if(segment != -1) {
+			return tags.render(c.segmentTagSets.get(segment));
+		}
+		int o = PrimitiveArrays.find(c.nodeIds, originId);
+		int d = PrimitiveArrays.find(c.nodeIds, destinationId);
+		if(o == -1 || d == -1) {
+			return renderTags(new HashMap<>());
+		}
+		return renderTags(getAllTagsBetween(c, o, d));
+	}
+
+	private int getSegmentOrReverse(long originId, long destinationId) {
+		int segment = getSegmentId(originId, destinationId);
+		if(segment == -1) {
+			segment = getSegmentId(destinationId, originId);
+		}
+		return segment;
+	}
+
+	public static String renderTags(Map<String, String> tagsMap) {
+		StringBuilder res = new StringBuilder("{");
+		for(Map.Entry<String, String> tag: tagsMap.entrySet()) {
+			res.append(' ').append(tag.getKey()).append(" = ").append(tag.getValue()).append(';');
+		}
+		if(res.length() > 1) {
+			res.setLength(res.length() - 1);
+		}
+		return res.append(" }").toString();
+	}
+
+	private Map<String, String> getAllTagsBetween(OsmColumns c, int o, int d){
 		Map<String, String> res = new HashMap<>();
-		for(Long l: tmp) {
-			res.putAll(this.ways.get(l).getTags());
+		/*
+		 * Both way lists are sorted, so they are intersected by merging them.
+		 */
+		int i = c.nodeWayStart.get(o);
+		int j = c.nodeWayStart.get(d);
+		while(i < c.nodeWayStart.get(o + 1) && j < c.nodeWayStart.get(d + 1)) {
+			int wi = c.nodeWays.get(i);
+			int wj = c.nodeWays.get(j);
+			if(wi < wj) {
+				i++;
+			}else if(wi > wj) {
+				j++;
+			}else {
+				res.putAll(tags.getTags(c.wayTagSets.get(wi)));
+				i++;
+				j++;
+			}
 		}
 		return res;
- 	}
-	
+	}
+
 	public boolean checkNodePresence(long nodeId) {
-		return this.nodes.containsKey(nodeId);
+		return PrimitiveArrays.find(getColumns().nodeIds, nodeId) != -1;
 	}
 
+	/**
+	 * @return the node with the given id, or null if it is not part of the map data.
+	 */
 	public Node getNode(long nodeId) {
-		return this.nodes.get(nodeId);
-	}
-	
-	public void tagSegmentAsVisited(long origin, long destination) {
-		if(this.normalize.containsKey(origin+"_"+destination)) {
-			this.normalize.get(origin+"_"+destination).setAsVisited();
+		OsmColumns c = getColumns();
+		int row = PrimitiveArrays.find(c.nodeIds, nodeId);
+		if(row == -1) {
+			return null;
 		}
+		return getNodeAt(c, row);
 	}
-	
-	public boolean checkIfSegmentWasVisited(String segmentId) {
-		if(this.normalize.containsKey(segmentId)) {
-			return this.normalize.get(segmentId).visited;
-		}else {
-			/**
-			 * If the map does not contain the segment but we have visited it
-			 * it must mean that the map data we have does not associate it to
-			 * a way, but the routing service does. 
-			 */
-			return true;
-		}
-	}
-	
-	public class Segment{
-		private long origin;
-		private long destination;
-		private boolean visited;
-		
-		
-		private Segment(long origin, long destination) {
-			this.origin = origin;
-			this.destination = destination;
-			this.visited = false;
-		}
-		
-		public void setAsVisited() {
-			this.visited = true;
-		}
-
-		/**
-		 * @return the origin
-		 */
-		public long getOrigin() {
-			return origin;
-		}
 
-		/**
-		 * @return the destination
-		 */
-		public long getDestination() {
-			return destination;
+	private static Node getNodeAt(OsmColumns c, int row) {
+		return new Node(c.nodeIds.get(row), c.nodeLons.get(row) / COORDINATE_SCALE, c.nodeLats.get(row) / COORDINATE_SCALE);
+	}
+
+	public int getSegmentCount() {
+		return getColumns().getSegmentCount();
+	}
+
+	/**
+	 * @return the id of the segment going from origin to destination, or -1 if the
+	 * map data does not contain such a segment.
+	 */
+	public int getSegmentId(long originId, long destinationId) {
+		OsmColumns c = getColumns();
+		int o = PrimitiveArrays.find(c.nodeIds, originId);
+		if(o == -1) {
+			return -1;
+		}
+		int d = PrimitiveArrays.find(c.nodeIds, destinationId);
+		for(int s = c.segmentStart.get(o); s < c.segmentStart.get(o + 1); s++) {
+			if(c.segmentDestinations.get(s) == d) {
+				return s;
+			}
 		}
-		
-		
+		return -1;
 	}
-	
-	public Map<String, Segment> getSegments(){
-		return this.normalize;
+
+	public Node getSegmentOrigin(int segment) {
+		OsmColumns c = getColumns();
+		return getNodeAt(c, c.segmentOrigins.get(segment));
+	}
+
+	public Node getSegmentDestination(int segment) {
+		OsmColumns c = getColumns();
+		return getNodeAt(c, c.segmentDestinations.get(segment));
+	}
+
+	/**
+	 * @return a new, empty, visited state for the segments of this map data.
+	 */
+	public VisitedSegments newVisitedSegments() {
+		return new VisitedSegments(getSegmentCount());
 	}
 }
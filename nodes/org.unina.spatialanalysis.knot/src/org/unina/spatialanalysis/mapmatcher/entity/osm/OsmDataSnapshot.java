@@ -0,0 +1,353 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A binary snapshot of the columns of an indexed @see OsmDataManager.
+ * A snapshot is memory-mapped and used in place, so loading it costs no parsing and
+ * no heap: the operating system pages the columns in as they are read.
+ *
+ * The file starts with a header made of the magic bytes, the format version, a key
+ * identifying the data the snapshot was built from, and the offset, type and length of
+ * each column. Columns follow, little endian and aligned to 8 bytes.
+ * @author sinog
+ *
+ */
+public class OsmDataSnapshot {
+
+	private static final byte[] MAGIC = {'K','N','O','T','M','A','P', 0};
+
+	/**
+	 * To be increased whenever the layout of the file or of the columns changes.
+	 */
+	private static final int VERSION = 1;
+
+	private static final byte BYTE_SECTION = 1;
+	private static final byte INT_SECTION = 4;
+	private static final byte LONG_SECTION = 8;
+
+	private static final int SECTION_ENTRY_SIZE = 1 + 8 + 8;
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private OsmDataSnapshot() {
+	}
+
+	/**
+	 * Writes the snapshot of data, indexing it if needed. The file is first written
+	 * under a temporary name, so a reader never sees a partially written snapshot.
+	 * @param key identifies the data the snapshot is built from, see {@link #map(File, byte[])}.
+	 */
+	public static void write(OsmDataManager data, byte[] key, File snapshot) throws IOException {
+		writeSections(data.getColumns().toSections(), key, snapshot);
+	}
+
+	/**
+	 * Writes the given columns in the snapshot format, see {@link #mapSections(File, byte[], int)}.
+	 */
+	static void writeSections(Buffer[] sections, byte[] key, File snapshot) throws IOException {
+		File tmp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getAbsoluteFile().getParentFile());
+		try {
+			try(FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+				writeSections(sections, key, channel);
+				channel.force(false);
+			}
+			try {
+				Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	/**
+	 * Writes the snapshot of data to a stream, which is left open, see {@link #read(InputStream, byte[])}.
+	 */
+	public static void write(OsmDataManager data, byte[] key, OutputStream out) throws IOException {
+		writeSections(data.getColumns().toSections(), key, Channels.newChannel(out));
+	}
+
+	/**
+	 * Writes the columns in order, each one padded to 8 bytes of the file.
+	 */
+	private static void writeSections(Buffer[] sections, byte[] key, WritableByteChannel channel) throws IOException {
+		int headerSize = MAGIC.length + 4 + 4 + key.length + 4 + sections.length * SECTION_ENTRY_SIZE;
+		ByteBuffer out = ByteBuffer.allocate(Math.max(WRITE_BUFFER_SIZE, (int) align(headerSize))).order(ByteOrder.LITTLE_ENDIAN);
+		out.put(MAGIC).putInt(VERSION).putInt(key.length).put(key).putInt(sections.length);
+		long[] offsets = new long[sections.length];
+		long offset = align(headerSize);
+		for(int s = 0; s < sections.length; s++) {
+			byte type = typeOf(sections[s]);
+			offsets[s] = offset;
+			out.put(type).putLong(offset).putLong(sections[s].limit());
+			offset = align(offset + (long) sections[s].limit() * type);
+		}
+		/*
+		 * The buffer can be flushed at any position, so the padding is computed on the
+		 * offset in the file, that is the bytes already written plus the buffered ones.
+		 */
+		long written = 0;
+		pad(out, written);
+		for(int s = 0; s < sections.length; s++) {
+			Buffer section = sections[s];
+			if(written + out.position() != offsets[s]) {
+				throw new IOException("Column " + s + " written at " + (written + out.position()) + " instead of " + offsets[s]);
+			}
+			for(int i = 0; i < section.limit(); i++) {
+				if(out.remaining() < LONG_SECTION) {
+					written += flush(channel, out);
+				}
+				if(section instanceof LongBuffer) {
+					out.putLong(((LongBuffer) section).get(i));
+				}else if(section instanceof IntBuffer) {
+					out.putInt(((IntBuffer) section).get(i));
+				}else {
+					out.put(((ByteBuffer) section).get(i));
+				}
+			}
+			if(out.remaining() < LONG_SECTION) {
+				written += flush(channel, out);
+			}
+			pad(out, written);
+		}
+		flush(channel, out);
+	}
+
+	/**
+	 * Pads the buffer to the next multiple of 8 bytes of the file.
+	 * @param written the bytes of the file already written before the buffered ones.
+	 */
+	private static void pad(ByteBuffer out, long written) {
+		while(((written + out.position()) & 7) != 0) {
+			out.put((byte) 0);
+		}
+	}
+
+	/**
+	 * @return the number of bytes written.
+	 */
+	private static int flush(WritableByteChannel channel, ByteBuffer out) throws IOException {
+		out.flip();
+		int res = out.remaining();
+		while(out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+		return res;
+	}
+
+	/**
+	 * Reads on the heap a snapshot written by {@link #write(OsmDataManager, byte[], OutputStream)},
+	 * for the streams that cannot be mapped. The stream is left open, right after the snapshot.
+	 * @return the map data, or null if the snapshot was written by a different version
+	 * or was built from data different from the one identified by key.
+	 * @throws IOException if the snapshot cannot be read or is corrupted.
+	 */
+	public static OsmDataManager read(InputStream in, byte[] key) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		data.readFully(magic);
+		if(!Arrays.equals(magic, MAGIC) || Integer.reverseBytes(data.readInt()) != VERSION || Integer.reverseBytes(data.readInt()) != key.length) {
+			return null;
+		}
+		byte[] snapshotKey = new byte[key.length];
+		data.readFully(snapshotKey);
+		if(!Arrays.equals(snapshotKey, key)) {
+			return null;
+		}
+		int sectionCount = new OsmColumns().toSections().length;
+		if(Integer.reverseBytes(data.readInt()) != sectionCount) {
+			throw new IOException("Unexpected number of columns in snapshot");
+		}
+		int headerSize = MAGIC.length + 4 + 4 + key.length + 4 + sectionCount * SECTION_ENTRY_SIZE;
+		byte[] types = new byte[sectionCount];
+		long[] offsets = new long[sectionCount];
+		long[] lengths = new long[sectionCount];
+		for(int i = 0; i < sectionCount; i++) {
+			types[i] = data.readByte();
+			offsets[i] = Long.reverseBytes(data.readLong());
+			lengths[i] = Long.reverseBytes(data.readLong());
+		}
+		long position = headerSize;
+		Buffer[] sections = new Buffer[sectionCount];
+		for(int i = 0; i < sectionCount; i++) {
+			long bytes = lengths[i] * types[i];
+			if(offsets[i] < position || lengths[i] < 0 || bytes > Integer.MAX_VALUE) {
+				throw new IOException("Invalid column " + i + " in snapshot");
+			}
+			skipPadding(data, offsets[i] - position);
+			byte[] column = new byte[(int) bytes];
+			data.readFully(column);
+			position = offsets[i] + bytes;
+			ByteBuffer section = ByteBuffer.wrap(column).order(ByteOrder.LITTLE_ENDIAN);
+			switch(types[i]) {
+				case LONG_SECTION:
+					sections[i] = section.asLongBuffer();
+					break;
+				case INT_SECTION:
+					sections[i] = section.asIntBuffer();
+					break;
+				case BYTE_SECTION:
+					sections[i] = section;
+					break;
+				default:
+					throw new IOException("Invalid column type " + types[i] + " in snapshot");
+			}
+		}
+		skipPadding(data, align(position) - position);
+		try {
+			return new OsmDataManager(OsmColumns.fromSections(sections));
+		}catch(ClassCastException e) {
+			throw new IOException("Unexpected column type in snapshot", e);
+		}
+	}
+
+	/**
+	 * Maps a snapshot written by {@link #write(OsmDataManager, byte[], File)}.
+	 * @return the map data, or null if the snapshot was written by a different version
+	 * or was built from data different from the one identified by key.
+	 * @throws IOException if the snapshot cannot be read or is corrupted.
+	 */
+	public static OsmDataManager map(File snapshot, byte[] key) throws IOException {
+		Buffer[] sections = mapSections(snapshot, key, new OsmColumns().toSections().length);
+		if(sections == null) {
+			return null;
+		}
+		try {
+			return new OsmDataManager(OsmColumns.fromSections(sections));
+		}catch(ClassCastException e) {
+			throw new IOException("Unexpected column type in snapshot " + snapshot, e);
+		}
+	}
+
+	/**
+	 * Maps the columns of a file written by {@link #writeSections(Buffer[], byte[], File)}.
+	 * @return the columns, or null if the file was written by a different version or was
+	 * built from data different from the one identified by key.
+	 * @throws IOException if the file cannot be read, is corrupted or does not have sectionCount columns.
+	 */
+	static Buffer[] mapSections(File snapshot, byte[] key, int sectionCount) throws IOException {
+		try(FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)){
+			long size = channel.size();
+			int prefix = MAGIC.length + 4 + 4;
+			if(size < prefix) {
+				return null;
+			}
+			ByteBuffer header = ByteBuffer.allocate(prefix).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if(!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION || header.getInt() != key.length) {
+				return null;
+			}
+			int headerSize = prefix + key.length + 4 + sectionCount * SECTION_ENTRY_SIZE;
+			if(size < headerSize) {
+				throw new IOException("Truncated snapshot " + snapshot);
+			}
+			header = ByteBuffer.allocate(headerSize - prefix).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, prefix);
+			byte[] snapshotKey = new byte[key.length];
+			header.get(snapshotKey);
+			if(!Arrays.equals(snapshotKey, key)) {
+				return null;
+			}
+			if(header.getInt() != sectionCount) {
+				throw new IOException("Unexpected number of columns in snapshot " + snapshot);
+			}
+			Buffer[] sections = new Buffer[sectionCount];
+			/*
+			 * A file that fits in a single mapping is mapped once and its columns are slices of
+			 * it, so that a reader mapping many snapshots does not run out of mappings.
+			 * The mappings stay valid after the channel is closed.
+			 */
+			MappedByteBuffer whole = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+			for(int i = 0; i < sectionCount; i++) {
+				byte type = header.get();
+				long offset = header.getLong();
+				long length = header.getLong();
+				long bytes = length * type;
+				if(offset < headerSize || length < 0 || offset + bytes > size || bytes > Integer.MAX_VALUE) {
+					throw new IOException("Invalid column " + i + " in snapshot " + snapshot);
+				}
+				ByteBuffer mapped;
+				if(whole != null) {
+					ByteBuffer section = whole.duplicate();
+					section.position((int) offset).limit((int) (offset + bytes));
+					mapped = section.slice();
+				}else {
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+				}
+				mapped.order(ByteOrder.LITTLE_ENDIAN);
+				switch(type) {
+					case LONG_SECTION:
+						sections[i] = mapped.asLongBuffer();
+						break;
+					case INT_SECTION:
+						sections[i] = mapped.asIntBuffer();
+						break;
+					case BYTE_SECTION:
+						sections[i] = mapped;
+						break;
+					default:
+						throw new IOException("Invalid column type " + type + " in snapshot " + snapshot);
+				}
+			}
+			return sections;
+		}
+	}
+
+	private static byte typeOf(Buffer section) {
+		if(section instanceof LongBuffer) {
+			return LONG_SECTION;
+		}else if(section instanceof IntBuffer) {
+			return INT_SECTION;
+		}else {
+			return BYTE_SECTION;
+		}
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	private static void skipPadding(DataInputStream in, long bytes) throws IOException {
+		if(bytes > 7) {
+			throw new IOException("Unexpected gap between the columns of the snapshot");
+		}
+		for(long i = 0; i < bytes; i++) {
+			in.readByte();
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int read = 0;
+		while(buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + read);
+			if(n < 0) {
+				throw new IOException("Unexpected end of snapshot");
+			}
+			read += n;
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,53 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.util.Map;
+
+/**
+ * The map data used to enrich the route steps, either held as a whole by an @see OsmDataManager
+ * or loaded one tile at a time by a @see TiledOsmData.
+ * Segments are numbered with dense ids from 0 to {@link #getSegmentCount()} - 1.
+ * @author sinog
+ *
+ */
+public interface OsmMapData {
+
+	public boolean checkNodePresence(long nodeId);
+
+	/**
+	 * @return the node with the given id, or null if it is not part of the map data.
+	 */
+	public Node getNode(long nodeId);
+
+	/**
+	 * @return the id of the segment going from origin to destination, or -1 if the
+	 * map data does not contain such a segment.
+	 */
+	public int getSegmentId(long originId, long destinationId);
+
+	/**
+	 * @return the tags shared by the two nodes formatted as "{ key = value; ... }".
+	 */
+	public String getTagsOfSegment(long originId, long destinationId);
+
+	public Map<String, String> getAllTagsOfSegment(Node origin, Node destination);
+
+	public int getSegmentCount();
+
+	public Node getSegmentOrigin(int segment);
+
+	public Node getSegmentDestination(int segment);
+
+	/**
+	 * @return the tags of the segment formatted as "{ key = value; ... }".
+	 */
+	public String getTagsOfSegment(int segment);
+
+	public Map<String, String> getAllTagsOfSegment(int segment);
+
+	/**
+	 * @return a new, empty, visited state for the segments of this map data.
+	 */
+	public VisitedSegments newVisitedSegments();
+
+	public String printStats();
+}
@@ -0,0 +1,146 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Helpers for the primitive arrays backing the OsmDataManager.
+ * @author sinog
+ *
+ */
+class PrimitiveArrays {
+
+	private PrimitiveArrays() {
+	}
+
+	static long[] grow(long[] array, int needed) {
+		if(needed <= array.length) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(needed, Math.max(1024, array.length + (array.length >> 1))));
+	}
+
+	static int[] grow(int[] array, int needed) {
+		if(needed <= array.length) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(needed, Math.max(1024, array.length + (array.length >> 1))));
+	}
+
+	static double[] grow(double[] array, int needed) {
+		if(needed <= array.length) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(needed, Math.max(1024, array.length + (array.length >> 1))));
+	}
+
+	static <T> T[] grow(T[] array, int needed) {
+		if(needed <= array.length) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(needed, Math.max(1024, array.length + (array.length >> 1))));
+	}
+
+	static boolean isSorted(long[] keys, int n) {
+		for(int i = 1; i < n; i++) {
+			if(keys[i - 1] > keys[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the permutation that sorts the first n keys, using a stable merge sort
+	 * so that equal keys keep the order they were added in.
+	 * @return perm such that keys[perm[0]] &lt;= keys[perm[1]] &lt;= ...
+	 */
+	static int[] sortedPermutation(long[] keys, int n) {
+		int[] perm = new int[n];
+		for(int i = 0; i < n; i++) {
+			perm[i] = i;
+		}
+		if(isSorted(keys, n)) {
+			return perm;
+		}
+		int[] tmp = new int[n];
+		for(int width = 1; width < n; width <<= 1) {
+			for(int lo = 0; lo < n; lo += width << 1) {
+				int mid = Math.min(lo + width, n);
+				int hi = Math.min(lo + (width << 1), n);
+				int i = lo;
+				int j = mid;
+				int k = lo;
+				while(i < mid && j < hi) {
+					tmp[k++] = keys[perm[j]] < keys[perm[i]] ? perm[j++] : perm[i++];
+				}
+				while(i < mid) {
+					tmp[k++] = perm[i++];
+				}
+				while(j < hi) {
+					tmp[k++] = perm[j++];
+				}
+			}
+			int[] swap = perm;
+			perm = tmp;
+			tmp = swap;
+		}
+		return perm;
+	}
+
+	/**
+	 * Keeps, among the entries of a sorted permutation with the same key, only the last
+	 * one added, as a map would.
+	 * @return the number of entries left at the beginning of perm.
+	 */
+	static int keepLastOfEachKey(long[] keys, int[] perm) {
+		int n = 0;
+		for(int i = 0; i < perm.length; i++) {
+			if(i + 1 < perm.length && keys[perm[i + 1]] == keys[perm[i]]) {
+				continue;
+			}
+			perm[n++] = perm[i];
+		}
+		return n;
+	}
+
+	/**
+	 * @return the index of key in the first n sorted keys, or -1.
+	 */
+	static int find(long[] keys, int n, long key) {
+		int lo = 0;
+		int hi = n - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = keys[mid];
+			if(k < key) {
+				lo = mid + 1;
+			}else if(k > key) {
+				hi = mid - 1;
+			}else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the index of key in the sorted keys, or -1.
+	 */
+	static int find(LongBuffer keys, long key) {
+		int lo = 0;
+		int hi = keys.limit() - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = keys.get(mid);
+			if(k < key) {
+				lo = mid + 1;
+			}else if(k > key) {
+				hi = mid - 1;
+			}else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,242 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+/**
+ * A uniform grid over the road segments of an @see OsmDataManager, answering nearest segment
+ * and radius queries without asking the routing service.
+ * The cells are about square on the ground and sized so that each one holds a couple of
+ * segments on average; a segment is listed, in CSR layout, in every cell overlapped by its
+ * bounding box. The index is read only, so it can be queried by concurrent threads, each one
+ * through a @see SegmentQuery of its own that holds the results and is reused between queries.
+ *
+ * Distances are in meters, computed on the plane tangent to the earth at the query point,
+ * which is accurate enough for the few hundred meters snapping is about.
+ * @author sinog
+ *
+ */
+public class SegmentIndex {
+
+	static final double METERS_PER_DEGREE = 111320;
+
+	private static final double COORDINATE_SCALE = 1e7;
+
+	private static final int SEGMENTS_PER_CELL = 2;
+
+	private static final long MAX_CELLS = 1L << 26;
+
+	private final OsmColumns columns;
+
+	private final double minLat;
+	private final double minLon;
+	private final double cellLat;
+	private final double cellLon;
+	private final int rows;
+	private final int cols;
+
+	/*
+	 * The segments of cell row * cols + col are cellSegments[cellStart[cell]] ... cellSegments[cellStart[cell + 1] - 1].
+	 */
+	private final int[] cellStart;
+	private final int[] cellSegments;
+
+	SegmentIndex(OsmColumns columns) {
+		super();
+		this.columns = columns;
+		int segments = columns.getSegmentCount();
+		double south = Double.MAX_VALUE;
+		double north = -Double.MAX_VALUE;
+		double west = Double.MAX_VALUE;
+		double east = -Double.MAX_VALUE;
+		double latExtents = 0;
+		double lonExtents = 0;
+		for(int s = 0; s < segments; s++) {
+			int o = columns.segmentOrigins.get(s);
+			int d = columns.segmentDestinations.get(s);
+			double latO = columns.nodeLats.get(o) / COORDINATE_SCALE;
+			double lonO = columns.nodeLons.get(o) / COORDINATE_SCALE;
+			double latD = columns.nodeLats.get(d) / COORDINATE_SCALE;
+			double lonD = columns.nodeLons.get(d) / COORDINATE_SCALE;
+			south = Math.min(south, Math.min(latO, latD));
+			north = Math.max(north, Math.max(latO, latD));
+			west = Math.min(west, Math.min(lonO, lonD));
+			east = Math.max(east, Math.max(lonO, lonD));
+			latExtents += Math.abs(latO - latD);
+			lonExtents += Math.abs(lonO - lonD);
+		}
+		if(segments == 0) {
+			south = north = west = east = 0;
+		}
+		double cos = Math.max(0.01, Math.cos(Math.toRadians((south + north) / 2)));
+		double area = (north - south) * (east - west) * cos;
+		/*
+		 * Cells smaller than the segments would list each segment many times.
+		 */
+		double size = Math.sqrt(area / Math.max(1, segments / SEGMENTS_PER_CELL));
+		size = Math.max(size, Math.max(latExtents, lonExtents * cos) / Math.max(1, segments));
+		if(!(size > 0)) {
+			size = Math.max(1e-4, Math.max(north - south, (east - west) * cos));
+		}
+		while((long) ((north - south) / size + 1) * (long) ((east - west) * cos / size + 1) > MAX_CELLS) {
+			size *= 2;
+		}
+		this.minLat = south;
+		this.minLon = west;
+		this.cellLat = size;
+		this.cellLon = size / cos;
+		this.rows = (int) ((north - south) / cellLat) + 1;
+		this.cols = (int) ((east - west) / cellLon) + 1;
+
+		int[] start = new int[rows * cols + 1];
+		for(int s = 0; s < segments; s++) {
+			int[] box = getCellBox(s);
+			for(int row = box[0]; row <= box[1]; row++) {
+				for(int col = box[2]; col <= box[3]; col++) {
+					start[row * cols + col + 1]++;
+				}
+			}
+		}
+		for(int i = 0; i < rows * cols; i++) {
+			start[i + 1] += start[i];
+		}
+		int[] members = new int[start[rows * cols]];
+		int[] next = new int[rows * cols];
+		System.arraycopy(start, 0, next, 0, next.length);
+		for(int s = 0; s < segments; s++) {
+			int[] box = getCellBox(s);
+			for(int row = box[0]; row <= box[1]; row++) {
+				for(int col = box[2]; col <= box[3]; col++) {
+					members[next[row * cols + col]++] = s;
+				}
+			}
+		}
+		this.cellStart = start;
+		this.cellSegments = members;
+	}
+
+	/**
+	 * @return the first and last row and the first and last column of the cells overlapped
+	 * by the bounding box of the segment.
+	 */
+	private int[] getCellBox(int segment) {
+		int o = columns.segmentOrigins.get(segment);
+		int d = columns.segmentDestinations.get(segment);
+		int rowO = clamp(rowOf(columns.nodeLats.get(o) / COORDINATE_SCALE), rows);
+		int rowD = clamp(rowOf(columns.nodeLats.get(d) / COORDINATE_SCALE), rows);
+		int colO = clamp(colOf(columns.nodeLons.get(o) / COORDINATE_SCALE), cols);
+		int colD = clamp(colOf(columns.nodeLons.get(d) / COORDINATE_SCALE), cols);
+		return new int[] {Math.min(rowO, rowD), Math.max(rowO, rowD), Math.min(colO, colD), Math.max(colO, colD)};
+	}
+
+	private int rowOf(double lat) {
+		return (int) Math.floor((lat - minLat) / cellLat);
+	}
+
+	private int colOf(double lon) {
+		return (int) Math.floor((lon - minLon) / cellLon);
+	}
+
+	private static int clamp(int index, int size) {
+		return Math.max(0, Math.min(size - 1, index));
+	}
+
+	/**
+	 * @return a new query object, to be used by a single thread at a time.
+	 */
+	public SegmentQuery newQuery() {
+		return new SegmentQuery(this, columns);
+	}
+
+	/**
+	 * Finds the k segments nearest to the point within maxDistance meters, sorted by distance.
+	 * The cells are visited in square rings around the one of the point, until the nearest
+	 * cell of the next ring is farther than the k-th segment found.
+	 * @return the number of segments found.
+	 */
+	int findNearest(double lat, double lon, int k, double maxDistance, SegmentQuery q) {
+		q.reset(lat, lon);
+		if(k <= 0 || columns.getSegmentCount() == 0) {
+			return 0;
+		}
+		int row = rowOf(lat);
+		int col = colOf(lon);
+		int first = Math.max(0, Math.max(Math.max(-row, row - (rows - 1)), Math.max(-col, col - (cols - 1))));
+		for(int ring = first; ; ring++) {
+			if(ring > 0) {
+				double bound = distanceToRing(lat, lon, row, col, ring, q);
+				if(bound > maxDistance || (q.count == k && bound > q.distances[k - 1])) {
+					break;
+				}
+			}
+			int rowTo = Math.min(rows - 1, row + ring);
+			for(int r = Math.max(0, row - ring); r <= rowTo; r++) {
+				boolean border = r == row - ring || r == row + ring;
+				int step = border || ring == 0 ? 1 : 2 * ring;
+				for(int c = col - ring; c <= col + ring; c += step) {
+					if(c >= 0 && c < cols) {
+						int cell = r * cols + c;
+						for(int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+							q.offerNearest(cellSegments[i], k, maxDistance);
+						}
+					}
+				}
+			}
+			if(row - ring <= 0 && row + ring >= rows - 1 && col - ring <= 0 && col + ring >= cols - 1) {
+				break;
+			}
+		}
+		return q.count;
+	}
+
+	/**
+	 * @return a lower bound of the distance in meters from the point to the cells of the ring,
+	 * that is to the border of the square made of the rings inside it.
+	 */
+	private double distanceToRing(double lat, double lon, int row, int col, int ring, SegmentQuery q) {
+		double south = (lat - (minLat + (row - ring + 1) * cellLat)) * q.metersPerLat;
+		double north = ((minLat + (row + ring) * cellLat) - lat) * q.metersPerLat;
+		double west = (lon - (minLon + (col - ring + 1) * cellLon)) * q.metersPerLon;
+		double east = ((minLon + (col + ring) * cellLon) - lon) * q.metersPerLon;
+		return Math.max(0, Math.min(Math.min(south, north), Math.min(west, east)));
+	}
+
+	/**
+	 * Finds the segments within radius meters of the point, in no particular order.
+	 * A segment listed in several cells is only considered in the first of them that
+	 * is also covered by the query, so no set of the visited segments is needed.
+	 * @return the number of segments found.
+	 */
+	int findWithinRadius(double lat, double lon, double radius, SegmentQuery q) {
+		q.reset(lat, lon);
+		if(columns.getSegmentCount() == 0 || radius < 0) {
+			return 0;
+		}
+		int rowFrom = clamp(rowOf(lat - radius / q.metersPerLat), rows);
+		int rowTo = clamp(rowOf(lat + radius / q.metersPerLat), rows);
+		int colFrom = clamp(colOf(lon - radius / q.metersPerLon), cols);
+		int colTo = clamp(colOf(lon + radius / q.metersPerLon), cols);
+		for(int r = rowFrom; r <= rowTo; r++) {
+			for(int c = colFrom; c <= colTo; c++) {
+				int cell = r * cols + c;
+				for(int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+					int s = cellSegments[i];
+					if(isFirstCell(s, r, c, rowFrom, colFrom)) {
+						q.offerWithinRadius(s, radius);
+					}
+				}
+			}
+		}
+		return q.count;
+	}
+
+	private boolean isFirstCell(int segment, int row, int col, int rowFrom, int colFrom) {
+		int o = columns.segmentOrigins.get(segment);
+		int d = columns.segmentDestinations.get(segment);
+		int minRow = clamp(rowOf(Math.min(columns.nodeLats.get(o), columns.nodeLats.get(d)) / COORDINATE_SCALE), rows);
+		int minCol = clamp(colOf(Math.min(columns.nodeLons.get(o), columns.nodeLons.get(d)) / COORDINATE_SCALE), cols);
+		return row == Math.max(minRow, rowFrom) && col == Math.max(minCol, colFrom);
+	}
+
+	public String printStats() {
+		return "This segment index has " + rows + " x " + cols + " cells of " + (int) (cellLat * METERS_PER_DEGREE) + " m holding "
+				+ cellSegments.length + " references to " + columns.getSegmentCount() + " segments\n";
+	}
+}
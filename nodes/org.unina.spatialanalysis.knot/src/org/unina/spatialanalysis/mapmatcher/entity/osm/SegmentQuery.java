@@ -0,0 +1,183 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+/**
+ * The reusable state of the queries to a @see SegmentIndex: the results of the last query,
+ * held in arrays that only grow, so that a thread can run any number of queries without
+ * allocating. A query object must not be shared by threads running queries at the same time.
+ * @author sinog
+ *
+ */
+public class SegmentQuery {
+
+	private static final double COORDINATE_SCALE = 1e7;
+
+	private final SegmentIndex index;
+
+	private final OsmColumns columns;
+
+	int count;
+	int[] segments = new int[16];
+	double[] distances = new double[16];
+	private double[] projectedLats = new double[16];
+	private double[] projectedLons = new double[16];
+
+	private double lat;
+	private double lon;
+	double metersPerLat;
+	double metersPerLon;
+
+	/*
+	 * The projection of the last segment measured.
+	 */
+	private double distance;
+	private double projectedLat;
+	private double projectedLon;
+
+	SegmentQuery(SegmentIndex index, OsmColumns columns) {
+		super();
+		this.index = index;
+		this.columns = columns;
+	}
+
+	/**
+	 * Finds the k segments nearest to the point, sorted by distance.
+	 * @return the number of segments found, less than k only if the map data has fewer segments.
+	 */
+	public int findNearest(double lat, double lon, int k) {
+		return index.findNearest(lat, lon, k, Double.POSITIVE_INFINITY, this);
+	}
+
+	/**
+	 * Finds the k segments nearest to the point within maxDistance meters, sorted by distance.
+	 * @return the number of segments found.
+	 */
+	public int findNearest(double lat, double lon, int k, double maxDistance) {
+		return index.findNearest(lat, lon, k, maxDistance, this);
+	}
+
+	/**
+	 * Finds the segments within radius meters of the point, in no particular order.
+	 * @return the number of segments found.
+	 */
+	public int findWithinRadius(double lat, double lon, double radius) {
+		return index.findWithinRadius(lat, lon, radius, this);
+	}
+
+	/**
+	 * @return the number of segments found by the last query.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the id of the i-th segment found by the last query.
+	 */
+	public int getSegment(int i) {
+		return segments[i];
+	}
+
+	/**
+	 * @return the distance in meters from the query point to the i-th segment found.
+	 */
+	public double getDistance(int i) {
+		return distances[i];
+	}
+
+	/**
+	 * @return the latitude of the point of the i-th segment found nearest to the query point.
+	 */
+	public double getProjectedLat(int i) {
+		return projectedLats[i];
+	}
+
+	/**
+	 * @return the longitude of the point of the i-th segment found nearest to the query point.
+	 */
+	public double getProjectedLon(int i) {
+		return projectedLons[i];
+	}
+
+	void reset(double lat, double lon) {
+		this.count = 0;
+		this.lat = lat;
+		this.lon = lon;
+		this.metersPerLat = SegmentIndex.METERS_PER_DEGREE;
+		this.metersPerLon = SegmentIndex.METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(lat)));
+	}
+
+	/**
+	 * Keeps the segment among the k nearest ones found so far, if it is one of them.
+	 */
+	void offerNearest(int segment, int k, double maxDistance) {
+		for(int i = 0; i < count; i++) {
+			if(segments[i] == segment) {
+				return;
+			}
+		}
+		measure(segment);
+		if(distance > maxDistance || (count == k && distance >= distances[k - 1])) {
+			return;
+		}
+		if(count < k) {
+			ensureCapacity(count + 1);
+			count++;
+		}
+		int i = count - 1;
+		while(i > 0 && distances[i - 1] > distance) {
+			segments[i] = segments[i - 1];
+			distances[i] = distances[i - 1];
+			projectedLats[i] = projectedLats[i - 1];
+			projectedLons[i] = projectedLons[i - 1];
+			i--;
+		}
+		set(i, segment);
+	}
+
+	void offerWithinRadius(int segment, double radius) {
+		measure(segment);
+		if(distance <= radius) {
+			ensureCapacity(count + 1);
+			set(count++, segment);
+		}
+	}
+
+	private void set(int i, int segment) {
+		segments[i] = segment;
+		distances[i] = distance;
+		projectedLats[i] = projectedLat;
+		projectedLons[i] = projectedLon;
+	}
+
+	/**
+	 * Projects the query point on the segment, on the plane tangent to the earth at the query point.
+	 */
+	private void measure(int segment) {
+		int o = columns.segmentOrigins.get(segment);
+		int d = columns.segmentDestinations.get(segment);
+		double latO = columns.nodeLats.get(o) / COORDINATE_SCALE;
+		double lonO = columns.nodeLons.get(o) / COORDINATE_SCALE;
+		double latD = columns.nodeLats.get(d) / COORDINATE_SCALE;
+		double lonD = columns.nodeLons.get(d) / COORDINATE_SCALE;
+		double ox = (lonO - lon) * metersPerLon;
+		double oy = (latO - lat) * metersPerLat;
+		double dx = (lonD - lonO) * metersPerLon;
+		double dy = (latD - latO) * metersPerLat;
+		double length = dx * dx + dy * dy;
+		double t = length == 0 ? 0 : Math.max(0, Math.min(1, -(ox * dx + oy * dy) / length));
+		double px = ox + t * dx;
+		double py = oy + t * dy;
+		distance = Math.sqrt(px * px + py * py);
+		projectedLat = latO + t * (latD - latO);
+		projectedLon = lonO + t * (lonD - lonO);
+	}
+
+	private void ensureCapacity(int needed) {
+		if(needed > segments.length) {
+			segments = PrimitiveArrays.grow(segments, needed);
+			distances = PrimitiveArrays.grow(distances, needed);
+			projectedLats = PrimitiveArrays.grow(projectedLats, needed);
+			projectedLons = PrimitiveArrays.grow(projectedLons, needed);
+		}
+	}
+}
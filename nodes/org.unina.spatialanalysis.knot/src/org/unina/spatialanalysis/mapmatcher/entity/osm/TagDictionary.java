@@ -0,0 +1,278 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dictionary of the tags of an @see OsmDataManager.
+ * Keys and values are interned as int ids, and so are the distinct tag sets, each one
+ * stored as its (key, value) pairs sorted by key id. Once frozen the dictionary is read only
+ * and stored in the @see OsmColumns of the manager; strings and the rendered form of the
+ * tag sets are then decoded the first time they are requested and reused afterwards.
+ * @author sinog
+ *
+ */
+class TagDictionary {
+
+	/*
+	 * Used while interning.
+	 */
+	private Map<String, Integer> stringIds = new HashMap<String, Integer>();
+	private List<String> stringList = new ArrayList<String>();
+
+	private Map<TagSetKey, Integer> tagSetIds = new HashMap<TagSetKey, Integer>();
+	private int tagSetCount;
+	private int[] tagSetStart = new int[1];
+	private int[] tagSetKeys = new int[0];
+	private int[] tagSetValues = new int[0];
+
+	private int[] pairKeys = new int[16];
+	private int[] pairValues = new int[16];
+
+	/*
+	 * Used once frozen.
+	 */
+	private OsmColumns columns;
+	private String[] strings;
+	private String[] rendered;
+
+	TagDictionary() {
+		super();
+	}
+
+	/**
+	 * Creates a frozen dictionary on top of the given columns.
+	 */
+	TagDictionary(OsmColumns columns) {
+		super();
+		this.stringIds = null;
+		this.stringList = null;
+		this.tagSetIds = null;
+		this.pairKeys = null;
+		this.pairValues = null;
+		this.columns = columns;
+		this.strings = new String[columns.stringStart.limit() - 1];
+		this.rendered = new String[columns.tagSetStart.limit() - 1];
+	}
+
+	int intern(String s) {
+		Integer id = stringIds.get(s);
+		if(id == null) {
+			id = stringList.size();
+			stringIds.put(s, id);
+			stringList.add(s);
+		}
+		return id;
+	}
+
+	/**
+	 * Interns the tag set made of the given pairs; when a key appears more than once
+	 * the last value wins.
+	 */
+	int internTagSet(int[] keys, int[] values, int from, int to) {
+		int n = 0;
+		for(int i = from; i < to; i++) {
+			n = putPair(n, keys[i], values[i]);
+		}
+		return internPairs(n);
+	}
+
+	/**
+	 * Interns the union of the given tag sets, merged in order so that the values of
+	 * the later ones win.
+	 */
+	int internUnion(int[] sets, int from, int to) {
+		if(to - from == 1) {
+			return sets[from];
+		}
+		int n = 0;
+		for(int s = from; s < to; s++) {
+			for(int i = tagSetStart[sets[s]]; i < tagSetStart[sets[s] + 1]; i++) {
+				n = putPair(n, tagSetKeys[i], tagSetValues[i]);
+			}
+		}
+		return internPairs(n);
+	}
+
+	/**
+	 * Interns a tag set of another, frozen, dictionary.
+	 */
+	int copyTagSet(TagDictionary from, int tagSet) {
+		int n = 0;
+		for(int i = from.columns.tagSetStart.get(tagSet); i < from.columns.tagSetStart.get(tagSet + 1); i++) {
+			n = putPair(n, intern(from.getString(from.columns.tagSetKeys.get(i))), intern(from.getString(from.columns.tagSetValues.get(i))));
+		}
+		return internPairs(n);
+	}
+
+	private int putPair(int n, int key, int value) {
+		for(int i = 0; i < n; i++) {
+			if(pairKeys[i] == key) {
+				pairValues[i] = value;
+				return n;
+			}
+		}
+		if(n == pairKeys.length) {
+			pairKeys = Arrays.copyOf(pairKeys, n * 2);
+			pairValues = Arrays.copyOf(pairValues, n * 2);
+		}
+		pairKeys[n] = key;
+		pairValues[n] = value;
+		return n + 1;
+	}
+
+	private int internPairs(int n) {
+		/*
+		 * Tag sets are small, an insertion sort is enough.
+		 */
+		for(int i = 1; i < n; i++) {
+			int key = pairKeys[i];
+			int value = pairValues[i];
+			int j = i - 1;
+			while(j >= 0 && pairKeys[j] > key) {
+				pairKeys[j + 1] = pairKeys[j];
+				pairValues[j + 1] = pairValues[j];
+				j--;
+			}
+			pairKeys[j + 1] = key;
+			pairValues[j + 1] = value;
+		}
+		int[] pairs = new int[n * 2];
+		for(int i = 0; i < n; i++) {
+			pairs[i * 2] = pairKeys[i];
+			pairs[i * 2 + 1] = pairValues[i];
+		}
+		TagSetKey key = new TagSetKey(pairs);
+		Integer id = tagSetIds.get(key);
+		if(id == null) {
+			id = tagSetCount;
+			tagSetIds.put(key, id);
+			int start = tagSetStart[tagSetCount];
+			tagSetStart = PrimitiveArrays.grow(tagSetStart, tagSetCount + 2);
+			tagSetKeys = PrimitiveArrays.grow(tagSetKeys, start + n);
+			tagSetValues = PrimitiveArrays.grow(tagSetValues, start + n);
+			System.arraycopy(pairKeys, 0, tagSetKeys, start, n);
+			System.arraycopy(pairValues, 0, tagSetValues, start, n);
+			tagSetCount++;
+			tagSetStart[tagSetCount] = start + n;
+		}
+		return id;
+	}
+
+	/**
+	 * Stores the dictionary in the given columns, after which no string or tag set
+	 * can be added.
+	 */
+	void freeze(OsmColumns c) {
+		strings = stringList.toArray(new String[0]);
+		int[] stringStart = new int[strings.length + 1];
+		byte[][] encoded = new byte[strings.length][];
+		for(int i = 0; i < strings.length; i++) {
+			encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+			stringStart[i + 1] = stringStart[i] + encoded[i].length;
+		}
+		byte[] stringBytes = new byte[stringStart[strings.length]];
+		for(int i = 0; i < strings.length; i++) {
+			System.arraycopy(encoded[i], 0, stringBytes, stringStart[i], encoded[i].length);
+		}
+		c.stringStart = IntBuffer.wrap(stringStart);
+		c.stringBytes = ByteBuffer.wrap(stringBytes);
+		c.tagSetStart = IntBuffer.wrap(Arrays.copyOf(tagSetStart, tagSetCount + 1));
+		c.tagSetKeys = IntBuffer.wrap(Arrays.copyOf(tagSetKeys, tagSetStart[tagSetCount]));
+		c.tagSetValues = IntBuffer.wrap(Arrays.copyOf(tagSetValues, tagSetStart[tagSetCount]));
+		columns = c;
+		rendered = new String[tagSetCount];
+		stringIds = null;
+		stringList = null;
+		tagSetIds = null;
+		tagSetStart = null;
+		tagSetKeys = null;
+		tagSetValues = null;
+		pairKeys = null;
+		pairValues = null;
+	}
+
+	/**
+	 * @return a rough estimate of the bytes of heap used by the decoded strings and tag sets.
+	 */
+	long estimateHeapSize() {
+		long res = 16L * (strings.length + rendered.length);
+		for(String s: strings) {
+			if(s != null) {
+				res += 40 + s.length();
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * Concurrent threads may both decode the same string or tag set, which is harmless
+	 * since the results are immutable.
+	 */
+
+	String getString(int id) {
+		String res = strings[id];
+		if(res == null) {
+			int start = columns.stringStart.get(id);
+			byte[] bytes = new byte[columns.stringStart.get(id + 1) - start];
+			ByteBuffer source = columns.stringBytes.duplicate();
+			source.position(start);
+			source.get(bytes);
+			res = new String(bytes, StandardCharsets.UTF_8);
+			strings[id] = res;
+		}
+		return res;
+	}
+
+	Map<String, String> getTags(int tagSet) {
+		Map<String, String> res = new HashMap<String, String>();
+		for(int i = columns.tagSetStart.get(tagSet); i < columns.tagSetStart.get(tagSet + 1); i++) {
+			res.put(getString(columns.tagSetKeys.get(i)), getString(columns.tagSetValues.get(i)));
+		}
+		return res;
+	}
+
+	/**
+	 * @return the tag set formatted as "{ key = value; ... }".
+	 */
+	String render(int tagSet) {
+		String res = rendered[tagSet];
+		if(res == null) {
+			res = OsmDataManager.renderTags(getTags(tagSet));
+			rendered[tagSet] = res;
+		}
+		return res;
+	}
+
+	private static class TagSetKey {
+
+		private final int[] pairs;
+
+		private final int hash;
+
+		private TagSetKey(int[] pairs) {
+			this.pairs = pairs;
+			this.hash = Arrays.hashCode(pairs);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TagSetKey))
+				return false;
+			return Arrays.equals(pairs, ((TagSetKey) obj).pairs);
+		}
+	}
+}
@@ -0,0 +1,427 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map data split in square tiles of a fixed size in degrees, each one stored as a snapshot
+ * (see {@link OsmDataSnapshot}) and mapped only when a node or a segment of the tile is requested.
+ * At most a given number of tiles is kept loaded: the least recently used one is evicted when
+ * a new tile is needed, so the memory used does not depend on the size of the map.
+ *
+ * A node belongs to the tile containing it, and a segment to the tile of its origin. A tile holds
+ * its own nodes and every way passing through one of them, whole, so the segments and the tags
+ * of a node are all found in its tile. The tiles are listed in an index, mapped as well, holding
+ * the tile of every node and the range of the global segment ids owned by each tile.
+ * @author sinog
+ *
+ */
+public class TiledOsmData implements OsmMapData {
+
+	private static final String INDEX_FILE = "tiles.knotmap";
+
+	private static final String TILE_PREFIX = "tile-";
+
+	private static final String TILE_EXTENSION = ".knotmap";
+
+	private static final double COORDINATE_SCALE = 1e7;
+
+	private static final int INDEX_SECTIONS = 5;
+
+	private final File directory;
+
+	private final byte[] key;
+
+	private final double tileSize;
+
+	/*
+	 * The keys of the tiles, sorted; the global ids of the segments owned by tile t go from
+	 * segmentOffsets[t] to segmentOffsets[t + 1] - 1.
+	 */
+	private final IntBuffer tileKeys;
+	private final IntBuffer segmentOffsets;
+
+	/*
+	 * The ids of all the nodes, sorted, and the index of the tile of each one.
+	 */
+	private final LongBuffer nodeIds;
+	private final IntBuffer nodeTiles;
+
+	private final int maxLoadedTiles;
+
+	private final LinkedHashMap<Integer, Tile> loadedTiles;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private TiledOsmData(File directory, byte[] key, Buffer[] index, int maxLoadedTiles) {
+		super();
+		this.directory = directory;
+		this.key = key;
+		this.tileSize = Double.longBitsToDouble(((LongBuffer) index[0]).get(0));
+		this.tileKeys = (IntBuffer) index[1];
+		this.segmentOffsets = (IntBuffer) index[2];
+		this.nodeIds = (LongBuffer) index[3];
+		this.nodeTiles = (IntBuffer) index[4];
+		this.maxLoadedTiles = Math.max(1, maxLoadedTiles);
+		this.loadedTiles = new LinkedHashMap<Integer, Tile>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+				if(size() > TiledOsmData.this.maxLoadedTiles) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Splits data in tiles of tileSize degrees written in directory, indexing data if needed.
+	 * The index is written last, so a directory whose writing was interrupted is never opened.
+	 * @param key identifies the data the tiles are built from, see {@link #open(File, byte[], int)}.
+	 * @return the number of tiles written.
+	 */
+	public static int write(OsmDataManager data, byte[] key, double tileSize, File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the directory " + directory);
+		}
+		OsmColumns c = data.getColumns();
+		int n = c.getNodeCount();
+		int[] nodeTiles = new int[n];
+		for(int i = 0; i < n; i++) {
+			nodeTiles[i] = tileKeyOf(tileSize, c.nodeLats.get(i), c.nodeLons.get(i));
+		}
+		int[] tiles = nodeTiles.clone();
+		Arrays.sort(tiles);
+		int tileCount = 0;
+		for(int i = 0; i < tiles.length; i++) {
+			if(i == 0 || tiles[i] != tiles[i - 1]) {
+				tiles[tileCount++] = tiles[i];
+			}
+		}
+		tiles = Arrays.copyOf(tiles, tileCount);
+		for(int i = 0; i < n; i++) {
+			nodeTiles[i] = Arrays.binarySearch(tiles, nodeTiles[i]);
+		}
+
+		/*
+		 * The nodes and the ways of each tile in CSR layout.
+		 */
+		int[] tileNodeStart = new int[tileCount + 1];
+		for(int i = 0; i < n; i++) {
+			tileNodeStart[nodeTiles[i] + 1]++;
+		}
+		for(int t = 0; t < tileCount; t++) {
+			tileNodeStart[t + 1] += tileNodeStart[t];
+		}
+		int[] tileNodes = new int[n];
+		int[] next = Arrays.copyOf(tileNodeStart, tileCount);
+		for(int i = 0; i < n; i++) {
+			tileNodes[next[nodeTiles[i]]++] = i;
+		}
+		int[] tileWayStart = new int[tileCount + 1];
+		int[] lastWay = new int[tileCount];
+		Arrays.fill(lastWay, -1);
+		for(int w = 0; w < c.getWayCount(); w++) {
+			for(int r = c.wayNodeStart.get(w); r < c.wayNodeStart.get(w + 1); r++) {
+				int node = c.wayNodes.get(r);
+				if(node != -1 && lastWay[nodeTiles[node]] != w) {
+					lastWay[nodeTiles[node]] = w;
+					tileWayStart[nodeTiles[node] + 1]++;
+				}
+			}
+		}
+		for(int t = 0; t < tileCount; t++) {
+			tileWayStart[t + 1] += tileWayStart[t];
+		}
+		int[] tileWays = new int[tileWayStart[tileCount]];
+		next = Arrays.copyOf(tileWayStart, tileCount);
+		Arrays.fill(lastWay, -1);
+		for(int w = 0; w < c.getWayCount(); w++) {
+			for(int r = c.wayNodeStart.get(w); r < c.wayNodeStart.get(w + 1); r++) {
+				int node = c.wayNodes.get(r);
+				if(node != -1 && lastWay[nodeTiles[node]] != w) {
+					lastWay[nodeTiles[node]] = w;
+					tileWays[next[nodeTiles[node]]++] = w;
+				}
+			}
+		}
+		next = null;
+		lastWay = null;
+
+		int[] segmentOffsets = new int[tileCount + 1];
+		int[] marks = new int[n];
+		Arrays.fill(marks, -1);
+		int[] rows = new int[16];
+		for(int t = 0; t < tileCount; t++) {
+			int count = 0;
+			for(int i = tileNodeStart[t]; i < tileNodeStart[t + 1]; i++) {
+				rows = PrimitiveArrays.grow(rows, count + 1);
+				rows[count++] = tileNodes[i];
+				marks[tileNodes[i]] = t;
+			}
+			for(int i = tileWayStart[t]; i < tileWayStart[t + 1]; i++) {
+				int w = tileWays[i];
+				for(int r = c.wayNodeStart.get(w); r < c.wayNodeStart.get(w + 1); r++) {
+					int node = c.wayNodes.get(r);
+					if(node != -1 && marks[node] != t) {
+						rows = PrimitiveArrays.grow(rows, count + 1);
+						rows[count++] = node;
+						marks[node] = t;
+					}
+				}
+			}
+			OsmDataManager tile = new OsmDataManager(data, rows, count,
+					Arrays.copyOfRange(tileWays, tileWayStart[t], tileWayStart[t + 1]), tileWayStart[t + 1] - tileWayStart[t]);
+			segmentOffsets[t + 1] = segmentOffsets[t] + findOwnedSegments(tile.getColumns(), tileSize, tiles[t]).length;
+			OsmDataSnapshot.write(tile, key, getTileFile(directory, tiles[t]));
+		}
+		Buffer[] index = {
+				LongBuffer.wrap(new long[] {Double.doubleToLongBits(tileSize)}),
+				IntBuffer.wrap(tiles),
+				IntBuffer.wrap(segmentOffsets),
+				c.nodeIds,
+				IntBuffer.wrap(nodeTiles)
+		};
+		OsmDataSnapshot.writeSections(index, key, new File(directory, INDEX_FILE));
+		return tileCount;
+	}
+
+	/**
+	 * Opens the tiles written by {@link #write(OsmDataManager, byte[], double, File)}; only
+	 * their index is mapped.
+	 * @param maxLoadedTiles the maximum number of tiles kept loaded at once.
+	 * @return the tiled map data, or null if there is no index in directory, or it was
+	 * written by a different version or from data different from the one identified by key.
+	 * @throws IOException if the index cannot be read or is corrupted.
+	 */
+	public static TiledOsmData open(File directory, byte[] key, int maxLoadedTiles) throws IOException {
+		File index = new File(directory, INDEX_FILE);
+		if(!index.isFile()) {
+			return null;
+		}
+		Buffer[] sections = OsmDataSnapshot.mapSections(index, key, INDEX_SECTIONS);
+		if(sections == null) {
+			return null;
+		}
+		try {
+			return new TiledOsmData(directory, key, sections, maxLoadedTiles);
+		}catch(ClassCastException e) {
+			throw new IOException("Unexpected column type in the tile index " + index, e);
+		}
+	}
+
+	private static File getTileFile(File directory, int tileKey) {
+		return new File(directory, TILE_PREFIX + tileKey + TILE_EXTENSION);
+	}
+
+	/**
+	 * @return the key of the tile containing the point, the tiles being numbered by row from
+	 * the south-west corner of the world.
+	 */
+	private static int tileKeyOf(double tileSize, int lat, int lon) {
+		int rows = (int) Math.ceil(180 / tileSize);
+		int columns = (int) Math.ceil(360 / tileSize);
+		int row = Math.min(rows - 1, Math.max(0, (int) Math.floor((lat / COORDINATE_SCALE + 90) / tileSize)));
+		int column = Math.min(columns - 1, Math.max(0, (int) Math.floor((lon / COORDINATE_SCALE + 180) / tileSize)));
+		return row * columns + column;
+	}
+
+	/**
+	 * @return the ids, in the columns of a tile, of the segments whose origin is in the tile.
+	 */
+	private static int[] findOwnedSegments(OsmColumns c, double tileSize, int tileKey) {
+		int[] res = new int[c.getSegmentCount()];
+		int count = 0;
+		for(int s = 0; s < c.getSegmentCount(); s++) {
+			int origin = c.segmentOrigins.get(s);
+			if(tileKeyOf(tileSize, c.nodeLats.get(origin), c.nodeLons.get(origin)) == tileKey) {
+				res[count++] = s;
+			}
+		}
+		return Arrays.copyOf(res, count);
+	}
+
+	/**
+	 * @return the tile with the given index, loading it and evicting the least recently
+	 * used one if needed.
+	 */
+	private synchronized Tile getTile(int tile) {
+		Tile res = loadedTiles.get(tile);
+		if(res != null) {
+			hits++;
+			return res;
+		}
+		misses++;
+		File file = getTileFile(directory, tileKeys.get(tile));
+		try {
+			OsmDataManager data = OsmDataSnapshot.map(file, key);
+			if(data == null) {
+				throw new IOException("The tile " + file + " does not match its index");
+			}
+			res = new Tile(data, findOwnedSegments(data.getColumns(), tileSize, tileKeys.get(tile)));
+		}catch(IOException e) {
+			throw new UncheckedIOException("Could not load the tile " + file, e);
+		}
+		loadedTiles.put(tile, res);
+		return res;
+	}
+
+	/**
+	 * @return the index of the tile of the node, or -1 if the node is not part of the map data.
+	 */
+	private int getTileOfNode(long nodeId) {
+		int row = PrimitiveArrays.find(nodeIds, nodeId);
+		return row == -1 ? -1 : nodeTiles.get(row);
+	}
+
+	/**
+	 * @return the index of the tile owning the segment with the given global id.
+	 */
+	private int getTileOfSegment(int segment) {
+		int low = 0;
+		int high = tileKeys.limit() - 1;
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if(segmentOffsets.get(mid) <= segment) {
+				low = mid;
+			}else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private int toLocalSegment(int tile, Tile loaded, int segment) {
+		return loaded.ownedSegments[segment - segmentOffsets.get(tile)];
+	}
+
+	@Override
+	public boolean checkNodePresence(long nodeId) {
+		return PrimitiveArrays.find(nodeIds, nodeId) != -1;
+	}
+
+	@Override
+	public Node getNode(long nodeId) {
+		int tile = getTileOfNode(nodeId);
+		if(tile == -1) {
+			return null;
+		}
+		return getTile(tile).data.getNode(nodeId);
+	}
+
+	@Override
+	public int getSegmentId(long originId, long destinationId) {
+		int tile = getTileOfNode(originId);
+		if(tile == -1) {
+			return -1;
+		}
+		Tile loaded = getTile(tile);
+		int segment = loaded.data.getSegmentId(originId, destinationId);
+		if(segment == -1) {
+			return -1;
+		}
+		int owned = Arrays.binarySearch(loaded.ownedSegments, segment);
+		return owned < 0 ? -1 : segmentOffsets.get(tile) + owned;
+	}
+
+	@Override
+	public String getTagsOfSegment(long originId, long destinationId) {
+		int tile = getTileOfNode(originId);
+		if(tile == -1) {
+			return OsmDataManager.renderTags(new HashMap<>());
+		}
+		return getTile(tile).data.getTagsOfSegment(originId, destinationId);
+	}
+
+	@Override
+	public Map<String, String> getAllTagsOfSegment(Node origin, Node destination) {
+		int tile = getTileOfNode(origin.getNodeId());
+		if(tile == -1) {
+			return new HashMap<>();
+		}
+		return getTile(tile).data.getAllTagsOfSegment(origin, destination);
+	}
+
+	@Override
+	public int getSegmentCount() {
+		return segmentOffsets.get(tileKeys.limit());
+	}
+
+	@Override
+	public Node getSegmentOrigin(int segment) {
+		int tile = getTileOfSegment(segment);
+		Tile loaded = getTile(tile);
+		return loaded.data.getSegmentOrigin(toLocalSegment(tile, loaded, segment));
+	}
+
+	@Override
+	public Node getSegmentDestination(int segment) {
+		int tile = getTileOfSegment(segment);
+		Tile loaded = getTile(tile);
+		return loaded.data.getSegmentDestination(toLocalSegment(tile, loaded, segment));
+	}
+
+	@Override
+	public String getTagsOfSegment(int segment) {
+		int tile = getTileOfSegment(segment);
+		Tile loaded = getTile(tile);
+		return loaded.data.getTagsOfSegment(toLocalSegment(tile, loaded, segment));
+	}
+
+	@Override
+	public Map<String, String> getAllTagsOfSegment(int segment) {
+		int tile = getTileOfSegment(segment);
+		Tile loaded = getTile(tile);
+		return loaded.data.getAllTagsOfSegment(toLocalSegment(tile, loaded, segment));
+	}
+
+	@Override
+	public VisitedSegments newVisitedSegments() {
+		return new VisitedSegments(getSegmentCount());
+	}
+
+	@Override
+	public String printStats() {
+		return "This tiled map data contains " + nodeIds.limit() + " nodes and " + getSegmentCount() + " segments in "
+				+ tileKeys.limit() + " tiles of " + tileSize + " degrees\n"
+				+ printTileStats();
+	}
+
+	/**
+	 * @return the number of tile requests served by a loaded tile (hits) and by loading it (misses),
+	 * and the number of tiles evicted.
+	 */
+	public synchronized String printTileStats() {
+		return "Tile hits: " + hits + ", misses: " + misses + ", evictions: " + evictions
+				+ ", loaded: " + loadedTiles.size() + " of at most " + maxLoadedTiles + "\n";
+	}
+
+	private static class Tile {
+
+		private final OsmDataManager data;
+
+		/*
+		 * The sorted ids, in the tile, of the segments owned by it.
+		 */
+		private final int[] ownedSegments;
+
+		private Tile(OsmDataManager data, int[] ownedSegments) {
+			this.data = data;
+			this.ownedSegments = ownedSegments;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.unina.spatialanalysis.mapmatcher.entity.osm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The set of the segments of an @see OsmDataManager visited by the matched routes,
+ * stored as a bitset indexed by segment id.
+ * Segments can be marked by concurrent threads without any locking.
+ * @author sinog
+ *
+ */
+public class VisitedSegments {
+
+	private final AtomicLongArray words;
+
+	private final int size;
+
+	VisitedSegments(int size) {
+		super();
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+	/**
+	 * @return true if the segment was not already marked as visited.
+	 */
+	public boolean markVisited(int segment) {
+		int index = segment >>> 6;
+		long bit = 1L << segment;
+		long word = words.get(index);
+		while((word & bit) == 0) {
+			if(words.compareAndSet(index, word, word | bit)) {
+				return true;
+			}
+			word = words.get(index);
+		}
+		return false;
+	}
+
+	public boolean isVisited(int segment) {
+		return (words.get(segment >>> 6) & (1L << segment)) != 0;
+	}
+
+	/**
+	 * @return the first segment not visited with id greater or equal to from, or -1 if there is none.
+	 */
+	public int nextNotVisited(int from) {
+		if(from >= size) {
+			return -1;
+		}
+		int index = from >>> 6;
+		long word = ~words.get(index) & (-1L << from);
+		while(true) {
+			if(word != 0) {
+				int res = (index << 6) + Long.numberOfTrailingZeros(word);
+				return res < size ? res : -1;
+			}
+			if(++index == words.length()) {
+				return -1;
+			}
+			word = ~words.get(index);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -3,6 +3,7 @@ package org.unina.spatialanalysis.mapmatcher.entity.output;
 import java.util.Map;
 
 import org.unina.spatialanalysis.mapmatcher.entity.osm.Node;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
 
 public class NormalizingDataEntry {
 	private long originId;
@@ -35,14 +36,14 @@ public class NormalizingDataEntry {
 	}
 	
 	public NormalizingDataEntry(Node origin, Node destination, Map<String,String> tagsMap) {
-		this.tags = "{";
-		for(String s: tagsMap.keySet()) {
-			tags += (" " + s + " = " + tagsMap.get(s) +";");
-		}
-		if(this.tags.lastIndexOf(";")!=-1) {
-			this.tags = this.tags.substring(0, this.tags.length()-1);
-		}
-		this.tags += " }";
+		this(origin, destination, OsmDataManager.renderTags(tagsMap));
+	}
+	
+	/**
+	 * @param tags the tags of the segment, already formatted as "{ key = value; ... }".
+	 */
+	public NormalizingDataEntry(Node origin, Node destination, String tags) {
+		this.tags = tags;
 		this.destinationId=destination.getNodeId();
 		this.originId = origin.getNodeId();
 		this.theGeom = "LINESTRING(" + origin.getLon() + " " +origin.getLat() + ", " + destination.getLon() + " " + destination.getLat() + ")";
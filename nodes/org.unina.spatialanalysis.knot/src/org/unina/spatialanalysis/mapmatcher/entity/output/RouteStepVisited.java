@@ -4,6 +4,7 @@ import java.time.LocalDateTime;
 import java.util.Map;
 
 import org.unina.spatialanalysis.mapmatcher.entity.osm.Node;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
 
 public class RouteStepVisited {
 	
@@ -51,6 +52,13 @@ public class RouteStepVisited {
 	}
 	
 	public RouteStepVisited(int ownerId, String routeId, LocalDateTime beginAt, LocalDateTime endAt, Node origin, Node destination, Map<String, String> tagsMap) {
+		this(ownerId, routeId, beginAt, endAt, origin, destination, OsmDataManager.renderTags(tagsMap));
+	}
+	
+	/**
+	 * @param tags the tags of the segment, already formatted as "{ key = value; ... }".
+	 */
+	public RouteStepVisited(int ownerId, String routeId, LocalDateTime beginAt, LocalDateTime endAt, Node origin, Node destination, String tags) {
 		super();
 		this.ownerId = ownerId;
 		this.routeId = routeId;
@@ -58,14 +66,7 @@ public class RouteStepVisited {
 		this.endAt = endAt;
 		this.origin = origin;
 		this.destination = destination;
-		this.tags = "{";
-		for(String s: tagsMap.keySet()) {
-			tags += (" " + s + " = " + tagsMap.get(s) +";");
-		}
-		if(this.tags.lastIndexOf(";")!=-1) {
-			this.tags = this.tags.substring(0, this.tags.length()-1);
-		}
-		this.tags += " }";
+		this.tags = tags;
 	}
 	
 	public String getTheGeom() {
@@ -0,0 +1,110 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmXmlParser.TagBuffer;
+
+/**
+ * A reader applying an osmChange (.osc) file to the map data read by another @see OsmReader.
+ * The created and modified nodes and highway ways replace the ones with the same id, the
+ * deleted ones are removed, as are the ways that are no longer highways.
+ * The map data of the other reader is not modified: the changes are applied to a new
+ * @see OsmDataManager built from its columns, which takes a fraction of the time needed to
+ * parse the whole OSM file again. Change files compressed with gzip or bzip2, as the
+ * replication diffs are, are read through @see OsmCompression.
+ * @author sinog
+ *
+ */
+public class OsmChangeReader implements OsmReader {
+
+	private static final byte[] HIGHWAY = "highway".getBytes(StandardCharsets.UTF_8);
+
+	private final OsmReader base;
+
+	private final File changeFile;
+
+	private final OsmLoadOptions options;
+
+	/**
+	 * @param base the reader of the map data the changes are applied to.
+	 * @param options the options of the map data, applied to the created and modified ways.
+	 */
+	public OsmChangeReader(OsmReader base, File changeFile, OsmLoadOptions options) {
+		super();
+		this.base = base;
+		this.changeFile = changeFile;
+		this.options = options;
+	}
+
+	@Override
+	public OsmDataManager readOsmFile() throws IOException {
+		OsmDataManager baseData = base.readOsmFile();
+		LocalDateTime begin = LocalDateTime.now();
+		OsmDataManager res = new OsmDataManager(baseData, options.getTagKeys(), options.isHighwayNodesOnly(), options.getClipRegion());
+		int[] changes = new int[3];
+		OsmXmlParser parser = new OsmXmlParser(new OsmXmlParser.Handler() {
+
+			private int action = OsmXmlParser.MODIFY_ACTION;
+
+			@Override
+			public void action(int action) {
+				this.action = action;
+			}
+
+			@Override
+			public void node(long id, double lat, double lon) {
+				if(action == OsmXmlParser.DELETE_ACTION) {
+					res.deleteNode(id);
+				}else {
+					res.addNode(id, lat, lon);
+				}
+				changes[action]++;
+			}
+
+			@Override
+			public void way(long id, long[] refs, int refCount, TagBuffer tags) {
+				if(action == OsmXmlParser.DELETE_ACTION || !tags.containsKey(HIGHWAY)) {
+					res.deleteWay(id);
+				}else {
+					String[] keys = new String[tags.size()];
+					String[] values = new String[tags.size()];
+					for(int i = 0; i < tags.size(); i++) {
+						keys[i] = tags.getKey(i);
+						values[i] = tags.getValue(i);
+					}
+					res.addWay(id, keys, values, 0, keys.length, refs, 0, refCount);
+				}
+				changes[action]++;
+			}
+		});
+		if(OsmCompression.isCompressed(changeFile)) {
+			try(InputStream in = OsmCompression.open(changeFile, Runtime.getRuntime().availableProcessors())){
+				parser.parse(in);
+			}
+		}else {
+			try(FileChannel channel = FileChannel.open(changeFile.toPath(), StandardOpenOption.READ)){
+				if(channel.size() > Integer.MAX_VALUE) {
+					throw new IOException("The change file " + changeFile.getName() + " is too large");
+				}
+				MappedByteBuffer content = channel.map(MapMode.READ_ONLY, 0, channel.size());
+				parser.parse(content, 0, (int) channel.size());
+			}
+		}
+		System.out.println("Applied " + changeFile.getName() + " :\n"
+				+ "Created " + changes[OsmXmlParser.CREATE_ACTION] + ", modified " + changes[OsmXmlParser.MODIFY_ACTION]
+				+ " and deleted " + changes[OsmXmlParser.DELETE_ACTION] + " elements\n"
+				+ res.printStats()
+				+ " begin at " + begin.toString() + "\n"
+				+ "finish at: " + LocalDateTime.now().toString() + ".");
+		return res;
+	}
+}
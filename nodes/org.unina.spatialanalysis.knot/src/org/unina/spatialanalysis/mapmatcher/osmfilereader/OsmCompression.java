@@ -0,0 +1,47 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens the OSM XML files compressed with gzip (.gz) or bzip2 (.bz2), chosen on the basis
+ * of the file extension, as streams of their decompressed content.
+ * bzip2 files are decompressed by several threads, see @see ParallelBzip2InputStream;
+ * gzip files cannot be split, so they are decompressed by a single thread, ahead of the parser.
+ * @author sinog
+ *
+ */
+public class OsmCompression {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int READ_AHEAD_CHUNK = 1 << 20;
+
+	private static final int READ_AHEAD_CHUNKS = 8;
+
+	public static boolean isCompressed(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".bz2");
+	}
+
+	/**
+	 * @param threads the number of threads decompressing a bzip2 file.
+	 */
+	public static InputStream open(File file, int threads) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			if(file.getName().toLowerCase().endsWith(".bz2")) {
+				return new ParallelBzip2InputStream(in, threads);
+			}else {
+				return new ReadAheadInputStream(new GZIPInputStream(in, BUFFER_SIZE), READ_AHEAD_CHUNK, READ_AHEAD_CHUNKS);
+			}
+		}catch(IOException e) {
+			in.close();
+			throw new IOException("Could not decompress " + file.getName(), e);
+		}
+	}
+}
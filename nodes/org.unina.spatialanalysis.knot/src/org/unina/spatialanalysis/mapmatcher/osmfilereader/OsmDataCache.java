@@ -0,0 +1,263 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+
+/**
+ * A process-wide cache of the map data, shared by all the nodes reading the same OSM file
+ * with the same load options. Entries are keyed by canonical path, modification time and size
+ * of the file, so a changed file is read again.
+ *
+ * Map data is handed out through a @see Lease: while at least one lease is open the data is
+ * strongly reachable, afterwards it is only softly reachable, so the garbage collector can
+ * reclaim it, and it is evicted in least recently used order as soon as the estimated heap
+ * used by the cached data exceeds the memory budget.
+ * The budget defaults to a quarter of the maximum heap and can be set in megabytes with the
+ * knot.osm.cache.budget system property.
+ * @author sinog
+ *
+ */
+public class OsmDataCache {
+
+	private static final String BUDGET_PROPERTY = "knot.osm.cache.budget";
+
+	private static final OsmDataCache INSTANCE = new OsmDataCache(defaultBudget());
+
+	/*
+	 * In access order, so that the first entry is the least recently used.
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private long memoryBudget;
+
+	private long hits;
+
+	private long misses;
+
+	public OsmDataCache(long memoryBudget) {
+		super();
+		this.memoryBudget = memoryBudget;
+	}
+
+	public static OsmDataCache getInstance() {
+		return INSTANCE;
+	}
+
+	private static long defaultBudget() {
+		String budget = System.getProperty(BUDGET_PROPERTY);
+		if(budget != null) {
+			try {
+				return Long.parseLong(budget.trim()) << 20;
+			}catch(NumberFormatException e) {
+				System.out.println("Invalid value of " + BUDGET_PROPERTY + ": " + budget);
+			}
+		}
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	public synchronized void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		evict();
+	}
+
+	public synchronized long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Provides the map data of osmFile, reading it with reader unless it is already cached
+	 * or being read by another thread, in which case the call waits for it.
+	 * The returned lease must be closed once the data is no longer used.
+	 */
+	public Lease acquire(File osmFile, OsmLoadOptions options, OsmReader reader) throws IOException {
+		File file = osmFile.getCanonicalFile();
+		String key = file.getPath() + "|" + file.lastModified() + "|" + file.length() + "|" + options.getKey();
+		Entry entry;
+		boolean load = false;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry != null && !entry.retain()) {
+				entries.remove(key);
+				entry = null;
+			}
+			if(entry == null) {
+				entry = new Entry(key);
+				entries.put(key, entry);
+				load = true;
+				misses++;
+			}else {
+				hits++;
+			}
+		}
+		if(load) {
+			try {
+				OsmDataManager data = reader.readOsmFile();
+				long size = data.estimateHeapSize();
+				synchronized(this) {
+					entry.data = data;
+					entry.size = size;
+					evict();
+				}
+				entry.loading.complete(null);
+			}catch(IOException | RuntimeException | Error e) {
+				synchronized(this) {
+					entries.remove(key, entry);
+				}
+				entry.loading.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			entry.loading.get();
+			synchronized(this) {
+				/*
+				 * The lease retained the entry, so its data is still strongly reachable.
+				 */
+				return new Lease(entry, entry.data);
+			}
+		}catch(InterruptedException e) {
+			release(entry);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + osmFile.getName(), e);
+		}catch(ExecutionException e) {
+			release(entry);
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not read " + osmFile.getName(), e.getCause());
+		}
+	}
+
+	private synchronized void release(Entry entry) {
+		entry.release();
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used entries that are not in use until the cached data fits
+	 * the budget, together with the entries whose data was reclaimed by the garbage collector.
+	 */
+	private void evict() {
+		long used = 0;
+		List<Entry> alive = new ArrayList<Entry>();
+		for(Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if(entry.isReclaimed()) {
+				it.remove();
+			}else {
+				used += entry.size;
+				alive.add(entry);
+			}
+		}
+		for(Entry entry: alive) {
+			if(used <= memoryBudget) {
+				break;
+			}
+			if(entry.refCount == 0) {
+				entries.remove(entry.key);
+				used -= entry.size;
+			}
+		}
+	}
+
+	public synchronized String printStats() {
+		long used = 0;
+		for(Entry entry: entries.values()) {
+			used += entry.size;
+		}
+		return "The map data cache contains " + entries.size() + " entries using about " + (used >> 20) + " of " + (memoryBudget >> 20) + " MB, "
+				+ hits + " hits and " + misses + " misses\n";
+	}
+
+	/**
+	 * The use of cached map data by a single execution.
+	 */
+	public class Lease implements AutoCloseable {
+
+		private final Entry entry;
+
+		private final OsmDataManager data;
+
+		private boolean closed;
+
+		private Lease(Entry entry, OsmDataManager data) {
+			this.entry = entry;
+			this.data = data;
+		}
+
+		public OsmDataManager getData() {
+			return data;
+		}
+
+		@Override
+		public void close() {
+			synchronized(OsmDataCache.this) {
+				if(!closed) {
+					closed = true;
+					release(entry);
+				}
+			}
+		}
+	}
+
+	/*
+	 * All the fields but loading are guarded by the cache. Loading only signals the end of the
+	 * reading, it does not hold the data, which would otherwise never become softly reachable.
+	 */
+	private static class Entry {
+
+		private final String key;
+
+		private final CompletableFuture<Void> loading = new CompletableFuture<Void>();
+
+		private int refCount = 1;
+
+		private OsmDataManager data;
+
+		private SoftReference<OsmDataManager> idleData;
+
+		private long size;
+
+		private Entry(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return false if the data was reclaimed and the entry can no longer be used.
+		 */
+		private boolean retain() {
+			if(refCount == 0) {
+				OsmDataManager res = idleData == null ? null : idleData.get();
+				if(res == null) {
+					return false;
+				}
+				data = res;
+				idleData = null;
+			}
+			refCount++;
+			return true;
+		}
+
+		private void release() {
+			refCount--;
+			if(refCount == 0 && data != null) {
+				idleData = new SoftReference<OsmDataManager>(data);
+				data = null;
+			}
+		}
+
+		private boolean isReclaimed() {
+			return refCount == 0 && (idleData == null || idleData.get() == null);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+
+/**
+ * A portion of OSM map data read independently from the rest of the source, for example
+ * a byte range of an XML file or a fileblock of a PBF file.
+ * Nodes and highway ways are kept in primitive arrays until they are added to an
+ * @see OsmDataManager. Since a way can reference nodes read in any other chunk, the nodes
+ * of all the chunks must be added before their ways.
+ * @author sinog
+ *
+ */
+public class OsmDataChunk {
+
+	private int nodeCount;
+	private int skippedNodeCount;
+	private long[] nodeIds = new long[0];
+	private double[] nodeLats = new double[0];
+	private double[] nodeLons = new double[0];
+
+	private int wayCount;
+	private long[] wayIds = new long[0];
+	private int[] wayRefStart = new int[1];
+	private long[] refs = new long[0];
+	private int refCount;
+	private int[] wayTagStart = new int[1];
+	private String[] tagKeys = new String[0];
+	private String[] tagValues = new String[0];
+	private int tagCount;
+
+	public void addNode(long id, double lat, double lon) {
+		if(nodeCount == nodeIds.length) {
+			int capacity = Math.max(1024, nodeCount * 2);
+			nodeIds = Arrays.copyOf(nodeIds, capacity);
+			nodeLats = Arrays.copyOf(nodeLats, capacity);
+			nodeLons = Arrays.copyOf(nodeLons, capacity);
+		}
+		nodeIds[nodeCount] = id;
+		nodeLats[nodeCount] = lat;
+		nodeLons[nodeCount] = lon;
+		nodeCount++;
+	}
+
+	/**
+	 * Records that a node was read but not kept.
+	 */
+	public void skipNode() {
+		skippedNodeCount++;
+	}
+
+	/**
+	 * Begins a new way, its nodes and tags are added by {@link #addRef(long)} and
+	 * {@link #addTag(String, String)} until {@link #endWay()} is called.
+	 */
+	public void beginWay(long id) {
+		if(wayCount == wayIds.length) {
+			int capacity = Math.max(256, wayCount * 2);
+			wayIds = Arrays.copyOf(wayIds, capacity);
+			wayRefStart = Arrays.copyOf(wayRefStart, capacity + 1);
+			wayTagStart = Arrays.copyOf(wayTagStart, capacity + 1);
+		}
+		wayIds[wayCount] = id;
+	}
+
+	public void addRef(long ref) {
+		if(refCount == refs.length) {
+			refs = Arrays.copyOf(refs, Math.max(4096, refCount * 2));
+		}
+		refs[refCount++] = ref;
+	}
+
+	public void addTag(String key, String value) {
+		if(tagCount == tagKeys.length) {
+			tagKeys = Arrays.copyOf(tagKeys, Math.max(1024, tagCount * 2));
+			tagValues = Arrays.copyOf(tagValues, tagKeys.length);
+		}
+		tagKeys[tagCount] = key;
+		tagValues[tagCount] = value;
+		tagCount++;
+	}
+
+	public void endWay() {
+		wayCount++;
+		wayRefStart[wayCount] = refCount;
+		wayTagStart[wayCount] = tagCount;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getWayCount() {
+		return wayCount;
+	}
+
+	/**
+	 * @return the number of nodes read, kept or not, until the nodes are added to a manager.
+	 */
+	public int getParsedNodeCount() {
+		return nodeCount + skippedNodeCount;
+	}
+
+	/**
+	 * @return the sorted and distinct ids of the nodes referenced by the ways of the chunks.
+	 */
+	public static long[] getReferencedNodes(List<OsmDataChunk> chunks) {
+		int count = 0;
+		for(OsmDataChunk chunk: chunks) {
+			count += chunk.refCount;
+		}
+		long[] res = new long[count];
+		count = 0;
+		for(OsmDataChunk chunk: chunks) {
+			System.arraycopy(chunk.refs, 0, res, count, chunk.refCount);
+			count += chunk.refCount;
+		}
+		Arrays.sort(res);
+		int distinct = 0;
+		for(int i = 0; i < res.length; i++) {
+			if(i == 0 || res[i] != res[i - 1]) {
+				res[distinct++] = res[i];
+			}
+		}
+		return Arrays.copyOf(res, distinct);
+	}
+
+	/**
+	 * Adds the nodes of the chunk to res and releases them.
+	 */
+	public void addNodesTo(OsmDataManager res) {
+		for(int i = 0; i < nodeCount; i++) {
+			res.addNode(nodeIds[i], nodeLats[i], nodeLons[i]);
+		}
+		nodeCount = 0;
+		nodeIds = new long[0];
+		nodeLats = new double[0];
+		nodeLons = new double[0];
+	}
+
+	public void addWaysTo(OsmDataManager res) {
+		for(int w = 0; w < wayCount; w++) {
+			res.addWay(wayIds[w], tagKeys, tagValues, wayTagStart[w], wayTagStart[w + 1], refs, wayRefStart[w], wayRefStart[w + 1]);
+		}
+	}
+}
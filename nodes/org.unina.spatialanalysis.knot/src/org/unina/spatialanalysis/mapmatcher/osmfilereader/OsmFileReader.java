@@ -2,18 +2,28 @@ package org.unina.spatialanalysis.mapmatcher.osmfilereader;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import org.unina.spatialanalysis.mapmatcher.entity.osm.Node;
 import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
-import org.unina.spatialanalysis.mapmatcher.entity.osm.Way;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmXmlParser.TagBuffer;
 
 /**
  * A basic file reader for an OSM file treaded as a simple text file. 
+ * The file is memory-mapped and scanned byte by byte by an @see OsmXmlParser,
+ * in several byte ranges parsed in parallel. Files compressed with gzip or bzip2 are
+ * decompressed while they are parsed, see @see OsmCompression.
  * The file creates an @see OsmDataManager which is then used as a reference
  * for the rest of the Analyzer.
  * This OsmFileReader ensures that by the end of the file parsing:
@@ -27,390 +37,239 @@ import org.unina.spatialanalysis.mapmatcher.entity.osm.Way;
  * @author sinog
  *
  */
-public class OsmFileReader {
-		
-	private static final int EQUAL_SIGN =61;
-	private static final int WHITESPACE = 32;
-	private static final int SLASH = 47;
-	private static final int QUOTES = 34;
+public class OsmFileReader implements OsmReader {
+	
+	/**
+	 * The maximum size of the portion of the file mapped in memory at once.
+	 */
+	private static final long MAPPING_WINDOW = 1L << 30;
+	
+	/**
+	 * The minimum size of a portion of the file parsed by a single task.
+	 */
+	private static final long MIN_CHUNK_SIZE = 16L << 20;
+	
+	/**
+	 * The size of the window searched for the beginning of an element.
+	 */
+	private static final long PROBE_WINDOW = 1L << 20;
+	
+	private static final byte[] HIGHWAY = "highway".getBytes(StandardCharsets.UTF_8);
 	
 	File osmFile;
 	
+	private final OsmLoadOptions options;
+	
+	private final int parallelism;
+	
 	public OsmFileReader(File osmFile) {
+		this(osmFile, OsmLoadOptions.DEFAULT);
+	}
+	
+	public OsmFileReader(File osmFile, OsmLoadOptions options) {
+		this(osmFile, options, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public OsmFileReader(File osmFile, OsmLoadOptions options, int parallelism) {
 		super();
 		this.osmFile = osmFile;
+		this.options = options;
+		this.parallelism = Math.max(1, parallelism);
 	}
 	
+	/**
+	 * The file is split at element boundaries in byte ranges that are parsed in parallel.
+	 * The nodes of each range are added as soon as the range has been parsed, the ways
+	 * only when all of them have been, so that a way always finds its nodes regardless
+	 * of the range they were read in.
+	 * When only the nodes of the highways are loaded the file is parsed twice: the first pass
+	 * reads the ways and collects the ids of their nodes, the second one reads the nodes
+	 * and keeps only those, so the other nodes are never stored.
+	 */
+	@Override
 	public OsmDataManager readOsmFile() throws IOException {
-		Scanner myScanner = new Scanner(osmFile, "UTF-8");
-		myScanner.useDelimiter(">");
-		String currentLine;
-		OsmDataManager res = new OsmDataManager();
-		Node currentNode;
-		Way currentWay = null;
-		List<Long> nodesInAWay = new ArrayList<Long>();
-		
-		boolean foundHighway = false;
-		
-		int i = 0;
-		int nodes = 0;
-		int ways = 0;
-		int nd = 0;
-		int tagsNumber = 0;
-		int numberOfNdListCreated = 0;
-		boolean check = false;
-		
+		if(OsmCompression.isCompressed(osmFile)) {
+			return readCompressedFile();
+		}
+		OsmDataManager res = new OsmDataManager(options.getTagKeys(), options.isHighwayNodesOnly(), options.getClipRegion());
 		LocalDateTime  begin = LocalDateTime.now();
-		
-		while(myScanner.hasNext()) {
-			currentLine=myScanner.next();
-			if(currentLine.contains("<node") && !currentLine.contains("</node")) {
-				currentNode = parseNode(currentLine);
-				res.addNode(currentNode);
-				nodes++;
-			}else if(currentLine.contains("<way") && !currentLine.contains("</way")) {
-				ways++;
-				currentWay = parseWay(currentLine);
-				check = true;
-			}else if(currentLine.contains("<tag") && currentWay!=null) {
-				String [] tags = parseTag(currentLine);
-				if(tags[0].equals("highway")) {
-					foundHighway=true;
-				}
-				currentWay.addTags(tags[0], tags[1]);
-				tagsNumber++;
-			}else if(currentLine.contains("<nd")) {
-				long ndId = parseNd(currentLine);
-				if(currentWay!=null) {
-					nodesInAWay.add(ndId);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		List<long[]> ranges;
+		long parsedNodes = 0;
+		try(FileChannel channel = FileChannel.open(osmFile.toPath(), StandardOpenOption.READ)){
+			ranges = splitAtElementBoundaries(channel);
+			List<OsmDataChunk> chunks = new ArrayList<OsmDataChunk>();
+			if(options.isHighwayNodesOnly()) {
+				for(ForkJoinTask<OsmDataChunk> task: parseRanges(pool, channel, ranges, false, true, null)) {
+					chunks.add(join(task));
 				}
-				if(check) {
-					check = false;
-					numberOfNdListCreated++;
+				long[] highwayNodes = OsmDataChunk.getReferencedNodes(chunks);
+				for(ForkJoinTask<OsmDataChunk> task: parseRanges(pool, channel, ranges, true, false, highwayNodes)) {
+					OsmDataChunk chunk = join(task);
+					parsedNodes += chunk.getParsedNodeCount();
+					chunk.addNodesTo(res);
 				}
-				nd++;
-			}else if(currentLine.contains("</way")) {
-				if(foundHighway) {
-					res.addWay(currentWay, nodesInAWay);
+			}else {
+				for(ForkJoinTask<OsmDataChunk> task: parseRanges(pool, channel, ranges, true, true, null)) {
+					OsmDataChunk chunk = join(task);
+					parsedNodes += chunk.getParsedNodeCount();
+					chunk.addNodesTo(res);
+					chunks.add(chunk);
 				}
-				check = false;
-				nodesInAWay.clear();
-				currentWay = null;
-				foundHighway = false;
 			}
-			i++;
+			for(OsmDataChunk chunk: chunks) {
+				chunk.addWaysTo(res);
+			}
+		}finally {
+			pool.shutdownNow();
 		}
-		System.out.println("Finished Reading line by line, read "+ i + " lines :\n"
-						+ "Read nodes: " + nodes + "\n"
-						+ "ways: " + ways +"\n"
-						+ "nd: "  + nd + " in " + numberOfNdListCreated +" lists \n"
-						+" tags: " + tagsNumber + "\n" + res.printStats()
+		System.out.println("Finished Reading " + osmFile.getName() + " :\n"
+						+ "Read " + ranges.size() + " chunks with " + parallelism + " threads\n"
+						+ "Parsed " + parsedNodes + " nodes\n"
+						+ res.printStats()
 						+" begin at " + begin.toString() + "\n"
 						+ "finish at: " + LocalDateTime.now().toString() +".");
-		myScanner.close();
 		return res;
 	}
+	
+	/**
+	 * A compressed file can only be read in order, so it is parsed once by a single thread
+	 * while other threads decompress it, and the elements are added straight to the map data.
+	 * When only the nodes of the highways are loaded the other nodes are dropped when the map
+	 * data is indexed.
+	 */
+	private OsmDataManager readCompressedFile() throws IOException {
+		OsmDataManager res = new OsmDataManager(options.getTagKeys(), options.isHighwayNodesOnly(), options.getClipRegion());
+		LocalDateTime  begin = LocalDateTime.now();
+		OsmXmlParser parser = new OsmXmlParser(new OsmXmlParser.Handler() {
 
-	private long parseNd(String toParse) throws UnsupportedEncodingException {
-		
-		long id = 0;
-		
-		byte key [] = new byte[30];
-		int keyIndex = 0;
-		int valueIndex = 0;
-		byte value[] = new byte[500];
-		byte c;
-		
-		int quotesMet = 0;
-		
-		boolean readingKey = true;
-		boolean readingValue = false;
-		boolean finishedReadingValue = false;
-		toParse = toParse.substring(toParse.indexOf(" "));
-		byte[] asUtf8Bytes = toParse.getBytes("UTF-8");
-		for(int i = 0; i< asUtf8Bytes.length; i++) {
-			if(id!=0) {
-				//check if read everything of interest and get out.
-				break;
+			@Override
+			public void node(long id, double lat, double lon) {
+				res.addNode(id, lat, lon);
 			}
-			c = asUtf8Bytes[i];
-			
-			if((c==WHITESPACE || c==SLASH)  && finishedReadingValue) {
-				//Reached a new key
-				readingKey = true;
-				readingValue = false;
-				finishedReadingValue = false;
-			
-				String toCheck = new String(key, "UTF-8");
-				String valueToParse = new String(value, "UTF-8");
-				toCheck = toCheck.trim();
-				valueToParse = valueToParse.trim();
-			
-				
-				//storing values	
-				if(toCheck.equals("ref")) {
-					id=Long.parseLong(valueToParse);
-					keyIndex=0;
-					valueIndex=0;
-					key = new byte[30];
-					value = new byte[500];
+
+			@Override
+			public void way(long id, long[] refs, int refCount, TagBuffer tags) {
+				if(!tags.containsKey(HIGHWAY)) {
+					return;
 				}
-			}else if(c == EQUAL_SIGN) {
-				//reached a new value
-				readingValue = true;
-				readingKey = false;
-			}else {
-				if(readingKey) {
-					key[keyIndex] = c;
-					keyIndex++;
-					finishedReadingValue = false;
-				}else if(readingValue) {
-					if(c!=QUOTES) {
-						value[valueIndex] =  c;
-						valueIndex++;	
-					}else {
-						quotesMet++;
-						if(quotesMet == 2) {
-							finishedReadingValue = true;
-							quotesMet = 0;
-						}
-					}
+				String[] keys = new String[tags.size()];
+				String[] values = new String[tags.size()];
+				for(int i = 0; i < tags.size(); i++) {
+					keys[i] = tags.getKey(i);
+					values[i] = tags.getValue(i);
 				}
+				res.addWay(id, keys, values, 0, keys.length, refs, 0, refCount);
 			}
+		});
+		try(InputStream in = OsmCompression.open(osmFile, parallelism)){
+			parser.parse(in);
 		}
-		return id;
+		System.out.println("Finished Reading " + osmFile.getName() + " :\n"
+						+ "Decompressed with " + parallelism + " threads\n"
+						+ parser.printStats()
+						+ res.printStats()
+						+" begin at " + begin.toString() + "\n"
+						+ "finish at: " + LocalDateTime.now().toString() +".");
+		return res;
 	}
-
-	private String[] parseTag(String toParse) throws UnsupportedEncodingException {
-		
-		String [] result = new String[2];
-		
-		byte key [] = new byte[30];
-		int keyIndex = 0;
-		int valueIndex = 0;
-		byte value[] = new byte[500];
-		
-		byte c;
-		
-		boolean readingKey = true;
-		boolean readingValue = false;
-		boolean finishedReadingValue = false;
-		
-		int quotesMet = 0;
-		toParse = toParse.substring(toParse.indexOf(" "));
-		byte[] asUtf8Bytes = toParse.getBytes("UTF-8");
-		for(int i = 0; i<asUtf8Bytes.length; i++) {
-			c = asUtf8Bytes[i];
-			if((c==WHITESPACE || c==SLASH) && finishedReadingValue) {
-				//Reached a new key
-				readingKey = true;
-				readingValue = false;
-				finishedReadingValue = false;
-				
-				String toCheck = new String(key, "UTF-8");
-				String valueToParse = new String(value, "UTF-8");
-				toCheck = toCheck.trim();
-				valueToParse = valueToParse.trim();
-			
-		
-				//storing values	
-				if(toCheck.equals("k")) {
-					result[0] = valueToParse;
-					keyIndex=0;
-					valueIndex=0;
-					key = new byte[30];
-					value = new byte[500];
-					
-				}else if(toCheck.equals("v")) {
-					result[1] = valueToParse;
-					keyIndex=0;
-					valueIndex=0;
-					key = new byte[30];
-					value = new byte[500];
-				}
-			}else if(c == EQUAL_SIGN) {
-				//reached a new value
-				readingValue = true;
-				readingKey = false;
-				finishedReadingValue = false;
-			}else {
-				if(readingKey) {
-					key[keyIndex] = c;
-					keyIndex++;
-				}else if(readingValue) {
-					if(c!=QUOTES) {
-						value[valueIndex] =  c;
-						valueIndex++;	
-					}else {
-						quotesMet++;
-						if(quotesMet == 2) {
-							finishedReadingValue = true;
-							quotesMet = 0;
-						}
-					}
-				}
-			}
+	
+	/**
+	 * Submits the parsing of every range to pool.
+	 * @param keptNodes the sorted ids of the nodes to keep, or null to keep all of them.
+	 */
+	private List<ForkJoinTask<OsmDataChunk>> parseRanges(ForkJoinPool pool, FileChannel channel, List<long[]> ranges, boolean nodes, boolean ways, long[] keptNodes) {
+		List<ForkJoinTask<OsmDataChunk>> tasks = new ArrayList<ForkJoinTask<OsmDataChunk>>();
+		for(long[] range: ranges) {
+			tasks.add(pool.submit(() -> parseRange(channel, range[0], range[1], nodes, ways, keptNodes)));
 		}
-		return result;
+		return tasks;
 	}
-
-	private Node parseNode(String toParse) throws UnsupportedEncodingException {
 	
-		long id = 0;
-		double lat = 0;
-		double lon = 0;
-		
-		byte key [] = new byte[30];
-		int keyIndex = 0;
-		int valueIndex = 0;
-		byte value[] = new byte[500];
-		byte c;
-		
-		boolean readingKey = true;
-		boolean readingValue = false;
-		boolean finishedReadingValue = false;
-		
-		int quotesMet=0;
-		
-		toParse = toParse.substring(toParse.indexOf(" "));
-		byte[] asUtf8Bytes = toParse.getBytes("UTF-8");
-		
-		for(int i = 0; i<asUtf8Bytes.length; i++) {
-			if(id!=0 && lat != 0 && lon!=0) {
-				//check if read everything of interest and get out.
-				break;
+	private OsmDataChunk join(ForkJoinTask<OsmDataChunk> task) throws IOException {
+		try {
+			return task.get();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing " + osmFile.getName(), e);
+		}catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
 			}
-			c = asUtf8Bytes[i];
-			
-			if((c==WHITESPACE || c==SLASH)  && finishedReadingValue) {
-				//Reached a new key
-				readingKey = true;
-				readingValue = false;
-				finishedReadingValue = false;
-
-				
-				String toCheck = new String(key, "UTF-8");
-				String valueToParse = new String(value, "UTF-8");
-				toCheck = toCheck.trim();
-				valueToParse = valueToParse.trim();
-			
-				//storing values	
-				if(toCheck.equals("id")) {
-					id=Long.parseLong(valueToParse);
-					keyIndex=0;
-					valueIndex=0;
-					key = new byte[30];
-					value = new byte[500];
-					
-				}else if(toCheck.equals("lat")) {
-					lat = Double.parseDouble(valueToParse);
-					keyIndex=0;
-					valueIndex=0;
-					key = new byte[30];
-					value = new byte[500];
-				}else if(toCheck.equals("lon")) {
-					lon = Double.parseDouble(valueToParse);
-					keyIndex=0;
-					valueIndex=0;
-					key = new byte[30];
-					value = new byte[500];	
-				}
-			}else if(c == EQUAL_SIGN) {
-				//reached a new value
-				readingValue = true;
-				readingKey = false;
-				finishedReadingValue = false;
-			}else {
-				if(readingKey) {
-					key[keyIndex] = c;
-					keyIndex++;
-				}else if(readingValue) {
-					if(c!=QUOTES) {
-						value[valueIndex] = c;
-						valueIndex++;	
-					}else {
-						quotesMet++;
-						if(quotesMet == 2) {
-							finishedReadingValue = true;
-							quotesMet = 0;
-						}
-					}
-				}
+			throw new IOException("Could not parse " + osmFile.getName(), e.getCause());
+		}
+	}
+	
+	/**
+	 * Splits the file in byte ranges, each one beginning with a node, way or relation element.
+	 */
+	private List<long[]> splitAtElementBoundaries(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long chunkSize = Math.min(MAPPING_WINDOW, Math.max(MIN_CHUNK_SIZE, size / (parallelism * 4L)));
+		List<long[]> ranges = new ArrayList<long[]>();
+		long from = 0;
+		while(from < size) {
+			long to = from + chunkSize >= size ? size : nextElementStart(channel, from + chunkSize, size);
+			if(to - from > MAPPING_WINDOW) {
+				throw new IOException("Could not split " + osmFile.getName() + " at an element boundary after offset " + from);
 			}
+			ranges.add(new long[] {from, to});
+			from = to;
 		}
-		return new Node(id, lon, lat);
+		return ranges;
 	}
 	
-	private Way parseWay(String toParse) throws UnsupportedEncodingException {
-		long id = 0;
-		
-		byte key [] = new byte[30];
-		int keyIndex = 0;
-		int valueIndex = 0;
-		byte value[] = new byte[500];
-		byte c;
-		
-		boolean readingKey = true;
-		boolean readingValue = false;
-		boolean finishedReadingValue = false;
-		
-		int quotesMet = 0;
-		
-		toParse = toParse.substring(toParse.indexOf(" "));
-		byte[] asUtf8Bytes = toParse.getBytes("UTF-8");
-		
-		for(int i = toParse.indexOf(" ")+1; i< toParse.length(); i++) {
-			if(id!=0) {
-				//check if read everything of interest and get out.
+	private long nextElementStart(FileChannel channel, long from, long size) throws IOException {
+		long position = from;
+		while(position < size) {
+			long length = Math.min(PROBE_WINDOW, size - position);
+			MappedByteBuffer probe = channel.map(MapMode.READ_ONLY, position, length);
+			int found = OsmXmlParser.findElementStart(probe, 0, (int) length);
+			if(found != -1) {
+				return position + found;
+			}
+			if(position + length == size) {
 				break;
 			}
-			c =asUtf8Bytes[i];
-			
-			if((c == WHITESPACE || c==SLASH)  && finishedReadingValue) {
-				//Reached a new key
-				readingKey = true;
-				readingValue = false;
-				finishedReadingValue = false;
-				
-		
-				String toCheck = new String(key, "UTF-8");
-				String valueToParse = new String(value, "UTF-8");
-				toCheck = toCheck.trim();
-				valueToParse = valueToParse.trim();
-			
+			/*
+			 * The windows overlap so that an element name is never cut in two.
+			 */
+			position += length - 16;
+		}
+		return size;
+	}
+	
+	private OsmDataChunk parseRange(FileChannel channel, long from, long to, boolean nodes, boolean ways, long[] keptNodes) throws IOException {
+		OsmDataChunk chunk = new OsmDataChunk();
+		OsmXmlParser parser = new OsmXmlParser(new OsmXmlParser.Handler() {
 
-				//storing values	
-				if(toCheck.equals("id")) {
-					id=Long.parseLong(valueToParse);
-					keyIndex=0;
-					valueIndex=0;
-					key = new byte[30];
-					value = new byte[500];
+			@Override
+			public void node(long id, double lat, double lon) {
+				if(keptNodes == null || Arrays.binarySearch(keptNodes, id) >= 0) {
+					chunk.addNode(id, lat, lon);
+				}else {
+					chunk.skipNode();
 				}
-			}else if(c == EQUAL_SIGN) {
-				//reached a new value
-				readingValue = true;
-				readingKey = false;
-				finishedReadingValue = false;
-			}else {
-				if(readingKey) {
-					key[keyIndex] = c;
-					keyIndex++;
-				}else if(readingValue) {
-					if(c!=QUOTES) {
-						value[valueIndex] = c;
-						valueIndex++;	
-					}else {			
-						quotesMet++;
-						if(quotesMet == 2) {
-							finishedReadingValue = true;
-							quotesMet = 0;
-						}
-					}	
+			}
+
+			@Override
+			public void way(long id, long[] refs, int refCount, TagBuffer tags) {
+				if(!tags.containsKey(HIGHWAY)) {
+					return;
+				}
+				chunk.beginWay(id);
+				for(int i = 0; i < tags.size(); i++) {
+					chunk.addTag(tags.getKey(i), tags.getValue(i));
 				}
+				for(int i = 0; i < refCount; i++) {
+					chunk.addRef(refs[i]);
+				}
+				chunk.endWay();
 			}
-		}
-		return new Way(id);
+		}, nodes, ways);
+		MappedByteBuffer range = channel.map(MapMode.READ_ONLY, from, to - from);
+		parser.parse(range, 0, (int) (to - from));
+		return chunk;
 	}
 	
 	 public static String charToHex(char c) {
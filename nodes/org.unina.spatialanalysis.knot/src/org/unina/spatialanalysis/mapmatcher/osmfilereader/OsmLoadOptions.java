@@ -0,0 +1,156 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.unina.spatialanalysis.mapmatcher.entity.osm.MapRegion;
+
+/**
+ * The options that determine which part of an OSM file is loaded by an @see OsmReader,
+ * and which osmChange files are applied to it.
+ * @author sinog
+ *
+ */
+public class OsmLoadOptions {
+
+	public static final OsmLoadOptions DEFAULT = new OsmLoadOptions(null);
+
+	private final Set<String> tagKeys;
+
+	private final boolean highwayNodesOnly;
+
+	private final MapRegion clipRegion;
+
+	private final List<File> changeFiles;
+
+	/**
+	 * @param tagKeys the keys of the way tags to keep, or null to keep all of them.
+	 */
+	public OsmLoadOptions(Set<String> tagKeys) {
+		this(tagKeys, false);
+	}
+
+	/**
+	 * @param tagKeys the keys of the way tags to keep, or null to keep all of them.
+	 * @param highwayNodesOnly if true only the nodes of the highway ways are loaded.
+	 */
+	public OsmLoadOptions(Set<String> tagKeys, boolean highwayNodesOnly) {
+		this(tagKeys, highwayNodesOnly, null);
+	}
+
+	/**
+	 * @param tagKeys the keys of the way tags to keep, or null to keep all of them.
+	 * @param highwayNodesOnly if true only the nodes of the highway ways are loaded.
+	 * @param clipRegion the region the map data is clipped to, or null to load all of it.
+	 */
+	public OsmLoadOptions(Set<String> tagKeys, boolean highwayNodesOnly, MapRegion clipRegion) {
+		this(tagKeys, highwayNodesOnly, clipRegion, Collections.<File>emptyList());
+	}
+
+	private OsmLoadOptions(Set<String> tagKeys, boolean highwayNodesOnly, MapRegion clipRegion, List<File> changeFiles) {
+		super();
+		this.tagKeys = tagKeys == null ? null : Collections.unmodifiableSet(new LinkedHashSet<String>(tagKeys));
+		this.highwayNodesOnly = highwayNodesOnly;
+		this.clipRegion = clipRegion;
+		this.changeFiles = Collections.unmodifiableList(new ArrayList<File>(changeFiles));
+	}
+
+	/**
+	 * @return a copy of these options applying the given osmChange files, in order, to the map data.
+	 */
+	public OsmLoadOptions withChangeFiles(List<File> changeFiles) {
+		return new OsmLoadOptions(tagKeys, highwayNodesOnly, clipRegion, changeFiles);
+	}
+
+	/**
+	 * @return the keys of the way tags to keep, or null if all of them are kept.
+	 */
+	public Set<String> getTagKeys() {
+		return tagKeys;
+	}
+
+	/**
+	 * @return true if only the nodes of the highway ways are loaded, false if all the nodes are.
+	 */
+	public boolean isHighwayNodesOnly() {
+		return highwayNodesOnly;
+	}
+
+	/**
+	 * @return the region the map data is clipped to, or null if all of it is loaded.
+	 */
+	public MapRegion getClipRegion() {
+		return clipRegion;
+	}
+
+	/**
+	 * @return the osmChange files applied, in order, to the map data.
+	 */
+	public List<File> getChangeFiles() {
+		return changeFiles;
+	}
+
+	/**
+	 * @return a string identifying the options, equal for options loading the same data.
+	 */
+	public String getKey() {
+		return "tags=" + (tagKeys == null ? "*" : String.join(",", new TreeSet<String>(tagKeys)))
+				+ ";nodes=" + (highwayNodesOnly ? "highway" : "*")
+				+ ";clip=" + (clipRegion == null ? "*" : clipRegion.getKey())
+				+ ";changes=" + getChangeFilesKey();
+	}
+
+	/*
+	 * A change file is identified like the OSM file in a cache key, by path, size and modification time.
+	 */
+	private String getChangeFilesKey() {
+		List<String> res = new ArrayList<String>();
+		for(File changeFile: changeFiles) {
+			File file;
+			try {
+				file = changeFile.getCanonicalFile();
+			}catch(IOException e) {
+				file = changeFile.getAbsoluteFile();
+			}
+			res.add(file.getPath() + ":" + file.length() + ":" + file.lastModified());
+		}
+		return String.join(",", res);
+	}
+
+	/**
+	 * Parses a comma separated list of tag keys, an empty list meaning that all the
+	 * tags are kept.
+	 */
+	public static Set<String> parseTagKeys(String tagKeys) {
+		Set<String> res = new LinkedHashSet<String>();
+		if(tagKeys != null) {
+			for(String key: tagKeys.split(",")) {
+				if(!key.trim().isEmpty()) {
+					res.add(key.trim());
+				}
+			}
+		}
+		return res.isEmpty() ? null : res;
+	}
+
+	/**
+	 * Parses a semicolon separated list of paths of osmChange files.
+	 */
+	public static List<File> parseChangeFiles(String changeFiles) {
+		List<File> res = new ArrayList<File>();
+		if(changeFiles != null) {
+			for(String path: changeFiles.split(";")) {
+				if(!path.trim().isEmpty()) {
+					res.add(new File(path.trim()));
+				}
+			}
+		}
+		return res;
+	}
+}
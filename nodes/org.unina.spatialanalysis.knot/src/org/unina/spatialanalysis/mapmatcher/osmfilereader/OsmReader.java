@@ -0,0 +1,20 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.IOException;
+
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+
+/**
+ * The interface defines a reader of OSM map data.
+ * @author sinog
+ *
+ */
+public interface OsmReader {
+
+	/**
+	 * Reads the whole map data source.
+	 * @return an OsmDataManager containing the nodes and the highway ways of the source.
+	 * @throws IOException in case the source cannot be read.
+	 */
+	public OsmDataManager readOsmFile() throws IOException;
+}
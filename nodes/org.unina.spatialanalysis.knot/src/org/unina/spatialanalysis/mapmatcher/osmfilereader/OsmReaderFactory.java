@@ -0,0 +1,55 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.pbf.OsmPbfReader;
+
+/**
+ * The class OsmReaderFactory provides the OsmReader able to read a given file,
+ * chosen on the basis of the file extension.
+ */
+public class OsmReaderFactory {
+
+	public static OsmReader getOsmReader(File osmFile) {
+		return getOsmReader(osmFile, OsmLoadOptions.DEFAULT);
+	}
+
+	/**
+	 * @return a reader of osmFile applying to it the change files of the options.
+	 */
+	public static OsmReader getOsmReader(File osmFile, OsmLoadOptions options) {
+		OsmReader res = getFileReader(osmFile, options);
+		for(File changeFile: options.getChangeFiles()) {
+			res = new OsmChangeReader(res, changeFile, options);
+		}
+		return res;
+	}
+
+	private static OsmReader getFileReader(File osmFile, OsmLoadOptions options) {
+		String name = osmFile.getName().toLowerCase();
+		if(name.endsWith(".pbf")) {
+			return new OsmPbfReader(osmFile, options);
+		}else {
+			return new OsmFileReader(osmFile, options);
+		}
+	}
+
+	/**
+	 * @return a reader keeping a snapshot of the map data in snapshotDirectory, or next to
+	 * the file if it is null.
+	 * A snapshot is kept for the map data before and after applying each change file, so that
+	 * a new change file is applied to the mapped snapshot of the changes that preceded it.
+	 */
+	public static OsmSnapshotReader getSnapshotOsmReader(File osmFile, OsmLoadOptions options, File snapshotDirectory) {
+		List<File> changeFiles = options.getChangeFiles();
+		OsmLoadOptions levelOptions = options.withChangeFiles(Collections.<File>emptyList());
+		OsmSnapshotReader res = new OsmSnapshotReader(osmFile, levelOptions, snapshotDirectory, getFileReader(osmFile, levelOptions));
+		for(int i = 0; i < changeFiles.size(); i++) {
+			levelOptions = options.withChangeFiles(changeFiles.subList(0, i + 1));
+			res = new OsmSnapshotReader(osmFile, levelOptions, snapshotDirectory, new OsmChangeReader(res, changeFiles.get(i), levelOptions));
+		}
+		return res;
+	}
+}
@@ -0,0 +1,170 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataSnapshot;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.TiledOsmData;
+
+/**
+ * A reader that keeps a snapshot of the map data read by another @see OsmReader,
+ * see {@link OsmDataSnapshot}. The first read of a file parses it and writes the snapshot,
+ * the following ones map the snapshot as long as the file and the load options are unchanged.
+ * The snapshot is keyed by the path, size and modification time of the file, by a digest of
+ * sampled portions of its content and by the load options.
+ * The snapshot can also be split in tiles loaded on demand, see {@link #readTiles(double, int)}.
+ * @author sinog
+ *
+ */
+public class OsmSnapshotReader implements OsmReader {
+
+	private static final String SNAPSHOT_EXTENSION = ".knotmap";
+
+	private static final String TILES_SUFFIX = ".tiles-";
+
+	/**
+	 * The size of the portions of the file hashed to detect a change in its content.
+	 */
+	private static final int SAMPLE_SIZE = 64 * 1024;
+
+	private static final int SAMPLES = 32;
+
+	private final File osmFile;
+
+	private final OsmLoadOptions options;
+
+	private final File snapshotDirectory;
+
+	private final OsmReader source;
+
+	/**
+	 * @param snapshotDirectory the directory of the snapshot, or null to keep it next to the OSM file.
+	 * @param source the reader used when there is no valid snapshot.
+	 */
+	public OsmSnapshotReader(File osmFile, OsmLoadOptions options, File snapshotDirectory, OsmReader source) {
+		super();
+		this.osmFile = osmFile;
+		this.options = options;
+		this.snapshotDirectory = snapshotDirectory;
+		this.source = source;
+	}
+
+	@Override
+	public OsmDataManager readOsmFile() throws IOException {
+		LocalDateTime begin = LocalDateTime.now();
+		byte[] key = computeKey();
+		File snapshot = getSnapshotFile();
+		if(snapshot.isFile()) {
+			try {
+				OsmDataManager res = OsmDataSnapshot.map(snapshot, key);
+				if(res != null) {
+					System.out.println("Mapped snapshot " + snapshot.getName() + " of " + osmFile.getName() + " :\n"
+							+ res.printStats()
+							+ " begin at " + begin.toString() + "\n"
+							+ "finish at: " + LocalDateTime.now().toString() + ".");
+					return res;
+				}
+			}catch(IOException e) {
+				System.out.println("Could not map snapshot " + snapshot + ", the map data will be parsed: " + e.getMessage());
+			}
+		}
+		OsmDataManager res = source.readOsmFile();
+		try {
+			OsmDataSnapshot.write(res, key, snapshot);
+		}catch(IOException e) {
+			System.out.println("Could not write snapshot " + snapshot + ": " + e.getMessage());
+		}
+		return res;
+	}
+
+	/**
+	 * Reads the map data split in tiles of tileSize degrees, kept in a directory next to the
+	 * snapshot, see {@link TiledOsmData}. The first time the tiles are built from the map data
+	 * read as a whole; later only the tiles that are needed are loaded.
+	 * @param maxLoadedTiles the maximum number of tiles kept loaded at once.
+	 */
+	public TiledOsmData readTiles(double tileSize, int maxLoadedTiles) throws IOException {
+		LocalDateTime begin = LocalDateTime.now();
+		byte[] key = computeKey();
+		File directory = new File(getSnapshotFile().getPath() + TILES_SUFFIX + tileSize);
+		TiledOsmData res = null;
+		try {
+			res = TiledOsmData.open(directory, key, maxLoadedTiles);
+		}catch(IOException e) {
+			System.out.println("Could not open the tiles in " + directory + ", they will be built again: " + e.getMessage());
+		}
+		if(res == null) {
+			int tiles = TiledOsmData.write(readOsmFile(), key, tileSize, directory);
+			System.out.println("Wrote " + tiles + " tiles of " + osmFile.getName() + " in " + directory);
+			res = TiledOsmData.open(directory, key, maxLoadedTiles);
+			if(res == null) {
+				throw new IOException("Could not open the tiles written in " + directory);
+			}
+		}
+		System.out.println("Opened the tiles of " + osmFile.getName() + " :\n"
+				+ res.printStats()
+				+ " begin at " + begin.toString() + "\n"
+				+ "finish at: " + LocalDateTime.now().toString() + ".");
+		return res;
+	}
+
+	/**
+	 * @return the snapshot file, whose name depends on the OSM file and on the load options
+	 * so that different options do not overwrite each other's snapshot.
+	 */
+	public File getSnapshotFile() throws IOException {
+		File directory = snapshotDirectory != null ? snapshotDirectory : osmFile.getAbsoluteFile().getParentFile();
+		String id = osmFile.getCanonicalPath() + "|" + options.getKey();
+		return new File(directory, osmFile.getName() + "." + toHex(digest(id.getBytes(StandardCharsets.UTF_8)), 8) + SNAPSHOT_EXTENSION);
+	}
+
+	private byte[] computeKey() throws IOException {
+		MessageDigest digest = newDigest();
+		digest.update((osmFile.getCanonicalPath() + "|" + osmFile.length() + "|" + osmFile.lastModified() + "|" + options.getKey()).getBytes(StandardCharsets.UTF_8));
+		try(RandomAccessFile in = new RandomAccessFile(osmFile, "r")){
+			long size = in.length();
+			byte[] sample = new byte[SAMPLE_SIZE];
+			for(int i = 0; i < SAMPLES; i++) {
+				long position = size <= SAMPLE_SIZE ? 0 : (size - SAMPLE_SIZE) / (SAMPLES - 1) * i;
+				if(i == SAMPLES - 1) {
+					position = Math.max(0, size - SAMPLE_SIZE);
+				}
+				in.seek(position);
+				int n = in.read(sample);
+				if(n > 0) {
+					digest.update(sample, 0, n);
+				}
+				if(size <= SAMPLE_SIZE) {
+					break;
+				}
+			}
+		}
+		return digest.digest();
+	}
+
+	private static byte[] digest(byte[] data) {
+		return newDigest().digest(data);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes, int length) {
+		StringBuilder res = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			res.append(String.format("%02x", bytes[i]));
+		}
+		return res.toString();
+	}
+}
@@ -0,0 +1,545 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A byte level scanner for OSM XML data.
+ * The parser works directly on a @see ByteBuffer (typically a memory-mapped region of the
+ * OSM file) and never turns an element into a String: ids and coordinates are decoded
+ * straight from the bytes, while the tags of the current way are copied in a reusable
+ * buffer and are only turned into Strings if the handler asks for them.
+ * The parser keeps the state of the way being read between two calls of
+ * {@link #parse(ByteBuffer, int, int)}, so a file can be fed to it one window at a time,
+ * as {@link #parse(InputStream)} does with streams that cannot be mapped.
+ * @author sinog
+ *
+ */
+public class OsmXmlParser {
+
+	private static final byte LT = '<';
+	private static final byte GT = '>';
+	private static final byte SLASH = '/';
+	private static final byte EQUAL_SIGN = '=';
+	private static final byte QUOTES = '"';
+	private static final byte APOSTROPHE = '\'';
+
+	private static final byte[] NODE = {'n','o','d','e'};
+	private static final byte[] WAY = {'w','a','y'};
+	private static final byte[] RELATION = {'r','e','l','a','t','i','o','n'};
+	private static final byte[] ND = {'n','d'};
+	private static final byte[] TAG = {'t','a','g'};
+	private static final byte[] ID = {'i','d'};
+	private static final byte[] LAT = {'l','a','t'};
+	private static final byte[] LON = {'l','o','n'};
+	private static final byte[] REF = {'r','e','f'};
+	private static final byte[] CREATE = {'c','r','e','a','t','e'};
+	private static final byte[] MODIFY = {'m','o','d','i','f','y'};
+	private static final byte[] DELETE = {'d','e','l','e','t','e'};
+	private static final byte[] K = {'k'};
+	private static final byte[] V = {'v'};
+
+	private static final int STREAM_BUFFER_SIZE = 1 << 20;
+
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/**
+	 * The actions of an osmChange file, see {@link Handler#action(int)}.
+	 */
+	public static final int CREATE_ACTION = 0;
+	public static final int MODIFY_ACTION = 1;
+	public static final int DELETE_ACTION = 2;
+
+	/**
+	 * Receives the elements found by the parser.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called for every &lt;node&gt; element with coordinates. The nodes without coordinates,
+		 * e.g. deleted ones, are only reported within the &lt;delete&gt; element of an osmChange
+		 * file, with NaN coordinates.
+		 */
+		public void node(long id, double lat, double lon) throws IOException;
+
+		/**
+		 * Called when a &lt;way&gt; element has been closed.
+		 * @param id the id of the way.
+		 * @param refs the ids of the nodes of the way, only the first refCount are valid.
+		 * @param refCount the number of nodes of the way.
+		 * @param tags the tags of the way, only valid during the call.
+		 */
+		public void way(long id, long[] refs, int refCount, TagBuffer tags) throws IOException;
+
+		/**
+		 * Called for every &lt;create&gt;, &lt;modify&gt; and &lt;delete&gt; element of an
+		 * osmChange file, the elements that follow are subject to the given action.
+		 * @param action one of CREATE_ACTION, MODIFY_ACTION and DELETE_ACTION.
+		 */
+		public default void action(int action) throws IOException {
+		}
+	}
+
+	private final Handler handler;
+
+	private final boolean parseNodes;
+	private final boolean parseWays;
+
+	private boolean inWay;
+	private boolean inDelete;
+	private long wayId;
+	private long[] refs;
+	private int refCount;
+	private final TagBuffer tags;
+
+	/*
+	 * Attributes of the last parsed element.
+	 */
+	private long attrId;
+	private double attrLat;
+	private double attrLon;
+	private long attrRef;
+	private int attrKeyStart;
+	private int attrKeyEnd;
+	private int attrValueStart;
+	private int attrValueEnd;
+
+	private long parsedNodes;
+	private long parsedWays;
+	private long parsedNds;
+	private long parsedTags;
+
+	public OsmXmlParser(Handler handler) {
+		this(handler, true, true);
+	}
+
+	/**
+	 * Creates a parser that only decodes some kinds of elements, the others are
+	 * recognized and skipped.
+	 * @param parseNodes if false the handler is not notified of the nodes.
+	 * @param parseWays if false the handler is not notified of the ways.
+	 */
+	public OsmXmlParser(Handler handler, boolean parseNodes, boolean parseWays) {
+		super();
+		this.handler = handler;
+		this.parseNodes = parseNodes;
+		this.parseWays = parseWays;
+		this.refs = new long[256];
+		this.tags = new TagBuffer();
+	}
+
+	/**
+	 * Parses every complete element contained in buf between from (inclusive) and to (exclusive).
+	 * @return the index of the first byte that was not consumed, that is the beginning of an
+	 * element that is not complete in the given range, or to.
+	 * @throws IOException if the handler fails.
+	 */
+	public int parse(ByteBuffer buf, int from, int to) throws IOException {
+		int i = from;
+		while(true) {
+			int lt = indexOf(buf, LT, i, to);
+			if(lt == -1) {
+				return to;
+			}
+			int gt = endOfElement(buf, lt + 1, to);
+			if(gt == -1) {
+				return lt;
+			}
+			handleElement(buf, lt + 1, gt);
+			i = gt + 1;
+		}
+	}
+
+	/**
+	 * Parses all the elements read from in, one buffer at a time; the incomplete element at
+	 * the end of a buffer is moved to the beginning of the next one.
+	 * @throws IOException if in or the handler fail.
+	 */
+	public void parse(InputStream in) throws IOException {
+		byte[] window = new byte[STREAM_BUFFER_SIZE];
+		ByteBuffer buf = ByteBuffer.wrap(window);
+		int length = 0;
+		int n;
+		while((n = in.read(window, length, window.length - length)) != -1) {
+			length += n;
+			int consumed = parse(buf, 0, length);
+			if(consumed == 0 && length == window.length) {
+				/*
+				 * An element larger than the window.
+				 */
+				window = Arrays.copyOf(window, window.length * 2);
+				buf = ByteBuffer.wrap(window);
+			}else {
+				System.arraycopy(window, consumed, window, 0, length - consumed);
+				length -= consumed;
+			}
+		}
+		parse(buf, 0, length);
+	}
+
+	private void handleElement(ByteBuffer buf, int begin, int end) throws IOException {
+		byte first = buf.get(begin);
+		if(first == SLASH) {
+			if(nameIs(buf, begin + 1, end, WAY)) {
+				closeWay();
+			}
+			return;
+		}
+		boolean selfClosing = buf.get(end - 1) == SLASH;
+		if(nameIs(buf, begin, end, NODE)) {
+			if(parseNodes) {
+				resetAttributes();
+				parseAttributes(buf, begin + NODE.length, end);
+				if(inDelete || (!Double.isNaN(attrLat) && !Double.isNaN(attrLon))) {
+					handler.node(attrId, attrLat, attrLon);
+					parsedNodes++;
+				}
+			}
+		}else if(nameIs(buf, begin, end, WAY)) {
+			if(!parseWays) {
+				inWay = false;
+				return;
+			}
+			resetAttributes();
+			parseAttributes(buf, begin + WAY.length, end);
+			inWay = true;
+			wayId = attrId;
+			refCount = 0;
+			tags.clear();
+			parsedWays++;
+			if(selfClosing) {
+				closeWay();
+			}
+		}else if(nameIs(buf, begin, end, ND)) {
+			if(inWay) {
+				parseAttributes(buf, begin + ND.length, end);
+				if(refCount == refs.length) {
+					long[] tmp = new long[refs.length * 2];
+					System.arraycopy(refs, 0, tmp, 0, refCount);
+					refs = tmp;
+				}
+				refs[refCount++] = attrRef;
+				parsedNds++;
+			}
+		}else if(nameIs(buf, begin, end, TAG)) {
+			if(inWay) {
+				attrKeyStart = -1;
+				attrValueStart = -1;
+				parseAttributes(buf, begin + TAG.length, end);
+				if(attrKeyStart != -1 && attrValueStart != -1) {
+					tags.add(buf, attrKeyStart, attrKeyEnd, attrValueStart, attrValueEnd);
+					parsedTags++;
+				}
+			}
+		}else if(nameIs(buf, begin, end, CREATE)) {
+			inWay = false;
+			inDelete = false;
+			handler.action(CREATE_ACTION);
+		}else if(nameIs(buf, begin, end, MODIFY)) {
+			inWay = false;
+			inDelete = false;
+			handler.action(MODIFY_ACTION);
+		}else if(nameIs(buf, begin, end, DELETE)) {
+			inWay = false;
+			inDelete = true;
+			handler.action(DELETE_ACTION);
+		}else if(first != '?' && first != '!') {
+			/*
+			 * Any other element (relation, member, bounds...) ends the scope of a way.
+			 */
+			inWay = false;
+		}
+	}
+
+	private void closeWay() throws IOException {
+		if(inWay) {
+			handler.way(wayId, refs, refCount, tags);
+		}
+		inWay = false;
+		refCount = 0;
+		tags.clear();
+	}
+
+	/**
+	 * Forgets the attributes of the previous element, which an element may lack.
+	 */
+	private void resetAttributes() {
+		attrId = -1;
+		attrLat = Double.NaN;
+		attrLon = Double.NaN;
+	}
+
+	/**
+	 * Reads the attributes between from and to and stores the ones of interest.
+	 */
+	private void parseAttributes(ByteBuffer buf, int from, int to) {
+		int i = from;
+		while(i < to) {
+			byte c = buf.get(i);
+			if(c <= ' ' || c == SLASH) {
+				i++;
+				continue;
+			}
+			int nameStart = i;
+			while(i < to && buf.get(i) != EQUAL_SIGN && buf.get(i) > ' ') {
+				i++;
+			}
+			int nameEnd = i;
+			while(i < to && buf.get(i) != QUOTES && buf.get(i) != APOSTROPHE) {
+				i++;
+			}
+			if(i >= to) {
+				return;
+			}
+			byte quote = buf.get(i);
+			int valueStart = ++i;
+			while(i < to && buf.get(i) != quote) {
+				i++;
+			}
+			int valueEnd = i++;
+			int nameLength = nameEnd - nameStart;
+			if(nameLength == 2 && nameIs(buf, nameStart, nameEnd, ID)) {
+				attrId = parseLong(buf, valueStart, valueEnd);
+			}else if(nameLength == 3 && nameIs(buf, nameStart, nameEnd, LAT)) {
+				attrLat = parseDouble(buf, valueStart, valueEnd);
+			}else if(nameLength == 3 && nameIs(buf, nameStart, nameEnd, LON)) {
+				attrLon = parseDouble(buf, valueStart, valueEnd);
+			}else if(nameLength == 3 && nameIs(buf, nameStart, nameEnd, REF)) {
+				attrRef = parseLong(buf, valueStart, valueEnd);
+			}else if(nameLength == 1 && nameIs(buf, nameStart, nameEnd, K)) {
+				attrKeyStart = valueStart;
+				attrKeyEnd = valueEnd;
+			}else if(nameLength == 1 && nameIs(buf, nameStart, nameEnd, V)) {
+				attrValueStart = valueStart;
+				attrValueEnd = valueEnd;
+			}
+		}
+	}
+
+	/**
+	 * Checks if the bytes starting at from match name and are followed by a delimiter.
+	 */
+	private static boolean nameIs(ByteBuffer buf, int from, int to, byte[] name) {
+		if(to - from < name.length) {
+			return false;
+		}
+		for(int i = 0; i < name.length; i++) {
+			if(buf.get(from + i) != name[i]) {
+				return false;
+			}
+		}
+		if(from + name.length == to) {
+			return true;
+		}
+		byte next = buf.get(from + name.length);
+		return next <= ' ' || next == SLASH || next == EQUAL_SIGN;
+	}
+
+	/**
+	 * Finds the beginning of the first node, way or relation element between from and to.
+	 * Since attribute values cannot contain a raw &lt;, the parsing of a file can safely
+	 * begin from any of these positions.
+	 * @return the index of the &lt; of the element, or -1.
+	 */
+	public static int findElementStart(ByteBuffer buf, int from, int to) {
+		int i = from;
+		while(true) {
+			int lt = indexOf(buf, LT, i, to);
+			if(lt == -1 || lt + RELATION.length + 1 >= to) {
+				return -1;
+			}
+			if(nameIs(buf, lt + 1, to, NODE) || nameIs(buf, lt + 1, to, WAY) || nameIs(buf, lt + 1, to, RELATION)) {
+				return lt;
+			}
+			i = lt + 1;
+		}
+	}
+
+	private static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(buf.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the closing &gt; of an element, skipping the ones inside quoted attribute values.
+	 */
+	private static int endOfElement(ByteBuffer buf, int from, int to) {
+		byte quote = 0;
+		for(int i = from; i < to; i++) {
+			byte c = buf.get(i);
+			if(quote != 0) {
+				if(c == quote) {
+					quote = 0;
+				}
+			}else if(c == QUOTES || c == APOSTROPHE) {
+				quote = c;
+			}else if(c == GT) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static long parseLong(ByteBuffer buf, int from, int to) {
+		long res = 0;
+		boolean negative = false;
+		for(int i = from; i < to; i++) {
+			byte c = buf.get(i);
+			if(c == '-') {
+				negative = true;
+			}else if(c >= '0' && c <= '9') {
+				res = res * 10 + (c - '0');
+			}
+		}
+		return negative ? -res : res;
+	}
+
+	/**
+	 * Parses a decimal number without creating a String.
+	 * As long as the mantissa and the power of ten are exactly representable as doubles
+	 * the single division gives the same correctly rounded result of {@link Double#parseDouble(String)},
+	 * otherwise it falls back to it.
+	 */
+	static double parseDouble(ByteBuffer buf, int from, int to) {
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean negative = false;
+		boolean afterDot = false;
+		for(int i = from; i < to; i++) {
+			byte c = buf.get(i);
+			if(c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				if(mantissa != 0) {
+					digits++;
+				}
+				if(afterDot) {
+					scale++;
+				}
+			}else if(c == '.') {
+				afterDot = true;
+			}else if(c == '-' && i == from) {
+				negative = true;
+			}else if(c != '+' || i != from) {
+				return slowParseDouble(buf, from, to);
+			}
+		}
+		if(digits > 15 || scale >= POWERS_OF_TEN.length) {
+			return slowParseDouble(buf, from, to);
+		}
+		double res = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -res : res;
+	}
+
+	private static double slowParseDouble(ByteBuffer buf, int from, int to) {
+		byte[] tmp = new byte[to - from];
+		for(int i = from; i < to; i++) {
+			tmp[i - from] = buf.get(i);
+		}
+		return Double.parseDouble(new String(tmp, StandardCharsets.US_ASCII).trim());
+	}
+
+	public String printStats() {
+		return "Read nodes: " + parsedNodes + "\n"
+				+ "ways: " + parsedWays + "\n"
+				+ "nd: " + parsedNds + "\n"
+				+ "tags: " + parsedTags + "\n";
+	}
+
+	/**
+	 * The tags of the way currently being read, stored as raw UTF-8 bytes in a single
+	 * reusable array.
+	 */
+	public static class TagBuffer {
+
+		private byte[] bytes;
+		private int[] bounds;
+		private int length;
+		private int count;
+
+		private TagBuffer() {
+			this.bytes = new byte[1024];
+			this.bounds = new int[64];
+		}
+
+		private void clear() {
+			this.length = 0;
+			this.count = 0;
+		}
+
+		private void add(ByteBuffer buf, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+			int needed = length + (keyEnd - keyStart) + (valueEnd - valueStart);
+			if(needed > bytes.length) {
+				byte[] tmp = new byte[Math.max(needed, bytes.length * 2)];
+				System.arraycopy(bytes, 0, tmp, 0, length);
+				bytes = tmp;
+			}
+			if((count + 1) * 4 > bounds.length) {
+				int[] tmp = new int[bounds.length * 2];
+				System.arraycopy(bounds, 0, tmp, 0, count * 4);
+				bounds = tmp;
+			}
+			int b = count * 4;
+			bounds[b] = length;
+			length = copy(buf, keyStart, keyEnd, length);
+			bounds[b + 1] = length;
+			bounds[b + 2] = length;
+			length = copy(buf, valueStart, valueEnd, length);
+			bounds[b + 3] = length;
+			count++;
+		}
+
+		private int copy(ByteBuffer buf, int from, int to, int at) {
+			for(int i = from; i < to; i++) {
+				bytes[at++] = buf.get(i);
+			}
+			return at;
+		}
+
+		/**
+		 * @return the number of tags.
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Checks if one of the tags has the given key, without decoding it.
+		 * @param key the key, encoded in UTF-8.
+		 */
+		public boolean containsKey(byte[] key) {
+			for(int t = 0; t < count; t++) {
+				int from = bounds[t * 4];
+				int to = bounds[t * 4 + 1];
+				if(to - from == key.length) {
+					int i = 0;
+					while(i < key.length && bytes[from + i] == key[i]) {
+						i++;
+					}
+					if(i == key.length) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		public String getKey(int index) {
+			return new String(bytes, bounds[index * 4], bounds[index * 4 + 1] - bounds[index * 4], StandardCharsets.UTF_8);
+		}
+
+		public String getValue(int index) {
+			return new String(bytes, bounds[index * 4 + 2], bounds[index * 4 + 3] - bounds[index * 4 + 2], StandardCharsets.UTF_8);
+		}
+	}
+}
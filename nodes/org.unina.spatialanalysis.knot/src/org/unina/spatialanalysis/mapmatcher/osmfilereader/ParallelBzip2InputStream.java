@@ -0,0 +1,360 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * An input stream decompressing bzip2 data with several threads, as pbzip2 does.
+ * bzip2 compresses its input in independent blocks, each one beginning with a 48 bit magic
+ * number that is not aligned to bytes. The compressed data is scanned for the magic numbers,
+ * and each block is wrapped in a bzip2 stream of its own that is decompressed by a pool of
+ * threads, while the decompressed blocks are returned in order. At most a couple of blocks
+ * per thread are pending at any time. Concatenated streams, as written by pbzip2, are supported.
+ *
+ * The magic number may also appear by chance inside a block: the two parts then fail to
+ * decompress and are decompressed again as a whole.
+ * @author sinog
+ *
+ */
+public class ParallelBzip2InputStream extends InputStream {
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+	private static final long MAGIC_MASK = (1L << 48) - 1;
+
+	/*
+	 * Level 9 allows the largest blocks, so it can wrap a block of any level.
+	 */
+	private static final byte[] STREAM_HEADER = {'B', 'Z', 'h', '9'};
+
+	private static final int READ_SIZE = 1 << 20;
+
+	/**
+	 * The maximum number of consecutive parts merged to recover a block split by chance.
+	 */
+	private static final int MAX_MERGED_PIECES = 8;
+
+	/*
+	 * For each byte value, the bit shifts at which it is the second byte of a magic number,
+	 * which is always entirely made of magic number bits.
+	 */
+	private static final int[] CANDIDATE_SHIFTS = new int[256];
+
+	static {
+		for(int s = 0; s < 8; s++) {
+			CANDIDATE_SHIFTS[(int) (BLOCK_MAGIC >>> (32 + s)) & 0xFF] |= 1 << s;
+			CANDIDATE_SHIFTS[(int) (END_OF_STREAM_MAGIC >>> (32 + s)) & 0xFF] |= 1 << s;
+		}
+	}
+
+	private final InputStream in;
+
+	private final ExecutorService decoders;
+
+	private final int maxPending;
+
+	private final ArrayDeque<Piece> pending = new ArrayDeque<Piece>();
+
+	/*
+	 * The compressed data from the beginning of the current piece on; positions are in bits.
+	 */
+	private byte[] buffer = new byte[READ_SIZE * 2];
+	private int length;
+	private long pieceStart = -1;
+	private boolean pieceIsBlock;
+	private int scan = 1;
+	private boolean foundBlockMagic;
+	private boolean endOfInput;
+
+	private byte[] current = new byte[0];
+	private int position;
+
+	/**
+	 * @param in the bzip2 compressed data, closed with this stream.
+	 * @param threads the number of threads decompressing the blocks.
+	 * @throws IOException if in does not begin with a bzip2 stream header.
+	 */
+	public ParallelBzip2InputStream(InputStream in, int threads) throws IOException {
+		super();
+		this.in = in;
+		this.maxPending = Math.max(1, threads) * 2;
+		while(length < 3 && fill()) {
+		}
+		if(length < 3 || buffer[0] != 'B' || buffer[1] != 'Z' || buffer[2] != 'h') {
+			throw new IOException("Not a bzip2 stream");
+		}
+		this.decoders = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread t = new Thread(r, "KNOT bzip2 decoder");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		while(position == current.length) {
+			if(!nextBlock()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		decoders.shutdownNow();
+		pending.clear();
+		in.close();
+	}
+
+	private boolean nextBlock() throws IOException {
+		fillPending();
+		Piece piece = pending.poll();
+		if(piece == null) {
+			return false;
+		}
+		try {
+			current = piece.decoded.get();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decompressing", e);
+		}catch(ExecutionException e) {
+			current = recover(piece, e.getCause());
+		}
+		position = 0;
+		return true;
+	}
+
+	/**
+	 * Merges the piece that failed to decompress with the following ones until they
+	 * decompress as a whole.
+	 */
+	private byte[] recover(Piece piece, Throwable cause) throws IOException {
+		Piece merged = piece;
+		for(int i = 0; i < MAX_MERGED_PIECES; i++) {
+			fillPending();
+			Piece next = pending.poll();
+			if(next == null) {
+				break;
+			}
+			next.decoded.cancel(false);
+			merged = merged.append(next);
+			try {
+				return decode(merged);
+			}catch(IOException e) {
+				/*
+				 * The block may have been split more than once.
+				 */
+			}
+		}
+		throw new IOException("Corrupted bzip2 block", cause);
+	}
+
+	/**
+	 * Cuts the compressed data in pieces, each one beginning at a magic number, and submits
+	 * them for decompression until enough of them are pending.
+	 */
+	private void fillPending() throws IOException {
+		while(!endOfInput && pending.size() < maxPending) {
+			long end = nextMagic();
+			if(pieceStart >= 0) {
+				long stop = end == -1 ? length * 8L : end;
+				Piece piece = new Piece(copyBits(buffer, pieceStart, stop - pieceStart), stop - pieceStart, pieceIsBlock);
+				piece.decoded = decoders.submit(() -> decode(piece));
+				pending.add(piece);
+			}
+			if(end == -1) {
+				endOfInput = true;
+			}else {
+				pieceStart = end;
+				pieceIsBlock = foundBlockMagic;
+			}
+		}
+	}
+
+	/**
+	 * @return the bit position in buffer of the first magic number after the beginning of
+	 * the current piece, or -1 if there is none before the end of the input.
+	 */
+	private long nextMagic() throws IOException {
+		while(true) {
+			for(; scan + 7 < length; scan++) {
+				int shifts = CANDIDATE_SHIFTS[buffer[scan] & 0xFF];
+				if(shifts == 0) {
+					continue;
+				}
+				long word = 0;
+				for(int i = scan - 1; i < scan + 7; i++) {
+					word = (word << 8) | (buffer[i] & 0xFF);
+				}
+				for(int s = 0; s < 8; s++) {
+					if((shifts & (1 << s)) == 0) {
+						continue;
+					}
+					long magic = (word >>> (16 - s)) & MAGIC_MASK;
+					long found = (scan - 1) * 8L + s;
+					if(found > pieceStart && (magic == BLOCK_MAGIC || magic == END_OF_STREAM_MAGIC)) {
+						foundBlockMagic = magic == BLOCK_MAGIC;
+						return found;
+					}
+				}
+			}
+			if(!fill()) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Reads more compressed data, dropping the bytes before the current piece.
+	 * @return false at the end of the input.
+	 */
+	private boolean fill() throws IOException {
+		if(pieceStart > 0) {
+			int drop = (int) (pieceStart >>> 3);
+			System.arraycopy(buffer, drop, buffer, 0, length - drop);
+			length -= drop;
+			pieceStart -= drop * 8L;
+			scan -= drop;
+		}
+		if(length + READ_SIZE > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + READ_SIZE));
+		}
+		int n = in.read(buffer, length, READ_SIZE);
+		if(n == -1) {
+			return false;
+		}
+		length += n;
+		return true;
+	}
+
+	/**
+	 * Decompresses a piece wrapping it in a bzip2 stream: the header, the block, the end of
+	 * stream magic number and the stream CRC, that for a single block is the CRC of the block.
+	 */
+	private static byte[] decode(Piece piece) throws IOException {
+		if(!piece.block) {
+			return new byte[0];
+		}
+		if(piece.bitCount < 48 + 32) {
+			throw new IOException("Truncated bzip2 block");
+		}
+		BitWriter stream = new BitWriter(STREAM_HEADER.length * 8L + piece.bitCount + 48 + 32);
+		stream.write(STREAM_HEADER, STREAM_HEADER.length * 8L);
+		stream.write(piece.bits, piece.bitCount);
+		stream.writeBits(END_OF_STREAM_MAGIC, 48);
+		stream.writeBits(readBits(piece.bits, 48, 32), 32);
+		try(InputStream block = new BZip2CompressorInputStream(new ByteArrayInputStream(stream.out))){
+			return block.readAllBytes();
+		}
+	}
+
+	private static long readBits(byte[] bits, long from, int count) {
+		long res = 0;
+		for(long i = from; i < from + count; i++) {
+			res = (res << 1) | ((bits[(int) (i >>> 3)] >>> (7 - (i & 7))) & 1);
+		}
+		return res;
+	}
+
+	/**
+	 * @return the count bits of src beginning at bit fromBit, aligned to the first bit of the result.
+	 */
+	private static byte[] copyBits(byte[] src, long fromBit, long count) {
+		byte[] res = new byte[(int) ((count + 7) >>> 3)];
+		int from = (int) (fromBit >>> 3);
+		int shift = (int) (fromBit & 7);
+		for(int i = 0; i < res.length; i++) {
+			int high = src[from + i] & 0xFF;
+			int low = from + i + 1 < src.length ? src[from + i + 1] & 0xFF : 0;
+			res[i] = (byte) (((high << 8) | low) >>> (8 - shift));
+		}
+		if((count & 7) != 0) {
+			res[res.length - 1] &= 0xFF << (8 - (count & 7));
+		}
+		return res;
+	}
+
+	/**
+	 * A part of the compressed data beginning at a magic number.
+	 */
+	private static class Piece {
+
+		private final byte[] bits;
+
+		private final long bitCount;
+
+		/*
+		 * False for the end of a stream, which decompresses to nothing.
+		 */
+		private final boolean block;
+
+		private Future<byte[]> decoded;
+
+		private Piece(byte[] bits, long bitCount, boolean block) {
+			this.bits = bits;
+			this.bitCount = bitCount;
+			this.block = block;
+		}
+
+		private Piece append(Piece next) {
+			BitWriter res = new BitWriter(bitCount + next.bitCount);
+			res.write(bits, bitCount);
+			res.write(next.bits, next.bitCount);
+			return new Piece(res.out, bitCount + next.bitCount, block);
+		}
+	}
+
+	private static class BitWriter {
+
+		private final byte[] out;
+
+		private long bit;
+
+		private BitWriter(long bits) {
+			this.out = new byte[(int) ((bits + 7) >>> 3)];
+		}
+
+		private void write(byte[] bits, long count) {
+			if((bit & 7) == 0) {
+				System.arraycopy(bits, 0, out, (int) (bit >>> 3), (int) ((count + 7) >>> 3));
+				bit += count;
+				return;
+			}
+			for(long i = 0; i < count; i += 8) {
+				int n = (int) Math.min(8, count - i);
+				writeBits((bits[(int) (i >>> 3)] & 0xFF) >>> (8 - n), n);
+			}
+		}
+
+		private void writeBits(long value, int count) {
+			for(int i = count - 1; i >= 0; i--) {
+				if(((value >>> i) & 1) != 0) {
+					out[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+				}
+				bit++;
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream reading another one ahead in a thread of its own, so that for example
+ * decompressing a file overlaps with parsing it. At most maxChunks chunks are read ahead.
+ * @author sinog
+ *
+ */
+class ReadAheadInputStream extends InputStream {
+
+	private static final byte[] END = new byte[0];
+
+	private final InputStream in;
+
+	private final BlockingQueue<byte[]> chunks;
+
+	private final Thread reader;
+
+	private volatile IOException failure;
+
+	private byte[] current = new byte[0];
+
+	private int position;
+
+	ReadAheadInputStream(InputStream in, int chunkSize, int maxChunks) {
+		super();
+		this.in = in;
+		this.chunks = new ArrayBlockingQueue<byte[]>(maxChunks);
+		this.reader = new Thread(() -> readAhead(chunkSize), "KNOT read ahead");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void readAhead(int chunkSize) {
+		try {
+			try {
+				while(true) {
+					byte[] chunk = new byte[chunkSize];
+					int n = in.readNBytes(chunk, 0, chunkSize);
+					if(n == 0) {
+						break;
+					}
+					chunks.put(n == chunkSize ? chunk : Arrays.copyOf(chunk, n));
+				}
+			}catch(IOException e) {
+				failure = e;
+			}
+			chunks.put(END);
+		}catch(InterruptedException e) {
+			/*
+			 * The stream has been closed.
+			 */
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(current == END) {
+			return -1;
+		}
+		if(position == current.length) {
+			try {
+				current = chunks.take();
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading", e);
+			}
+			position = 0;
+			if(current == END) {
+				if(failure != null) {
+					throw failure;
+				}
+				return -1;
+			}
+		}
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.interrupt();
+		in.close();
+	}
+}
@@ -0,0 +1,176 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader.pbf;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmDataChunk;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmLoadOptions;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmReader;
+
+/**
+ * A reader for OSM files in the PBF format (.osm.pbf).
+ * The file is read sequentially, one fileblock at a time, while the fileblocks are
+ * decompressed and decoded by a pool of worker threads. The nodes of the decoded blocks are
+ * added to the OsmDataManager in the same order they have in the file, the ways once all
+ * the blocks have been decoded.
+ * @author sinog
+ *
+ */
+public class OsmPbfReader implements OsmReader {
+
+	private static final String OSM_HEADER = "OSMHeader";
+	private static final String OSM_DATA = "OSMData";
+
+	private static final int BLOB_HEADER_TYPE = 1;
+	private static final int BLOB_HEADER_DATASIZE = 3;
+	private static final int HEADER_REQUIRED_FEATURES = 4;
+
+	private static final int MAX_BLOB_HEADER_SIZE = 64 * 1024;
+	private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+	private static final List<String> SUPPORTED_FEATURES = List.of("OsmSchema-V0.6", "DenseNodes");
+
+	private final File osmFile;
+
+	private final OsmLoadOptions options;
+
+	private final int threads;
+
+	public OsmPbfReader(File osmFile) {
+		this(osmFile, OsmLoadOptions.DEFAULT);
+	}
+
+	public OsmPbfReader(File osmFile, OsmLoadOptions options) {
+		this(osmFile, options, Runtime.getRuntime().availableProcessors());
+	}
+
+	public OsmPbfReader(File osmFile, OsmLoadOptions options, int threads) {
+		super();
+		this.osmFile = osmFile;
+		this.options = options;
+		this.threads = Math.max(1, threads);
+	}
+
+	@Override
+	public OsmDataManager readOsmFile() throws IOException {
+		OsmDataManager res = new OsmDataManager(options.getTagKeys(), options.isHighwayNodesOnly(), options.getClipRegion());
+		LocalDateTime begin = LocalDateTime.now();
+		long blocks = 0;
+		ExecutorService decoders = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "KNOT PBF decoder");
+			t.setDaemon(true);
+			return t;
+		});
+		/*
+		 * At most a couple of blocks per thread are kept in memory while waiting
+		 * for the oldest one to be added to the result.
+		 */
+		int maxPending = threads * 2;
+		ArrayDeque<Future<OsmDataChunk>> pending = new ArrayDeque<Future<OsmDataChunk>>();
+		List<OsmDataChunk> wayChunks = new ArrayList<OsmDataChunk>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(osmFile), 1 << 16))){
+			while(true) {
+				int headerSize;
+				try {
+					headerSize = in.readInt();
+				}catch(EOFException e) {
+					break;
+				}
+				if(headerSize < 0 || headerSize > MAX_BLOB_HEADER_SIZE) {
+					throw new IOException("Invalid blob header size " + headerSize);
+				}
+				byte[] header = new byte[headerSize];
+				in.readFully(header);
+				String type = null;
+				int dataSize = -1;
+				ProtobufReader reader = new ProtobufReader(header, 0, header.length);
+				while(reader.next()) {
+					if(reader.getFieldNumber() == BLOB_HEADER_TYPE) {
+						type = reader.readString();
+					}else if(reader.getFieldNumber() == BLOB_HEADER_DATASIZE) {
+						dataSize = (int) reader.readVarint();
+					}else {
+						reader.skip();
+					}
+				}
+				if(dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+					throw new IOException("Invalid blob size " + dataSize);
+				}
+				byte[] blob = new byte[dataSize];
+				in.readFully(blob);
+				if(OSM_HEADER.equals(type)) {
+					checkRequiredFeatures(PbfBlock.inflate(blob));
+				}else if(OSM_DATA.equals(type)) {
+					pending.add(decoders.submit(() -> PbfBlock.decode(blob)));
+					blocks++;
+					while(pending.size() >= maxPending) {
+						addBlock(res, pending.poll(), wayChunks);
+					}
+				}
+			}
+			while(!pending.isEmpty()) {
+				addBlock(res, pending.poll(), wayChunks);
+			}
+			/*
+			 * Ways are added once every node is known.
+			 */
+			for(OsmDataChunk chunk: wayChunks) {
+				chunk.addWaysTo(res);
+			}
+		}finally {
+			decoders.shutdownNow();
+		}
+		System.out.println("Finished Reading " + osmFile.getName() + " :\n"
+				+ "Read blocks: " + blocks + " with " + threads + " threads\n"
+				+ res.printStats()
+				+ " begin at " + begin.toString() + "\n"
+				+ "finish at: " + LocalDateTime.now().toString() + ".");
+		return res;
+	}
+
+	private void checkRequiredFeatures(byte[] headerBlock) throws IOException {
+		ProtobufReader reader = new ProtobufReader(headerBlock, 0, headerBlock.length);
+		while(reader.next()) {
+			if(reader.getFieldNumber() == HEADER_REQUIRED_FEATURES) {
+				String feature = reader.readString();
+				if(!SUPPORTED_FEATURES.contains(feature)) {
+					throw new IOException("The PBF file requires the unsupported feature " + feature);
+				}
+			}else {
+				reader.skip();
+			}
+		}
+	}
+
+	private void addBlock(OsmDataManager res, Future<OsmDataChunk> future, List<OsmDataChunk> wayChunks) throws IOException {
+		OsmDataChunk chunk;
+		try {
+			chunk = future.get();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decoding " + osmFile.getName(), e);
+		}catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not decode " + osmFile.getName(), e.getCause());
+		}
+		chunk.addNodesTo(res);
+		if(chunk.getWayCount() > 0) {
+			wayChunks.add(chunk);
+		}
+	}
+}
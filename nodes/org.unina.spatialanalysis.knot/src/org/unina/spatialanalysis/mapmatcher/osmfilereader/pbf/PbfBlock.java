@@ -0,0 +1,383 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader.pbf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmDataChunk;
+
+/**
+ * The decoder of a single OSMData fileblock, filling an @see OsmDataChunk.
+ * Only the nodes and the ways tagged as highway are kept, tags are decoded only
+ * for the latter.
+ * Blocks are independent from each other, so they can be decoded concurrently.
+ * @author sinog
+ *
+ */
+public class PbfBlock {
+
+	private static final byte[] HIGHWAY = {'h','i','g','h','w','a','y'};
+
+	/*
+	 * Blob fields.
+	 */
+	private static final int BLOB_RAW = 1;
+	private static final int BLOB_RAW_SIZE = 2;
+	private static final int BLOB_ZLIB_DATA = 3;
+
+	/*
+	 * PrimitiveBlock fields.
+	 */
+	private static final int BLOCK_STRINGTABLE = 1;
+	private static final int BLOCK_PRIMITIVEGROUP = 2;
+	private static final int BLOCK_GRANULARITY = 17;
+	private static final int BLOCK_LAT_OFFSET = 19;
+	private static final int BLOCK_LON_OFFSET = 20;
+
+	private static final int STRINGTABLE_S = 1;
+
+	/*
+	 * PrimitiveGroup fields.
+	 */
+	private static final int GROUP_NODES = 1;
+	private static final int GROUP_DENSE = 2;
+	private static final int GROUP_WAYS = 3;
+
+	/*
+	 * Node, DenseNodes and Way fields.
+	 */
+	private static final int ID = 1;
+	private static final int KEYS = 2;
+	private static final int VALS = 3;
+	private static final int LAT = 8;
+	private static final int LON = 9;
+	private static final int REFS = 8;
+
+	private final OsmDataChunk chunk = new OsmDataChunk();
+
+	/*
+	 * Block level decoding state.
+	 */
+	private byte[] data;
+	private int[] stringStart = new int[0];
+	private int[] stringEnd = new int[0];
+	private String[] strings = new String[0];
+	private int highwayIndex = -1;
+	private long granularity = 100;
+	private long latOffset = 0;
+	private long lonOffset = 0;
+
+	private PbfBlock() {
+	}
+
+	/**
+	 * Decompresses and decodes a Blob containing an OSMData PrimitiveBlock.
+	 */
+	public static OsmDataChunk decode(byte[] blob) throws IOException {
+		PbfBlock decoder = new PbfBlock();
+		decoder.decodeBlock(inflate(blob));
+		return decoder.chunk;
+	}
+
+	/**
+	 * Extracts the uncompressed content of a Blob message.
+	 */
+	public static byte[] inflate(byte[] blob) throws IOException {
+		ProtobufReader reader = new ProtobufReader(blob, 0, blob.length);
+		int rawSize = -1;
+		int zlibStart = -1;
+		int zlibEnd = -1;
+		while(reader.next()) {
+			switch(reader.getFieldNumber()) {
+				case BLOB_RAW: {
+					int end = reader.readLengthDelimited();
+					return Arrays.copyOfRange(blob, reader.getPosition(), end);
+				}
+				case BLOB_RAW_SIZE:
+					rawSize = (int) reader.readVarint();
+					break;
+				case BLOB_ZLIB_DATA:
+					zlibEnd = reader.readLengthDelimited();
+					zlibStart = reader.getPosition();
+					reader.setPosition(zlibEnd);
+					break;
+				default:
+					if(reader.getWireType() == ProtobufReader.LENGTH_DELIMITED) {
+						throw new IOException("Unsupported blob compression (field " + reader.getFieldNumber() + ")");
+					}
+					reader.skip();
+			}
+		}
+		if(zlibStart == -1 || rawSize < 0) {
+			throw new IOException("Empty blob");
+		}
+		byte[] res = new byte[rawSize];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(blob, zlibStart, zlibEnd - zlibStart);
+			int inflated = 0;
+			while(inflated < rawSize && !inflater.finished()) {
+				int n = inflater.inflate(res, inflated, rawSize - inflated);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if(inflated != rawSize) {
+				throw new IOException("Corrupted blob: expected " + rawSize + " bytes, got " + inflated);
+			}
+		}catch(DataFormatException e) {
+			throw new IOException("Corrupted blob", e);
+		}finally {
+			inflater.end();
+		}
+		return res;
+	}
+
+	private void decodeBlock(byte[] block) throws IOException {
+		this.data = block;
+		ProtobufReader reader = new ProtobufReader(block, 0, block.length);
+		int[] groups = new int[16];
+		int groupCount = 0;
+		/*
+		 * Granularity and offsets follow the groups on the wire, so groups are decoded in a second pass.
+		 */
+		while(reader.next()) {
+			switch(reader.getFieldNumber()) {
+				case BLOCK_STRINGTABLE: {
+					int end = reader.readLengthDelimited();
+					readStringTable(reader.getPosition(), end);
+					reader.setPosition(end);
+					break;
+				}
+				case BLOCK_PRIMITIVEGROUP: {
+					int end = reader.readLengthDelimited();
+					if(groupCount * 2 == groups.length) {
+						groups = Arrays.copyOf(groups, groups.length * 2);
+					}
+					groups[groupCount * 2] = reader.getPosition();
+					groups[groupCount * 2 + 1] = end;
+					groupCount++;
+					reader.setPosition(end);
+					break;
+				}
+				case BLOCK_GRANULARITY:
+					granularity = reader.readVarint();
+					break;
+				case BLOCK_LAT_OFFSET:
+					latOffset = reader.readVarint();
+					break;
+				case BLOCK_LON_OFFSET:
+					lonOffset = reader.readVarint();
+					break;
+				default:
+					reader.skip();
+			}
+		}
+		ProtobufReader group = new ProtobufReader(block, 0, 0);
+		ProtobufReader element = new ProtobufReader(block, 0, 0);
+		for(int g = 0; g < groupCount; g++) {
+			group.reset(block, groups[g * 2], groups[g * 2 + 1]);
+			while(group.next()) {
+				switch(group.getFieldNumber()) {
+					case GROUP_NODES: {
+						int end = group.readLengthDelimited();
+						element.reset(block, group.getPosition(), end);
+						readNode(element);
+						group.setPosition(end);
+						break;
+					}
+					case GROUP_DENSE: {
+						int end = group.readLengthDelimited();
+						element.reset(block, group.getPosition(), end);
+						readDenseNodes(element);
+						group.setPosition(end);
+						break;
+					}
+					case GROUP_WAYS: {
+						int end = group.readLengthDelimited();
+						element.reset(block, group.getPosition(), end);
+						readWay(element);
+						group.setPosition(end);
+						break;
+					}
+					default:
+						group.skip();
+				}
+			}
+		}
+	}
+
+	private void readStringTable(int from, int to) throws IOException {
+		ProtobufReader reader = new ProtobufReader(data, from, to);
+		int count = 0;
+		while(reader.next()) {
+			if(reader.getFieldNumber() == STRINGTABLE_S) {
+				int end = reader.readLengthDelimited();
+				if(count == stringStart.length) {
+					stringStart = Arrays.copyOf(stringStart, Math.max(16, count * 2));
+					stringEnd = Arrays.copyOf(stringEnd, stringStart.length);
+				}
+				stringStart[count] = reader.getPosition();
+				stringEnd[count] = end;
+				if(highwayIndex == -1 && equalsAt(reader.getPosition(), end, HIGHWAY)) {
+					highwayIndex = count;
+				}
+				count++;
+				reader.setPosition(end);
+			}else {
+				reader.skip();
+			}
+		}
+		strings = new String[count];
+	}
+
+	private boolean equalsAt(int from, int to, byte[] value) {
+		if(to - from != value.length) {
+			return false;
+		}
+		for(int i = 0; i < value.length; i++) {
+			if(data[from + i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String getString(int index) throws IOException {
+		if(index < 0 || index >= strings.length) {
+			throw new IOException("String table index out of bounds: " + index);
+		}
+		if(strings[index] == null) {
+			strings[index] = new String(data, stringStart[index], stringEnd[index] - stringStart[index], StandardCharsets.UTF_8);
+		}
+		return strings[index];
+	}
+
+	private void readNode(ProtobufReader reader) throws IOException {
+		long id = 0;
+		long lat = 0;
+		long lon = 0;
+		while(reader.next()) {
+			switch(reader.getFieldNumber()) {
+				case ID:
+					id = reader.readSignedVarint();
+					break;
+				case LAT:
+					lat = reader.readSignedVarint();
+					break;
+				case LON:
+					lon = reader.readSignedVarint();
+					break;
+				default:
+					reader.skip();
+			}
+		}
+		addNode(id, lat, lon);
+	}
+
+	private void readDenseNodes(ProtobufReader reader) throws IOException {
+		int idStart = -1, idEnd = -1, latStart = -1, latEnd = -1, lonStart = -1, lonEnd = -1;
+		while(reader.next()) {
+			switch(reader.getFieldNumber()) {
+				case ID:
+					idEnd = reader.readLengthDelimited();
+					idStart = reader.getPosition();
+					reader.setPosition(idEnd);
+					break;
+				case LAT:
+					latEnd = reader.readLengthDelimited();
+					latStart = reader.getPosition();
+					reader.setPosition(latEnd);
+					break;
+				case LON:
+					lonEnd = reader.readLengthDelimited();
+					lonStart = reader.getPosition();
+					reader.setPosition(lonEnd);
+					break;
+				default:
+					reader.skip();
+			}
+		}
+		if(idStart == -1) {
+			return;
+		}
+		ProtobufReader ids = new ProtobufReader(data, idStart, idEnd);
+		ProtobufReader lats = new ProtobufReader(data, latStart, latEnd);
+		ProtobufReader lons = new ProtobufReader(data, lonStart, lonEnd);
+		long id = 0;
+		long lat = 0;
+		long lon = 0;
+		while(ids.getPosition() < idEnd) {
+			id += ids.readSignedVarint();
+			lat += lats.readSignedVarint();
+			lon += lons.readSignedVarint();
+			addNode(id, lat, lon);
+		}
+	}
+
+	private void addNode(long id, long lat, long lon) {
+		/*
+		 * The division of the exact number of nanodegrees gives the same double
+		 * that parsing the decimal representation of the XML format would.
+		 */
+		chunk.addNode(id, (latOffset + granularity * lat) / 1e9, (lonOffset + granularity * lon) / 1e9);
+	}
+
+	private void readWay(ProtobufReader reader) throws IOException {
+		long id = 0;
+		int keysStart = -1, keysEnd = -1, valsStart = -1, valsEnd = -1, refsStart = -1, refsEnd = -1;
+		while(reader.next()) {
+			switch(reader.getFieldNumber()) {
+				case ID:
+					id = reader.readVarint();
+					break;
+				case KEYS:
+					keysEnd = reader.readLengthDelimited();
+					keysStart = reader.getPosition();
+					reader.setPosition(keysEnd);
+					break;
+				case VALS:
+					valsEnd = reader.readLengthDelimited();
+					valsStart = reader.getPosition();
+					reader.setPosition(valsEnd);
+					break;
+				case REFS:
+					refsEnd = reader.readLengthDelimited();
+					refsStart = reader.getPosition();
+					reader.setPosition(refsEnd);
+					break;
+				default:
+					reader.skip();
+			}
+		}
+		if(keysStart == -1 || highwayIndex == -1) {
+			return;
+		}
+		ProtobufReader keys = new ProtobufReader(data, keysStart, keysEnd);
+		boolean highway = false;
+		while(!highway && keys.getPosition() < keysEnd) {
+			highway = keys.readVarint() == highwayIndex;
+		}
+		if(!highway) {
+			return;
+		}
+		chunk.beginWay(id);
+		keys.reset(data, keysStart, keysEnd);
+		ProtobufReader vals = new ProtobufReader(data, valsStart, valsEnd);
+		while(keys.getPosition() < keysEnd) {
+			chunk.addTag(getString((int) keys.readVarint()), getString((int) vals.readVarint()));
+		}
+		if(refsStart != -1) {
+			ProtobufReader refReader = new ProtobufReader(data, refsStart, refsEnd);
+			long ref = 0;
+			while(refReader.getPosition() < refsEnd) {
+				ref += refReader.readSignedVarint();
+				chunk.addRef(ref);
+			}
+		}
+		chunk.endWay();
+	}
+}
@@ -0,0 +1,133 @@
+package org.unina.spatialanalysis.mapmatcher.osmfilereader.pbf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal reader of the protocol buffers wire format, working on a portion of a byte array.
+ * It only supports what is needed to decode the OSM PBF messages: varints, fixed size
+ * numbers (skipped) and length delimited fields.
+ * @author sinog
+ *
+ */
+public class ProtobufReader {
+
+	public static final int VARINT = 0;
+	public static final int FIXED64 = 1;
+	public static final int LENGTH_DELIMITED = 2;
+	public static final int FIXED32 = 5;
+
+	private byte[] buf;
+	private int pos;
+	private int limit;
+
+	private int fieldNumber;
+	private int wireType;
+
+	public ProtobufReader(byte[] buf, int from, int to) {
+		reset(buf, from, to);
+	}
+
+	/**
+	 * Makes the reader work on another portion of a byte array.
+	 */
+	public void reset(byte[] buf, int from, int to) {
+		this.buf = buf;
+		this.pos = from;
+		this.limit = to;
+	}
+
+	/**
+	 * Moves to the next field of the message.
+	 * @return false if the end of the message has been reached.
+	 */
+	public boolean next() throws IOException {
+		if(pos >= limit) {
+			return false;
+		}
+		int key = (int) readVarint();
+		fieldNumber = key >>> 3;
+		wireType = key & 7;
+		return true;
+	}
+
+	public int getFieldNumber() {
+		return fieldNumber;
+	}
+
+	public int getWireType() {
+		return wireType;
+	}
+
+	public long readVarint() throws IOException {
+		long res = 0;
+		int shift = 0;
+		while(shift < 64) {
+			if(pos >= limit) {
+				throw new IOException("Truncated varint");
+			}
+			byte b = buf[pos++];
+			res |= (long) (b & 0x7F) << shift;
+			if(b >= 0) {
+				return res;
+			}
+			shift += 7;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	public long readSignedVarint() throws IOException {
+		long n = readVarint();
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Reads the length of a length delimited field and checks it fits in the message.
+	 * @return the position right after the end of the field, the field begins at {@link #getPosition()}.
+	 */
+	public int readLengthDelimited() throws IOException {
+		int length = (int) readVarint();
+		if(length < 0 || pos + length > limit) {
+			throw new IOException("Truncated length delimited field");
+		}
+		return pos + length;
+	}
+
+	public String readString() throws IOException {
+		int end = readLengthDelimited();
+		String res = new String(buf, pos, end - pos, StandardCharsets.UTF_8);
+		pos = end;
+		return res;
+	}
+
+	public void skip() throws IOException {
+		switch(wireType) {
+			case VARINT:
+				readVarint();
+				break;
+			case FIXED64:
+				pos += 8;
+				break;
+			case LENGTH_DELIMITED:
+				pos = readLengthDelimited();
+				break;
+			case FIXED32:
+				pos += 4;
+				break;
+			default:
+				throw new IOException("Unsupported wire type " + wireType);
+		}
+	}
+
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	public int getPosition() {
+		return pos;
+	}
+
+	public void setPosition(int pos) {
+		this.pos = pos;
+	}
+}
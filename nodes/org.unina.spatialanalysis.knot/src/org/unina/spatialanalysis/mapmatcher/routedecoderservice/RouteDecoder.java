@@ -1,7 +1,8 @@
 package org.unina.spatialanalysis.mapmatcher.routedecoderservice;
 
 import java.io.IOException;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.unina.spatialanalysis.mapmatcher.entity.route.RouteStep;
 import org.osgi.framework.ServiceException;
@@ -9,5 +10,25 @@ import org.unina.spatialanalysis.mapmatcher.entity.route.Route;
 
 public interface RouteDecoder<T extends RouteStep, S extends Route> {
 	
-	public TreeSet<T> decodeRoute(S s) throws ServiceException, IOException;
+	/**
+	 * @return the steps of the route, in the order they were traversed.
+	 */
+	public List<T> decodeRoute(S s) throws ServiceException, IOException;
+	
+	/**
+	 * Sends the requests for the steps of the route and returns at once, so that several routes
+	 * can be decoded at the same time.
+	 * The default implementation decodes the route on the calling thread with {@link #decodeRoute(Route)}.
+	 * @return a future completed with the steps of the route, in the order they were traversed,
+	 * or with the exception thrown while decoding it.
+	 */
+	public default CompletableFuture<List<T>> decodeRouteAsync(S s) {
+		CompletableFuture<List<T>> result = new CompletableFuture<List<T>>();
+		try {
+			result.complete(decodeRoute(s));
+		}catch(IOException | RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
 }
@@ -6,9 +6,17 @@ import org.unina.spatialanalysis.mapmatcher.routedecoderservice.concreteroutedec
 
 public class RouteDecoderFactory {
 	public static <T extends RouteStep, S extends Route> RouteDecoder<T, S> getRouteDecoder(String type, String host){
+		return getRouteDecoder(type, host, OsrmRouteDecoder.DEFAULT_MAX_TRACE_SIZE, null);
+	}
+	
+	/**
+	 * @param maxTraceSize the maximum number of trace coordinates sent in one request, longer traces are split.
+	 * @param mapVersion the version of the map data of the routing service, or null not to cache its responses.
+	 */
+	public static <T extends RouteStep, S extends Route> RouteDecoder<T, S> getRouteDecoder(String type, String host, int maxTraceSize, String mapVersion){
 		switch(type) {
 			case "osrm": 
-				return new OsrmRouteDecoder<T,S>(host);
+				return new OsrmRouteDecoder<T,S>(host, maxTraceSize, mapVersion);
 			default:
 				return null;
 		}
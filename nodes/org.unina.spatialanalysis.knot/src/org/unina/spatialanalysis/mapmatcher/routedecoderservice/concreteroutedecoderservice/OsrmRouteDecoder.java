@@ -1,20 +1,26 @@
 package org.unina.spatialanalysis.mapmatcher.routedecoderservice.concreteroutedecoderservice;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.time.LocalDateTime;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.osgi.framework.ServiceException;
 import org.unina.spatialanalysis.mapmatcher.entity.route.Route;
 import org.unina.spatialanalysis.mapmatcher.entity.route.RouteStep;
 import org.unina.spatialanalysis.mapmatcher.entity.route.RouteStepFactory;
 import org.unina.spatialanalysis.mapmatcher.routedecoderservice.RouteDecoder;
+import org.unina.spatialanalysis.osrmtransport.OsrmHostPool;
+import org.unina.spatialanalysis.osrmtransport.OsrmJsonReader;
+import org.unina.spatialanalysis.osrmtransport.OsrmRequestProfile;
+import org.unina.spatialanalysis.osrmtransport.OsrmTransport;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import okio.BufferedSource;
 
 public class OsrmRouteDecoder<T extends RouteStep, S extends Route> implements RouteDecoder<T, S>{
 
@@ -23,124 +29,479 @@ public class OsrmRouteDecoder<T extends RouteStep, S extends Route> implements R
      */
     public static String REQUEST_FOR_MATCHING_ROUTE = "/match/v1/driving/";
 
+    /**
+     * The default maximum number of trace coordinates of a match request, that is the default
+     * max-matching-size of the OSRM server.
+     */
+    public static final int DEFAULT_MAX_TRACE_SIZE = 100;
+    
+    /**
+     * The number of trace coordinates shared by two consecutive windows of a long trace.
+     */
+    private static final int WINDOW_OVERLAP = 10;
+
     public final String host;
+    
+    /**
+     * The OSRM instances the requests are distributed among.
+     */
+    private final OsrmHostPool hosts;
+    
+    private final int maxTraceSize;
+    
+    /**
+     * The version of the map data of the hosts, which identifies their responses in the cache,
+     * or null if the responses are not cached.
+     */
+    private final String mapVersion;
+    
+    /**
+     * The annotations of the last response decoded by each thread, whose arrays are reused by the next one.
+     */
+    private final ThreadLocal<Annotations> annotations = ThreadLocal.withInitial(Annotations::new);
+    
     public OsrmRouteDecoder(String routingServiceHost) {
+		this(routingServiceHost, DEFAULT_MAX_TRACE_SIZE, null);
+	}
+    
+    /**
+     * @param routingServiceHost the base url of one or more OSRM instances serving the same map.
+     * @param maxTraceSize the maximum number of trace coordinates sent in one request; longer traces
+     * are split in overlapping windows, which are distributed among the instances.
+     * @param mapVersion the version of the map data of the instances, or null not to cache the responses.
+     */
+    public OsrmRouteDecoder(String routingServiceHost, int maxTraceSize, String mapVersion) {
 		this.host = routingServiceHost;
-    	
+		this.hosts = OsrmTransport.getInstance().getHostPool(routingServiceHost);
+		this.maxTraceSize = Math.max(2, maxTraceSize);
+		this.mapVersion = mapVersion;
 	}
 
 	/**
      * The methods invokes the match service of project-osrm on a set of coordinates and returns the most likely matching route
      * for the coordinates given.
      * @param positions A set of Positions ordered accordingly to the time of their recording.
-     * @return the JSON object associated with the request.
+     * @return the steps of the matched route, in the order they were traversed.
 	 * @throws ServiceException In case the routing service failed.
      * @throws IOException In case of errors when sending the request.
-     * @throws InterruptedException In case of errors when handling the request.
-     */
-    
-    public TreeSet<T> decodeRoute(S route) throws ServiceException, IOException {
-    	TreeSet<T> result = new TreeSet<T>();
-    	String uri = host + REQUEST_FOR_MATCHING_ROUTE;
-    	String tmp;
-    	tmp = decodeLinestring(route);
-    	tmp += "?geometries=geojson";
-    	tmp += "&annotations=true";
-    	tmp +="&steps=true";
-    	uri= uri+tmp;
-    	JSONObject res = runRequest(uri);
-        result = decodeJSONAnswer(res, route);
-        return result;
+     */
+    
+    public List<T> decodeRoute(S route) throws ServiceException, IOException {
+    	String[] coordinates = decodeLinestring(route);
+    	if(coordinates.length > maxTraceSize) {
+    		CompletableFuture<List<T>> steps = decodeWindows(coordinates, route);
+    		try {
+    			return steps.get();
+    		}catch(InterruptedException e) {
+    			steps.cancel(true);
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException("The matching of the route was interrupted");
+    		}catch(ExecutionException e) {
+    			Throwable cause = e.getCause();
+    			if(cause instanceof IOException) {
+    				throw (IOException) cause;
+    			}else if(cause instanceof RuntimeException) {
+    				throw (RuntimeException) cause;
+    			}
+    			throw new IOException(cause);
+    		}
+    	}
+    	return OsrmTransport.getInstance().get(hosts, createRequest(coordinates, 0, coordinates.length), mapVersion, body -> readSteps(body, coordinates.length, route));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The requests are enqueued on the shared OSRM transport and the responses are decoded by its
+     * dispatcher threads, so no thread of the caller waits for the routing service.
+     */
+    @Override
+    public CompletableFuture<List<T>> decodeRouteAsync(S route) {
+    	String[] coordinates = decodeLinestring(route);
+    	if(coordinates.length > maxTraceSize) {
+    		return decodeWindows(coordinates, route);
+    	}
+    	return OsrmTransport.getInstance().getAsync(hosts, createRequest(coordinates, 0, coordinates.length), mapVersion, body -> readSteps(body, coordinates.length, route));
+    }
+    
+    /**
+     * Decodes the steps of a trace matched by a single request while the response is received.
+     * The annotations are only used by the thread decoding the response, so they are reused.
+     */
+    private List<T> readSteps(BufferedSource body, int size, S route) throws IOException {
+    	Annotations a = readAnnotations(body, annotations.get());
+    	List<T> res = new ArrayList<T>(a.nodeCount);
+    	appendSteps(a, 0, size, route, res);
+    	return res;
     }
     
-    private String decodeLinestring(S route) {
+    /**
+     * Matches a trace longer than the maximum number of coordinates of a request. The trace is split in windows
+     * overlapping by a few coordinates, which are all sent at once, and stitched once they are all received.
+     */
+    private CompletableFuture<List<T>> decodeWindows(String[] coordinates, S route) {
+    	int overlap = getWindowOverlap(maxTraceSize);
+    	int step = maxTraceSize - overlap;
+    	int windows = (coordinates.length - overlap + step - 1) / step;
+    	List<CompletableFuture<Annotations>> futures = new ArrayList<CompletableFuture<Annotations>>(windows);
+    	for(int w = 0; w < windows; w++) {
+    		int from = w * step;
+    		int to = Math.min(coordinates.length, from + maxTraceSize);
+    		/*
+    		 * The annotations of each window are kept until the windows are stitched, so they cannot be reused.
+    		 */
+    		futures.add(OsrmTransport.getInstance().getAsync(hosts, createRequest(coordinates, from, to), mapVersion, body -> readAnnotations(body, new Annotations())));
+    	}
+    	CompletableFuture<List<T>> result = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[windows]))
+    			.handle((done, e) -> stitchWindows(futures, coordinates.length, maxTraceSize, route));
+    	result.whenComplete((steps, e) -> {
+    		if(result.isCancelled()) {
+    			for(CompletableFuture<Annotations> future: futures) {
+    				future.cancel(true);
+    			}
+    		}
+    	});
+    	return result;
+    }
+    
+    /**
+     * Stitches the steps of the windows of a trace, which are all completed. Two consecutive windows are stitched
+     * in the middle of their overlap: the first one keeps the legs starting before it, the second one those starting
+     * after, so that no step is written twice. A window the server cannot match leaves a gap in the route, which is
+     * missed only if no window is matched.
+     * @throws CompletionException if a window failed for another reason than the server not matching it.
+     */
+    static <T extends RouteStep, S extends Route> List<T> stitchWindows(List<CompletableFuture<Annotations>> futures, int length, int maxTraceSize, S route) {
+    	int overlap = getWindowOverlap(maxTraceSize);
+    	int step = maxTraceSize - overlap;
+    	int windows = futures.size();
+    	List<T> res = new ArrayList<T>();
+    	ServiceException failure = null;
+    	int matched = 0;
+    	for(int w = 0; w < windows; w++) {
+    		int from = w * step;
+    		int keepFrom = w == 0 ? 0 : from + overlap / 2;
+    		int keepTo = w == windows - 1 ? length : (w + 1) * step + overlap / 2;
+    		try {
+    			appendSteps(futures.get(w).join(), keepFrom - from, keepTo - from, route, res);
+    			matched++;
+    		}catch(CompletionException e) {
+    			if(!(e.getCause() instanceof ServiceException)) {
+    				throw e;
+    			}
+    			failure = (ServiceException) e.getCause();
+    		}
+    	}
+    	if(matched == 0 && failure != null) {
+    		throw failure;
+    	}
+    	return res;
+    }
+    
+    /**
+     * @return the number of trace coordinates shared by two consecutive windows of a long trace.
+     */
+    private static int getWindowOverlap(int maxTraceSize) {
+    	return Math.min(WINDOW_OVERLAP, maxTraceSize / 4);
+    }
+    
+    private String createRequest(String[] coordinates, int from, int to) {
+    	return OsrmRequestProfile.ANNOTATIONS.appendTo(REQUEST_FOR_MATCHING_ROUTE + String.join(";", Arrays.asList(coordinates).subList(from, to)));
+    }
+    
+    /**
+     * @return the coordinates of the trace, each one as "lon,lat".
+     */
+    private String[] decodeLinestring(S route) {
     	String tmp = route.getRouteAsGPSLinestring();
-    	String res ="";
     	tmp  = tmp.replace("LINESTRING(", "");
     	tmp = tmp.replace(")", "");
-    	for(String x: tmp.split(",")) {
-    		res+=(x.trim().replace(' ', ','));
-    		res+=";";
+    	String[] res = tmp.split(",");
+    	for(int i = 0; i < res.length; i++) {
+    		res[i] = res[i].trim().replace(' ', ',');
     	}
-    	res = res.substring(0, res.lastIndexOf(';'));
     	return res;
     }
     
-	public JSONObject runRequest(String url) throws IOException, ServiceException {
-		OkHttpClient client = new OkHttpClient();
-		Request request = new Request.Builder().url(url).build();
-		try(Response response = client.newCall(request).execute()){
-			JSONObject res = new JSONObject(response.body().string());
-			String requestCode = res.getString("code");
-			if(requestCode.equals("Ok")) {
-				return res;
-			}else {
-				throw new ServiceException(requestCode);
-			}
-		}
-	}
+    /**
+     * Reads the nodes, durations and distances of the legs of the matchings while the response to a request
+     * with the @see OsrmRequestProfile#ANNOTATIONS profile is received, skipping the other values.
+     * @throws ServiceException if the code of the response is not Ok.
+     */
+    static Annotations readAnnotations(BufferedSource body, Annotations a) throws IOException {
+    	a.clear();
+    	String code = null;
+    	OsrmJsonReader reader = new OsrmJsonReader(body);
+    	reader.beginObject();
+    	while(reader.hasNext()) {
+    		switch(reader.nextName()) {
+    			case "code":
+    				code = reader.nextString();
+    				break;
+    			case "matchings":
+    				reader.beginArray();
+    				while(reader.hasNext()) {
+    					a.beginMatching();
+    					readMatching(reader, a);
+    				}
+    				reader.endArray();
+    				break;
+    			case "tracepoints":
+    				reader.beginArray();
+    				while(reader.hasNext()) {
+    					readTracepoint(reader, a);
+    				}
+    				reader.endArray();
+    				break;
+    			default:
+    				reader.skipValue();
+    		}
+    	}
+    	reader.endObject();
+    	if(!"Ok".equals(code)) {
+    		throw new ServiceException(code);
+    	}
+    	return a;
+    }
+    
+    private static void readMatching(OsrmJsonReader reader, Annotations a) throws IOException {
+    	reader.beginObject();
+    	while(reader.hasNext()) {
+    		if(reader.nextName().equals("legs")) {
+    			reader.beginArray();
+    			while(reader.hasNext()) {
+    				reader.beginObject();
+    				while(reader.hasNext()) {
+    					if(!reader.nextName().equals("annotation")) {
+    						reader.skipValue();
+    					}else if(!reader.nextNull()) {
+    						readAnnotation(reader, a);
+    					}
+    				}
+    				reader.endObject();
+    				a.endLeg();
+    			}
+    			reader.endArray();
+    		}else {
+    			reader.skipValue();
+    		}
+    	}
+    	reader.endObject();
+    }
+    
+    /**
+     * Reads the matching and the waypoint of a trace coordinate, which is null if it was not matched.
+     */
+    private static void readTracepoint(OsrmJsonReader reader, Annotations a) throws IOException {
+    	int matching = -1;
+    	int waypoint = -1;
+    	if(!reader.nextNull()) {
+    		reader.beginObject();
+    		while(reader.hasNext()) {
+    			switch(reader.nextName()) {
+    				case "matchings_index":
+    					matching = reader.nextInt();
+    					break;
+    				case "waypoint_index":
+    					waypoint = reader.nextInt();
+    					break;
+    				default:
+    					reader.skipValue();
+    			}
+    		}
+    		reader.endObject();
+    	}
+    	a.addTracepoint(matching, waypoint);
+    }
+    
+    private static void readAnnotation(OsrmJsonReader reader, Annotations a) throws IOException {
+    	reader.beginObject();
+    	while(reader.hasNext()) {
+    		switch(reader.nextName()) {
+    			case "nodes":
+    				reader.beginArray();
+    				while(reader.hasNext()) {
+    					a.addNode(reader.nextLong());
+    				}
+    				reader.endArray();
+    				break;
+    			case "duration":
+    				reader.beginArray();
+    				while(reader.hasNext()) {
+    					a.addDuration(reader.nextDouble());
+    				}
+    				reader.endArray();
+    				break;
+    			case "distance":
+    				reader.beginArray();
+    				while(reader.hasNext()) {
+    					a.addDistance(reader.nextDouble());
+    				}
+    				reader.endArray();
+    				break;
+    			default:
+    				reader.skipValue();
+    		}
+    	}
+    	reader.endObject();
+    }
 	
-	public TreeSet<T> decodeJSONAnswer(JSONObject o, S route){
-		RouteStepHolder res = new RouteStepHolder();
-		LocalDateTime startTime = route.getRouteBeginsAt();
+    /**
+     * Appends a step for each pair of consecutive nodes of the legs starting at the trace coordinates from
+     * index from to index to - 1. A step repeating the segment of the previous one, as at the border of two
+     * legs, extends the previous step instead. The steps begin when the previous one ends, or when the route
+     * begins for the first one.
+     */
+	private static <T extends RouteStep, S extends Route> void appendSteps(Annotations a, int from, int to, S route, List<T> res){
 		String routeId = route.getRouteId();
 		int ownerId = route.getOwnerId();
-		long origin = 0;
-		long destination = 0;
 		RouteStepFactory<T> factory = new RouteStepFactory<T>();
-		LocalDateTime nextTime;
-		JSONArray m = o.getJSONArray("matchings");
-		
-		for(int i=0; i<m.length(); i++) {
-			JSONArray legs = m.getJSONObject(i).getJSONArray("legs");
-			for(int j = 0; j<legs.length(); j++) {
-				JSONObject annotation = legs.getJSONObject(j);
-				annotation = annotation.getJSONObject("annotation");
-				JSONArray nodes = annotation.getJSONArray("nodes");
-				JSONArray times = annotation.getJSONArray("duration");
-				JSONArray distance = annotation.getJSONArray("distance");
-				for(int k = 0; k<nodes.length()-1; k++) {
-						origin =nodes.getLong(k);
-						destination =nodes.getLong(k+1);
-						nextTime = startTime.plusSeconds((long) Math.ceil(times.getDouble(k)));
-						T rs = factory.createDefaultRouteStep(routeId, ownerId, origin, destination, times.getDouble(k), distance.getDouble(k), startTime, nextTime);
-						res.add(rs);
-						startTime = nextTime;
+		T lastInserted = res.isEmpty() ? null : res.get(res.size() - 1);
+		LocalDateTime startTime = lastInserted == null ? route.getRouteBeginsAt() : lastInserted.getEndAt();
+		int[] legStarts = a.getLegStarts();
+		int nodeStart = 0;
+		int valueStart = 0;
+		for(int leg = 0; leg < a.legCount; leg++) {
+			int nodeEnd = a.legNodeEnds[leg];
+			int valueEnd = a.legValueEnds[leg];
+			if(legStarts[leg] < from || legStarts[leg] >= to) {
+				nodeStart = nodeEnd;
+				valueStart = valueEnd;
+				continue;
+			}
+			for(int k = 0; nodeStart + k + 1 < nodeEnd && valueStart + k < valueEnd; k++) {
+				long origin = a.nodes[nodeStart + k];
+				long destination = a.nodes[nodeStart + k + 1];
+				double duration = a.durations[valueStart + k];
+				LocalDateTime nextTime = startTime.plusSeconds((long) Math.ceil(duration));
+				if(lastInserted != null && lastInserted.getOriginId() == origin && lastInserted.getDestinationId() == destination) {
+					lastInserted.setEndVisitTime(nextTime);
+				}else {
+					lastInserted = factory.createDefaultRouteStep(routeId, ownerId, origin, destination, duration, a.distances[valueStart + k], startTime, nextTime);
+					res.add(lastInserted);
 				}
+				startTime = nextTime;
 			}
+			nodeStart = nodeEnd;
+			valueStart = valueEnd;
 		}
-		return res;
 	}
 	
-	private class RouteStepHolder extends TreeSet<T>{
+	/**
+	 * The annotations of the legs of a response, appended one leg after the other.
+	 * The durations and the distances of the segments of a leg are one less than its nodes.
+	 */
+	static class Annotations {
 		
-		/**
-		 * 
+		private long[] nodes = new long[1024];
+		private double[] durations = new double[1024];
+		private double[] distances = new double[1024];
+		private int nodeCount;
+		private int durationCount;
+		private int distanceCount;
+		
+		/*
+		 * The nodes of leg l end at legNodeEnds[l] and its durations and distances at legValueEnds[l].
 		 */
-		private static final long serialVersionUID = 1L;
+		private int[] legNodeEnds = new int[64];
+		private int[] legValueEnds = new int[64];
+		private int legCount;
 		
-		T lastInserted;
+		/*
+		 * The legs of matching m are the ones from matchingLegStarts[m].
+		 */
+		private int[] matchingLegStarts = new int[8];
+		private int matchingCount;
+		
+		/*
+		 * The matching and the waypoint of each trace coordinate, -1 if it was not matched.
+		 */
+		private int[] tracepointMatchings = new int[128];
+		private int[] tracepointWaypoints = new int[128];
+		private int tracepointCount;
 		
-		private RouteStepHolder() {
-			super();
-			lastInserted = null;
+		private void clear() {
+			nodeCount = 0;
+			durationCount = 0;
+			distanceCount = 0;
+			legCount = 0;
+			matchingCount = 0;
+			tracepointCount = 0;
 		}
 		
+		private void beginMatching() {
+			if(matchingCount == matchingLegStarts.length) {
+				matchingLegStarts = Arrays.copyOf(matchingLegStarts, matchingLegStarts.length * 2);
+			}
+			matchingLegStarts[matchingCount++] = legCount;
+		}
 		
-		public boolean add(T toAdd) {
-			if(lastInserted==null) {
-				lastInserted = toAdd;
-				return super.add(toAdd);
-			}else {
-				if(lastInserted.getOriginId()== toAdd.getOriginId() && lastInserted.getDestinationId()==toAdd.getDestinationId()) {
-					lastInserted.setEndVisitTime(toAdd.getEndAt());
-					return false;
-				}else {
-					lastInserted=toAdd;
-					return super.add(toAdd);
+		private void addTracepoint(int matching, int waypoint) {
+			if(tracepointCount == tracepointMatchings.length) {
+				tracepointMatchings = Arrays.copyOf(tracepointMatchings, tracepointMatchings.length * 2);
+				tracepointWaypoints = Arrays.copyOf(tracepointWaypoints, tracepointWaypoints.length * 2);
+			}
+			tracepointMatchings[tracepointCount] = matching;
+			tracepointWaypoints[tracepointCount] = waypoint;
+			tracepointCount++;
+		}
+		
+		/**
+		 * @return for each leg, the index of the trace coordinate it starts from, that is the coordinate
+		 * matched to the same waypoint of the same matching; 0 if the response has no trace points.
+		 */
+		private int[] getLegStarts() {
+			int[] res = new int[legCount];
+			for(int t = 0; t < tracepointCount; t++) {
+				int matching = tracepointMatchings[t];
+				int waypoint = tracepointWaypoints[t];
+				if(matching >= 0 && matching < matchingCount && waypoint >= 0) {
+					int leg = matchingLegStarts[matching] + waypoint;
+					int end = matching + 1 < matchingCount ? matchingLegStarts[matching + 1] : legCount;
+					if(leg < end) {
+						res[leg] = t;
+					}
 				}
-			}			
+			}
+			return res;
+		}
+		
+		private void addNode(long node) {
+			if(nodeCount == nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			}
+			nodes[nodeCount++] = node;
+		}
+		
+		private void addDuration(double duration) {
+			if(durationCount == durations.length) {
+				durations = Arrays.copyOf(durations, durations.length * 2);
+			}
+			durations[durationCount++] = duration;
+		}
+		
+		private void addDistance(double distance) {
+			if(distanceCount == distances.length) {
+				distances = Arrays.copyOf(distances, distances.length * 2);
+			}
+			distances[distanceCount++] = distance;
+		}
+		
+		/**
+		 * Closes the current leg. A leg with fewer distances than durations, or the other way round,
+		 * keeps only the segments having both.
+		 */
+		private void endLeg() {
+			if(legCount == legNodeEnds.length) {
+				legNodeEnds = Arrays.copyOf(legNodeEnds, legNodeEnds.length * 2);
+				legValueEnds = Arrays.copyOf(legValueEnds, legValueEnds.length * 2);
+			}
+			int values = Math.min(durationCount, distanceCount);
+			durationCount = values;
+			distanceCount = values;
+			legNodeEnds[legCount] = nodeCount;
+			legValueEnds[legCount] = values;
+			legCount++;
 		}
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+package org.unina.spatialanalysis.osmroadnetworkreader;
+
+import javax.swing.JFileChooser;
+import javax.swing.ToolTipManager;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
+import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * The node dialog of the "OSM Road Network Reader" node.
+ *
+ * @author sinog
+ */
+public class OsmRoadNetworkReaderNodeDialog extends DefaultNodeSettingsPane {
+
+	private static final String OSM_FILE_PICKER_TOOLTIP = "<html>"
+			  + "The path of the file containing the OSM map data (.osm, .osm.gz, .osm.bz2 or .osm.pbf file)."
+			  + "</html>";
+
+	private static final String TAG_KEYS_TOOLTIP = "<html>"
+			  + "The comma separated keys of the way tags to keep for each segment, e.g. highway,name,maxspeed."
+			  + "<br>If empty, all the tags of the ways are kept."
+			  + "</html>";
+
+	private static final String HIGHWAY_NODES_ONLY_TOOLTIP = "<html>"
+			  + "If checked, only the nodes of the highways are loaded from the OSM file, which usually"
+			  + "<br>takes a small fraction of the memory needed by all of them."
+			  + "</html>";
+
+	private static final String CLIP_REGION_TOOLTIP = "<html>"
+			  + "A bounding box written as minLon,minLat,maxLon,maxLat or a WKT polygon"
+			  + "<br>with longitudes as x and latitudes as y. If empty, the whole map is loaded."
+			  + "</html>";
+
+	private static final String CHANGE_FILES_TOOLTIP = "<html>"
+			  + "The semicolon separated paths of the osmChange (.osc) files to apply, in order, to the map data."
+			  + "</html>";
+
+	private static final String USE_SNAPSHOT_TOOLTIP = "<html>"
+			  + "If checked, the parsed map data is saved as a snapshot file that the following executions"
+			  + "<br>load almost instantly, as long as the OSM file and the tags to keep do not change."
+			  + "</html>";
+
+	private static final String SNAPSHOT_DIRECTORY_TOOLTIP = "<html>"
+			  + "The directory in which the snapshots are saved. If empty, they are saved next to the OSM file."
+			  + "</html>";
+
+	protected OsmRoadNetworkReaderNodeDialog() {
+		super();
+
+		ToolTipManager.sharedInstance().setDismissDelay(15000);
+
+		this.createNewGroup("Map Data");
+
+		SettingsModelString osmPath = OsmRoadNetworkReaderNodeModel.createOsmDataPath();
+		DialogComponentFileChooser osmPathFilePicker = new DialogComponentFileChooser(osmPath, "", ".osm", ".pbf", ".gz", ".bz2");
+		osmPathFilePicker.setToolTipText(OSM_FILE_PICKER_TOOLTIP);
+		addDialogComponent(osmPathFilePicker);
+
+		SettingsModelString tagKeys = OsmRoadNetworkReaderNodeModel.createTagKeysSettings();
+		DialogComponentString tagKeysField = new DialogComponentString(tagKeys, "Way tags to keep (empty for all): ", false, 40);
+		tagKeysField.setToolTipText(TAG_KEYS_TOOLTIP);
+		addDialogComponent(tagKeysField);
+
+		SettingsModelBoolean highwayNodesOnly = OsmRoadNetworkReaderNodeModel.createHighwayNodesOnlySettings();
+		DialogComponentBoolean highwayNodesOnlyPicker = new DialogComponentBoolean(highwayNodesOnly, "Load only the nodes of the highways");
+		highwayNodesOnlyPicker.setToolTipText(HIGHWAY_NODES_ONLY_TOOLTIP);
+		addDialogComponent(highwayNodesOnlyPicker);
+
+		SettingsModelString clipRegion = OsmRoadNetworkReaderNodeModel.createClipRegionSettings();
+		DialogComponentString clipRegionField = new DialogComponentString(clipRegion, "Clip to bounding box or WKT polygon: ", false, 40);
+		clipRegionField.setToolTipText(CLIP_REGION_TOOLTIP);
+		addDialogComponent(clipRegionField);
+
+		SettingsModelString changeFiles = OsmRoadNetworkReaderNodeModel.createChangeFilesSettings();
+		DialogComponentString changeFilesField = new DialogComponentString(changeFiles, "Change files to apply: ", false, 40);
+		changeFilesField.setToolTipText(CHANGE_FILES_TOOLTIP);
+		addDialogComponent(changeFilesField);
+
+		SettingsModelBoolean useSnapshot = OsmRoadNetworkReaderNodeModel.createUseSnapshotSettings();
+		DialogComponentBoolean useSnapshotPicker = new DialogComponentBoolean(useSnapshot, "Keep a snapshot of the parsed map data");
+		useSnapshotPicker.setToolTipText(USE_SNAPSHOT_TOOLTIP);
+		addDialogComponent(useSnapshotPicker);
+
+		SettingsModelString snapshotDirectory = OsmRoadNetworkReaderNodeModel.createSnapshotDirectorySettings();
+		DialogComponentFileChooser snapshotDirectoryPicker = new DialogComponentFileChooser(snapshotDirectory, "knot_snapshot_directory", JFileChooser.OPEN_DIALOG, true);
+		snapshotDirectoryPicker.setToolTipText(SNAPSHOT_DIRECTORY_TOOLTIP);
+		addDialogComponent(snapshotDirectoryPicker);
+
+		useSnapshot.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				snapshotDirectory.setEnabled(useSnapshot.getBooleanValue());
+			}
+
+		});
+	}
+}
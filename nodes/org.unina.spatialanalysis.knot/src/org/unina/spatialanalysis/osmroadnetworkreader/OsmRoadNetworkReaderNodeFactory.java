@@ -0,0 +1,56 @@
+package org.unina.spatialanalysis.osmroadnetworkreader;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * The node factory of the "OSM Road Network Reader" node.
+ *
+ * @author sinog
+ */
+public class OsmRoadNetworkReaderNodeFactory 
+        extends NodeFactory<OsmRoadNetworkReaderNodeModel> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OsmRoadNetworkReaderNodeModel createNodeModel() {
+        return new OsmRoadNetworkReaderNodeModel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNrNodeViews() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeView<OsmRoadNetworkReaderNodeModel> createNodeView(final int viewIndex,
+            final OsmRoadNetworkReaderNodeModel nodeModel) {
+		return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasDialog() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeDialogPane createNodeDialogPane() {
+        return new OsmRoadNetworkReaderNodeDialog();
+    }
+
+}
@@ -0,0 +1,252 @@
+package org.unina.spatialanalysis.osmroadnetworkreader;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeLogger;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.MapRegion;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmDataCache;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmLoadOptions;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmReader;
+import org.unina.spatialanalysis.mapmatcher.osmfilereader.OsmReaderFactory;
+
+/**
+ * The node model of the "OSM Road Network Reader" node, that loads the map data of an OSM
+ * file once and hands it to the connected nodes as a @see RoadNetworkPortObject.
+ * The settings mirror the map data settings of the "MapMatcher" node.
+ *
+ * @author sinog
+ */
+public class OsmRoadNetworkReaderNodeModel extends NodeModel {
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(OsmRoadNetworkReaderNodeModel.class);
+
+	private static final String OSM_DATA_PATH = "osm_path";
+
+	private static final String DEFAULT_PATH = "";
+
+	private static final String TAG_KEYS = "m_tag_keys";
+
+	private static final String DEFAULT_TAG_KEYS = "";
+
+	private static final String HIGHWAY_NODES_ONLY = "m_highway_nodes_only";
+
+	private static final boolean DEFAULT_HIGHWAY_NODES_ONLY = false;
+
+	private static final String CLIP_REGION_TEXT = "m_clip_region";
+
+	private static final String DEFAULT_CLIP_REGION_TEXT = "";
+
+	private static final String CHANGE_FILES = "m_change_files";
+
+	private static final String DEFAULT_CHANGE_FILES = "";
+
+	private static final String USE_SNAPSHOT = "m_use_snapshot";
+
+	private static final boolean DEFAULT_USE_SNAPSHOT = true;
+
+	private static final String SNAPSHOT_DIRECTORY = "m_snapshot_directory";
+
+	private static final String DEFAULT_SNAPSHOT_DIRECTORY = "";
+
+	private final SettingsModelString m_osmDataPath = createOsmDataPath();
+
+	/**
+	 * The comma separated keys of the way tags to keep, empty to keep all of them.
+	 */
+	private final SettingsModelString m_tagKeys = createTagKeysSettings();
+
+	/**
+	 * Whether only the nodes of the highways are loaded from the OSM file.
+	 */
+	private final SettingsModelBoolean m_highwayNodesOnly = createHighwayNodesOnlySettings();
+
+	/**
+	 * The bounding box, as minLon,minLat,maxLon,maxLat, or the WKT polygon the map data is clipped to,
+	 * empty to load the whole map.
+	 */
+	private final SettingsModelString m_clipRegion = createClipRegionSettings();
+
+	/**
+	 * The semicolon separated paths of the osmChange files applied, in order, to the map data.
+	 */
+	private final SettingsModelString m_changeFiles = createChangeFilesSettings();
+
+	/**
+	 * Whether the parsed map data is kept as a snapshot that later executions can map
+	 * instead of parsing the OSM file again.
+	 */
+	private final SettingsModelBoolean m_useSnapshot = createUseSnapshotSettings();
+
+	/**
+	 * The directory of the snapshots, empty to keep them next to the OSM file.
+	 */
+	private final SettingsModelString m_snapshotDirectory = createSnapshotDirectorySettings();
+
+	protected OsmRoadNetworkReaderNodeModel() {
+		super(new PortType[0], new PortType[] { RoadNetworkPortObject.TYPE });
+	}
+
+	static SettingsModelString createOsmDataPath() {
+		return new SettingsModelString(OSM_DATA_PATH, DEFAULT_PATH);
+	}
+
+	static SettingsModelString createTagKeysSettings() {
+		return new SettingsModelString(TAG_KEYS, DEFAULT_TAG_KEYS);
+	}
+
+	static SettingsModelBoolean createHighwayNodesOnlySettings() {
+		return new SettingsModelBoolean(HIGHWAY_NODES_ONLY, DEFAULT_HIGHWAY_NODES_ONLY);
+	}
+
+	static SettingsModelString createClipRegionSettings() {
+		return new SettingsModelString(CLIP_REGION_TEXT, DEFAULT_CLIP_REGION_TEXT);
+	}
+
+	static SettingsModelString createChangeFilesSettings() {
+		return new SettingsModelString(CHANGE_FILES, DEFAULT_CHANGE_FILES);
+	}
+
+	static SettingsModelBoolean createUseSnapshotSettings() {
+		return new SettingsModelBoolean(USE_SNAPSHOT, DEFAULT_USE_SNAPSHOT);
+	}
+
+	static SettingsModelString createSnapshotDirectorySettings() {
+		return new SettingsModelString(SNAPSHOT_DIRECTORY, DEFAULT_SNAPSHOT_DIRECTORY);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected PortObject[] execute(final PortObject[] inObjects, final ExecutionContext exec) throws Exception {
+		exec.setMessage("Parsing Map Data...");
+		File osmFile = new File(m_osmDataPath.getStringValue());
+		MapRegion clipRegion = null;
+		if(!m_clipRegion.getStringValue().trim().isEmpty()) {
+			clipRegion = MapRegion.parse(m_clipRegion.getStringValue());
+			LOGGER.info("Clipping the map data to " + clipRegion);
+		}
+		OsmLoadOptions loadOptions = new OsmLoadOptions(OsmLoadOptions.parseTagKeys(m_tagKeys.getStringValue()), m_highwayNodesOnly.getBooleanValue(), clipRegion);
+		loadOptions = loadOptions.withChangeFiles(OsmLoadOptions.parseChangeFiles(m_changeFiles.getStringValue()));
+		OsmReader myFileReader;
+		if(m_useSnapshot.getBooleanValue()) {
+			String snapshotDirectory = m_snapshotDirectory.getStringValue();
+			myFileReader = OsmReaderFactory.getSnapshotOsmReader(osmFile, loadOptions, snapshotDirectory.isEmpty() ? null : new File(snapshotDirectory));
+		}else {
+			myFileReader = OsmReaderFactory.getOsmReader(osmFile, loadOptions);
+		}
+		/*
+		 * The port object keeps the data reachable, so the lease is only needed to share
+		 * the data with the other nodes reading the same file.
+		 */
+		OsmDataManager mapData;
+		try(OsmDataCache.Lease mapDataLease = OsmDataCache.getInstance().acquire(osmFile, loadOptions, myFileReader)){
+			mapData = mapDataLease.getData();
+		}
+		RoadNetworkPortObject res = new RoadNetworkPortObject(createSpec(), mapData);
+		exec.setMessage("Parsing Map Data finished!");
+		LOGGER.info(mapData.printStats());
+		return new PortObject[] { res };
+	}
+
+	private RoadNetworkPortObjectSpec createSpec() {
+		return new RoadNetworkPortObjectSpec(new File(m_osmDataPath.getStringValue()).getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		File f = new File(m_osmDataPath.getStringValue());
+		if(!f.exists()){
+			throw new InvalidSettingsException("The entered input file does not exist!");
+		}
+		if(!f.canRead()) {
+			throw new InvalidSettingsException("Don't have the required permissions for reading the input file!");
+		}
+		for(File changeFile: OsmLoadOptions.parseChangeFiles(m_changeFiles.getStringValue())) {
+			if(!changeFile.canRead()) {
+				throw new InvalidSettingsException("The change file " + changeFile + " does not exist or cannot be read!");
+			}
+		}
+		if(!m_clipRegion.getStringValue().trim().isEmpty()) {
+			try {
+				MapRegion.parse(m_clipRegion.getStringValue());
+			}catch(IOException e) {
+				throw new InvalidSettingsException("The region to clip the map data to is not a valid bounding box or WKT geometry!");
+			}
+		}
+		return new PortObjectSpec[] { createSpec() };
+	}
+
+	@Override
+	protected void saveSettingsTo(final NodeSettingsWO settings) {
+		m_osmDataPath.saveSettingsTo(settings);
+		m_tagKeys.saveSettingsTo(settings);
+		m_highwayNodesOnly.saveSettingsTo(settings);
+		m_clipRegion.saveSettingsTo(settings);
+		m_changeFiles.saveSettingsTo(settings);
+		m_useSnapshot.saveSettingsTo(settings);
+		m_snapshotDirectory.saveSettingsTo(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+		m_osmDataPath.loadSettingsFrom(settings);
+		m_tagKeys.loadSettingsFrom(settings);
+		m_highwayNodesOnly.loadSettingsFrom(settings);
+		m_clipRegion.loadSettingsFrom(settings);
+		m_changeFiles.loadSettingsFrom(settings);
+		m_useSnapshot.loadSettingsFrom(settings);
+		m_snapshotDirectory.loadSettingsFrom(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+		m_osmDataPath.validateSettings(settings);
+		m_tagKeys.validateSettings(settings);
+		m_highwayNodesOnly.validateSettings(settings);
+		m_clipRegion.validateSettings(settings);
+		m_changeFiles.validateSettings(settings);
+		m_useSnapshot.validateSettings(settings);
+		m_snapshotDirectory.validateSettings(settings);
+	}
+
+	@Override
+	protected void loadInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+		/*
+		 * The road network is saved and loaded with the output port.
+		 */
+	}
+
+	@Override
+	protected void saveInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+	}
+
+	@Override
+	protected void reset() {
+	}
+}
@@ -0,0 +1,108 @@
+package org.unina.spatialanalysis.osmroadnetworkreader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import javax.swing.JComponent;
+
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortObjectZipInputStream;
+import org.knime.core.node.port.PortObjectZipOutputStream;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.port.PortTypeRegistry;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataManager;
+import org.unina.spatialanalysis.mapmatcher.entity.osm.OsmDataSnapshot;
+
+/**
+ * A road network loaded once by the "OSM Road Network Reader" node and shared by the nodes
+ * connected to it. The map data is indexed, so it cannot be changed anymore.
+ * It is saved with the workflow in the snapshot format, see @see OsmDataSnapshot.
+ * @author sinog
+ *
+ */
+public class RoadNetworkPortObject implements PortObject {
+
+	public static final PortType TYPE = PortTypeRegistry.getInstance().getPortType(RoadNetworkPortObject.class);
+
+	public static final PortType TYPE_OPTIONAL = PortTypeRegistry.getInstance().getPortType(RoadNetworkPortObject.class, true);
+
+	private static final String ENTRY = "road-network.knotmap";
+
+	/*
+	 * The data saved with the workflow is always the one of the port object.
+	 */
+	private static final byte[] KEY = new byte[0];
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final RoadNetworkPortObjectSpec spec;
+
+	private final OsmDataManager data;
+
+	public RoadNetworkPortObject(RoadNetworkPortObjectSpec spec, OsmDataManager data) {
+		super();
+		this.spec = spec;
+		this.data = data;
+		/*
+		 * Indexes the data, which makes it immutable.
+		 */
+		data.getSegmentCount();
+	}
+
+	public OsmDataManager getData() {
+		return data;
+	}
+
+	@Override
+	public String getSummary() {
+		return "Road network of " + spec.getSource() + " with " + data.getSegmentCount() + " segments";
+	}
+
+	@Override
+	public RoadNetworkPortObjectSpec getSpec() {
+		return spec;
+	}
+
+	@Override
+	public JComponent[] getViews() {
+		return new JComponent[0];
+	}
+
+	public static final class Serializer extends PortObjectSerializer<RoadNetworkPortObject> {
+
+		@Override
+		public void savePortObject(RoadNetworkPortObject portObject, PortObjectZipOutputStream out, ExecutionMonitor exec)
+				throws IOException, CanceledExecutionException {
+			/*
+			 * Most of the columns are sorted ids and offsets, which compress well even at the fastest level.
+			 */
+			out.setLevel(Deflater.BEST_SPEED);
+			out.putNextEntry(new ZipEntry(ENTRY));
+			OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+			OsmDataSnapshot.write(portObject.data, KEY, buffered);
+			buffered.flush();
+			out.closeEntry();
+		}
+
+		@Override
+		public RoadNetworkPortObject loadPortObject(PortObjectZipInputStream in, PortObjectSpec spec, ExecutionMonitor exec)
+				throws IOException, CanceledExecutionException {
+			ZipEntry entry = in.getNextEntry();
+			if(entry == null || !ENTRY.equals(entry.getName())) {
+				throw new IOException("Missing the map data of the road network");
+			}
+			OsmDataManager data = OsmDataSnapshot.read(new BufferedInputStream(in, BUFFER_SIZE), KEY);
+			if(data == null) {
+				throw new IOException("The road network was saved by a different version, execute the reader node again");
+			}
+			return new RoadNetworkPortObject((RoadNetworkPortObjectSpec) spec, data);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.unina.spatialanalysis.osmroadnetworkreader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+
+import javax.swing.JComponent;
+
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortObjectSpecZipInputStream;
+import org.knime.core.node.port.PortObjectSpecZipOutputStream;
+
+/**
+ * The spec of a @see RoadNetworkPortObject, known before the map data is loaded:
+ * the name of the OSM file the road network is read from.
+ * @author sinog
+ *
+ */
+public class RoadNetworkPortObjectSpec implements PortObjectSpec {
+
+	private static final String ENTRY = "road-network-spec";
+
+	private final String source;
+
+	public RoadNetworkPortObjectSpec(String source) {
+		super();
+		this.source = source;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	@Override
+	public JComponent[] getViews() {
+		return new JComponent[0];
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof RoadNetworkPortObjectSpec && source.equals(((RoadNetworkPortObjectSpec) obj).source);
+	}
+
+	@Override
+	public int hashCode() {
+		return source.hashCode();
+	}
+
+	public static final class Serializer extends PortObjectSpecSerializer<RoadNetworkPortObjectSpec> {
+
+		@Override
+		public void savePortObjectSpec(RoadNetworkPortObjectSpec spec, PortObjectSpecZipOutputStream out) throws IOException {
+			out.putNextEntry(new ZipEntry(ENTRY));
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeUTF(spec.source);
+			data.flush();
+			out.closeEntry();
+		}
+
+		@Override
+		public RoadNetworkPortObjectSpec loadPortObjectSpec(PortObjectSpecZipInputStream in) throws IOException {
+			ZipEntry entry = in.getNextEntry();
+			if(entry == null || !ENTRY.equals(entry.getName())) {
+				throw new IOException("Missing the spec of the road network");
+			}
+			return new RoadNetworkPortObjectSpec(new DataInputStream(in).readUTF());
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Limits the number of requests running at once on the OSRM server, adapting the limit to the
+ * latency of the responses with an additive increase, multiplicative decrease rule.
+ *
+ * The latency of a request is divided by its size, the number of its coordinates, and compared to a baseline,
+ * the lowest latency per coordinate observed recently for requests of about the same size, so that a batch
+ * of long traces does not look like an overloaded server. Each host of an @see OsrmHostPool has a limiter
+ * of its own, so that the latency of a slower host is not compared to the baseline of a faster one.
+ * While the latency stays near its baseline, the limit grows by one every limit successful responses, that is
+ * about one each round of requests.
+ * When the latency grows beyond {@link #LATENCY_TOLERANCE} times the baseline the limit is scaled by
+ * {@link #LATENCY_BACKOFF}, and when a request times out or is rejected by the server, with a 5xx or
+ * 429 status or a TooBig response, it is scaled by {@link #REJECTION_BACKOFF}. A decrease is applied
+ * once for the requests that were running when it happened, so that a burst of slow responses to the
+ * same round does not collapse the limit.
+ * @author sinog
+ *
+ */
+public class OsrmConcurrencyLimiter {
+
+	/**
+	 * The outcome of a request, which tells how the limit is adapted.
+	 */
+	public enum Outcome {
+		/**
+		 * The server answered the request, the latency is compared to the baseline.
+		 */
+		SUCCESS,
+		/**
+		 * The server rejected the request because it is overloaded or the request is too big.
+		 */
+		REJECTED,
+		/**
+		 * The request timed out.
+		 */
+		TIMEOUT,
+		/**
+		 * The request could not be sent or its response could not be read, because the host cannot
+		 * be reached or the connection broke; the limit is not adapted, but the host is failing.
+		 */
+		FAILED,
+		/**
+		 * The request was cancelled or failed for reasons unrelated to the load of the server,
+		 * the limit is not adapted.
+		 */
+		IGNORED
+	}
+
+	/**
+	 * The latency, as a multiple of the baseline, beyond which the server is considered overloaded.
+	 */
+	public static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * The factor applied to the limit when the latency grows beyond the tolerance.
+	 */
+	public static final double LATENCY_BACKOFF = 0.75;
+
+	/**
+	 * The factor applied to the limit when a request times out or is rejected.
+	 */
+	public static final double REJECTION_BACKOFF = 0.5;
+
+	/**
+	 * How fast the baseline follows latencies higher than itself, so that it adapts to a server
+	 * that became slower for good, e.g. because the requests got longer.
+	 */
+	private static final double BASELINE_DRIFT = 0.001;
+
+	/**
+	 * The number of the most recent latencies kept for the percentiles.
+	 */
+	private static final int LATENCY_SAMPLES = 1024;
+
+	/**
+	 * How often the summary shown in the progress message is computed again, in nanoseconds.
+	 */
+	private static final long SUMMARY_INTERVAL = 1000000000L;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private double limit;
+
+	private int inFlight;
+
+	private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+
+	/**
+	 * The baseline latency per coordinate in nanoseconds of each size class, the number of bits of the size,
+	 * since the latency per coordinate of short requests is inflated by the fixed cost of a request.
+	 */
+	private final HashMap<Integer, Double> baselines = new HashMap<Integer, Double>();
+
+	/**
+	 * The time of the last decrease, the requests sent before it cannot cause another one.
+	 */
+	private long lastDecrease;
+
+	private boolean hasDecreased;
+
+	private int decreases;
+
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+
+	private long samples;
+
+	private String summary;
+
+	private long summaryTime;
+
+	/**
+	 * @param initialLimit the number of requests allowed at once before any response is received.
+	 * @param minLimit the lowest limit, at least 1.
+	 * @param maxLimit the highest limit.
+	 */
+	public OsrmConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		super();
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+	}
+
+	/**
+	 * Runs the task sending a request as soon as fewer requests than the limit are running, possibly
+	 * in the thread releasing a previous request. The task must call {@link #release(long, Outcome)}
+	 * once its request completes.
+	 */
+	public void execute(Runnable send) {
+		synchronized(this) {
+			if(!waiting.isEmpty() || inFlight >= (int) limit) {
+				waiting.add(send);
+				return;
+			}
+			inFlight++;
+		}
+		send.run();
+	}
+
+	/**
+	 * Waits until fewer requests than the limit are running, for a request sent by the calling thread,
+	 * which must call {@link #release(long, Outcome)} once it completes.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while(!waiting.isEmpty() || inFlight >= (int) limit) {
+			wait();
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Releases the request, adapting the limit to its outcome, and runs the waiting requests allowed by the new limit.
+	 * @param start the value of System.nanoTime() when the request was sent.
+	 */
+	public void release(long start, Outcome outcome) {
+		release(1, start, outcome);
+	}
+
+	/**
+	 * Releases the request like {@link #release(long, Outcome)}.
+	 * @param size the number of coordinates of the request.
+	 */
+	public void release(int size, long start, Outcome outcome) {
+		long now = System.nanoTime();
+		ArrayDeque<Runnable> ready = new ArrayDeque<Runnable>();
+		synchronized(this) {
+			inFlight--;
+			switch(outcome) {
+				case SUCCESS:
+					onLatency(Math.max(1, size), now - start, start);
+					break;
+				case REJECTED:
+				case TIMEOUT:
+					decrease(REJECTION_BACKOFF, start, now);
+					break;
+				default:
+					break;
+			}
+			while(!waiting.isEmpty() && inFlight < (int) limit) {
+				ready.add(waiting.poll());
+				inFlight++;
+			}
+			notifyAll();
+		}
+		for(Runnable send: ready) {
+			send.run();
+		}
+	}
+
+	private void onLatency(int size, long latency, long start) {
+		latencies[(int) (samples++ % LATENCY_SAMPLES)] = latency;
+		Integer key = Integer.SIZE - Integer.numberOfLeadingZeros(size);
+		double cost = (double) latency / size;
+		Double previous = baselines.get(key);
+		double baseline = previous == null || cost < previous ? cost : previous + (cost - previous) * BASELINE_DRIFT;
+		baselines.put(key, baseline);
+		if(cost > baseline * LATENCY_TOLERANCE) {
+			decrease(LATENCY_BACKOFF, start, start + latency);
+		}else if(inFlight + 1 >= (int) limit / 2) {
+			/*
+			 * The limit grows only while it is used, otherwise it would grow without bounds
+			 * when the requests are fewer than the limit.
+			 */
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+
+	private void decrease(double backoff, long start, long now) {
+		if(hasDecreased && start - lastDecrease < 0) {
+			return;
+		}
+		limit = Math.max(minLimit, limit * backoff);
+		lastDecrease = now;
+		hasDecreased = true;
+		decreases++;
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlightCount() {
+		return inFlight;
+	}
+
+	public synchronized int getDecreaseCount() {
+		return decreases;
+	}
+
+	/**
+	 * @param percentile the percentile between 0 and 100.
+	 * @return the percentile of the latency of the most recent responses in milliseconds, 0 if none was received.
+	 */
+	public synchronized double getLatencyPercentile(double percentile) {
+		return getLatencyPercentiles(percentile)[0];
+	}
+
+	private synchronized double[] getLatencyPercentiles(double... percentiles) {
+		double[] res = new double[percentiles.length];
+		int count = (int) Math.min(samples, LATENCY_SAMPLES);
+		if(count == 0) {
+			return res;
+		}
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		for(int i = 0; i < percentiles.length; i++) {
+			int rank = (int) Math.ceil(percentiles[i] / 100 * count) - 1;
+			res[i] = sorted[Math.min(count - 1, Math.max(0, rank))] / 1e6;
+		}
+		return res;
+	}
+
+	/**
+	 * @return a short summary of the limit and of the latency for the progress message of a node,
+	 * computed again at most once a second.
+	 */
+	public synchronized String getSummary() {
+		long now = System.nanoTime();
+		if(summary == null || now - summaryTime > SUMMARY_INTERVAL) {
+			double[] p = getLatencyPercentiles(50, 90, 99);
+			summary = "OSRM limit " + (int) limit + ", latency p50 " + Math.round(p[0]) + " ms, p90 " + Math.round(p[1])
+					+ " ms, p99 " + Math.round(p[2]) + " ms";
+			summaryTime = now;
+		}
+		return summary;
+	}
+
+	public synchronized String printStats() {
+		double[] p = getLatencyPercentiles(50, 90, 99);
+		return "The OSRM concurrency limit is " + (int) limit + " (between " + minLimit + " and " + maxLimit + "), lowered "
+				+ decreases + " times, latency p50 " + Math.round(p[0]) + " ms, p90 " + Math.round(p[1]) + " ms, p99 "
+				+ Math.round(p[2]) + " ms over the last " + Math.min(samples, LATENCY_SAMPLES) + " responses\n";
+	}
+}
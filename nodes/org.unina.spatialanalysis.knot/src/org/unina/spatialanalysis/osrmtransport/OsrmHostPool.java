@@ -0,0 +1,258 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.knime.core.node.NodeLogger;
+
+/**
+ * The OSRM instances serving the same map, among which the requests of a node are distributed.
+ *
+ * Each request is sent to the available host with the fewest outstanding requests, the one with
+ * the lowest latency among those with as many, so that faster instances get more requests. A host
+ * failing {@link #MAX_FAILURES} requests in a row, because it cannot be reached or it times out,
+ * is dropped for a while, which doubles each time it fails again; when the while is over one request
+ * is sent to it, and the host is admitted again as soon as a request succeeds. If all the hosts are
+ * dropped, the one dropped first is tried anyway.
+ *
+ * Each host has an @see OsrmConcurrencyLimiter of its own, which the requests wait for once the host
+ * is chosen, so that the requests running at once on an instance adapt to its own latency. The requests
+ * waiting for the limiter of a host count among its outstanding ones, so the next requests go to the others.
+ * @author sinog
+ *
+ */
+public class OsrmHostPool {
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(OsrmHostPool.class);
+
+	/**
+	 * The number of failures in a row after which a host is dropped.
+	 */
+	public static final int MAX_FAILURES = 3;
+
+	/**
+	 * How long a host is first dropped, in milliseconds.
+	 */
+	private static final long MIN_BACKOFF = 5000;
+
+	/**
+	 * The longest a host is dropped, in milliseconds.
+	 */
+	private static final long MAX_BACKOFF = 300000;
+
+	/**
+	 * The weight of the latency of the last response in the average latency of a host.
+	 */
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private final List<Host> hosts;
+
+	/**
+	 * The host starting the search of the next one, so that the hosts with the same outstanding
+	 * requests and latency take turns.
+	 */
+	private int next;
+
+	/**
+	 * @param endpoints the base urls of the OSRM instances, e.g. http://127.0.0.1:5000.
+	 * @param initialConcurrency the number of requests sent at once to a host before its limit adapts to its latency.
+	 * @param maxConcurrency the highest number of requests sent at once to a host.
+	 */
+	public OsrmHostPool(List<String> endpoints, int initialConcurrency, int maxConcurrency) {
+		super();
+		if(endpoints.isEmpty()) {
+			throw new IllegalArgumentException("No OSRM host was given");
+		}
+		List<Host> hosts = new ArrayList<Host>();
+		for(String endpoint: endpoints) {
+			hosts.add(new Host(endpoint, new OsrmConcurrencyLimiter(initialConcurrency, 1, maxConcurrency)));
+		}
+		this.hosts = Collections.unmodifiableList(hosts);
+	}
+
+	/**
+	 * Splits the hosts setting of a node, which holds one or more base urls separated by commas,
+	 * semicolons or white space, removing the trailing slashes.
+	 */
+	public static List<String> parseEndpoints(String setting) {
+		List<String> res = new ArrayList<String>();
+		for(String endpoint: setting.trim().split("[,;\\s]+")) {
+			while(endpoint.endsWith("/")) {
+				endpoint = endpoint.substring(0, endpoint.length() - 1);
+			}
+			if(!endpoint.isEmpty() && !res.contains(endpoint)) {
+				res.add(endpoint);
+			}
+		}
+		return res;
+	}
+
+	public List<Host> getHosts() {
+		return hosts;
+	}
+
+	public int size() {
+		return hosts.size();
+	}
+
+	/**
+	 * @return the url of the request sent to the first host, which stands for all the hosts in the
+	 * cache of the responses since they serve the same map.
+	 */
+	public String getCacheUrl(String path) {
+		return hosts.get(0).endpoint + path;
+	}
+
+	/**
+	 * Chooses the host of a request, which must be released with {@link #release(Host, long, OsrmConcurrencyLimiter.Outcome)}.
+	 * The request is then sent when the limiter of the host allows it.
+	 */
+	public synchronized Host acquire() {
+		long now = System.currentTimeMillis();
+		Host best = null;
+		Host firstDropped = null;
+		for(int i = 0; i < hosts.size(); i++) {
+			Host host = hosts.get((next + i) % hosts.size());
+			if(host.dropped && (now < host.droppedUntil || host.outstanding > 0)) {
+				/*
+				 * A dropped host gets a single request at a time once its while is over.
+				 */
+				if(firstDropped == null || host.droppedUntil < firstDropped.droppedUntil) {
+					firstDropped = host;
+				}
+				continue;
+			}
+			if(best == null || host.outstanding < best.outstanding
+					|| (host.outstanding == best.outstanding && host.latency < best.latency)) {
+				best = host;
+			}
+		}
+		if(best == null) {
+			best = firstDropped;
+		}
+		next = (next + 1) % hosts.size();
+		best.outstanding++;
+		best.requests++;
+		return best;
+	}
+
+	/**
+	 * Releases the host of a request, updating its latency and health with the outcome of the request.
+	 * @param start the value of System.nanoTime() when the request was sent.
+	 */
+	public synchronized void release(Host host, long start, OsrmConcurrencyLimiter.Outcome outcome) {
+		host.outstanding--;
+		switch(outcome) {
+			case SUCCESS:
+			case REJECTED:
+				double latency = (System.nanoTime() - start) / 1e6;
+				host.latency = host.latency == 0 ? latency : host.latency + (latency - host.latency) * LATENCY_WEIGHT;
+				host.failures = 0;
+				if(host.dropped) {
+					host.dropped = false;
+					host.backoff = 0;
+					LOGGER.info("The OSRM host " + host.endpoint + " is available again");
+				}
+				break;
+			case TIMEOUT:
+			case FAILED:
+				host.failedRequests++;
+				host.failures++;
+				if(host.dropped || host.failures >= MAX_FAILURES) {
+					host.backoff = host.backoff == 0 ? MIN_BACKOFF : Math.min(MAX_BACKOFF, host.backoff * 2);
+					host.droppedUntil = System.currentTimeMillis() + host.backoff;
+					if(!host.dropped) {
+						LOGGER.warn("The OSRM host " + host.endpoint + " failed " + host.failures + " requests in a row and is dropped");
+					}
+					host.dropped = true;
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * @return true if a request that failed on a host can be sent again to another one.
+	 */
+	public synchronized boolean hasOtherHost(Host failed) {
+		for(Host host: hosts) {
+			if(host != failed && !host.dropped) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized String printStats() {
+		StringBuilder res = new StringBuilder();
+		for(Host host: hosts) {
+			res.append("The OSRM host ").append(host.endpoint).append(" received ").append(host.requests).append(" requests, ")
+					.append(host.failedRequests).append(" failed, average latency ").append(Math.round(host.latency)).append(" ms")
+					.append(host.dropped ? ", dropped\n" : "\n")
+					.append(host.limiter.printStats());
+		}
+		return res.toString();
+	}
+
+	/**
+	 * @return a short summary of the limits and of the latencies of the hosts for the progress message of a node.
+	 */
+	public String getSummary() {
+		if(hosts.size() == 1) {
+			return hosts.get(0).limiter.getSummary();
+		}
+		return hosts.stream().map(host -> host.endpoint + ": " + host.limiter.getSummary()).collect(Collectors.joining("; "));
+	}
+
+	/**
+	 * An OSRM instance of the pool. Its state is guarded by the pool, except its limiter.
+	 */
+	public static class Host {
+
+		private final String endpoint;
+
+		private final OsrmConcurrencyLimiter limiter;
+
+		private int outstanding;
+
+		/**
+		 * The average latency of the responses in milliseconds, 0 until the first response.
+		 */
+		private double latency;
+
+		private int failures;
+
+		private boolean dropped;
+
+		private long droppedUntil;
+
+		private long backoff;
+
+		private long requests;
+
+		private long failedRequests;
+
+		private Host(String endpoint, OsrmConcurrencyLimiter limiter) {
+			this.endpoint = endpoint;
+			this.limiter = limiter;
+		}
+
+		public String getEndpoint() {
+			return endpoint;
+		}
+
+		/**
+		 * @return the limiter of the requests running at once on the host.
+		 */
+		public OsrmConcurrencyLimiter getLimiter() {
+			return limiter;
+		}
+
+		public String getUrl(String path) {
+			return endpoint + path;
+		}
+	}
+}
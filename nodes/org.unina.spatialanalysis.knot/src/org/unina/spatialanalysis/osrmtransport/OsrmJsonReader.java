@@ -0,0 +1,295 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import okio.BufferedSource;
+
+/**
+ * A pull reader of the JSON responses of the OSRM services, reading the tokens straight from
+ * the body of the response, so that neither the whole body nor a tree of its values is built.
+ * The decoders read the values they need and skip the others with {@link #skipValue()}, and
+ * the numbers are parsed without creating objects.
+ *
+ * The reader trusts the server to send well formed JSON: separators are not checked, and
+ * a malformed body only raises an IOException when the reader cannot go on.
+ * @author sinog
+ *
+ */
+public class OsrmJsonReader {
+
+	/**
+	 * The powers of ten that are represented exactly by a double.
+	 */
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	/**
+	 * The largest mantissa represented exactly by a double.
+	 */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private final BufferedSource source;
+
+	private byte[] chars = new byte[64];
+
+	public OsrmJsonReader(BufferedSource source) {
+		super();
+		this.source = source;
+	}
+
+	/**
+	 * @return the next byte that is not white space, nor a separator between values, without consuming it.
+	 */
+	private byte peekToken() throws IOException {
+		while(true) {
+			if(!source.request(1)) {
+				throw new IOException("Unexpected end of the JSON response");
+			}
+			byte b = source.getBuffer().getByte(0);
+			if(b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ',' || b == ':') {
+				source.skip(1);
+			}else {
+				return b;
+			}
+		}
+	}
+
+	private void expect(char c) throws IOException {
+		byte b = peekToken();
+		if(b != c) {
+			throw new IOException("Expected '" + c + "' but found '" + (char) b + "' in the JSON response");
+		}
+		source.skip(1);
+	}
+
+	public void beginObject() throws IOException {
+		expect('{');
+	}
+
+	public void endObject() throws IOException {
+		expect('}');
+	}
+
+	public void beginArray() throws IOException {
+		expect('[');
+	}
+
+	public void endArray() throws IOException {
+		expect(']');
+	}
+
+	/**
+	 * @return true if the current object or array has more members or elements.
+	 */
+	public boolean hasNext() throws IOException {
+		byte b = peekToken();
+		return b != '}' && b != ']';
+	}
+
+	/**
+	 * @return true if the next value is null, which is consumed.
+	 */
+	public boolean nextNull() throws IOException {
+		if(peekToken() == 'n') {
+			skipValue();
+			return true;
+		}
+		return false;
+	}
+
+	public String nextName() throws IOException {
+		return nextString();
+	}
+
+	public String nextString() throws IOException {
+		expect('"');
+		int length = 0;
+		while(true) {
+			byte b = source.readByte();
+			if(b == '"') {
+				break;
+			}
+			if(b == '\\') {
+				b = source.readByte();
+				switch(b) {
+					case 'n':
+						b = '\n';
+						break;
+					case 't':
+						b = '\t';
+						break;
+					case 'r':
+						b = '\r';
+						break;
+					case 'b':
+						b = '\b';
+						break;
+					case 'f':
+						b = '\f';
+						break;
+					case 'u':{
+						String code = new String(Character.toChars(Integer.parseInt(source.readUtf8(4), 16)));
+						for(byte u: code.getBytes(StandardCharsets.UTF_8)) {
+							length = append(u, length);
+						}
+						continue;
+					}
+					default:
+						break;
+				}
+			}
+			length = append(b, length);
+		}
+		return new String(chars, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private int append(byte b, int length) {
+		if(length == chars.length) {
+			byte[] grown = new byte[chars.length * 2];
+			System.arraycopy(chars, 0, grown, 0, length);
+			chars = grown;
+		}
+		chars[length] = b;
+		return length + 1;
+	}
+
+	/**
+	 * Reads the characters of the number into chars.
+	 * @return the number of characters read.
+	 */
+	private int readNumber() throws IOException {
+		peekToken();
+		int length = 0;
+		while(source.request(1)) {
+			byte b = source.getBuffer().getByte(0);
+			if((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+				length = append(b, length);
+				source.skip(1);
+			}else {
+				break;
+			}
+		}
+		if(length == 0) {
+			throw new IOException("Expected a number in the JSON response");
+		}
+		return length;
+	}
+
+	public long nextLong() throws IOException {
+		int length = readNumber();
+		long res = 0;
+		int i = chars[0] == '-' ? 1 : 0;
+		for(; i < length; i++) {
+			byte b = chars[i];
+			if(b < '0' || b > '9') {
+				return (long) parseDouble(length);
+			}
+			res = res * 10 + (b - '0');
+		}
+		return chars[0] == '-' ? -res : res;
+	}
+
+	public double nextDouble() throws IOException {
+		return parseDouble(readNumber());
+	}
+
+	public int nextInt() throws IOException {
+		return (int) nextLong();
+	}
+
+	/**
+	 * Parses the number in chars. The numbers with at most 15 significant digits and a small exponent,
+	 * that are all those sent by OSRM, are computed exactly as the quotient or product of two doubles,
+	 * the others are left to Double.parseDouble.
+	 */
+	private double parseDouble(int length) {
+		boolean negative = chars[0] == '-';
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		int i = negative ? 1 : 0;
+		for(; i < length && chars[i] >= '0' && chars[i] <= '9'; i++) {
+			mantissa = mantissa * 10 + (chars[i] - '0');
+			digits += mantissa > 0 ? 1 : 0;
+		}
+		if(i < length && chars[i] == '.') {
+			for(i++; i < length && chars[i] >= '0' && chars[i] <= '9'; i++) {
+				mantissa = mantissa * 10 + (chars[i] - '0');
+				digits += mantissa > 0 ? 1 : 0;
+				exponent--;
+			}
+		}
+		if(i < length && (chars[i] == 'e' || chars[i] == 'E')) {
+			i++;
+			boolean negativeExponent = i < length && chars[i] == '-';
+			if(i < length && (chars[i] == '-' || chars[i] == '+')) {
+				i++;
+			}
+			int e = 0;
+			for(; i < length && chars[i] >= '0' && chars[i] <= '9' && e < 10000; i++) {
+				e = e * 10 + (chars[i] - '0');
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if(i == length && digits <= 15 && mantissa < MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+			double res = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -res : res;
+		}
+		return Double.parseDouble(new String(chars, 0, length, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Skips the next value, with all the values nested in it.
+	 */
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			byte b = peekToken();
+			switch(b) {
+				case '{':
+				case '[':
+					depth++;
+					source.skip(1);
+					break;
+				case '}':
+				case ']':
+					depth--;
+					source.skip(1);
+					break;
+				case '"':
+					skipString();
+					break;
+				default:
+					skipLiteral();
+					break;
+			}
+		}while(depth > 0);
+	}
+
+	private void skipString() throws IOException {
+		source.skip(1);
+		while(true) {
+			byte b = source.readByte();
+			if(b == '"') {
+				return;
+			}else if(b == '\\') {
+				source.skip(1);
+			}
+		}
+	}
+
+	/**
+	 * Skips a number, true, false or null.
+	 */
+	private void skipLiteral() throws IOException {
+		while(source.request(1)) {
+			byte b = source.getBuffer().getByte(0);
+			if(b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ':') {
+				return;
+			}
+			source.skip(1);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+/**
+ * Decodes the geometries sent by OSRM as encoded polylines, where each coordinate is the difference
+ * from the previous one, multiplied by the precision factor and written 5 bits per character.
+ * @author sinog
+ *
+ */
+public class OsrmPolyline {
+
+	/**
+	 * The precision factor of the polyline6 geometries.
+	 */
+	public static final double POLYLINE6 = 1e6;
+
+	/**
+	 * The precision factor of the polyline geometries.
+	 */
+	public static final double POLYLINE5 = 1e5;
+
+	private OsrmPolyline() {
+	}
+
+	/**
+	 * @return the coordinates of the points of the polyline, as latitude and longitude of the first point,
+	 * then of the second one and so on.
+	 * @throws IllegalArgumentException if the polyline is truncated.
+	 */
+	public static double[] decode(String encoded, double precision) {
+		double[] res = new double[16];
+		int count = 0;
+		int index = 0;
+		long lat = 0;
+		long lon = 0;
+		while(index < encoded.length()) {
+			for(int c = 0; c < 2; c++) {
+				long value = 0;
+				int shift = 0;
+				int b;
+				do {
+					if(index >= encoded.length()) {
+						throw new IllegalArgumentException("The polyline is truncated");
+					}
+					b = encoded.charAt(index++) - 63;
+					value |= (long) (b & 0x1f) << shift;
+					shift += 5;
+				}while(b >= 0x20);
+				long delta = (value & 1) != 0 ? ~(value >> 1) : value >> 1;
+				if(c == 0) {
+					lat += delta;
+				}else {
+					lon += delta;
+				}
+			}
+			if(count + 2 > res.length) {
+				double[] grown = new double[res.length * 2];
+				System.arraycopy(res, 0, grown, 0, count);
+				res = grown;
+			}
+			res[count++] = lat / precision;
+			res[count++] = lon / precision;
+		}
+		double[] exact = new double[count];
+		System.arraycopy(res, 0, exact, 0, count);
+		return exact;
+	}
+}
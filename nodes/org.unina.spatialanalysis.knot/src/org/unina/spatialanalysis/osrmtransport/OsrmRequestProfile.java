@@ -0,0 +1,47 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+/**
+ * The options of the requests to the OSRM services, each one asking only for what a node writes
+ * in its output, so that the server neither computes nor sends the rest. Each profile is read by
+ * a decoder of its own: the annotations by @see OsrmRouteDecoder, the geometry by
+ * @see OsrmShortestRoutingService with {@link OsrmPolyline#decode(String, double)} and the
+ * tables by @see OsrmTableRoutingService.
+ * @author sinog
+ *
+ */
+public enum OsrmRequestProfile {
+	/**
+	 * The OSM nodes of the route with the duration and the distance between each pair of them,
+	 * without geometry nor steps.
+	 */
+	ANNOTATIONS("overview=false&steps=false&annotations=nodes,duration,distance"),
+	/**
+	 * The whole geometry of the route as a polyline with 6 decimals, besides its duration and distance,
+	 * without steps nor annotations.
+	 */
+	GEOMETRY("overview=full&geometries=polyline6&steps=false&annotations=false"),
+	/**
+	 * The durations and the distances between the sources and the destinations of a table request.
+	 */
+	TABLE("annotations=duration,distance");
+
+	private final String options;
+
+	OsrmRequestProfile(String options) {
+		this.options = options;
+	}
+
+	/**
+	 * @return the options of the profile, to be appended to the request after '?' or '&'.
+	 */
+	public String getOptions() {
+		return options;
+	}
+
+	/**
+	 * @return the request with the options of the profile appended.
+	 */
+	public String appendTo(String request) {
+		return request + (request.indexOf('?') == -1 ? '?' : '&') + options;
+	}
+}
@@ -0,0 +1,454 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.knime.core.node.NodeLogger;
+
+import okhttp3.HttpUrl;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A cache on disk of the responses of the OSRM services, so that executing a workflow again
+ * with the same traces and server reads the routes from the disk instead of asking the server.
+ *
+ * Each response is kept gzip compressed in a file named after the SHA-256 of the version of the map
+ * of the server and of the normalized request: the host, the service, the profile, the coordinates
+ * rounded to the 6 decimals used by OSRM and the options sorted by name. The cache does not know
+ * when the map of the server changes, so the map version, given in the node settings, must change
+ * whenever the server is loaded with new map data, otherwise the old responses are read again.
+ * When the files take more than the maximum size, the least recently used ones are deleted.
+ * @author sinog
+ *
+ */
+public class OsrmResponseCache {
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(OsrmResponseCache.class);
+
+	private static final String ENTRY_EXTENSION = ".gz";
+
+	private static final int ENTRY_BUFFER_SIZE = 8192;
+
+	private static final Pattern ENTRY_NAME = Pattern.compile("[0-9a-f]{64}\\" + ENTRY_EXTENSION);
+
+	private static final Pattern COORDINATES = Pattern.compile("-?[0-9.]+,-?[0-9.]+(;-?[0-9.]+,-?[0-9.]+)*");
+
+	/**
+	 * The number of decimals of the coordinates kept by OSRM.
+	 */
+	private static final int COORDINATE_DECIMALS = 6;
+
+	/**
+	 * After an eviction the entries take at most this fraction of the maximum size, so that
+	 * the directory is not scanned again at the next write.
+	 */
+	private static final double EVICTION_TARGET = 0.9;
+
+	private final File directory;
+
+	private final long maxSize;
+
+	private final AtomicLong size = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong writes = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param directory the directory holding the entries, created if needed.
+	 * @param maxSize the maximum number of bytes taken by the entries.
+	 * @throws IOException if the directory cannot be created or read.
+	 */
+	public OsrmResponseCache(File directory, long maxSize) throws IOException {
+		super();
+		this.directory = directory;
+		this.maxSize = maxSize;
+		Files.createDirectories(directory.toPath());
+		long total = 0;
+		for(Path entry: listEntries()) {
+			total += Files.size(entry);
+		}
+		size.set(total);
+	}
+
+	/**
+	 * @param mapVersion the version of the map data of the server, which identifies its responses.
+	 * @return the body of the cached response to the request, or null if it is not cached.
+	 */
+	public String get(String url, String mapVersion) {
+		try(BufferedSource body = open(url, mapVersion)){
+			return body != null ? body.readUtf8() : null;
+		}catch(IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param mapVersion the version of the map data of the server, which identifies its responses.
+	 * @return the body of the cached response to the request, to be closed by the caller,
+	 * or null if it is not cached.
+	 */
+	public BufferedSource open(String url, String mapVersion) {
+		Path entry = getEntry(url, mapVersion);
+		if(entry == null || !Files.isRegularFile(entry)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		try {
+			BufferedSource body = Okio.buffer(Okio.source(new GZIPInputStream(Files.newInputStream(entry), ENTRY_BUFFER_SIZE)));
+			/*
+			 * The modification time marks the last use of the entry for the eviction.
+			 */
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			hits.incrementAndGet();
+			return body;
+		}catch(IOException e) {
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	public void put(String url, String mapVersion, String body) {
+		put(url, mapVersion, body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Stores the body of the response to the request.
+	 */
+	public void put(String url, String mapVersion, byte[] body) {
+		try(EntryWriter writer = write(url, mapVersion)){
+			if(writer != null) {
+				writer.out.write(body);
+				writer.commit();
+			}
+		}catch(IOException e) {
+			LOGGER.warn("Could not cache the OSRM response: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts storing the body of the response to the request, which is written to the entry while it
+	 * is read through {@link EntryWriter#tee(Source)}, so that the body is never held in memory as a whole.
+	 * @return the writer of the entry, to be closed by the caller, or null if the url is not valid or
+	 * the entry cannot be created.
+	 */
+	public EntryWriter write(String url, String mapVersion) {
+		Path entry = getEntry(url, mapVersion);
+		if(entry == null) {
+			return null;
+		}
+		try {
+			Files.createDirectories(entry.getParent());
+			return new EntryWriter(entry, Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp"));
+		}catch(IOException e) {
+			LOGGER.warn("Could not cache the OSRM response: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes an entry under a temporary name, so that a concurrent reader never sees a partially written entry.
+	 * The entry is stored by {@link #commit()}, once the whole body was written; closing the writer
+	 * before that discards it.
+	 */
+	public class EntryWriter implements Closeable {
+
+		private final Path entry;
+
+		private final Path tmp;
+
+		private final OutputStream out;
+
+		/**
+		 * The exception that stopped the writing of the body, which is still read by the caller.
+		 */
+		private IOException failure;
+
+		private boolean closed;
+
+		private EntryWriter(Path entry, Path tmp) throws IOException {
+			this.entry = entry;
+			this.tmp = tmp;
+			try {
+				this.out = new GZIPOutputStream(Files.newOutputStream(tmp), ENTRY_BUFFER_SIZE);
+			}catch(IOException e) {
+				Files.deleteIfExists(tmp);
+				throw e;
+			}
+		}
+
+		/**
+		 * @return a source reading the body and writing each byte read to the entry. An error
+		 * writing the entry does not stop the reading, it only discards the entry.
+		 */
+		public Source tee(Source body) {
+			return new ForwardingSource(body) {
+
+				@Override
+				public long read(Buffer sink, long byteCount) throws IOException {
+					long read = super.read(sink, byteCount);
+					if(read > 0 && failure == null) {
+						try {
+							sink.copyTo(out, sink.size() - read, read);
+						}catch(IOException e) {
+							failure = e;
+						}
+					}
+					return read;
+				}
+			};
+		}
+
+		/**
+		 * Stores the entry, replacing the previous one, and evicts the least recently used entries if needed.
+		 */
+		public void commit() throws IOException {
+			if(failure != null) {
+				throw failure;
+			}
+			closed = true;
+			try {
+				out.close();
+				long previous = Files.isRegularFile(entry) ? Files.size(entry) : 0;
+				try {
+					Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}catch(AtomicMoveNotSupportedException e) {
+					Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+				}
+				writes.incrementAndGet();
+				if(size.addAndGet(Files.size(entry) - previous) > maxSize) {
+					evict();
+				}
+			}finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+
+		/**
+		 * Discards the entry unless it was committed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					out.close();
+				}finally {
+					Files.deleteIfExists(tmp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until they take at most a fraction of the maximum size.
+	 */
+	private synchronized void evict() throws IOException {
+		if(size.get() <= maxSize) {
+			return;
+		}
+		List<Path> entries = listEntries();
+		List<FileTime> times = new ArrayList<FileTime>();
+		long total = 0;
+		for(Path entry: entries) {
+			times.add(Files.getLastModifiedTime(entry));
+			total += Files.size(entry);
+		}
+		Integer[] order = new Integer[entries.size()];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparing(times::get));
+		long target = (long) (maxSize * EVICTION_TARGET);
+		for(int i = 0; i < order.length && total > target; i++) {
+			Path entry = entries.get(order[i]);
+			long length = Files.size(entry);
+			if(Files.deleteIfExists(entry)) {
+				total -= length;
+				evictions.incrementAndGet();
+			}
+		}
+		size.set(total);
+	}
+
+	/**
+	 * Imports the entries of another cache directory, for example one filled on another machine,
+	 * keeping the entries already present. The least recently used entries are evicted if needed.
+	 * @return the number of entries imported.
+	 */
+	public int importFrom(File source) throws IOException {
+		int imported = 0;
+		try(Stream<Path> files = Files.walk(source.toPath())){
+			for(Path file: files.filter(f -> ENTRY_NAME.matcher(f.getFileName().toString()).matches()).collect(Collectors.toList())) {
+				String name = file.getFileName().toString();
+				Path entry = directory.toPath().resolve(name.substring(0, 2)).resolve(name);
+				if(!Files.exists(entry)) {
+					Files.createDirectories(entry.getParent());
+					Files.copy(file, entry, StandardCopyOption.COPY_ATTRIBUTES);
+					size.addAndGet(Files.size(entry));
+					imported++;
+				}
+			}
+		}
+		if(size.get() > maxSize) {
+			evict();
+		}
+		return imported;
+	}
+
+	/**
+	 * Deletes all the entries, to be called when the map data of the server changes.
+	 */
+	public synchronized void clear() throws IOException {
+		for(Path entry: listEntries()) {
+			Files.deleteIfExists(entry);
+		}
+		size.set(0);
+	}
+
+	private List<Path> listEntries() throws IOException {
+		try(Stream<Path> files = Files.walk(directory.toPath(), 2)){
+			return files.filter(f -> ENTRY_NAME.matcher(f.getFileName().toString()).matches()).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * @return the file of the entry of the request, in a sub directory named after the first
+	 * byte of the hash so that no directory holds too many files, or null if the url is not valid.
+	 */
+	private Path getEntry(String url, String mapVersion) {
+		String request = normalize(url);
+		if(request == null) {
+			return null;
+		}
+		/*
+		 * The version comes first and its length is part of the key, so that no pair of
+		 * version and request can be mistaken for another one.
+		 */
+		String key = mapVersion.length() + ":" + mapVersion + "\n" + request;
+		String hash = toHex(digest(key.getBytes(StandardCharsets.UTF_8)));
+		return directory.toPath().resolve(hash.substring(0, 2)).resolve(hash + ENTRY_EXTENSION);
+	}
+
+	/**
+	 * @return the request written so that requests with the same response are equal, or null if the url is not valid.
+	 */
+	static String normalize(String url) {
+		HttpUrl parsed = HttpUrl.parse(url);
+		if(parsed == null) {
+			return null;
+		}
+		StringBuilder res = new StringBuilder();
+		res.append(parsed.scheme()).append("://").append(parsed.host()).append(':').append(parsed.port());
+		for(String segment: parsed.pathSegments()) {
+			if(segment.isEmpty()) {
+				continue;
+			}
+			res.append('/');
+			if(COORDINATES.matcher(segment).matches()) {
+				appendCoordinates(segment, res);
+			}else {
+				res.append(segment);
+			}
+		}
+		TreeSet<String> options = new TreeSet<String>();
+		for(String name: parsed.queryParameterNames()) {
+			for(String value: parsed.queryParameterValues(name)) {
+				options.add(name + "=" + value);
+			}
+		}
+		res.append('?').append(String.join("&", options));
+		return res.toString();
+	}
+
+	private static void appendCoordinates(String coordinates, StringBuilder res) {
+		String[] values = coordinates.split("[,;]");
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0) {
+				res.append(i % 2 == 0 ? ';' : ',');
+			}
+			try {
+				res.append(new BigDecimal(values[i]).setScale(COORDINATE_DECIMALS, RoundingMode.HALF_EVEN).toPlainString());
+			}catch(NumberFormatException e) {
+				res.append(values[i]);
+			}
+		}
+	}
+
+	private static byte[] digest(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		}catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder res = new StringBuilder();
+		for(byte b: bytes) {
+			res.append(String.format("%02x", b));
+		}
+		return res.toString();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getSize() {
+		return size.get();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the fraction of the requests answered by the cache, 0 if none was asked.
+	 */
+	public double getHitRate() {
+		long requests = hits.get() + misses.get();
+		return requests == 0 ? 0 : hits.get() / (double) requests;
+	}
+
+	public String printStats() {
+		return "The OSRM response cache in " + directory + " answered " + getHitCount() + " of " + (getHitCount() + getMissCount())
+				+ " requests (" + Math.round(getHitRate() * 100) + "%), stored " + writes.get() + " responses, evicted " + evictions.get()
+				+ ", " + getSize() / (1024 * 1024) + " MB of " + maxSize / (1024 * 1024) + " MB used\n";
+	}
+}
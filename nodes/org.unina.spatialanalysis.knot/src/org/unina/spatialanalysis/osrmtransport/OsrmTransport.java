@@ -0,0 +1,535 @@
+package org.unina.spatialanalysis.osrmtransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.knime.core.node.NodeLogger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * The HTTP transport shared by all the clients of the routing services, so that connections,
+ * threads and keep-alive state outlive a single request.
+ * Responses are gzip compressed whenever the server supports it, since OkHttp asks for gzip
+ * and decompresses the body transparently.
+ *
+ * The settings of the shared instance can be changed with system properties:
+ * knot.osrm.connect.timeout and knot.osrm.read.timeout in milliseconds,
+ * knot.osrm.max.requests.per.host for the asynchronous calls running at once on a host,
+ * knot.osrm.max.idle.connections and knot.osrm.keep.alive in seconds for the connection pool.
+ *
+ * The requests sent to a server at once are limited by an @see OsrmConcurrencyLimiter, which
+ * starts from knot.osrm.initial.concurrency requests, 4 by default, and adapts the limit to the
+ * latency of the server up to knot.osrm.max.requests.per.host.
+ *
+ * The requests of a node can be distributed among several OSRM instances serving the same map,
+ * listed in its hosts setting, by an @see OsrmHostPool, whose hosts have a limiter each. The requests
+ * sent to a whole url, without a pool, share the limiter of the transport.
+ *
+ * The nodes can cache the successful responses, identified by the map version given in their settings,
+ * in an @see OsrmResponseCache opened on first use in the directory given by knot.osrm.cache.directory,
+ * .knot/osrm-cache in the home directory by default, taking at most knot.osrm.cache.max.size MB,
+ * 1024 by default, or none to disable the cache. The entries of the cache directory given by
+ * knot.osrm.cache.import are added to it when it is opened.
+ * @author sinog
+ *
+ */
+public class OsrmTransport {
+
+	/**
+	 * Decodes the body of a response, usually with an @see OsrmJsonReader.
+	 * @param <R> the type of the decoded response.
+	 */
+	public interface BodyDecoder<R> {
+
+		public R decode(BufferedSource body) throws IOException;
+	}
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(OsrmTransport.class);
+
+	private static final String PROPERTY_PREFIX = "knot.osrm.";
+
+	private static final OsrmTransport INSTANCE = new OsrmTransport(
+			longProperty("connect.timeout", 10000),
+			longProperty("read.timeout", 60000),
+			(int) longProperty("max.requests.per.host", 64),
+			(int) longProperty("max.idle.connections", 64),
+			longProperty("keep.alive", 300),
+			(int) longProperty("initial.concurrency", 4));
+
+	private final OkHttpClient client;
+
+	private volatile OsrmResponseCache cache;
+
+	private volatile boolean cacheOpened;
+
+	private final OsrmConcurrencyLimiter limiter;
+
+	private final int initialConcurrency;
+
+	private final int maxRequestsPerHost;
+
+	private final ConcurrentHashMap<String, OsrmHostPool> hostPools = new ConcurrentHashMap<String, OsrmHostPool>();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong newConnections = new AtomicLong();
+
+	private final AtomicLong acquiredConnections = new AtomicLong();
+
+	private final AtomicLong failedRequests = new AtomicLong();
+
+	/**
+	 * @param connectTimeout the timeout to open a connection, in milliseconds.
+	 * @param readTimeout the timeout of each read of a response, in milliseconds; requests on long
+	 * traces can keep the server busy for a while before it answers.
+	 * @param maxRequestsPerHost the maximum number of asynchronous calls running at once on a host.
+	 * @param maxIdleConnections the maximum number of idle connections kept alive.
+	 * @param keepAlive how long an idle connection is kept alive, in seconds.
+	 * @param initialConcurrency the number of requests sent at once before the limit adapts to the latency of the server.
+	 */
+	public OsrmTransport(long connectTimeout, long readTimeout, int maxRequestsPerHost, int maxIdleConnections, long keepAlive, int initialConcurrency) {
+		super();
+		this.limiter = new OsrmConcurrencyLimiter(initialConcurrency, 1, maxRequestsPerHost);
+		this.initialConcurrency = initialConcurrency;
+		this.maxRequestsPerHost = maxRequestsPerHost;
+		ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "KNOT OSRM dispatcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Dispatcher dispatcher = new Dispatcher(executor);
+		dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+		dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), maxRequestsPerHost));
+		this.client = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.connectionPool(new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.SECONDS))
+				.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+				.readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+				.retryOnConnectionFailure(true)
+				.eventListener(new CountingListener())
+				.build();
+	}
+
+	public static OsrmTransport getInstance() {
+		return INSTANCE;
+	}
+
+	private static long longProperty(String name, long defaultValue) {
+		String value = System.getProperty(PROPERTY_PREFIX + name);
+		if(value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			}catch(NumberFormatException e) {
+				LOGGER.warn("Invalid value of " + PROPERTY_PREFIX + name + ": " + value);
+			}
+		}
+		return defaultValue;
+	}
+
+	private static OsrmResponseCache createDefaultCache() {
+		long maxSize = longProperty("cache.max.size", 1024) * 1024 * 1024;
+		if(maxSize <= 0) {
+			return null;
+		}
+		String directory = System.getProperty(PROPERTY_PREFIX + "cache.directory");
+		File cacheDirectory = directory != null && !directory.trim().isEmpty() ? new File(directory.trim())
+				: new File(new File(System.getProperty("user.home"), ".knot"), "osrm-cache");
+		try {
+			OsrmResponseCache cache = new OsrmResponseCache(cacheDirectory, maxSize);
+			String source = System.getProperty(PROPERTY_PREFIX + "cache.import");
+			if(source != null && !source.trim().isEmpty()) {
+				LOGGER.info("Imported " + cache.importFrom(new File(source.trim())) + " entries in the OSRM response cache");
+			}
+			return cache;
+		}catch(IOException e) {
+			LOGGER.warn("The OSRM response cache could not be opened in " + cacheDirectory + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the cache of the responses, opened on first use, or null if the responses cannot be cached.
+	 */
+	public OsrmResponseCache getCache() {
+		if(!cacheOpened) {
+			synchronized(this) {
+				if(!cacheOpened) {
+					cache = createDefaultCache();
+					cacheOpened = true;
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Sets the cache of the responses, null not to cache them.
+	 */
+	public synchronized void setCache(OsrmResponseCache cache) {
+		this.cache = cache;
+		cacheOpened = true;
+	}
+
+	/**
+	 * @return the cache of the responses to the requests for the map version, or null if they are not cached.
+	 */
+	private OsrmResponseCache getCache(String mapVersion) {
+		return mapVersion != null ? getCache() : null;
+	}
+
+	/**
+	 * @return the limiter of the requests sent to a whole url, without a pool of hosts.
+	 */
+	public OsrmConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * @return the limiter of the requests sent to the host, or the one of the transport if there is no host.
+	 */
+	private OsrmConcurrencyLimiter getLimiter(OsrmHostPool.Host host) {
+		return host != null ? host.getLimiter() : limiter;
+	}
+
+	public OkHttpClient getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the pool of the hosts listed in the hosts setting of a node, shared by all the requests
+	 * to the same hosts so that their health is known across executions.
+	 * @see OsrmHostPool#parseEndpoints(String)
+	 */
+	public OsrmHostPool getHostPool(String hosts) {
+		List<String> endpoints = OsrmHostPool.parseEndpoints(hosts);
+		return hostPools.computeIfAbsent(String.join(",", endpoints), key -> new OsrmHostPool(endpoints, initialConcurrency, maxRequestsPerHost));
+	}
+
+	/**
+	 * Sends a GET request and reads the whole body of the response.
+	 * @throws IOException in case of errors when sending the request or reading the response.
+	 */
+	public String get(String url) throws IOException {
+		return get(url, BufferedSource::readUtf8);
+	}
+
+	/**
+	 * Sends a GET request and decodes the body of the response while it is received.
+	 * @throws IOException in case of errors when sending the request or reading the response.
+	 */
+	public <R> R get(String url, BodyDecoder<R> decoder) throws IOException {
+		return get(null, url, null, decoder);
+	}
+
+	/**
+	 * Sends a GET request to the host of the pool with the fewest outstanding requests, and decodes the body
+	 * of the response while it is received, unless it is cached. If the host cannot be reached, the request
+	 * is sent again to another host.
+	 * @param hosts the hosts the request can be sent to, or null if the path is the whole url of the request.
+	 * @param path the path and the query of the request, starting with a slash.
+	 * @param mapVersion the version of the map data of the hosts, which identifies their responses in the
+	 * cache, or null not to cache the response.
+	 * @throws IOException in case of errors when sending the request or reading the response.
+	 */
+	public <R> R get(OsrmHostPool hosts, String path, String mapVersion, BodyDecoder<R> decoder) throws IOException {
+		String cacheUrl = hosts != null ? hosts.getCacheUrl(path) : path;
+		OsrmResponseCache cache = getCache(mapVersion);
+		if(cache != null) {
+			try(BufferedSource cached = cache.open(cacheUrl, mapVersion)){
+				if(cached != null) {
+					return decoder.decode(cached);
+				}
+			}
+		}
+		int size = getRequestSize(path);
+		for(int attempt = 1; ; attempt++) {
+			OsrmHostPool.Host host = hosts != null ? hosts.acquire() : null;
+			try {
+				getLimiter(host).acquire();
+			}catch(InterruptedException e) {
+				if(host != null) {
+					hosts.release(host, System.nanoTime(), OsrmConcurrencyLimiter.Outcome.IGNORED);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to send the request");
+			}
+			long start = System.nanoTime();
+			Response response;
+			try {
+				response = newCall(host != null ? host.getUrl(path) : path).execute();
+			}catch(IOException e) {
+				OsrmConcurrencyLimiter.Outcome outcome = getOutcome(e, false);
+				release(hosts, host, size, start, outcome);
+				if(canRetry(hosts, host, outcome, attempt)) {
+					continue;
+				}
+				throw e;
+			}
+			OsrmConcurrencyLimiter.Outcome outcome = OsrmConcurrencyLimiter.Outcome.IGNORED;
+			try(Response r = response){
+				outcome = getOutcome(r);
+				return decodeBody(cacheUrl, mapVersion, r, cache, decoder);
+			}catch(IOException e) {
+				outcome = getOutcome(e, false);
+				throw e;
+			}finally {
+				release(hosts, host, size, start, outcome);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of coordinates of the request, which the latency of the server grows with,
+	 * 1 if the path has none.
+	 */
+	static int getRequestSize(String path) {
+		int end = path.indexOf('?');
+		if(end < 0) {
+			end = path.length();
+		}
+		int res = 1;
+		for(int i = path.lastIndexOf('/', end) + 1; i < end; i++) {
+			if(path.charAt(i) == ';') {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return REJECTED if the server is overloaded or the request is too big for it, SUCCESS otherwise.
+	 */
+	private static OsrmConcurrencyLimiter.Outcome getOutcome(Response response) throws IOException {
+		if(response.code() >= 500 || response.code() == 429
+				|| (response.code() == 400 && response.peekBody(256).string().contains("\"TooBig\""))) {
+			return OsrmConcurrencyLimiter.Outcome.REJECTED;
+		}
+		return OsrmConcurrencyLimiter.Outcome.SUCCESS;
+	}
+
+	/**
+	 * @return the outcome of a request that failed with the exception.
+	 */
+	private static OsrmConcurrencyLimiter.Outcome getOutcome(IOException e, boolean canceled) {
+		if(canceled) {
+			return OsrmConcurrencyLimiter.Outcome.IGNORED;
+		}
+		return e instanceof InterruptedIOException ? OsrmConcurrencyLimiter.Outcome.TIMEOUT : OsrmConcurrencyLimiter.Outcome.FAILED;
+	}
+
+	/**
+	 * @return true if a request that could not be sent can be sent again to another host, each host at most once.
+	 */
+	private static boolean canRetry(OsrmHostPool hosts, OsrmHostPool.Host host, OsrmConcurrencyLimiter.Outcome outcome, int attempt) {
+		return outcome == OsrmConcurrencyLimiter.Outcome.FAILED && host != null && attempt < hosts.size() && hosts.hasOtherHost(host);
+	}
+
+	private void release(OsrmHostPool hosts, OsrmHostPool.Host host, int size, long start, OsrmConcurrencyLimiter.Outcome outcome) {
+		getLimiter(host).release(size, start, outcome);
+		if(host != null) {
+			hosts.release(host, start, outcome);
+		}
+	}
+
+	/**
+	 * Decodes the body of the response. When the request succeeded and the responses are cached,
+	 * the body is written to the cache while it is decoded, and the entry is stored once the
+	 * decoding succeeded and the rest of the body, if any, was read.
+	 */
+	private static <R> R decodeBody(String url, String mapVersion, Response response, OsrmResponseCache cache, BodyDecoder<R> decoder) throws IOException {
+		BufferedSource body = response.body().source();
+		if(cache == null || !response.isSuccessful()) {
+			return decoder.decode(body);
+		}
+		try(OsrmResponseCache.EntryWriter writer = cache.write(url, mapVersion)){
+			if(writer == null) {
+				return decoder.decode(body);
+			}
+			BufferedSource teed = Okio.buffer(writer.tee(body));
+			R res = decoder.decode(teed);
+			teed.readAll(Okio.blackhole());
+			try {
+				writer.commit();
+			}catch(IOException e) {
+				LOGGER.warn("Could not cache the OSRM response: " + e.getMessage());
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Enqueues a GET request, which is sent by the dispatcher as soon as fewer requests than the
+	 * limit of the @see OsrmConcurrencyLimiter are running.
+	 * @return a future completed with the whole body of the response, or with the IOException thrown
+	 * when sending the request or reading the response. Cancelling the future cancels the request.
+	 */
+	public CompletableFuture<String> getAsync(String url) {
+		return getAsync(url, BufferedSource::readUtf8);
+	}
+
+	/**
+	 * Enqueues a GET request like {@link #getAsync(String)}, whose response is decoded by the
+	 * threads of the dispatcher.
+	 * @return a future completed with the decoded response, or with the exception thrown when
+	 * sending the request or decoding the response.
+	 */
+	public <R> CompletableFuture<R> getAsync(String url, BodyDecoder<R> decoder) {
+		return getAsync(null, url, null, decoder);
+	}
+
+	/**
+	 * Enqueues a GET request like {@link #getAsync(String, BodyDecoder)}, which is sent to the host of
+	 * the pool with the fewest outstanding requests when the limit allows it, and again to another host
+	 * if the host cannot be reached.
+	 * @param hosts the hosts the request can be sent to, or null if the path is the whole url of the request.
+	 * @param path the path and the query of the request, starting with a slash.
+	 * @param mapVersion the version of the map data of the hosts, which identifies their responses in the
+	 * cache, or null not to cache the response.
+	 */
+	public <R> CompletableFuture<R> getAsync(OsrmHostPool hosts, String path, String mapVersion, BodyDecoder<R> decoder) {
+		String cacheUrl = hosts != null ? hosts.getCacheUrl(path) : path;
+		OsrmResponseCache cache = getCache(mapVersion);
+		if(cache != null) {
+			try(BufferedSource cached = cache.open(cacheUrl, mapVersion)){
+				if(cached != null) {
+					return CompletableFuture.completedFuture(decoder.decode(cached));
+				}
+			}catch(IOException | RuntimeException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+		CompletableFuture<R> result = new CompletableFuture<R>();
+		enqueue(hosts, path, cacheUrl, mapVersion, cache, decoder, result, 1);
+		return result;
+	}
+
+	private <R> void enqueue(OsrmHostPool hosts, String path, String cacheUrl, String mapVersion, OsrmResponseCache cache, BodyDecoder<R> decoder,
+			CompletableFuture<R> result, int attempt) {
+		OsrmHostPool.Host host = hosts != null ? hosts.acquire() : null;
+		int size = getRequestSize(path);
+		getLimiter(host).execute(() -> {
+			if(result.isDone()) {
+				release(hosts, host, size, System.nanoTime(), OsrmConcurrencyLimiter.Outcome.IGNORED);
+				return;
+			}
+			Call call = newCall(host != null ? host.getUrl(path) : path);
+			result.whenComplete((body, e) -> {
+				if(result.isCancelled()) {
+					call.cancel();
+				}
+			});
+			long start = System.nanoTime();
+			call.enqueue(new Callback() {
+
+				@Override
+				public void onResponse(Call call, Response response) {
+					OsrmConcurrencyLimiter.Outcome outcome = OsrmConcurrencyLimiter.Outcome.IGNORED;
+					try(Response r = response){
+						outcome = getOutcome(r);
+						result.complete(decodeBody(cacheUrl, mapVersion, r, cache, decoder));
+					}catch(IOException e) {
+						outcome = getOutcome(e, call.isCanceled());
+						result.completeExceptionally(e);
+					}catch(RuntimeException e) {
+						result.completeExceptionally(e);
+					}finally {
+						release(hosts, host, size, start, outcome);
+					}
+				}
+
+				@Override
+				public void onFailure(Call call, IOException e) {
+					OsrmConcurrencyLimiter.Outcome outcome = getOutcome(e, call.isCanceled());
+					release(hosts, host, size, start, outcome);
+					if(canRetry(hosts, host, outcome, attempt)) {
+						enqueue(hosts, path, cacheUrl, mapVersion, cache, decoder, result, attempt + 1);
+					}else {
+						result.completeExceptionally(e);
+					}
+				}
+			});
+		});
+	}
+
+	/**
+	 * @return a new call of a GET request, to be executed or enqueued by the caller.
+	 */
+	public Call newCall(String url) {
+		return client.newCall(new Request.Builder().url(url).build());
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getNewConnectionCount() {
+		return newConnections.get();
+	}
+
+	/**
+	 * @return the number of requests sent on a connection already opened by a previous request.
+	 */
+	public long getReusedConnectionCount() {
+		return Math.max(0, acquiredConnections.get() - newConnections.get());
+	}
+
+	public long getFailedRequestCount() {
+		return failedRequests.get();
+	}
+
+	public String printStats() {
+		return "The OSRM transport sent " + getRequestCount() + " requests, " + getFailedRequestCount() + " failed, on "
+				+ getNewConnectionCount() + " new connections, reused " + getReusedConnectionCount() + " times, "
+				+ client.connectionPool().idleConnectionCount() + " idle connections kept alive\n"
+				+ limiter.printStats()
+				+ hostPools.values().stream().map(OsrmHostPool::printStats).collect(Collectors.joining())
+				+ (cache != null ? cache.printStats() : "");
+	}
+
+	private class CountingListener extends EventListener {
+
+		@Override
+		public void callStart(Call call) {
+			requests.incrementAndGet();
+		}
+
+		@Override
+		public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+			newConnections.incrementAndGet();
+		}
+
+		@Override
+		public void connectionAcquired(Call call, Connection connection) {
+			acquiredConnections.incrementAndGet();
+		}
+
+		@Override
+		public void callFailed(Call call, IOException ioe) {
+			failedRequests.incrementAndGet();
+		}
+	}
+}
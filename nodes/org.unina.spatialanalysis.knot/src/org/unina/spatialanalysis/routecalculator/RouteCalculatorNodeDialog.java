@@ -10,10 +10,12 @@ import org.knime.core.data.IntValue;
 import org.knime.core.data.StringValue;
 import org.knime.core.data.LongValue;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumberEdit;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
 import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
@@ -25,7 +27,7 @@ public class RouteCalculatorNodeDialog extends DefaultNodeSettingsPane {
 	
 	private static final String [] avaibleRoutingServices = {"OSRM"};
 	
-	private static final String [] OSRMAvailableModes = {"shortest"};
+	private static final String [] OSRMAvailableModes = {"shortest", "table"};
 	
 	private static final String PAIR_TYPE_TOOLTIP = "<html>"
 			  + "This setting is used to specify the coordinate input format to be used."
@@ -35,13 +37,17 @@ public class RouteCalculatorNodeDialog extends DefaultNodeSettingsPane {
 	private static final String OSRM_SERVER_TOOLTIP = "<html>"
 													+ "The url inserted here must correspond to a running instance"
 													+ "<br>of the OSRM routing machine.</br>" 
+													+ "<br>Several urls of instances serving the same map can be separated by commas,</br>"
+													+ "<br>the requests are then distributed among them.</br>"
 													+ "</html>";
 	
 	private static final String ROUTING_MODE_TOOLTIP = "<html>"
-													+ "Select a routing strategy. Currently, only the <i>shortest</i> strategy is supported."
-													+ "<br>This strategy considers only the first and the last points in the original trajectory,</br>"
-													+ "<br>and computes the shortest path between them. If the original trajectory contains more than two positions, </br>"
-													+ "the additional positions will be ignored.</html>";
+													+ "Select a routing strategy, either <i>shortest</i> or <i>table</i>."
+													+ "<br>Both strategies consider only the first and the last points in the original trajectory,</br>"
+													+ "<br>and compute the shortest path between them. If the original trajectory contains more than two positions, </br>"
+													+ "<br>the additional positions will be ignored.</br>"
+													+ "<br>The <i>table</i> strategy computes only the duration and the distance of the routes, without their geometry,</br>"
+													+ "<br>for many routes with a single request.</br></html>";
 	
 	private static final String MIN_ROUTE_DISTANCE_TOOLTIP =  "<html>"
 															+ "This value (in meters) is used to determine wether a route should be discarded."
@@ -53,6 +59,21 @@ public class RouteCalculatorNodeDialog extends DefaultNodeSettingsPane {
 															+ "<br>Routes that last less than this value will be discarded.</br>"
 															+ "</html>";
 	
+	private static final String MAX_IN_FLIGHT_REQUESTS_TOOLTIP = "<html>"
+															+ "The maximum number of routes requested at once to the routing service."
+															+ "<br>The routes are still written in the order of the input.</br>"
+															+ "</html>";
+	
+	private static final String CACHE_RESPONSES_TOOLTIP = "<html>"
+															+ "If checked, the responses of the routing service are kept on disk, so that calculating"
+															+ "<br>the same routes again reads them from the disk instead of asking the server.</br>"
+															+ "</html>";
+	
+	private static final String MAP_VERSION_TOOLTIP = "<html>"
+															+ "Any text identifying the map data loaded on the server, e.g. the date of the OSM extract."
+															+ "<br>It must be changed whenever the server is loaded with new map data.</br>"
+															+ "</html>";
+	
 	
 	/**
 	 * New dialog pane for configuring the node. The dialog created here
@@ -119,6 +140,29 @@ public class RouteCalculatorNodeDialog extends DefaultNodeSettingsPane {
 		minRouteDuration.setEnabled(true);
 		addDialogComponent(minRouteDurationSelector);
 		
+		SettingsModelIntegerBounded maxInFlightRequests = RouteCalculatorNodeModel.createMaxInFlightRequestsSettings();
+		DialogComponentNumberEdit maxInFlightRequestsSelector = new DialogComponentNumberEdit(maxInFlightRequests, "Maximum number of requests in flight: ", 10);
+		maxInFlightRequestsSelector.setToolTipText(MAX_IN_FLIGHT_REQUESTS_TOOLTIP);
+		addDialogComponent(maxInFlightRequestsSelector);
+		
+		SettingsModelBoolean cacheResponses = RouteCalculatorNodeModel.createCacheResponsesSettings();
+		DialogComponentBoolean cacheResponsesSelector = new DialogComponentBoolean(cacheResponses, "Cache the responses of the routing service");
+		cacheResponsesSelector.setToolTipText(CACHE_RESPONSES_TOOLTIP);
+		addDialogComponent(cacheResponsesSelector);
+		
+		SettingsModelString mapVersion = RouteCalculatorNodeModel.createMapVersionSettings();
+		DialogComponentString mapVersionSelector = new DialogComponentString(mapVersion, "Map version of the routing service: ", false, 20);
+		mapVersionSelector.setToolTipText(MAP_VERSION_TOOLTIP);
+		addDialogComponent(mapVersionSelector);
+		
+		cacheResponses.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				mapVersion.setEnabled(cacheResponses.getBooleanValue());
+			}
+		});
+		
 		
 		routingService.addChangeListener(new ChangeListener() {
 
@@ -7,17 +7,24 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnProperties;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
+import org.knime.core.data.DataType;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.container.CloseableRowIterator;
 import org.knime.core.data.date.DateAndTimeCell;
@@ -37,6 +44,8 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
@@ -47,6 +56,9 @@ import org.unina.spatialanalysis.routecalculator.entity.route.Route;
 import org.unina.spatialanalysis.routecalculator.logger.LogStringMaker;
 import org.unina.spatialanalysis.routecalculator.routingservice.*;
 import org.unina.spatialanalysis.routecalculator.routingservice.osrmroutingservice.OsrmRoutingServiceFactory;
+import org.unina.spatialanalysis.osrmtransport.OsrmHostPool;
+import org.unina.spatialanalysis.osrmtransport.OsrmTransport;
+import org.unina.spatialanalysis.settings.OptionalSettings;
 
 /**
  * This is the implementation of the node model of the
@@ -107,6 +119,23 @@ public class RouteCalculatorNodeModel extends NodeModel {
 	
 	private static final int DEFAULT_MIN_ROUTE_DURATION = 5;
 	
+	private static final String MAX_IN_FLIGHT_REQUESTS = "m_max_in_flight_requests";
+	
+	private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 8;
+	
+	private static final String CACHE_RESPONSES = "m_cache_osrm_responses";
+	
+	private static final boolean DEFAULT_CACHE_RESPONSES = false;
+	
+	private static final String MAP_VERSION = "m_osrm_map_version";
+	
+	private static final String DEFAULT_MAP_VERSION = "";
+	
+	/**
+	 * How often, in milliseconds, the cancellation of the node is checked while waiting for a route.
+	 */
+	private static final long CANCEL_CHECK_INTERVAL = 200;
+	
 	private final SettingsModelColumnName m_colOwnerIDSettings = createColOwnerIDSettings();
 
 	private final SettingsModelColumnName m_colRouteIDSettings = createColRouteIDSettings();
@@ -142,6 +171,21 @@ public class RouteCalculatorNodeModel extends NodeModel {
 	
 	private final SettingsModelIntegerBounded m_minRouteDuration = createMinRouteDurationSettings();
 	
+	/**
+	 * The maximum number of route requests sent to the routing service at once.
+	 */
+	private final SettingsModelIntegerBounded m_maxInFlightRequests = createMaxInFlightRequestsSettings();
+	
+	/**
+	 * Whether the responses of the routing service are cached on disk.
+	 */
+	private final SettingsModelBoolean m_cacheResponses = createCacheResponsesSettings();
+	
+	/**
+	 * The version of the map data of the routing service, which tells apart the cached responses of different maps.
+	 */
+	private final SettingsModelString m_mapVersion = createMapVersionSettings();
+	
 	
 	static SettingsModelColumnName createColOwnerIDSettings() {
 		SettingsModelColumnName ownerIDColSettingModel = new SettingsModelColumnName(OWNER_ID_COL, null);
@@ -210,6 +254,20 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		return minRouteSpatialLengthSetting;
 	}
 	
+	static SettingsModelIntegerBounded createMaxInFlightRequestsSettings() {
+		return new SettingsModelIntegerBounded(MAX_IN_FLIGHT_REQUESTS, DEFAULT_MAX_IN_FLIGHT_REQUESTS, 1, 1024);
+	}
+	
+	static SettingsModelBoolean createCacheResponsesSettings() {
+		return new SettingsModelBoolean(CACHE_RESPONSES, DEFAULT_CACHE_RESPONSES);
+	}
+	
+	static SettingsModelString createMapVersionSettings() {
+		SettingsModelString mapVersion = new SettingsModelString(MAP_VERSION, DEFAULT_MAP_VERSION);
+		mapVersion.setEnabled(DEFAULT_CACHE_RESPONSES);
+		return mapVersion;
+	}
+	
 	/**.
 	 * The following method will also be used in the {@link RouteCalculatorNodeDialog}. 
 	 * @return a new SettingsModelString with the key for the coordinate pair type String.
@@ -257,7 +315,7 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		String host = m_routingServiceHostSettings.getStringValue();
 		
 		/*
-		 * The routing mode for the routing service, either 'match' or 'shortest'.
+		 * The routing mode for the routing service, either 'match', 'shortest' or 'table'.
 		 */
 		String routingMode = m_routingMode.getStringValue();
 		
@@ -305,7 +363,7 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		
 		switch(routingServiceSetting) {
 			case("OSRM"):
-				routingServiceFactory = new OsrmRoutingServiceFactory(host);
+				routingServiceFactory = new OsrmRoutingServiceFactory(host, m_cacheResponses.getBooleanValue() ? m_mapVersion.getStringValue().trim() : null);
 				break;
 			default:
 				return null;
@@ -313,6 +371,7 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		
 		
 		RoutingService<Position, Route> routingService = routingServiceFactory.getRoutingService(routingMode);
+		OsrmHostPool hosts = OsrmTransport.getInstance().getHostPool(host);
 	
 		/*
 		 * Create the spec of the output table.
@@ -381,115 +440,142 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		 */
 		long currentRowCounter = 0;
 		
-		while (rowIterator.hasNext()) {
+		/*
+		 * Up to maxInFlight routes are calculated at once by the routing service while the rows are
+		 * still being read; the routes are written in the order of the input as soon as the oldest
+		 * one is calculated, applying the duration and distance filters. The routing services grouping
+		 * several routes in a request keep that many requests in flight: the oldest route is always in a
+		 * request already sent, but for the last routes grouped once the input table has been read.
+		 */
+		int maxInFlight = m_maxInFlightRequests.getIntValue() * routingService.getBatchSize();
+		ArrayDeque<CompletableFuture<Route>> pending = new ArrayDeque<CompletableFuture<Route>>();
+		
+		try {
+			while (rowIterator.hasNext() || !pending.isEmpty()) {
 			
-			//Begin reading 
-			DataRow currentRow = rowIterator.next();
+				if(!rowIterator.hasNext() || pending.size() >= maxInFlight) {
+					try {
+						if(!rowIterator.hasNext()) {
+							routingService.flush();
+						}
+						Route route = awaitRoute(pending.poll(), exec);
+						if(route != null) {
+							numberOfFoundRoutes++;
+							if(route.getDuration()>=minRouteDuration && route.getDistance()>=minRouteDistance) {
+								addRouteToResultTable(route, container, " "+numberOfFoundRoutes);
+							}else {
+								numberOfDiscardedRoutes++;
+							}
+						}
+					}catch(ServiceException e) {
+						numberOfMissedRoutes++;
+					}catch(IOException e) {
+						numberOfMissedRoutes++;
+					}
+					continue;
+				}
 			
-			long routeId = 0;
-			int ownerId = 0;
-			String timestamp = null;
-			String position = null;
-			Position p;
+				//Begin reading 
+				DataRow currentRow = rowIterator.next();
 			
-			DataCell cell = currentRow.getCell(routeIdIndex);
-			if (cell.getType().getCellClass().equals((LongCell.class))) {
-				LongCell routeIdCell = (LongCell) cell;
-				routeId = routeIdCell.getLongValue();
-				/*
-				 * If the the prevId had value -1 initialize it to the current id.
-				 */
-				if(prevRouteId==-1) {			
-					prevRouteId=routeId;
+				long routeId = 0;
+				int ownerId = 0;
+				String timestamp = null;
+				String position = null;
+				Position p;
+			
+				DataCell cell = currentRow.getCell(routeIdIndex);
+				if (cell.getType().getCellClass().equals((LongCell.class))) {
+					LongCell routeIdCell = (LongCell) cell;
+					routeId = routeIdCell.getLongValue();
+					/*
+					 * If the the prevId had value -1 initialize it to the current id.
+					 */
+					if(prevRouteId==-1) {			
+						prevRouteId=routeId;
+					}
+					currentRouteId=routeId;
 				}
-				currentRouteId=routeId;
-			}
-			//Assigning data
-			cell = currentRow.getCell(timeStampIndex);
-			if(cell.getType().getCellClass().equals(DateAndTimeCell.class)) {
-					DateAndTimeCell timestampCell = (DateAndTimeCell) cell;
-					timestamp = timestampCell.getStringValue();
+				//Assigning data
+				cell = currentRow.getCell(timeStampIndex);
+				if(cell.getType().getCellClass().equals(DateAndTimeCell.class)) {
+						DateAndTimeCell timestampCell = (DateAndTimeCell) cell;
+						timestamp = timestampCell.getStringValue();
+					}
+				cell = currentRow.getCell(locationIndex);
+				if(cell.getType().getCellClass().equals(StringCell.class)) {
+					StringCell stringCell = (StringCell) cell;
+					position = stringCell.getStringValue();
 				}
-			cell = currentRow.getCell(locationIndex);
-			if(cell.getType().getCellClass().equals(StringCell.class)) {
-				StringCell stringCell = (StringCell) cell;
-				position = stringCell.getStringValue();
-			}
 			
-			cell = currentRow.getCell(ownerIdIndex);
-			if(cell.getClass().equals(IntCell.class)){
-				IntCell ownerIdCell = (IntCell) cell;
-				ownerId = ownerIdCell.getIntValue();
-			}else {
-				System.out.println("BUT WHY?");
-			}
+				cell = currentRow.getCell(ownerIdIndex);
+				if(cell.getClass().equals(IntCell.class)){
+					IntCell ownerIdCell = (IntCell) cell;
+					ownerId = ownerIdCell.getIntValue();
+				}else {
+					System.out.println("BUT WHY?");
+				}
 			
-			//Create the current position
-			p= positionFactory.createPosition(ownerId, timestamp, position);
+				//Create the current position
+				p= positionFactory.createPosition(ownerId, timestamp, position);
 			
-			/*
-			 * If either the current Id has changed from the previous Id, meaning we have read all
-			 * the positions of said Id, OR the rowIterator does not have a nextValue, meaning we have
-			 * finished reading the table, we begin the routing operations for the vehicle identified
-			 * by the prevId.
-			 */
-			if(prevRouteId!=currentRouteId || !rowIterator.hasNext()) {
 				/*
-				 * In the case we have no next value the current position has to be added to the
-				 * set holding the positions for id.
+				 * If either the current Id has changed from the previous Id, meaning we have read all
+				 * the positions of said Id, OR the rowIterator does not have a nextValue, meaning we have
+				 * finished reading the table, we begin the routing operations for the vehicle identified
+				 * by the prevId.
 				 */
-				if(!rowIterator.hasNext()) {
-					positions.add(p);
-				}
-				Route route = null;
-				try {
-					route = routingService.findRoute(positions);
-					if(route != null) {
-						numberOfFoundRoutes++;
-						if(route.getDuration()>=minRouteDuration && route.getDistance()>=minRouteDistance) {
-							addRouteToResultTable(route, container, " "+numberOfFoundRoutes);
-						}else {
-							numberOfDiscardedRoutes++;
-						}
-					}			
+				if(prevRouteId!=currentRouteId || !rowIterator.hasNext()) {
+					/*
+					 * In the case we have no next value the current position has to be added to the
+					 * set holding the positions for id.
+					 */
+					if(!rowIterator.hasNext()) {
+						positions.add(p);
+					}
+					pending.add(routingService.findRouteAsync(positions));
 					prevRouteId = currentRouteId;
-					positions.clear();
+					/*
+					 * The positions sent are in use until the route is calculated, hence a new set is filled.
+					 */
+					positions = new TreeSet<Position>(positions.comparator());
 					if(rowIterator.hasNext()) {
 						if(p.isValid()) {
 							positions.add(p);
 						}
 					}
-				}catch(ServiceException e) {
-					numberOfMissedRoutes++;
-				}catch(IOException e) {
-					numberOfMissedRoutes++;
-				}
-			}else{
-				/*
-				 * In this case, meaning we have more positions to read for the current id, or the input table has still rows
-				 * to read, we add the read position to the holding set.
-				 */
-				if(p.isValid()) {
-					positions.add(p);
+				}else{
+					/*
+					 * In this case, meaning we have more positions to read for the current id, or the input table has still rows
+					 * to read, we add the read position to the holding set.
+					 */
+					if(p.isValid()) {
+						positions.add(p);
+					}
 				}
-			}
 
 			
 			 
 			
-			// We finished processing one row, hence increase the counter
-			currentRowCounter++;
-
-			/*
-			 * Here we check if a user triggered a cancel of the node. 
-			 */
-			exec.checkCanceled();
-
-			/*
-			 * Calculate the percentage of execution progress and inform the
-			 * ExecutionMonitor. 
-			 */
-			exec.setProgress(currentRowCounter / (double) inputTable.size(), "Processing row " + currentRowCounter + " of " +inputTable.size());
+				// We finished processing one row, hence increase the counter
+				currentRowCounter++;
+
+				/*
+				 * Here we check if a user triggered a cancel of the node. 
+				 */
+				exec.checkCanceled();
+
+				/*
+				 * Calculate the percentage of execution progress and inform the
+				 * ExecutionMonitor. 
+				 */
+				exec.setProgress(currentRowCounter / (double) inputTable.size(), "Processing row " + currentRowCounter + " of " +inputTable.size()
+						+ " (" + hosts.getSummary() + ")");
+			}
+		}finally {
+			for(Future<Route> route: pending) {
+				route.cancel(true);
+			}
 		}
 	
 		/*
@@ -499,10 +585,34 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		BufferedDataTable routes = container.getTable();
 		
 		LOGGER.info(LogStringMaker.logExecutionEnd(currentRowCounter, inputTable.size() ,numberOfFoundRoutes, numberOfMissedRoutes, numberOfDiscardedRoutes, routingMode));
+		LOGGER.info(OsrmTransport.getInstance().printStats());
 		
 		return new BufferedDataTable[] {routes};
 	}
 	
+	/**
+	 * Waits for a route sent to the routing service, checking every now and then whether the node has been canceled.
+	 */
+	private static Route awaitRoute(Future<Route> route, ExecutionMonitor exec) throws IOException, InterruptedException, CanceledExecutionException {
+		while(true) {
+			try {
+				return route.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			}catch(TimeoutException e) {
+				exec.checkCanceled();
+			}catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException) {
+					throw (IOException) cause;
+				}else if(cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}else if(cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IOException(cause);
+			}
+		}
+	}
+	
 	/*
 	 * A convenience method to add a route to the result table.
 	 */
@@ -534,7 +644,7 @@ public class RouteCalculatorNodeModel extends NodeModel {
 				e1.printStackTrace();
 			}
 			cells.add(endsAt);
-			DataCell toAdd = new StringCell(r.getRouteAsGPSLinestring());
+			DataCell toAdd = r.getRouteAsGPSLinestring() != null ? new StringCell(r.getRouteAsGPSLinestring()) : DataType.getMissingCell();
 			cells.add(toAdd);
 			DataRow row = new DefaultRow("N" + specifier, cells);
 			try {
@@ -602,20 +712,31 @@ public class RouteCalculatorNodeModel extends NodeModel {
 
 	private void validateOSRMRoutingMachine() throws InvalidSettingsException {
 		/*
-		 * Check if the OSRM server host inserted is a valid URL and if it available.
+		 * Check if the OSRM server hosts inserted are valid URLs and if at least one of them is available,
+		 * the others are dropped by the host pool until they can be reached.
 		 */
-		String osrmHost = m_routingServiceHostSettings.getStringValue();
-		osrmHost = osrmHost.toLowerCase();
-		try {
-		    URL myURL = new URL(osrmHost);
-		    URLConnection myURLConnection = myURL.openConnection();
-		    myURLConnection.connect();
-		} 
-		catch (MalformedURLException e) {
-			LOGGER.error(LogStringMaker.logError("The entered host is not a valid URL!"));
-			throw new InvalidSettingsException("The entered host is not a valid URL!");
-		} 
-		catch (IOException e) {   
+		List<String> osrmHosts = OsrmHostPool.parseEndpoints(m_routingServiceHostSettings.getStringValue());
+		if(osrmHosts.isEmpty()) {
+			LOGGER.error(LogStringMaker.logError("No host was entered!"));
+			throw new InvalidSettingsException("No host was entered!");
+		}
+		int reachableHosts = 0;
+		for(String osrmHost: osrmHosts) {
+			try {
+			    URL myURL = new URL(osrmHost.toLowerCase());
+			    URLConnection myURLConnection = myURL.openConnection();
+			    myURLConnection.connect();
+			    reachableHosts++;
+			} 
+			catch (MalformedURLException e) {
+				LOGGER.error(LogStringMaker.logError("The entered host " + osrmHost + " is not a valid URL!"));
+				throw new InvalidSettingsException("The entered host " + osrmHost + " is not a valid URL!");
+			} 
+			catch (IOException e) {   
+				LOGGER.warn("The OSRM host " + osrmHost + " could not be reached.");
+			}
+		}
+		if(reachableHosts == 0) {
 			LOGGER.error(LogStringMaker.logError("The entered host could not be reached!"));
 			throw new InvalidSettingsException("The entered host could not be reached!");
 		}
@@ -636,7 +757,7 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		
 		
 		String routingMode = m_routingMode.getStringValue();
-		if(!(routingMode.equals("match") || routingMode.equals("shortest"))) {
+		if(!(routingMode.equals("match") || routingMode.equals("shortest") || routingMode.equals("table"))) {
 			LOGGER.error(LogStringMaker.logError("The routing mode selected is not available for the OSRM routing machine!"));
 			throw new InvalidSettingsException("The routing mode selected is not available for the OSRM routing machine!");
 		}
@@ -709,6 +830,9 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		m_routingMode.saveSettingsTo(settings);
 		m_minRouteDistance.saveSettingsTo(settings);
 		m_minRouteDuration.saveSettingsTo(settings); 
+		m_maxInFlightRequests.saveSettingsTo(settings);
+		m_cacheResponses.saveSettingsTo(settings);
+		m_mapVersion.saveSettingsTo(settings);
 	}
 
 	/**
@@ -734,6 +858,9 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		m_routingMode.loadSettingsFrom(settings);
 		m_minRouteDistance.loadSettingsFrom(settings);
 		m_minRouteDuration.loadSettingsFrom(settings); 
+		OptionalSettings.load(m_maxInFlightRequests, MAX_IN_FLIGHT_REQUESTS, settings);
+		OptionalSettings.load(m_cacheResponses, CACHE_RESPONSES, settings);
+		OptionalSettings.load(m_mapVersion, MAP_VERSION, settings);
 	}
 
 	/**
@@ -758,6 +885,9 @@ public class RouteCalculatorNodeModel extends NodeModel {
 		m_routingMode.validateSettings(settings);
 		m_minRouteDistance.validateSettings(settings);
 		m_minRouteDuration.validateSettings(settings); 
+		OptionalSettings.validate(m_maxInFlightRequests, MAX_IN_FLIGHT_REQUESTS, settings);
+		OptionalSettings.validate(m_cacheResponses, CACHE_RESPONSES, settings);
+		OptionalSettings.validate(m_mapVersion, MAP_VERSION, settings);
 	}
 
 	@Override
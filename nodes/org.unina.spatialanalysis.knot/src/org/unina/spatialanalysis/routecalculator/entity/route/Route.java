@@ -28,7 +28,7 @@ public class Route {
      * The constructor takes a JSON response of OSRM, with the geometry parameters set as geojson. It then extracts the
      * coordinates from the object and stores it internally as a String. The starting and ending locations are stored
      * in two points.
-     * @param coordinates A JSON array of coordinates.
+     * @param coordinates A JSON array of coordinates, empty if the geometry of the route is not known.
      */
     public Route(ArrayList<GPSPosition> coordinates, Double aDistance, Double aDuration, Position startingPosition,Position finalPosition) {
         start = startingPosition.getLocation();
@@ -38,6 +38,10 @@ public class Route {
         distance = aDistance;
         duration = aDuration;
         id = startingPosition.getId();
+        if(coordinates.isEmpty()) {
+        	routeAsGPSLinestring = null;
+        	return;
+        }
         double latitude;
         double longitude;
         routeAsGPSLinestring = "LINESTRING( ";
@@ -2,6 +2,7 @@ package org.unina.spatialanalysis.routecalculator.routingservice;
 
 
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 import org.unina.spatialanalysis.routecalculator.entity.position.Position;
 import org.unina.spatialanalysis.routecalculator.entity.route.Route;
@@ -24,4 +25,38 @@ public interface RoutingService<T extends Position, S extends Route> {
 	 * @throws Exception
 	 */
 	public S findRoute(TreeSet<T> positions) throws Exception;
+	
+	/**
+	 * The method findRouteAsync sends the request for the route traversing the positions and returns
+	 * at once, so that several routes can be calculated at the same time.
+	 * The default implementation calculates the route on the calling thread with {@link #findRoute(TreeSet)}.
+	 * @param positions the Set of Position the result Route S must have traversed; it must not be
+	 * changed until the future is completed.
+	 * @return a future completed with the S that traverses the input Ts, or with the exception
+	 * thrown while calculating it.
+	 */
+	public default CompletableFuture<S> findRouteAsync(TreeSet<T> positions) {
+		CompletableFuture<S> result = new CompletableFuture<S>();
+		try {
+			result.complete(findRoute(positions));
+		}catch(Exception e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+	
+	/**
+	 * Sends at once the requests of the routes found asynchronously so far, for the routing services
+	 * that group several routes in a request. It must be called before waiting for a route that may
+	 * not have been sent yet.
+	 */
+	public default void flush() {
+	}
+	
+	/**
+	 * @return the number of routes grouped in a request, 1 if each route has a request of its own.
+	 */
+	public default int getBatchSize() {
+		return 1;
+	}
 }
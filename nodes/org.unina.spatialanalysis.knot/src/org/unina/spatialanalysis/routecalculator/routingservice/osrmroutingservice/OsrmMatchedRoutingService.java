@@ -12,10 +12,7 @@ import org.unina.spatialanalysis.routecalculator.entity.position.Position;
 import org.unina.spatialanalysis.routecalculator.entity.route.Route;
 import org.unina.spatialanalysis.routecalculator.entity.route.RouteFactory;
 import org.unina.spatialanalysis.routecalculator.routingservice.RoutingService;
-
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import org.unina.spatialanalysis.osrmtransport.OsrmTransport;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -163,16 +160,12 @@ public class OsrmMatchedRoutingService<T extends Position, S extends Route> impl
   
 
 	public JSONObject runRequest(String url) throws IOException, ServiceException {
-		OkHttpClient client = new OkHttpClient();
-		Request request = new Request.Builder().url(url).build();
-		try(Response response = client.newCall(request).execute()){
-			JSONObject res = new JSONObject(response.body().string());
-			String requestCode = res.getString("code");
-			if(requestCode.equals("Ok")) {
-				return res;
-			}else {
-				throw new ServiceException(res.getString("message"));
-			}
+		JSONObject res = new JSONObject(OsrmTransport.getInstance().get(url));
+		String requestCode = res.getString("code");
+		if(requestCode.equals("Ok")) {
+			return res;
+		}else {
+			throw new ServiceException(res.getString("message"));
 		}
 	}
 
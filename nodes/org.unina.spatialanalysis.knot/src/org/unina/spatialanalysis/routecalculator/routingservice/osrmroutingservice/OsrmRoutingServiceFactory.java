@@ -8,13 +8,23 @@ import org.unina.spatialanalysis.routecalculator.routingservice.RoutingService;
 public class OsrmRoutingServiceFactory extends AbstractRoutingServiceFactory {
 	private final String host;
 	
+	private final String mapVersion;
+	
 	public OsrmRoutingServiceFactory(String host) {
+		this(host, null);
+	}
+	
+	/**
+	 * @param mapVersion the version of the map data of the OSRM instances, or null not to cache their responses.
+	 */
+	public OsrmRoutingServiceFactory(String host, String mapVersion) {
 		this.host= host;
+		this.mapVersion = mapVersion;
 	}
 	
 	/**
 	 * The method returns either an instance of OsrmMatchedRoutingService, if the mode is 'match', or
-	 * OsrmShortestRoutingService, if the mode is 'shortest'.
+	 * OsrmShortestRoutingService, if the mode is 'shortest', or OsrmTableRoutingService, if the mode is 'table'.
 	 */
 	@Override
 	public <T extends Position, S extends Route> RoutingService<T, S> getRoutingService(String mode) {
@@ -28,7 +38,9 @@ public class OsrmRoutingServiceFactory extends AbstractRoutingServiceFactory {
              *   return new OsrmMatchedRoutingService<T,S>(host);
              */
             case "shortest":
-            	return new OsrmShortestRoutingService<T,S>(host);
+            	return new OsrmShortestRoutingService<T,S>(host, mapVersion);
+            case "table":
+            	return new OsrmTableRoutingService<T,S>(host, mapVersion);
             default:
                 System.out.println("No such mode!");
                 return null;
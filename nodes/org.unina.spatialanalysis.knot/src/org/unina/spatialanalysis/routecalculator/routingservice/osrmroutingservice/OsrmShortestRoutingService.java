@@ -4,19 +4,21 @@ import org.unina.spatialanalysis.routecalculator.entity.route.Route;
 import org.unina.spatialanalysis.routecalculator.entity.route.RouteFactory;
 import org.unina.spatialanalysis.routecalculator.routingservice.RoutingService;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.osgi.framework.ServiceException;
 import org.unina.spatialanalysis.routecalculator.entity.position.GPSPosition;
 import org.unina.spatialanalysis.routecalculator.entity.position.Position;
+import org.unina.spatialanalysis.osrmtransport.OsrmHostPool;
+import org.unina.spatialanalysis.osrmtransport.OsrmJsonReader;
+import org.unina.spatialanalysis.osrmtransport.OsrmPolyline;
+import org.unina.spatialanalysis.osrmtransport.OsrmRequestProfile;
+import org.unina.spatialanalysis.osrmtransport.OsrmTransport;
+
+import okio.BufferedSource;
 
 /**
  * The OsrmShortestRoutingService uses the ProjectOSRM routing service to calculate the shortest path
@@ -36,66 +38,135 @@ public class OsrmShortestRoutingService<T extends Position, S extends Route> imp
 
     public final String host;
     
+    /**
+     * The OSRM instances the requests are distributed among.
+     */
+    private final OsrmHostPool hosts;
+    
+    /**
+     * The version of the map data of the hosts, which identifies their responses in the cache,
+     * or null if the responses are not cached.
+     */
+    private final String mapVersion;
+    
     public OsrmShortestRoutingService(String routingServiceHost) {
+		this(routingServiceHost, null);
+	}
+    
+    /**
+     * @param routingServiceHost the base url of one or more OSRM instances serving the same map.
+     * @param mapVersion the version of the map data of the instances, or null not to cache the responses.
+     */
+    public OsrmShortestRoutingService(String routingServiceHost, String mapVersion) {
 		this.host = routingServiceHost;
-    	
+		this.hosts = OsrmTransport.getInstance().getHostPool(routingServiceHost);
+		this.mapVersion = mapVersion;
 	}
     
     @Override
     public S findRoute(TreeSet<T> pos) throws IOException, InterruptedException {
-        String uri = host + REQUEST_FOR_SHORTEST_ROUTE;
         T startingPosition = pos.first();
         T finalPosition = pos.last();
+        return OsrmTransport.getInstance().get(hosts, createRequest(startingPosition, finalPosition), mapVersion, body -> decodeRoute(body, startingPosition, finalPosition));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The request is enqueued on the shared OSRM transport and the response is decoded by its
+     * dispatcher threads, so no thread of the caller waits for the routing service.
+     */
+    @Override
+    public CompletableFuture<S> findRouteAsync(TreeSet<T> pos) {
+        T startingPosition = pos.first();
+        T finalPosition = pos.last();
+        return OsrmTransport.getInstance().getAsync(hosts, createRequest(startingPosition, finalPosition), mapVersion, body -> decodeRoute(body, startingPosition, finalPosition));
+    }
+    
+    private String createRequest(T startingPosition, T finalPosition) {
+        String uri = REQUEST_FOR_SHORTEST_ROUTE;
         uri += (startingPosition.getLocation().getLon() + "," + startingPosition.getLocation().getLat() + ";");
         uri += (finalPosition.getLocation().getLon() + "," + finalPosition.getLocation().getLat());
-        uri +=("?geometries=geojson");
-        uri +=("&overview=full");
-        uri +=("&steps=true");
+        return OsrmRequestProfile.GEOMETRY.appendTo(uri);
+    }
+    
+    /**
+     * Decodes the first route of the response to a request with the @see OsrmRequestProfile#GEOMETRY profile
+     * while it is received, skipping the legs and the waypoints.
+     * @return the route, or null if the routing service failed to find one.
+     */
+    private S decodeRoute(BufferedSource body, T start, T end) throws IOException {
         try {
-        	JSONObject jsonObject = runRequest(uri);
-        	return routingJsonDecoder(jsonObject, startingPosition, finalPosition);
+        	return routingJsonDecoder(new OsrmJsonReader(body), start, end);
         }catch(ServiceException e) {
         	System.out.println(e.getMessage());
         	return null;
         }
     }
     
-    @SuppressWarnings("unchecked")
-	private S routingJsonDecoder(JSONObject jsonObject,T start, T end) {
+	private S routingJsonDecoder(OsrmJsonReader reader, T start, T end) throws IOException {
         S res = null;
-        JSONArray routes = jsonObject.getJSONArray("routes");
-        Object o = routes.get(0);
-        if(o instanceof JSONObject) {
-        	JSONObject routeObject = (JSONObject) o ;
-	    	JSONArray coordinates = routeObject.getJSONObject("geometry").getJSONArray("coordinates");
-	    	res = (S) RouteFactory.createRoute(decodeCoordinatesArray(coordinates), routeObject.getDouble("distance"), routeObject.getDouble("duration"), start, end); 
+        String code = null;
+        String message = null;
+        reader.beginObject();
+        while(reader.hasNext()) {
+        	switch(reader.nextName()) {
+        		case "code":
+        			code = reader.nextString();
+        			break;
+        		case "message":
+        			message = reader.nextString();
+        			break;
+        		case "routes":
+        			reader.beginArray();
+        			while(reader.hasNext()) {
+        				if(res == null) {
+        					res = readRoute(reader, start, end);
+        				}else {
+        					reader.skipValue();
+        				}
+        			}
+        			reader.endArray();
+        			break;
+        		default:
+        			reader.skipValue();
+        	}
+        }
+        reader.endObject();
+        if(!"Ok".equals(code)) {
+        	throw new ServiceException(message != null ? message : code);
         }
         return res;
     }
     
-
-	public JSONObject runRequest(String url) throws IOException, ServiceException {
-		OkHttpClient client = new OkHttpClient();
-		Request request = new Request.Builder().url(url).build();
-		try(Response response = client.newCall(request).execute()){
-			JSONObject res = new JSONObject(response.body().string());
-			String requestCode = res.getString("code");
-			if(requestCode.equals("Ok")) {
-				return res;
-			}else {
-				throw new ServiceException(res.getString("message"));
-			}
-		}
-	}
-	
-	private ArrayList<GPSPosition> decodeCoordinatesArray(JSONArray coordinates) {
-        GPSPosition tmp;
-        ArrayList<GPSPosition> res = new ArrayList<GPSPosition>();
-        for(int i = 0; i< coordinates.length(); i++){
-            JSONArray internalArray = (JSONArray) coordinates.get(i);
-            tmp = new GPSPosition(internalArray.getDouble(1), internalArray.getDouble(0));
-            res.add(tmp);
+    private S readRoute(OsrmJsonReader reader, T start, T end) throws IOException {
+        ArrayList<GPSPosition> coordinates = new ArrayList<GPSPosition>();
+        double distance = 0;
+        double duration = 0;
+        reader.beginObject();
+        while(reader.hasNext()) {
+        	switch(reader.nextName()) {
+        		case "geometry":
+        			double[] points;
+        			try {
+        				points = OsrmPolyline.decode(reader.nextString(), OsrmPolyline.POLYLINE6);
+        			}catch(IllegalArgumentException e) {
+        				throw new IOException(e.getMessage());
+        			}
+        			for(int i = 0; i < points.length; i += 2) {
+        				coordinates.add(new GPSPosition(points[i], points[i + 1]));
+        			}
+        			break;
+        		case "distance":
+        			distance = reader.nextDouble();
+        			break;
+        		case "duration":
+        			duration = reader.nextDouble();
+        			break;
+        		default:
+        			reader.skipValue();
+        	}
         }
-        return res;
+        reader.endObject();
+        return RouteFactory.createRoute(coordinates, distance, duration, start, end);
     }
 }
@@ -0,0 +1,229 @@
+package org.unina.spatialanalysis.routecalculator.routingservice.osrmroutingservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.osgi.framework.ServiceException;
+import org.unina.spatialanalysis.osrmtransport.OsrmHostPool;
+import org.unina.spatialanalysis.osrmtransport.OsrmJsonReader;
+import org.unina.spatialanalysis.osrmtransport.OsrmRequestProfile;
+import org.unina.spatialanalysis.osrmtransport.OsrmTransport;
+import org.unina.spatialanalysis.routecalculator.entity.position.GPSPosition;
+import org.unina.spatialanalysis.routecalculator.entity.position.Position;
+import org.unina.spatialanalysis.routecalculator.entity.route.Route;
+import org.unina.spatialanalysis.routecalculator.entity.route.RouteFactory;
+import org.unina.spatialanalysis.routecalculator.routingservice.RoutingService;
+
+import okio.BufferedSource;
+
+/**
+ * The OsrmTableRoutingService uses the table service of ProjectOSRM to calculate the duration and the distance
+ * of the shortest path between the starting position and the final position of many routes with a single request,
+ * without their geometry.
+ * The routes found asynchronously are grouped until a request is full or {@link #flush()} is called; the request
+ * has the starting positions as sources and the final positions as destinations, and the routes are read from the
+ * diagonal of the returned matrices.
+ * @author sinog
+ *
+ * @param <T> The specific kind of position this routing service must operate on.
+ * @param <S> The specific kind of route this routing service must return.
+ */
+public class OsrmTableRoutingService<T extends Position, S extends Route> implements RoutingService<T, S> {
+
+    /**
+     * An http request for the table service of project-osrm using a car.
+     */
+    public static String REQUEST_FOR_TABLE = "/table/v1/driving/";
+    
+    /**
+     * The default number of routes of a request, whose 2 positions each make the 100 coordinates
+     * allowed by the default max-table-size of the OSRM server.
+     */
+    public static final int DEFAULT_ROUTES_PER_REQUEST = 50;
+
+    public final String host;
+    
+    /**
+     * The OSRM instances the requests are distributed among.
+     */
+    private final OsrmHostPool hosts;
+    
+    /**
+     * The version of the map data of the hosts, which identifies their responses in the cache,
+     * or null if the responses are not cached.
+     */
+    private final String mapVersion;
+    
+    private final int routesPerRequest;
+    
+    /**
+     * The routes waiting to be sent.
+     */
+    private List<PendingRoute> batch = new ArrayList<PendingRoute>();
+    
+    public OsrmTableRoutingService(String routingServiceHost) {
+    	this(routingServiceHost, null);
+    }
+    
+    /**
+     * @param routingServiceHost the base url of one or more OSRM instances serving the same map.
+     * @param mapVersion the version of the map data of the instances, or null not to cache the responses.
+     */
+    public OsrmTableRoutingService(String routingServiceHost, String mapVersion) {
+    	this(routingServiceHost, mapVersion, DEFAULT_ROUTES_PER_REQUEST);
+    }
+    
+    public OsrmTableRoutingService(String routingServiceHost, String mapVersion, int routesPerRequest) {
+		this.host = routingServiceHost;
+		this.hosts = OsrmTransport.getInstance().getHostPool(routingServiceHost);
+		this.mapVersion = mapVersion;
+		this.routesPerRequest = Math.max(1, routesPerRequest);
+	}
+    
+    @Override
+    public S findRoute(TreeSet<T> pos) throws IOException, InterruptedException {
+    	CompletableFuture<S> route = findRouteAsync(pos);
+    	flush();
+    	try {
+    		return route.get();
+    	}catch(ExecutionException e) {
+    		if(e.getCause() instanceof IOException) {
+    			throw (IOException) e.getCause();
+    		}else if(e.getCause() instanceof RuntimeException) {
+    			throw (RuntimeException) e.getCause();
+    		}
+    		throw new IOException(e.getCause());
+    	}
+    }
+    
+    @Override
+    public synchronized CompletableFuture<S> findRouteAsync(TreeSet<T> pos) {
+    	PendingRoute route = new PendingRoute(pos.first(), pos.last());
+    	batch.add(route);
+    	if(batch.size() >= routesPerRequest) {
+    		flush();
+    	}
+    	return route.result;
+    }
+    
+    @Override
+    public synchronized void flush() {
+    	if(batch.isEmpty()) {
+    		return;
+    	}
+    	List<PendingRoute> routes = batch;
+    	batch = new ArrayList<PendingRoute>();
+    	OsrmTransport.getInstance().getAsync(hosts, createRequest(routes), mapVersion, body -> decodeTable(body, routes.size())).whenComplete((table, e) -> {
+    		for(int i = 0; i < routes.size(); i++) {
+    			PendingRoute route = routes.get(i);
+    			if(e != null) {
+    				route.result.completeExceptionally(e);
+    			}else if(Double.isNaN(table[0][i]) || Double.isNaN(table[1][i])) {
+    				route.result.complete(null);
+    			}else {
+    				route.result.complete(RouteFactory.createRoute(new ArrayList<GPSPosition>(), table[1][i], table[0][i], route.start, route.end));
+    			}
+    		}
+    	});
+    }
+    
+    @Override
+    public int getBatchSize() {
+    	return routesPerRequest;
+    }
+    
+    private String createRequest(List<PendingRoute> routes) {
+    	StringBuilder uri = new StringBuilder(REQUEST_FOR_TABLE);
+    	for(PendingRoute route: routes) {
+    		uri.append(route.start.getLocation().getLon()).append(',').append(route.start.getLocation().getLat()).append(';');
+    	}
+    	for(PendingRoute route: routes) {
+    		uri.append(route.end.getLocation().getLon()).append(',').append(route.end.getLocation().getLat()).append(';');
+    	}
+    	uri.setLength(uri.length() - 1);
+    	StringBuilder sources = new StringBuilder();
+    	StringBuilder destinations = new StringBuilder();
+    	for(int i = 0; i < routes.size(); i++) {
+    		sources.append(i > 0 ? ";" : "").append(i);
+    		destinations.append(i > 0 ? ";" : "").append(routes.size() + i);
+    	}
+    	uri.append("?sources=").append(sources).append("&destinations=").append(destinations);
+    	return OsrmRequestProfile.TABLE.appendTo(uri.toString());
+    }
+    
+    /**
+     * Reads the diagonals of the matrices of the durations and the distances while the response is received.
+     * @return the durations and the distances of the routes, NaN for those the service could not find.
+     * @throws ServiceException if the code of the response is not Ok.
+     */
+    static double[][] decodeTable(BufferedSource body, int routes) throws IOException {
+    	double[][] res = new double[2][routes];
+    	Arrays.fill(res[0], Double.NaN);
+    	Arrays.fill(res[1], Double.NaN);
+    	String code = null;
+    	String message = null;
+    	OsrmJsonReader reader = new OsrmJsonReader(body);
+    	reader.beginObject();
+    	while(reader.hasNext()) {
+    		switch(reader.nextName()) {
+    			case "code":
+    				code = reader.nextString();
+    				break;
+    			case "message":
+    				message = reader.nextString();
+    				break;
+    			case "durations":
+    				readDiagonal(reader, res[0]);
+    				break;
+    			case "distances":
+    				readDiagonal(reader, res[1]);
+    				break;
+    			default:
+    				reader.skipValue();
+    		}
+    	}
+    	reader.endObject();
+    	if(!"Ok".equals(code)) {
+    		throw new ServiceException(message != null ? message : code);
+    	}
+    	return res;
+    }
+    
+    private static void readDiagonal(OsrmJsonReader reader, double[] diagonal) throws IOException {
+    	reader.beginArray();
+    	for(int row = 0; reader.hasNext(); row++) {
+    		reader.beginArray();
+    		for(int col = 0; reader.hasNext(); col++) {
+    			if(col != row || row >= diagonal.length) {
+    				reader.skipValue();
+    			}else if(!reader.nextNull()) {
+    				diagonal[row] = reader.nextDouble();
+    			}
+    		}
+    		reader.endArray();
+    	}
+    	reader.endArray();
+    }
+    
+    /**
+     * A route waiting for its request to be sent.
+     */
+    private class PendingRoute {
+    	
+    	private final T start;
+    	
+    	private final T end;
+    	
+    	private final CompletableFuture<S> result = new CompletableFuture<S>();
+    	
+    	private PendingRoute(T start, T end) {
+    		this.start = start;
+    		this.end = end;
+    	}
+    }
+}
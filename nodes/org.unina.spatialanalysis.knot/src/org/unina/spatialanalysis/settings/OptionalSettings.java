@@ -0,0 +1,35 @@
+package org.unina.spatialanalysis.settings;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+
+/**
+ * Loads the settings added to a node after its first version, which keep their default value
+ * when the settings were saved by an older version, so that existing workflows still load.
+ * @author sinog
+ *
+ */
+public final class OptionalSettings {
+
+	private OptionalSettings() {
+	}
+
+	/**
+	 * Loads the setting if the settings contain its key, otherwise it keeps its value.
+	 */
+	public static void load(SettingsModel model, String key, NodeSettingsRO settings) throws InvalidSettingsException {
+		if(settings.containsKey(key)) {
+			model.loadSettingsFrom(settings);
+		}
+	}
+
+	/**
+	 * Validates the setting if the settings contain its key.
+	 */
+	public static void validate(SettingsModel model, String key, NodeSettingsRO settings) throws InvalidSettingsException {
+		if(settings.containsKey(key)) {
+			model.validateSettings(settings);
+		}
+	}
+}